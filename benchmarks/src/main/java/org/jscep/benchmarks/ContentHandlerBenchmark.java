@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.jscep.content.CertRepContentHandler;
+import org.jscep.util.FixedLengthInputStream;
+import org.jscep.util.StreamUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares reading a response body one byte at a time, as the content 
+ * handlers used to, with the bulk reads of {@link StreamUtil#readFully}.
+ * <p>
+ * The <code>framing</code> parameter selects a body with a known length
+ * (<code>Content-Length</code>) or an unknown length (chunked).  Run with
+ * the default GC profiler to compare allocation.
+ * 
+ * @author David Grant
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentHandlerBenchmark {
+	@Param({"1024", "65536", "1048576"})
+	public int size;
+	@Param({"fixed", "chunked"})
+	public String framing;
+	private byte[] body;
+	private byte[] signedData;
+	private CertRepContentHandler handler;
+	
+	@Setup
+	public void setUp() throws Exception {
+		body = new byte[size];
+		new Random(size).nextBytes(body);
+		
+		final CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+		signedData = generator.generate(new CMSProcessableByteArray(body), true, new org.bouncycastle.jce.provider.BouncyCastleProvider()).getEncoded();
+		handler = new CertRepContentHandler();
+	}
+	
+	@Benchmark
+	public byte[] byteAtATime() throws IOException {
+		return legacyRead(open(body));
+	}
+	
+	@Benchmark
+	public byte[] bulkRead() throws IOException {
+		return StreamUtil.readFully(open(body));
+	}
+	
+	@Benchmark
+	public CMSSignedData certRepByteAtATime() throws IOException, CMSException {
+		return new CMSSignedData(legacyRead(open(signedData)));
+	}
+	
+	@Benchmark
+	public CMSSignedData certRepBulkRead() throws IOException {
+		return handler.getContent(open(signedData), "application/x-pki-message");
+	}
+	
+	private InputStream open(byte[] content) {
+		final InputStream in = new ByteArrayInputStream(content);
+		if (framing.equals("fixed")) {
+			return new FixedLengthInputStream(in, content.length);
+		}
+		// Hide the length, as a chunked body would.
+		return new FilterInputStream(in) {};
+	}
+	
+	private static byte[] legacyRead(InputStream in) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1) {
+			baos.write(b);
+		}
+		return baos.toByteArray();
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.benchmarks;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.CertStore;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.pkcs.Attribute;
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.asn1.x509.X509ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.jscep.asn1.IssuerAndSubject;
+import org.jscep.message.CertRep;
+import org.jscep.message.GetCRL;
+import org.jscep.message.GetCert;
+import org.jscep.message.GetCertInitial;
+import org.jscep.message.PKCSReq;
+import org.jscep.message.PkiMessage;
+import org.jscep.transaction.Nonce;
+import org.jscep.transaction.TransactionId;
+import org.jscep.x509.X509Util;
+
+/**
+ * This class holds the key material shared by the message benchmarks: a
+ * CA and a requester, each with a key pair and self-signed certificate.
+ * <p>
+ * The padding grows the messageData of the messages whose size varies in
+ * practice: the CSR of a <code>PKCSReq</code> requests that many bytes of
+ * subject alternative names, and the <code>CertRep</code> carries a CRL 
+ * with that many bytes of revoked certificates.  The messageData of the 
+ * other messages has a fixed size.
+ * 
+ * @author David Grant
+ */
+final class Fixture {
+	// The approximate encoded size of each name or CRL entry.
+	private static final int NAME_SIZE = 31;
+	private static final int CRL_ENTRY_SIZE = 36;
+	final KeyPair caKeyPair;
+	final X509Certificate caCertificate;
+	final KeyPair requesterKeyPair;
+	final X509Certificate requesterCertificate;
+	final CertificationRequest csr;
+	private final X509CRL crl;
+	
+	/**
+	 * Creates a new fixture with keys of the provided size.
+	 * 
+	 * @param keySize the RSA key size in bits.
+	 * @param paddingSize the approximate number of bytes by which to pad the messageData.
+	 * @throws Exception if the key material cannot be created.
+	 */
+	Fixture(int keySize, int paddingSize) throws Exception {
+		if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+			Security.addProvider(new BouncyCastleProvider());
+		}
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(keySize);
+		
+		caKeyPair = generator.generateKeyPair();
+		caCertificate = X509Util.createEphemeralCertificate(new X500Principal("CN=Benchmark CA"), caKeyPair);
+		requesterKeyPair = generator.generateKeyPair();
+		requesterCertificate = X509Util.createEphemeralCertificate(new X500Principal("CN=Benchmark Requester"), requesterKeyPair);
+		
+		final PKCS10CertificationRequest p10 = new PKCS10CertificationRequest("SHA1withRSA", new X500Principal("CN=Benchmark Requester"), requesterKeyPair.getPublic(), createAttributes(paddingSize), requesterKeyPair.getPrivate());
+		csr = CertificationRequest.getInstance(ASN1Object.fromByteArray(p10.getEncoded()));
+		crl = paddingSize > 0 ? createCrl(paddingSize) : null;
+	}
+	
+	/**
+	 * Creates a pkiMessage of the named type.
+	 * <p>
+	 * Requests are sent by the requester to the CA; a <code>CertRep</code> 
+	 * is the CA's successful response to a <code>PKCSReq</code>, carrying 
+	 * the issued certificate chain.
+	 * 
+	 * @param messageType one of <code>PKCSReq</code>, <code>GetCertInitial</code>,
+	 *        <code>GetCert</code>, <code>GetCRL</code> or <code>CertRep</code>.
+	 * @return the message.
+	 * @throws Exception if the message cannot be created.
+	 */
+	PkiMessage<? extends ASN1Encodable> createMessage(String messageType) throws Exception {
+		final TransactionId transId = TransactionId.createTransactionId(requesterKeyPair.getPublic(), "SHA-1");
+		final PKCSReq pkcsReq = new PKCSReq(transId, Nonce.nextNonce(), csr);
+		if (messageType.equals("PKCSReq")) {
+			return pkcsReq;
+		} else if (messageType.equals("GetCertInitial")) {
+			final X509Name issuer = X509Util.toX509Name(caCertificate.getSubjectX500Principal());
+			final X509Name subject = csr.getCertificationRequestInfo().getSubject();
+			return new GetCertInitial(transId, Nonce.nextNonce(), new IssuerAndSubject(issuer, subject));
+		} else if (messageType.equals("GetCert")) {
+			return new GetCert(transId, Nonce.nextNonce(), X509Util.toIssuerAndSerialNumber(requesterCertificate));
+		} else if (messageType.equals("GetCRL")) {
+			return new GetCRL(transId, Nonce.nextNonce(), X509Util.toIssuerAndSerialNumber(caCertificate));
+		} else if (messageType.equals("CertRep")) {
+			return CertRep.createResponse(pkcsReq, new DEROctetString(getIssuedCertificates()));
+		} else {
+			throw new IllegalArgumentException(messageType);
+		}
+	}
+	
+	/**
+	 * Returns a degenerate certificates-only SignedData holding the 
+	 * requester and CA certificates, as carried by a successful CertRep.
+	 * 
+	 * @return the encoded SignedData.
+	 * @throws Exception if the SignedData cannot be created.
+	 */
+	byte[] getIssuedCertificates() throws Exception {
+		final CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+		generator.addCertificatesAndCRLs(getCertStore());
+		final CMSSignedData degenerate = generator.generate(new CMSProcessableByteArray(new byte[0]), false, BouncyCastleProvider.PROVIDER_NAME);
+		
+		return degenerate.getEncoded();
+	}
+	
+	private CertStore getCertStore() throws GeneralSecurityException {
+		final Collection<Object> items = new ArrayList<Object>();
+		items.add(requesterCertificate);
+		items.add(caCertificate);
+		if (crl != null) {
+			items.add(crl);
+		}
+		return CertStore.getInstance("Collection", new CollectionCertStoreParameters(items));
+	}
+	
+	private static ASN1Set createAttributes(int paddingSize) {
+		if (paddingSize == 0) {
+			return null;
+		}
+		final ASN1EncodableVector names = new ASN1EncodableVector();
+		for (int i = 0; i < paddingSize / NAME_SIZE; i++) {
+			names.add(new GeneralName(GeneralName.dNSName, String.format("host-%06d.benchmark.example", i)));
+		}
+		final X509ExtensionsGenerator extensions = new X509ExtensionsGenerator();
+		extensions.addExtension(X509Extensions.SubjectAlternativeName, false, new GeneralNames(new DERSequence(names)));
+		
+		return new DERSet(new Attribute(PKCSObjectIdentifiers.pkcs_9_at_extensionRequest, new DERSet(extensions.generate())));
+	}
+	
+	private X509CRL createCrl(int paddingSize) throws GeneralSecurityException {
+		final Date now = new Date();
+		final X509V2CRLGenerator generator = new X509V2CRLGenerator();
+		generator.setIssuerDN(caCertificate.getSubjectX500Principal());
+		generator.setThisUpdate(now);
+		generator.setNextUpdate(new Date(now.getTime() + 86400000L));
+		generator.setSignatureAlgorithm("SHA1withRSA");
+		for (int i = 0; i < paddingSize / CRL_ENTRY_SIZE; i++) {
+			generator.addCRLEntry(BigInteger.valueOf(1000000 + i), now, CRLReason.keyCompromise);
+		}
+		return generator.generate(caKeyPair.getPrivate(), BouncyCastleProvider.PROVIDER_NAME);
+	}
+}
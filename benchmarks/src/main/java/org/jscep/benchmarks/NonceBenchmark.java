@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.benchmarks;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.jscep.transaction.Nonce;
+import org.jscep.transaction.PrefetchingNonceGenerator;
+import org.jscep.transaction.ThreadLocalNonceGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares nonce generation from a single shared <code>SecureRandom</code>,
+ * as <code>Nonce.nextNonce()</code> used to, with the per-thread and 
+ * prefetching generators.
+ * <p>
+ * The benchmarks run on four threads by default; use <code>-t</code> to
+ * change the level of contention.
+ * 
+ * @author David Grant
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class NonceBenchmark {
+	private SecureRandom shared;
+	private ThreadLocalNonceGenerator threadLocal;
+	private PrefetchingNonceGenerator prefetching;
+	
+	@Setup
+	public void setUp() {
+		shared = new SecureRandom();
+		threadLocal = new ThreadLocalNonceGenerator();
+		prefetching = new PrefetchingNonceGenerator();
+	}
+	
+	@TearDown
+	public void tearDown() {
+		prefetching.shutdown();
+	}
+	
+	@Benchmark
+	public Nonce sharedSecureRandom() {
+		final byte[] bytes = new byte[16];
+		shared.nextBytes(bytes);
+		
+		return new Nonce(bytes);
+	}
+	
+	@Benchmark
+	public Nonce threadLocal() {
+		return threadLocal.nextNonce();
+	}
+	
+	@Benchmark
+	public Nonce prefetching() {
+		return prefetching.nextNonce();
+	}
+}
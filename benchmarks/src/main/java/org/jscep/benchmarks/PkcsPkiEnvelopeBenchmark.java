@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.cms.EnvelopedData;
+import org.bouncycastle.cms.CMSEnvelopedData;
+import org.jscep.message.CertRep;
+import org.jscep.message.PkcsPkiEnvelopeDecoder;
+import org.jscep.message.PkcsPkiEnvelopeEncoder;
+import org.jscep.message.PkiMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks encrypting and decrypting a pkcsPkiEnvelope with 
+ * {@link PkcsPkiEnvelopeEncoder} and {@link PkcsPkiEnvelopeDecoder}.
+ * <p>
+ * The payload is the messageData of a real pkiMessage of each type, 
+ * enveloped for the CA, or for the requester in the case of a 
+ * <code>CertRep</code>.  The padding size varies the payload of the
+ * <code>PKCSReq</code> and <code>CertRep</code> only; see {@link Fixture}.
+ * 
+ * @author David Grant
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PkcsPkiEnvelopeBenchmark {
+	@Param({"1024", "2048", "4096"})
+	public int keySize;
+	@Param({"PKCSReq", "GetCertInitial", "GetCert", "GetCRL", "CertRep"})
+	public String messageType;
+	@Param({"0", "4096", "65536"})
+	public int paddingSize;
+	@Param({"DESede", "AES", "AES-256"})
+	public String cipher;
+	private ASN1Encodable payload;
+	private PkcsPkiEnvelopeEncoder encoder;
+	private PkcsPkiEnvelopeDecoder decoder;
+	private EnvelopedData envelopedData;
+	
+	@Setup
+	public void setUp() throws Exception {
+		final Fixture fixture = new Fixture(keySize, paddingSize);
+		final PkiMessage<? extends ASN1Encodable> message = fixture.createMessage(messageType);
+		payload = message.getMessageData();
+		
+		if (message instanceof CertRep) {
+			encoder = new PkcsPkiEnvelopeEncoder(fixture.requesterCertificate, cipher);
+			decoder = new PkcsPkiEnvelopeDecoder(fixture.requesterKeyPair.getPrivate());
+		} else {
+			encoder = new PkcsPkiEnvelopeEncoder(fixture.caCertificate, cipher);
+			decoder = new PkcsPkiEnvelopeDecoder(fixture.caKeyPair.getPrivate());
+		}
+		envelopedData = EnvelopedData.getInstance(encoder.encode(payload).getContentInfo().getContent());
+	}
+	
+	@Benchmark
+	public CMSEnvelopedData encode() throws IOException {
+		return encoder.encode(payload);
+	}
+	
+	@Benchmark
+	public ASN1Encodable decode() throws IOException {
+		return decoder.decode(envelopedData);
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.cms.CMSSignedData;
+import org.jscep.message.CertRep;
+import org.jscep.message.PkcsPkiEnvelopeDecoder;
+import org.jscep.message.PkcsPkiEnvelopeEncoder;
+import org.jscep.message.PkiMessage;
+import org.jscep.message.PkiMessageDecoder;
+import org.jscep.message.PkiMessageEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks signing and verifying complete pkiMessages with 
+ * {@link PkiMessageEncoder} and {@link PkiMessageDecoder}.
+ * <p>
+ * Requests are encoded by the requester for the CA, and a 
+ * <code>CertRep</code> is encoded by the CA for the requester, carrying the 
+ * issued certificate chain.  Decoding uses the streaming decoder, as the
+ * transactions do.  The padding size grows the CSR of a 
+ * <code>PKCSReq</code> and the CRL carried by a <code>CertRep</code>; see
+ * {@link Fixture}.
+ * 
+ * @author David Grant
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PkiMessageBenchmark {
+	@Param({"1024", "2048", "4096"})
+	public int keySize;
+	@Param({"PKCSReq", "GetCertInitial", "GetCert", "GetCRL", "CertRep"})
+	public String messageType;
+	@Param({"0", "4096", "65536"})
+	public int paddingSize;
+	private PkiMessage<? extends ASN1Encodable> message;
+	private PkiMessageEncoder encoder;
+	private PkiMessageDecoder decoder;
+	private byte[] encoded;
+	
+	@Setup
+	public void setUp() throws Exception {
+		final Fixture fixture = new Fixture(keySize, paddingSize);
+		message = fixture.createMessage(messageType);
+		if (message instanceof CertRep) {
+			encoder = new PkiMessageEncoder(fixture.caKeyPair.getPrivate(), fixture.caCertificate, new PkcsPkiEnvelopeEncoder(fixture.requesterCertificate));
+			decoder = new PkiMessageDecoder(new PkcsPkiEnvelopeDecoder(fixture.requesterKeyPair.getPrivate()));
+		} else {
+			encoder = new PkiMessageEncoder(fixture.requesterKeyPair.getPrivate(), fixture.requesterCertificate, new PkcsPkiEnvelopeEncoder(fixture.caCertificate));
+			decoder = new PkiMessageDecoder(new PkcsPkiEnvelopeDecoder(fixture.caKeyPair.getPrivate()));
+		}
+		encoded = encoder.encode(message).getEncoded();
+	}
+	
+	@Benchmark
+	public CMSSignedData encode() throws IOException {
+		return encoder.encode(message);
+	}
+	
+	@Benchmark
+	public PkiMessage<? extends ASN1Encodable> decode() throws IOException {
+		return decoder.decode(new ByteArrayInputStream(encoded));
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.benchmarks;
+
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.jscep.content.CertRepContentHandler;
+import org.jscep.transport.ConnectionManager;
+import org.jscep.transport.Transport;
+import org.jscep.util.LoggingUtil;
+import org.jscep.util.Tracer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the cost of tracing through <code>Logger.entering/exiting</code>, 
+ * as the library used to, with {@link Tracer}, while <code>FINER</code> 
+ * messages are disabled.
+ * <p>
+ * The <code>logger</code> and <code>tracer</code> benchmarks trace an 
+ * otherwise empty content handler call.  In a method this small, the JIT 
+ * inlines <code>Logger</code> and can eliminate the parameter array 
+ * altogether, which it rarely manages in the larger methods of the library,
+ * so the <code>OutOfLine</code> variants run in a fork which prevents 
+ * <code>Logger</code> methods from being inlined.  The 
+ * <code>createTransport</code> benchmarks compare a real call path, 
+ * {@link Transport#createTransport(Transport.Method, URL, Proxy)}, as it 
+ * was written before and after, with no constraints on the JIT.  Run with 
+ * <code>-prof gc</code> to compare the allocation rates.
+ * 
+ * @author David Grant
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TracerBenchmark {
+	private static final String DONT_INLINE_LOGGER = "-XX:CompileCommand=dontinline,java.util.logging.Logger::*";
+	private static final Logger LOGGER = LoggingUtil.getLogger(CertRepContentHandler.class);
+	private static final Tracer TRACER = Tracer.getTracer(CertRepContentHandler.class);
+	private static final Logger TRANSPORT_LOGGER = LoggingUtil.getLogger(Transport.class);
+	private Object in = new Object();
+	private String mimeType = "application/x-pki-message";
+	private Object result = new Object();
+	private Transport.Method method = Transport.Method.POST;
+	private URL url;
+	private Proxy proxy = Proxy.NO_PROXY;
+	
+	public TracerBenchmark() {
+		try {
+			url = new URL("http://localhost/scep");
+		} catch (MalformedURLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	@Benchmark
+	public Object logger() {
+		LOGGER.entering(CertRepContentHandler.class.getName(), "getContent", new Object[] {in, mimeType});
+		LOGGER.exiting(CertRepContentHandler.class.getName(), "getContent", result);
+		
+		return result;
+	}
+	
+	@Benchmark
+	public Object tracer() {
+		TRACER.entering("getContent", in, mimeType);
+		TRACER.exiting("getContent", result);
+		
+		return result;
+	}
+	
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = DONT_INLINE_LOGGER)
+	public Object loggerOutOfLine() {
+		return logger();
+	}
+	
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = DONT_INLINE_LOGGER)
+	public Object tracerOutOfLine() {
+		return tracer();
+	}
+	
+	@Benchmark
+	public Transport createTransportLogger() {
+		// Transport.createTransport(Method, URL, Proxy) as it used to be
+		TRANSPORT_LOGGER.entering(Transport.class.getName(), "createTransport", new Object[] {method, url, proxy});
+		final Transport t = Transport.createTransport(method, url, proxy, ConnectionManager.getDefault());
+		TRANSPORT_LOGGER.exiting(Transport.class.getName(), "createTransport", t);
+		
+		return t;
+	}
+	
+	@Benchmark
+	public Transport createTransportTracer() {
+		return Transport.createTransport(method, url, proxy);
+	}
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jscep.content.CaCertificateContentHandler;
+import org.jscep.content.NextCaCertificateContentHandler;
+import org.jscep.request.GetCaCert;
+import org.jscep.request.GetNextCaCert;
+import org.jscep.transport.Transport;
+import org.jscep.util.HexUtil;
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class caches the responses to <code>GetCACert</code> requests.
+ * <p>
+ * A certificate chain is cached until the first of its certificates 
+ * expires.  Within the rollover window before that time, the next lookup
+ * fetches the rollover chain with <code>GetNextCACert</code> in the 
+ * background, and when the current chain expires the rollover chain 
+ * replaces it without a further request.  If the CA has no rollover chain, 
+ * the current chain is fetched again once it expires.
+ * <p>
+ * If a directory is provided, each chain is also written to it as a 
+ * sequence of DER-encoded certificates, and read back on the first lookup 
+ * after a restart.  Chains read from disk are trusted exactly as far as the
+ * chains they were fetched as; the directory should not be writable by 
+ * others.
+ * <p>
+ * Concurrent lookups of a chain which is not cached share a single 
+ * request.  The returned lists cannot be modified.
+ * 
+ * @author David Grant
+ */
+public final class CaCertificateCache {
+	private static Logger LOGGER = LoggingUtil.getLogger(CaCertificateCache.class);
+	/**
+	 * The default rollover window, in days.
+	 */
+	public static final long DEFAULT_ROLLOVER_WINDOW = 7;
+	private static final String CURRENT = ".der";
+	private static final String NEXT = "-next.der";
+	// A CA which serves expired certificates is asked again after this many
+	// milliseconds, rather than on every lookup.
+	private static final long EXPIRED_CHAIN_TTL = 60000;
+	private final ConcurrentMap<CacheKey, Entry> entries = new ConcurrentHashMap<CacheKey, Entry>();
+	private final File directory;
+	private final long rolloverWindow;
+	private final Executor executor;
+	
+	/**
+	 * Creates a new in-memory cache with the default rollover window.
+	 */
+	public CaCertificateCache() {
+		this(null);
+	}
+	
+	/**
+	 * Creates a new cache with the default rollover window, which persists
+	 * chains to the provided directory.
+	 * 
+	 * @param directory the cache directory, or <code>null</code> for an in-memory cache.
+	 */
+	public CaCertificateCache(File directory) {
+		this(directory, DEFAULT_ROLLOVER_WINDOW, TimeUnit.DAYS, createPrefetcher());
+	}
+	
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param directory the cache directory, or <code>null</code> for an in-memory cache.
+	 * @param rolloverWindow the time before expiry at which to fetch the rollover chain.
+	 * @param unit the unit of the rollover window.
+	 * @param executor the executor for rollover fetches.
+	 */
+	public CaCertificateCache(File directory, long rolloverWindow, TimeUnit unit, Executor executor) {
+		if (rolloverWindow < 0) {
+			throw new IllegalArgumentException("rolloverWindow must not be negative");
+		}
+		this.directory = directory;
+		this.rolloverWindow = unit.toMillis(rolloverWindow);
+		this.executor = executor;
+	}
+	
+	private static ExecutorService createPrefetcher() {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "jscep-ca-certificate-prefetch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Returns the certificates of the CA at the provided transport's URL.
+	 * 
+	 * @param transport the transport to the CA.
+	 * @return the CA (and RA) certificates.
+	 * @throws IOException if the certificates are not cached and cannot be retrieved.
+	 */
+	public List<X509Certificate> getCertificates(Transport transport) throws IOException {
+		return getCertificates(transport, null);
+	}
+	
+	/**
+	 * Returns the certificates of the identified CA at the provided 
+	 * transport's URL.
+	 * 
+	 * @param transport the transport to the CA.
+	 * @param caIdentifier the CA identifier, or <code>null</code>.
+	 * @return the CA (and RA) certificates.
+	 * @throws IOException if the certificates are not cached and cannot be retrieved.
+	 */
+	public List<X509Certificate> getCertificates(Transport transport, String caIdentifier) throws IOException {
+		final CacheKey key = new CacheKey(transport, caIdentifier);
+		while (true) {
+			Entry entry = entries.get(key);
+			if (entry == null) {
+				final Entry created = new Entry(key, null);
+				entry = entries.putIfAbsent(key, created);
+				if (entry == null) {
+					entry = created;
+					entry.load();
+				}
+			}
+			final Chain chain = entry.get();
+			final long now = System.currentTimeMillis();
+			if (now >= chain.expires) {
+				// Roll over to the next chain if we have one, or fetch again.
+				final Chain next = entry.next;
+				final Entry created = new Entry(key, next != null && now < next.notAfter ? next : null);
+				if (entries.replace(key, entry, created)) {
+					created.load();
+				}
+				continue;
+			}
+			if (now >= chain.notAfter - rolloverWindow && entry.next == null && now >= entry.prefetchAfter) {
+				prefetch(entry, chain);
+			}
+			return chain.certs;
+		}
+	}
+	
+	/**
+	 * Returns the rollover certificates of the identified CA, if they have 
+	 * been fetched.
+	 * 
+	 * @param transport the transport to the CA.
+	 * @param caIdentifier the CA identifier, or <code>null</code>.
+	 * @return the rollover certificates, or <code>null</code>.
+	 */
+	public List<X509Certificate> getNextCertificates(Transport transport, String caIdentifier) {
+		final Entry entry = entries.get(new CacheKey(transport, caIdentifier));
+		if (entry == null || entry.next == null) {
+			return null;
+		}
+		return entry.next.certs;
+	}
+	
+	/**
+	 * Removes the certificates of the identified CA from this cache, and 
+	 * from disk.
+	 * 
+	 * @param transport the transport to the CA.
+	 * @param caIdentifier the CA identifier, or <code>null</code>.
+	 */
+	public void invalidate(Transport transport, String caIdentifier) {
+		final CacheKey key = new CacheKey(transport, caIdentifier);
+		entries.remove(key);
+		if (directory != null) {
+			getFile(key, CURRENT).delete();
+			getFile(key, NEXT).delete();
+		}
+	}
+	
+	private void prefetch(final Entry entry, final Chain chain) {
+		if (entry.prefetching.compareAndSet(false, true) == false) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						final CacheKey key = entry.key;
+						final NextCaCertificateContentHandler handler = new NextCaCertificateContentHandler(getIssuer(chain.certs));
+						final List<X509Certificate> certs = key.transport.sendRequest(new GetNextCaCert(key.caIdentifier, handler));
+						if (certs.isEmpty()) {
+							throw new IOException("No rollover certificates");
+						}
+						final Chain next = new Chain(certs);
+						write(key, NEXT, next);
+						entry.next = next;
+					} catch (IOException e) {
+						LOGGER.log(Level.WARNING, "certificates.prefetch.failure", new Object[] {entry.key, e});
+						// Don't ask again for a while.
+						entry.prefetchAfter = System.currentTimeMillis() + rolloverWindow / 8;
+					} finally {
+						entry.prefetching.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			entry.prefetching.set(false);
+		}
+	}
+	
+	private Chain fetch(CacheKey key) throws IOException {
+		final long now = System.currentTimeMillis();
+		Chain chain = read(key, CURRENT);
+		if (chain == null || now >= chain.notAfter) {
+			chain = new Chain(key.transport.sendRequest(new GetCaCert(key.caIdentifier, new CaCertificateContentHandler())));
+			write(key, CURRENT, chain);
+		}
+		return chain;
+	}
+	
+	private Chain read(CacheKey key, String suffix) {
+		if (directory == null) {
+			return null;
+		}
+		final File file = getFile(key, suffix);
+		if (file.isFile() == false) {
+			return null;
+		}
+		try {
+			final InputStream in = new FileInputStream(file);
+			try {
+				final CertificateFactory factory = CertificateFactory.getInstance("X.509");
+				final List<X509Certificate> certs = new ArrayList<X509Certificate>();
+				for (Certificate cert : factory.generateCertificates(in)) {
+					certs.add((X509Certificate) cert);
+				}
+				if (certs.isEmpty()) {
+					return null;
+				}
+				return new Chain(certs);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "certificates.read.failure", new Object[] {file, e});
+		} catch (CertificateException e) {
+			LOGGER.log(Level.WARNING, "certificates.read.failure", new Object[] {file, e});
+		}
+		return null;
+	}
+	
+	private void write(CacheKey key, String suffix, Chain chain) {
+		if (directory == null) {
+			return;
+		}
+		final File file = getFile(key, suffix);
+		try {
+			if (directory.isDirectory() == false && directory.mkdirs() == false) {
+				throw new IOException("Unable to create " + directory);
+			}
+			// Write to a temporary file first, so that a reader never sees
+			// a partial chain.
+			final File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+			final OutputStream out = new FileOutputStream(tmp);
+			try {
+				for (X509Certificate cert : chain.certs) {
+					out.write(cert.getEncoded());
+				}
+			} finally {
+				out.close();
+			}
+			if (tmp.renameTo(file) == false) {
+				file.delete();
+				if (tmp.renameTo(file) == false) {
+					tmp.delete();
+					throw new IOException("Unable to rename " + tmp + " to " + file);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "certificates.write.failure", new Object[] {file, e});
+		} catch (CertificateException e) {
+			LOGGER.log(Level.WARNING, "certificates.write.failure", new Object[] {file, e});
+		}
+	}
+	
+	private File getFile(CacheKey key, String suffix) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			final byte[] hash = digest.digest(key.toString().getBytes("UTF-8"));
+			return new File(directory, HexUtil.toHexString(hash) + suffix);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Returns the CA certificate from the provided chain, which signs the 
+	 * rollover response.
+	 */
+	private static X509Certificate getIssuer(List<X509Certificate> certs) {
+		for (X509Certificate cert : certs) {
+			if (cert.getBasicConstraints() != -1) {
+				return cert;
+			}
+		}
+		return certs.get(0);
+	}
+	
+	/**
+	 * A certificate chain, the time at which its first certificate expires,
+	 * and the time at which it should be evicted.
+	 */
+	private static final class Chain {
+		final List<X509Certificate> certs;
+		final long notAfter;
+		final long expires;
+		
+		Chain(List<X509Certificate> certs) {
+			long min = Long.MAX_VALUE;
+			for (X509Certificate cert : certs) {
+				min = Math.min(min, cert.getNotAfter().getTime());
+			}
+			this.certs = Collections.unmodifiableList(new ArrayList<X509Certificate>(certs));
+			this.notAfter = min;
+			final long now = System.currentTimeMillis();
+			this.expires = min > now ? min : now + EXPIRED_CHAIN_TTL;
+		}
+	}
+	
+	/**
+	 * A cached, or soon to be cached, chain, and its rollover chain.
+	 */
+	private final class Entry {
+		final CacheKey key;
+		final FutureTask<Chain> future;
+		final AtomicBoolean prefetching = new AtomicBoolean();
+		volatile Chain next;
+		volatile long prefetchAfter;
+		
+		Entry(final CacheKey key, final Chain rollover) {
+			this.key = key;
+			this.future = new FutureTask<Chain>(new Callable<Chain>() {
+				public Chain call() throws IOException {
+					if (rollover != null) {
+						write(key, CURRENT, rollover);
+						if (directory != null) {
+							getFile(key, NEXT).delete();
+						}
+						return rollover;
+					}
+					final Chain chain = fetch(key);
+					next = read(key, NEXT);
+					if (next != null && next.notAfter <= chain.notAfter) {
+						// A rollover chain left over from a previous rollover.
+						next = null;
+					}
+					return chain;
+				}
+			});
+		}
+		
+		void load() {
+			future.run();
+		}
+		
+		Chain get() throws IOException {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				// Let the next lookup try again.
+				entries.remove(key, this);
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.cache;
+
+import org.jscep.transport.Transport;
+
+/**
+ * The URL and CA identifier of a cached response.
+ * <p>
+ * The URL is compared by its string form, since {@link java.net.URL#equals(Object)}
+ * resolves host names.
+ * 
+ * @author David Grant
+ */
+final class CacheKey {
+	final Transport transport;
+	final String url;
+	final String caIdentifier;
+	
+	CacheKey(Transport transport, String caIdentifier) {
+		this.transport = transport;
+		this.url = transport.getURL().toExternalForm();
+		this.caIdentifier = caIdentifier;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof CacheKey == false) {
+			return false;
+		}
+		final CacheKey key = (CacheKey) o;
+		
+		return url.equals(key.url) && (caIdentifier == null ? key.caIdentifier == null : caIdentifier.equals(key.caIdentifier));
+	}
+	
+	@Override
+	public int hashCode() {
+		return url.hashCode() * 31 + (caIdentifier == null ? 0 : caIdentifier.hashCode());
+	}
+	
+	@Override
+	public String toString() {
+		if (caIdentifier == null) {
+			return url;
+		}
+		return url + " (" + caIdentifier + ")";
+	}
+}
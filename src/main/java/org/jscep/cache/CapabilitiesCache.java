@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.cache;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jscep.content.CaCapabilitiesContentHandler;
+import org.jscep.request.GetCaCaps;
+import org.jscep.response.Capabilities;
+import org.jscep.transport.Transport;
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class caches the responses to <code>GetCACaps</code> requests.
+ * <p>
+ * Capabilities are cached for each CA URL and CA identifier for a fixed
+ * time to live.  Once an entry has been cached for the refresh fraction of
+ * its time to live, the next lookup returns the cached capabilities and
+ * refreshes the entry in the background, so that a CA which is in regular 
+ * use never has its capabilities fetched on the calling thread.  If the
+ * background refresh fails, the cached capabilities are kept until they
+ * expire, and the refresh is not retried for an eighth of the time to live.
+ * <p>
+ * Concurrent lookups of an entry which is not cached share a single 
+ * request.  The returned {@link Capabilities} are shared between callers, 
+ * and must not be modified.
+ * 
+ * @author David Grant
+ */
+public final class CapabilitiesCache {
+	private static Logger LOGGER = LoggingUtil.getLogger(CapabilitiesCache.class);
+	/**
+	 * The default time to live, in seconds.
+	 */
+	public static final long DEFAULT_TTL = 3600;
+	/**
+	 * The default fraction of the time to live after which an entry is 
+	 * refreshed.
+	 */
+	public static final double DEFAULT_REFRESH_FRACTION = 0.8;
+	private final ConcurrentMap<CacheKey, Entry> entries = new ConcurrentHashMap<CacheKey, Entry>();
+	private final long ttl;
+	private final long refreshAfter;
+	private final Executor executor;
+	
+	/**
+	 * Creates a new cache with the default time to live, which refreshes
+	 * entries on a private daemon thread.
+	 */
+	public CapabilitiesCache() {
+		this(DEFAULT_TTL, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Creates a new cache with the provided time to live, which refreshes
+	 * entries on a private daemon thread.
+	 * 
+	 * @param ttl the time to live.
+	 * @param unit the unit of the time to live.
+	 */
+	public CapabilitiesCache(long ttl, TimeUnit unit) {
+		this(ttl, unit, DEFAULT_REFRESH_FRACTION, createRefresher());
+	}
+	
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param ttl the time to live.
+	 * @param unit the unit of the time to live.
+	 * @param refreshFraction the fraction of the time to live after which entries are refreshed, or <code>1</code> to disable refreshing.
+	 * @param executor the executor for background refreshes.
+	 */
+	public CapabilitiesCache(long ttl, TimeUnit unit, double refreshFraction, Executor executor) {
+		if (ttl <= 0) {
+			throw new IllegalArgumentException("ttl must be positive");
+		}
+		if (refreshFraction <= 0 || refreshFraction > 1) {
+			throw new IllegalArgumentException("refreshFraction must be greater than 0 and at most 1");
+		}
+		this.ttl = unit.toNanos(ttl);
+		this.refreshAfter = (long) (this.ttl * refreshFraction);
+		this.executor = executor;
+	}
+	
+	private static ExecutorService createRefresher() {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "jscep-capabilities-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Returns the capabilities of the CA at the provided transport's URL.
+	 * 
+	 * @param transport the transport to the CA.
+	 * @return the capabilities of the CA.
+	 * @throws IOException if the capabilities are not cached and cannot be retrieved.
+	 */
+	public Capabilities getCapabilities(Transport transport) throws IOException {
+		return getCapabilities(transport, null);
+	}
+	
+	/**
+	 * Returns the capabilities of the identified CA at the provided 
+	 * transport's URL.
+	 * 
+	 * @param transport the transport to the CA.
+	 * @param caIdentifier the CA identifier, or <code>null</code>.
+	 * @return the capabilities of the CA.
+	 * @throws IOException if the capabilities are not cached and cannot be retrieved.
+	 */
+	public Capabilities getCapabilities(Transport transport, String caIdentifier) throws IOException {
+		final CacheKey key = new CacheKey(transport, caIdentifier);
+		while (true) {
+			Entry entry = entries.get(key);
+			if (entry == null) {
+				final Entry created = new Entry(key);
+				entry = entries.putIfAbsent(key, created);
+				if (entry == null) {
+					entry = created;
+					entry.load();
+				}
+			}
+			final long now = System.nanoTime();
+			if (entry.isLoaded() && now - entry.loadedAt >= ttl) {
+				// Expired, so replace it unless another thread already has.
+				final Entry created = new Entry(key);
+				if (entries.replace(key, entry, created)) {
+					created.load();
+				}
+				continue;
+			}
+			
+			final Capabilities caps = entry.get();
+			if (now - entry.loadedAt >= refreshAfter && refreshAfter < ttl) {
+				refresh(entry);
+			}
+			return caps;
+		}
+	}
+	
+	/**
+	 * Removes the capabilities of the identified CA from this cache.
+	 * 
+	 * @param transport the transport to the CA.
+	 * @param caIdentifier the CA identifier, or <code>null</code>.
+	 */
+	public void invalidate(Transport transport, String caIdentifier) {
+		entries.remove(new CacheKey(transport, caIdentifier));
+	}
+	
+	/**
+	 * Removes all entries from this cache.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+	
+	/**
+	 * Returns the number of entries in this cache, including those still 
+	 * being retrieved.
+	 * 
+	 * @return the number of entries.
+	 */
+	public int size() {
+		return entries.size();
+	}
+	
+	private void refresh(final Entry entry) {
+		final long failedAt = entry.failedAt;
+		if (failedAt != 0 && System.nanoTime() - failedAt < ttl / 8) {
+			return;
+		}
+		if (entry.refreshing.compareAndSet(false, true) == false) {
+			return;
+		}
+		final Entry created = new Entry(entry.key);
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					created.load();
+					try {
+						created.get();
+						entries.replace(entry.key, entry, created);
+					} catch (IOException e) {
+						LOGGER.log(Level.WARNING, "capabilities.refresh.failure", new Object[] {entry.key, e});
+						// Don't ask again for a while.
+						entry.failedAt = System.nanoTime();
+						entry.refreshing.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			entry.refreshing.set(false);
+		}
+	}
+	
+	/**
+	 * A cached, or soon to be cached, response.
+	 */
+	private final class Entry {
+		final CacheKey key;
+		final FutureTask<Capabilities> future;
+		final AtomicBoolean refreshing = new AtomicBoolean();
+		volatile long loadedAt;
+		// The time of the last failed refresh, or zero.
+		volatile long failedAt;
+		
+		Entry(final CacheKey key) {
+			this.key = key;
+			this.future = new FutureTask<Capabilities>(new Callable<Capabilities>() {
+				public Capabilities call() throws IOException {
+					final Capabilities caps = key.transport.sendRequest(new GetCaCaps(key.caIdentifier, new CaCapabilitiesContentHandler()));
+					loadedAt = System.nanoTime();
+					return caps;
+				}
+			});
+		}
+		
+		void load() {
+			future.run();
+		}
+		
+		boolean isLoaded() {
+			return future.isDone() && loadedAt != 0;
+		}
+		
+		Capabilities get() throws IOException {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				// Let the next lookup try again.
+				entries.remove(key, this);
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+		}
+	}
+}
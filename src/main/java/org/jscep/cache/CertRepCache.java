@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.cache;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jscep.message.CertRep;
+import org.jscep.transaction.Nonce;
+import org.jscep.transaction.PkiStatus;
+import org.jscep.transaction.TransactionId;
+
+/**
+ * This class caches the final responses to <code>PKCSReq</code> and 
+ * <code>GetCertInitial</code> requests.
+ * <p>
+ * Clients retry these requests with the same <code>transactionID</code>,
+ * and a retry may arrive after the transaction has been decided.  Responses
+ * are cached for each transaction ID and the fingerprint of the
+ * requester's certificate, along with the encoded CertRep, so that a 
+ * responder can answer a retry without decrypting it or consulting its
+ * certificate authority.  Requesters usually present self-signed 
+ * certificates, so the fingerprint, which covers the public key, keeps a
+ * different key pair with the same names from being answered.  A retransmitted request, which carries the same
+ * <code>senderNonce</code>, can be answered with the 
+ * {@link CachedCertRep#getEncoded() encoded} response as it stands; any 
+ * other retry needs the {@link CachedCertRep#getResponse() response} to be
+ * signed again with fresh nonces.  The former is all that a proxy in front 
+ * of a SCEP server needs.
+ * <p>
+ * Only <code>SUCCESS</code> and <code>FAILURE</code> responses are cached,
+ * as a pending transaction may be decided at any time.  Entries expire 
+ * after a fixed time to live, and the oldest entries are evicted once the
+ * cached responses exceed a memory budget.
+ * 
+ * @author David Grant
+ */
+public final class CertRepCache {
+	/**
+	 * The default time to live, in seconds.
+	 */
+	public static final long DEFAULT_TTL = 900;
+	/**
+	 * The default memory budget, in bytes.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+	/**
+	 * The estimated size of an entry, excluding the encoded response and
+	 * its messageData.
+	 */
+	private static final int ENTRY_OVERHEAD = 512;
+	// Entries share a time to live, so insertion order is expiry order.
+	private final LinkedHashMap<Key, CachedCertRep> entries = new LinkedHashMap<Key, CachedCertRep>();
+	private final long ttl;
+	private final long maxBytes;
+	private long bytes;
+	
+	/**
+	 * Creates a new cache with the default time to live and memory budget.
+	 */
+	public CertRepCache() {
+		this(DEFAULT_TTL, TimeUnit.SECONDS, DEFAULT_MAX_BYTES);
+	}
+	
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param ttl the time to live.
+	 * @param unit the unit of the time to live.
+	 * @param maxBytes the memory budget, in bytes.
+	 */
+	public CertRepCache(long ttl, TimeUnit unit, long maxBytes) {
+		if (ttl <= 0) {
+			throw new IllegalArgumentException("ttl must be positive");
+		}
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be positive");
+		}
+		this.ttl = unit.toNanos(ttl);
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Returns the cached response for the provided transaction.
+	 * 
+	 * @param transId the transaction ID.
+	 * @param requester the certificate which signed the request.
+	 * @return the cached response, or <code>null</code> if there is none.
+	 */
+	public CachedCertRep get(TransactionId transId, X509Certificate requester) {
+		final Key key = new Key(transId, requester);
+		synchronized (entries) {
+			expire(System.nanoTime());
+			
+			return entries.get(key);
+		}
+	}
+	
+	/**
+	 * Caches the response for the provided transaction.
+	 * <p>
+	 * Pending responses are ignored.  A response which is larger than the
+	 * memory budget is not cached.
+	 * 
+	 * @param transId the transaction ID.
+	 * @param requester the certificate which signed the request.
+	 * @param response the response.
+	 * @param encoded the signed and encoded response.
+	 */
+	public void put(TransactionId transId, X509Certificate requester, CertRep response, byte[] encoded) {
+		if (response.getPkiStatus() == PkiStatus.PENDING) {
+			return;
+		}
+		final long now = System.nanoTime();
+		final Key key = new Key(transId, requester);
+		final CachedCertRep entry = new CachedCertRep(response, encoded, now + ttl);
+		synchronized (entries) {
+			final CachedCertRep previous = entries.remove(key);
+			if (previous != null) {
+				bytes -= previous.size;
+			}
+			if (entry.size > maxBytes) {
+				return;
+			}
+			entries.put(key, entry);
+			bytes += entry.size;
+			expire(now);
+		}
+	}
+	
+	/**
+	 * Removes the cached response for the provided transaction.
+	 * 
+	 * @param transId the transaction ID.
+	 * @param requester the certificate which signed the request.
+	 */
+	public void remove(TransactionId transId, X509Certificate requester) {
+		final Key key = new Key(transId, requester);
+		synchronized (entries) {
+			final CachedCertRep previous = entries.remove(key);
+			if (previous != null) {
+				bytes -= previous.size;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of cached responses.
+	 * 
+	 * @return the number of cached responses.
+	 */
+	public int size() {
+		synchronized (entries) {
+			expire(System.nanoTime());
+			
+			return entries.size();
+		}
+	}
+	
+	/**
+	 * Evicts expired entries, and the oldest entries over the memory budget.
+	 */
+	private void expire(long now) {
+		final Iterator<CachedCertRep> it = entries.values().iterator();
+		while (it.hasNext()) {
+			final CachedCertRep entry = it.next();
+			if (bytes <= maxBytes && entry.expires - now > 0) {
+				break;
+			}
+			it.remove();
+			bytes -= entry.size;
+		}
+	}
+	
+	/**
+	 * A cached response.
+	 */
+	public static final class CachedCertRep {
+		private final CertRep response;
+		private final byte[] encoded;
+		final long expires;
+		final long size;
+		
+		CachedCertRep(CertRep response, byte[] encoded, long expires) {
+			this.response = response;
+			this.encoded = encoded;
+			this.expires = expires;
+			long size = ENTRY_OVERHEAD + encoded.length;
+			if (response.getPkiStatus() == PkiStatus.SUCCESS) {
+				size += response.getMessageData().getOctets().length;
+			}
+			this.size = size;
+		}
+		
+		/**
+		 * Returns the response, before it was signed and encrypted.
+		 * 
+		 * @return the response.
+		 */
+		public CertRep getResponse() {
+			return response;
+		}
+		
+		/**
+		 * Returns the signed and encoded response.
+		 * <p>
+		 * The returned array is shared between callers, and must not be 
+		 * modified.
+		 * 
+		 * @return the encoded response.
+		 */
+		public byte[] getEncoded() {
+			return encoded;
+		}
+		
+		/**
+		 * Checks if the encoded response answers a request with the 
+		 * provided <code>senderNonce</code>.
+		 * 
+		 * @param senderNonce the sender nonce of the request.
+		 * @return <code>true</code> if the encoded response may be sent as it stands.
+		 */
+		public boolean isResponseTo(Nonce senderNonce) {
+			final Nonce recipientNonce = response.getRecipientNonce();
+			
+			return recipientNonce != null && recipientNonce.equals(senderNonce);
+		}
+	}
+	
+	/**
+	 * The transaction and requester of a cached response.
+	 */
+	private static final class Key {
+		private final TransactionId transId;
+		private final byte[] fingerprint;
+		
+		Key(TransactionId transId, X509Certificate requester) {
+			this.transId = transId;
+			try {
+				this.fingerprint = MessageDigest.getInstance("SHA-256").digest(requester.getEncoded());
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			} catch (CertificateEncodingException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Key == false) {
+				return false;
+			}
+			final Key key = (Key) o;
+			
+			return transId.equals(key.transId) && Arrays.equals(fingerprint, key.fingerprint);
+		}
+		
+		@Override
+		public int hashCode() {
+			return transId.hashCode() * 31 + Arrays.hashCode(fingerprint);
+		}
+	}
+}
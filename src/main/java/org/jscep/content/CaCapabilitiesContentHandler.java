@@ -31,6 +31,7 @@ import java.util.logging.Logger;
 import org.jscep.response.Capabilities;
 import org.jscep.response.Capability;
 import org.jscep.util.LoggingUtil;
+import org.jscep.util.Tracer;
 
 
 /**
@@ -40,12 +41,13 @@ import org.jscep.util.LoggingUtil;
  */
 public class CaCapabilitiesContentHandler implements ScepContentHandler<Capabilities> {
 	private static Logger LOGGER = LoggingUtil.getLogger(CaCapabilitiesContentHandler.class);
+	private static final Tracer TRACER = Tracer.getTracer(CaCapabilitiesContentHandler.class);
 
 	/**
 	 * {@inheritDoc}
 	 */
 	public Capabilities getContent(InputStream in, String mimeType) throws IOException {
-		LOGGER.entering(getClass().getName(), "getContent", new Object[] {in, mimeType});
+		TRACER.entering("getContent", in, mimeType);
 
 		if (mimeType.equals("text/plain") == false) {
 			LOGGER.log(Level.WARNING, "capabilities.mime.warning", mimeType);
@@ -64,7 +66,7 @@ public class CaCapabilitiesContentHandler implements ScepContentHandler<Capabili
 		}
 		reader.close();
 
-		LOGGER.exiting(getClass().getName(), "getContent", caps);
+		TRACER.exiting("getContent", caps);
 		return caps;
 	}
 }
@@ -22,7 +22,6 @@
  */
 package org.jscep.content;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.cert.CertSelector;
@@ -35,12 +34,12 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.logging.Logger;
 
 import org.bouncycastle.asn1.ASN1Object;
 import org.bouncycastle.asn1.cms.ContentInfo;
 import org.bouncycastle.cms.CMSSignedData;
-import org.jscep.util.LoggingUtil;
+import org.jscep.util.StreamUtil;
+import org.jscep.util.Tracer;
 
 
 /**
@@ -49,13 +48,13 @@ import org.jscep.util.LoggingUtil;
  * @author David Grant
  */
 public class CaCertificateContentHandler implements ScepContentHandler<List<X509Certificate>> {
-	private static Logger LOGGER = LoggingUtil.getLogger(CaCertificateContentHandler.class);
+	private static final Tracer TRACER = Tracer.getTracer(CaCertificateContentHandler.class);
 	
 	/**
 	 * {@inheritDoc}
 	 */
 	public List<X509Certificate> getContent(InputStream in, String mimeType) throws IOException {
-		LOGGER.entering(getClass().getName(), "getContent", new Object[] {in, mimeType});
+		TRACER.entering("getContent", in, mimeType);
 		
 		final List<X509Certificate> certs = new ArrayList<X509Certificate>(2);
 		final CertificateFactory cf;
@@ -64,7 +63,7 @@ public class CaCertificateContentHandler implements ScepContentHandler<List<X509
 		} catch (CertificateException e) {
 			IOException ioe = new IOException(e);
 			
-			LOGGER.throwing(getClass().getName(), "getContent", ioe);
+			TRACER.throwing("getContent", ioe);
 			throw ioe;
 		}
 
@@ -79,7 +78,7 @@ public class CaCertificateContentHandler implements ScepContentHandler<List<X509
 			} catch (CertificateException ce) {
 				IOException ioe = new IOException(ce);
 				
-				LOGGER.throwing(getClass().getName(), "getContent", ioe);
+				TRACER.throwing("getContent", ioe);
 				throw ioe;
 			}
 		} else if (mimeType.equals("application/x-x509-ca-ra-cert")) {
@@ -89,18 +88,12 @@ public class CaCertificateContentHandler implements ScepContentHandler<List<X509
 			// It should be in the order:
 			// [0] RA
 			// [1] CA
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-			int b;
-			while ((b = in.read()) != -1) {
-				baos.write(b);
-			}
+			final byte[] bytes = StreamUtil.readFully(in);
 			
 			// This area needs testing!
 
 			CertStore store;
 			try {
-				byte[] bytes = baos.toByteArray();
 				if (bytes.length == 0) {
 					throw new IOException("Expected a SignedData object, but response was empty");
 				}
@@ -121,17 +114,17 @@ public class CaCertificateContentHandler implements ScepContentHandler<List<X509
 			} catch (CertStoreException e) {
 				IOException ioe = new IOException(e);
 				
-				LOGGER.throwing(getClass().getName(), "getContent", ioe);
+				TRACER.throwing("getContent", ioe);
 				throw ioe;
 			}
 		} else {
 			IOException ioe = new IOException("Invalid Content Type");
 			
-			LOGGER.throwing(getClass().getName(), "getContent", ioe);
+			TRACER.throwing("getContent", ioe);
 			throw ioe;
 		}
 
-		LOGGER.exiting(getClass().getName(), "getContent", certs);
+		TRACER.exiting("getContent", certs);
 		
 		return certs;
 	}
@@ -22,14 +22,13 @@
  */
 package org.jscep.content;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.logging.Logger;
 
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSSignedData;
-import org.jscep.util.LoggingUtil;
+import org.jscep.util.StreamUtil;
+import org.jscep.util.Tracer;
 
 
 /**
@@ -38,34 +37,27 @@ import org.jscep.util.LoggingUtil;
  * @author David Grant
  */
 public class CertRepContentHandler implements ScepContentHandler<CMSSignedData> {
-	private static Logger LOGGER = LoggingUtil.getLogger(CertRepContentHandler.class);
+	private static final Tracer TRACER = Tracer.getTracer(CertRepContentHandler.class);
 	
 	/**
 	 * {@inheritDoc}
 	 * @throws IOException 
 	 */
 	public CMSSignedData getContent(InputStream in, String mimeType) throws IOException {
-		LOGGER.entering(getClass().getName(), "getContent", new Object[] {in, mimeType});
+		TRACER.entering("getContent", in, mimeType);
 		
 		if (mimeType.equals("application/x-pki-message")) {
-			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-			int b;
-			while ((b = in.read()) != -1) {
-				baos.write(b);
-			
-			}
-			baos.close();
+			final byte[] bytes = StreamUtil.readFully(in);
 			
 			try {
-				return new CMSSignedData(baos.toByteArray());
+				return new CMSSignedData(bytes);
 			} catch (CMSException e) {
 				throw new IOException(e);
 			}
 		} else {
 			IOException ioe = new IOException("Invalid Content Type");
 			
-			LOGGER.throwing(getClass().getName(), "getContent", ioe);
+			TRACER.throwing("getContent", ioe);
 			throw ioe;
 		}
 	}
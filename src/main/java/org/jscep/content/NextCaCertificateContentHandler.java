@@ -22,7 +22,6 @@
  */
 package org.jscep.content;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.GeneralSecurityException;
@@ -33,9 +32,7 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.logging.Logger;
 
-import org.bouncycastle.asn1.ASN1Object;
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.cms.ContentInfo;
 import org.bouncycastle.asn1.cms.SignedData;
@@ -43,7 +40,8 @@ import org.bouncycastle.cms.CMSContentInfoParser;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSSignedData;
 import org.jscep.pkcs7.SignedDataUtil;
-import org.jscep.util.LoggingUtil;
+import org.jscep.util.StreamUtil;
+import org.jscep.util.Tracer;
 
 /**
  * This class handles responses to <code>GetNextCACert</code> requests.
@@ -51,7 +49,7 @@ import org.jscep.util.LoggingUtil;
  * @author David Grant
  */
 public class NextCaCertificateContentHandler implements ScepContentHandler<List<X509Certificate>> {
-	private static Logger LOGGER = LoggingUtil.getLogger(NextCaCertificateContentHandler.class);
+	private static final Tracer TRACER = Tracer.getTracer(NextCaCertificateContentHandler.class);
 	private final X509Certificate issuer;
 	
 	public NextCaCertificateContentHandler(X509Certificate issuer) {
@@ -62,7 +60,7 @@ public class NextCaCertificateContentHandler implements ScepContentHandler<List<
 	 * {@inheritDoc}
 	 */
 	public List<X509Certificate> getContent(InputStream in, String mimeType) throws IOException {
-		LOGGER.entering(getClass().getName(), "getContent", new Object[] {in, mimeType});
+		TRACER.entering("getContent", in, mimeType);
 		
 		if (mimeType.equals("application/x-x509-next-ca-cert")) {
 			// http://tools.ietf.org/html/draft-nourse-scep-20#section-4.6.1
@@ -73,15 +71,15 @@ public class NextCaCertificateContentHandler implements ScepContentHandler<List<
 			
 			Collection<? extends Certificate> collection;
 			try {
-				CMSSignedData cmsMessageData = new CMSSignedData(getBytes(in));
-				ContentInfo cmsContentInfo = ContentInfo.getInstance(ASN1Object.fromByteArray(cmsMessageData.getEncoded()));
+				CMSSignedData cmsMessageData = new CMSSignedData(StreamUtil.readFully(in));
+				ContentInfo cmsContentInfo = cmsMessageData.getContentInfo();
 
 				// TODO: This must be signed by the current CA.
 				final SignedData sd = SignedData.getInstance(cmsContentInfo.getContent());
 				if (SignedDataUtil.isSignedBy(sd, issuer) == false) {
 					IOException ioe = new IOException("Invalid Signer");
 					
-					LOGGER.throwing(getClass().getName(), "getContent", ioe);
+					TRACER.throwing("getContent", ioe);
 					throw ioe;
 				}
 				// The content of the SignedData PKCS#7 [RFC2315] is a degenerate
@@ -94,12 +92,12 @@ public class NextCaCertificateContentHandler implements ScepContentHandler<List<
 			} catch (GeneralSecurityException e) {
 				final IOException ioe = new IOException(e);
 				
-				LOGGER.throwing(getClass().getName(), "getContent", ioe);
+				TRACER.throwing("getContent", ioe);
 				throw ioe;
 			} catch (CMSException e) {
 				final IOException ioe = new IOException(e);
 				
-				LOGGER.throwing(getClass().getName(), "getContent", ioe);
+				TRACER.throwing("getContent", ioe);
 				throw ioe;
 			}
 			
@@ -107,24 +105,13 @@ public class NextCaCertificateContentHandler implements ScepContentHandler<List<
 				certs.add((X509Certificate) cert);
 			}
 
-			LOGGER.exiting(getClass().getName(), "getContent", certs);
+			TRACER.exiting("getContent", certs);
 			return certs;
 		} else {
 			IOException ioe = new IOException("Invalid Content Type");
 			
-			LOGGER.throwing(getClass().getName(), "getContent", ioe);
+			TRACER.throwing("getContent", ioe);
 			throw ioe;
 		}
 	}
-	
-	private byte[] getBytes(InputStream in) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		
-		int i;
-		while ((i = in.read()) != -1) {
-			baos.write(i);
-		}
-		
-		return baos.toByteArray();
-	}
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.jscep.message.PkiMessage;
+import org.jscep.message.PkiMessageDecoder;
+import org.jscep.util.Tracer;
+
+/**
+ * This class handles responses to <code>PKIOperation</code> requests by
+ * decoding the pkiMessage as it is read.
+ * <p>
+ * Unlike {@link CertRepContentHandler}, the response is never held in memory
+ * as a whole before it is decoded.
+ * 
+ * @author David Grant
+ * @see PkiMessageDecoder#decode(InputStream)
+ */
+public class PkiMessageContentHandler implements ScepContentHandler<PkiMessage<? extends ASN1Encodable>> {
+	private static final Tracer TRACER = Tracer.getTracer(PkiMessageContentHandler.class);
+	private final PkiMessageDecoder decoder;
+	
+	/**
+	 * Creates a new handler which uses the provided decoder.
+	 * 
+	 * @param decoder the decoder for the response.
+	 */
+	public PkiMessageContentHandler(PkiMessageDecoder decoder) {
+		this.decoder = decoder;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public PkiMessage<? extends ASN1Encodable> getContent(InputStream in, String mimeType) throws IOException {
+		TRACER.entering("getContent", in, mimeType);
+		
+		if (mimeType.equals("application/x-pki-message")) {
+			final PkiMessage<? extends ASN1Encodable> message;
+			try {
+				message = decoder.decode(in);
+			} catch (IOException ioe) {
+				TRACER.throwing("getContent", ioe);
+				throw ioe;
+			}
+			
+			TRACER.exiting("getContent", message);
+			return message;
+		} else {
+			IOException ioe = new IOException("Invalid Content Type");
+			
+			TRACER.throwing("getContent", ioe);
+			throw ioe;
+		}
+	}
+}
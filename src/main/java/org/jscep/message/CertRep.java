@@ -32,6 +32,7 @@ import org.jscep.transaction.PkiStatus;
 import org.jscep.transaction.TransactionId;
 
 public class CertRep extends PkiResponse<DEROctetString> {
+	private CMSSignedData signedData;
 
 	public CertRep(TransactionId transId, Nonce senderNonce, Nonce recipientNonce, DEROctetString messageData) {
 		// SUCCESS
@@ -66,7 +67,11 @@ public class CertRep extends PkiResponse<DEROctetString> {
 		return new CertRep(req.getTransactionId(), senderNonce, req.getSenderNonce());
 	}
 	
-	public CMSSignedData getCMSSignedData() throws CMSException {
-		return new CMSSignedData(getMessageData().getOctets());
+	public synchronized CMSSignedData getCMSSignedData() throws CMSException {
+		// The messageData is only parsed once.
+		if (signedData == null) {
+			signedData = new CMSSignedData(getMessageData().getOctets());
+		}
+		return signedData;
 	}
 }
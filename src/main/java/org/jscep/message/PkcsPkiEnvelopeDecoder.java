@@ -22,11 +22,11 @@
 package org.jscep.message;
 
 import java.io.IOException;
-import java.security.AlgorithmParameters;
 import java.security.PrivateKey;
 
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
 
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1Object;
@@ -37,7 +37,10 @@ import org.bouncycastle.asn1.cms.EnvelopedData;
 import org.bouncycastle.asn1.cms.KeyTransRecipientInfo;
 import org.bouncycastle.asn1.cms.RecipientInfo;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.jscep.metrics.MetricsRegistry;
+import org.jscep.metrics.Stage;
 import org.jscep.util.AlgorithmDictionary;
+import org.jscep.util.JcaCache;
 
 public class PkcsPkiEnvelopeDecoder {
 	private final PrivateKey priKey;
@@ -47,19 +50,44 @@ public class PkcsPkiEnvelopeDecoder {
 	}
 	
 	public ASN1Encodable decode(EnvelopedData envelopedData) throws IOException {
+		return ASN1Object.fromByteArray(decrypt(envelopedData));
+	}
+	
+	/**
+	 * Decrypts the provided pkcsPkiEnvelope, returning the encoded content.
+	 * <p>
+	 * Callers which only need the encoding of the content can use this
+	 * method to avoid parsing it.
+	 * 
+	 * @param envelopedData the pkcsPkiEnvelope.
+	 * @return the encoded content.
+	 * @throws IOException if the envelope cannot be decrypted.
+	 */
+	public byte[] decrypt(EnvelopedData envelopedData) throws IOException {
+		final long start = System.nanoTime();
+		boolean success = false;
+		try {
+			final byte[] content = unwrap(envelopedData);
+			success = true;
+			
+			return content;
+		} finally {
+			MetricsRegistry.getMetrics().recordLatency(Stage.DECRYPT, System.nanoTime() - start, success);
+		}
+	}
+	
+	private byte[] unwrap(EnvelopedData envelopedData) throws IOException {
 		// Figure out the type of secret key
 		final EncryptedContentInfo contentInfo = envelopedData.getEncryptedContentInfo();
 		final AlgorithmIdentifier contentAlg = contentInfo.getContentEncryptionAlgorithm();
 		final String transformationName = getCipherName(contentAlg);
 		final String cipherName = AlgorithmDictionary.fromTransformation(transformationName);
 
-		Cipher decryptingCipher;
-		AlgorithmParameters params;
+		// The parameters of every CBC cipher we support are just the IV.
+		final IvParameterSpec params;
 		try {
-			decryptingCipher = Cipher.getInstance(transformationName);
-			params = AlgorithmParameters.getInstance(cipherName);
 			DEROctetString paramsString = (DEROctetString) contentAlg.getParameters();
-			params.init(paramsString.getEncoded());
+			params = new IvParameterSpec(paramsString.getOctets());
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
@@ -74,19 +102,22 @@ public class PkcsPkiEnvelopeDecoder {
 		RecipientInfo encodable = RecipientInfo.getInstance(recipientInfos.getObjectAt(0));
 		KeyTransRecipientInfo keyTrans = KeyTransRecipientInfo.getInstance(encodable.getInfo());		
 		byte[] wrappedKey = keyTrans.getEncryptedKey().getOctets();
+		final byte[] content;
 		try {
 			// Decrypt the secret key
-			Cipher cipher = Cipher.getInstance("RSA");
+			Cipher cipher = JcaCache.getCipher("RSA");
 			cipher.init(Cipher.UNWRAP_MODE, priKey);
 			SecretKey secretKey = (SecretKey) cipher.unwrap(wrappedKey, cipherName, Cipher.SECRET_KEY);
 			// Use the secret key to decrypt the content
+			Cipher decryptingCipher = JcaCache.getCipher(transformationName);
 			decryptingCipher.init(Cipher.DECRYPT_MODE, secretKey, params);
-			byte[] contentBytes = decryptingCipher.doFinal(encryptedContentBytes);
-			
-			return ASN1Object.fromByteArray(contentBytes);
+			content = decryptingCipher.doFinal(encryptedContentBytes);
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
+		MetricsRegistry.getMetrics().recordBytes(Stage.DECRYPT, encryptedContentBytes.length, content.length);
+		
+		return content;
 	}
 
 	private String getCipherName(AlgorithmIdentifier algId) {
@@ -24,24 +24,162 @@ package org.jscep.message;
 import java.io.IOException;
 import java.security.Provider;
 import java.security.Security;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+
 import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.cms.EnvelopedData;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
 import org.bouncycastle.cms.CMSEnvelopedData;
 import org.bouncycastle.cms.CMSEnvelopedDataGenerator;
-import org.bouncycastle.cms.CMSEnvelopedGenerator;
-import org.bouncycastle.cms.CMSProcessable;
 import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.RecipientInfoGenerator;
+import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
+import org.jscep.metrics.MetricsRegistry;
+import org.jscep.metrics.Stage;
 
-
+/**
+ * This class encrypts the pkcsPkiEnvelope for a single recipient.
+ * <p>
+ * The content encryption cipher is chosen when the encoder is created, 
+ * usually from {@link org.jscep.response.Capabilities#getStrongestCipher()}, 
+ * and the provider of the cipher is resolved at the same time.
+ * 
+ * @author David Grant
+ */
 public class PkcsPkiEnvelopeEncoder {
+	private final String cipher;
 	private final X509Certificate recipient;
+	private final RecipientInfoGenerator recipientInfo;
+	private final JceCMSContentEncryptorBuilder encryptorBuilder;
+	private final Provider provider;
 	
+	/**
+	 * Creates a new encoder which encrypts with triple DES.
+	 * 
+	 * @param recipient the recipient certificate.
+	 */
 	public PkcsPkiEnvelopeEncoder(X509Certificate recipient) {
+		this(recipient, "DESede");
+	}
+	
+	/**
+	 * Creates a new encoder which encrypts with the cipher identified by 
+	 * the provided OID.
+	 * <p>
+	 * This allows a response to be encrypted with the same cipher as the
+	 * request it answers.
+	 * 
+	 * @param recipient the recipient certificate.
+	 * @param encryptionOid the content encryption algorithm.
+	 * @throws IllegalArgumentException if the cipher is not supported.
+	 * @see SignedPkiMessage#getEncryptionAlgorithm()
+	 */
+	public PkcsPkiEnvelopeEncoder(X509Certificate recipient, ASN1ObjectIdentifier encryptionOid) {
+		this(recipient, getCipher(encryptionOid));
+	}
+	
+	/**
+	 * Creates a new encoder which encrypts with the provided cipher.
+	 * <p>
+	 * The cipher is one of <code>DES</code>, <code>DESede</code>, 
+	 * <code>AES</code> (which is AES-128, as advertised by the SCEP
+	 * <code>AES</code> capability), <code>AES-192</code> or 
+	 * <code>AES-256</code>.  All are used in CBC mode.
+	 * 
+	 * @param recipient the recipient certificate.
+	 * @param cipher the content encryption cipher.
+	 * @throws IllegalArgumentException if the cipher is not supported.
+	 */
+	public PkcsPkiEnvelopeEncoder(X509Certificate recipient, String cipher) {
 		this.recipient = recipient;
+		this.cipher = cipher;
+		
+		final ASN1ObjectIdentifier encryptionOid;
+		final String keyAlgorithm;
+		if (cipher.equals("DES")) {
+			encryptionOid = OIWObjectIdentifiers.desCBC;
+			keyAlgorithm = "DES";
+		} else if (cipher.equals("DESede")) {
+			encryptionOid = PKCSObjectIdentifiers.des_EDE3_CBC;
+			keyAlgorithm = "DESEDE";
+		} else if (cipher.equals("AES") || cipher.equals("AES-128")) {
+			encryptionOid = NISTObjectIdentifiers.id_aes128_CBC;
+			keyAlgorithm = "AES";
+		} else if (cipher.equals("AES-192")) {
+			encryptionOid = NISTObjectIdentifiers.id_aes192_CBC;
+			keyAlgorithm = "AES";
+		} else if (cipher.equals("AES-256")) {
+			encryptionOid = NISTObjectIdentifiers.id_aes256_CBC;
+			keyAlgorithm = "AES";
+		} else {
+			throw new IllegalArgumentException(cipher + " is not an appropriate cipher name");
+		}
+		try {
+			this.recipientInfo = new JceKeyTransRecipientInfoGenerator(recipient);
+		} catch (CertificateEncodingException e) {
+			throw new IllegalArgumentException(e);
+		}
+		// A missing provider is reported when encoding, as it always has been.
+		final Provider[] providers = Security.getProviders("KeyGenerator." + keyAlgorithm);
+		if (providers != null && providers.length > 0) {
+			this.provider = providers[0];
+		} else {
+			this.provider = null;
+		}
+		if (encryptionOid.equals(OIWObjectIdentifiers.desCBC) || provider == null) {
+			// The operator API has no name for single DES, so it is encrypted 
+			// the old way.
+			this.encryptorBuilder = null;
+		} else {
+			this.encryptorBuilder = new JceCMSContentEncryptorBuilder(encryptionOid).setProvider(provider);
+		}
+	}
+	
+	private static String getCipher(ASN1ObjectIdentifier encryptionOid) {
+		if (encryptionOid.equals(OIWObjectIdentifiers.desCBC)) {
+			return "DES";
+		} else if (encryptionOid.equals(PKCSObjectIdentifiers.des_EDE3_CBC)) {
+			return "DESede";
+		} else if (encryptionOid.equals(NISTObjectIdentifiers.id_aes128_CBC)) {
+			return "AES";
+		} else if (encryptionOid.equals(NISTObjectIdentifiers.id_aes192_CBC)) {
+			return "AES-192";
+		} else if (encryptionOid.equals(NISTObjectIdentifiers.id_aes256_CBC)) {
+			return "AES-256";
+		} else {
+			throw new IllegalArgumentException(encryptionOid + " is not an appropriate cipher");
+		}
+	}
+	
+	/**
+	 * Returns the content encryption cipher.
+	 * 
+	 * @return the cipher name.
+	 */
+	public String getCipher() {
+		return cipher;
 	}
 	
 	public CMSEnvelopedData encode(ASN1Encodable messageData) throws IOException {
+		final long start = System.nanoTime();
+		boolean success = false;
+		try {
+			final CMSEnvelopedData ed = encrypt(messageData);
+			success = true;
+			
+			return ed;
+		} finally {
+			MetricsRegistry.getMetrics().recordLatency(Stage.ENCRYPT, System.nanoTime() - start, success);
+		}
+	}
+	
+	private CMSEnvelopedData encrypt(ASN1Encodable messageData) throws IOException {
 		CMSEnvelopedDataGenerator edGenerator = new CMSEnvelopedDataGenerator();
 		
 		byte[] payload;
@@ -52,18 +190,27 @@ public class PkcsPkiEnvelopeEncoder {
 			payload = messageData.getEncoded();
 		}
 		
-		CMSProcessable envelopable = new CMSProcessableByteArray(payload);
-		edGenerator.addKeyTransRecipient(recipient);
+		CMSProcessableByteArray envelopable = new CMSProcessableByteArray(payload);
 		
+		if (provider == null) {
+			throw new IOException("No Provider for " + cipher);
+		}
+		final CMSEnvelopedData ed;
 		try {
-			Provider[] providers = Security.getProviders("KeyGenerator.DESEDE");
-			if (providers.length > 0) {
-				return edGenerator.generate(envelopable, CMSEnvelopedGenerator.DES_EDE3_CBC, providers[0]);
+			if (encryptorBuilder == null) {
+				edGenerator.addKeyTransRecipient(recipient);
+				ed = edGenerator.generate(envelopable, OIWObjectIdentifiers.desCBC.getId(), provider);
 			} else {
-				throw new IOException("No Provider for DESede");
+				edGenerator.addRecipientInfoGenerator(recipientInfo);
+				ed = edGenerator.generate(envelopable, encryptorBuilder.build());
 			}
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
+		final EnvelopedData envelopedData = EnvelopedData.getInstance(ed.getContentInfo().getContent());
+		final int encrypted = envelopedData.getEncryptedContentInfo().getEncryptedContent().getOctets().length;
+		MetricsRegistry.getMetrics().recordBytes(Stage.ENCRYPT, payload.length, encrypted);
+		
+		return ed;
 	}
 }
@@ -22,10 +22,18 @@
 package org.jscep.message;
 
 import java.io.IOException;
-import java.security.cert.CertStore;
-import java.security.cert.Certificate;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
 
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1Object;
@@ -40,26 +48,146 @@ import org.bouncycastle.asn1.cms.EnvelopedData;
 import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
 import org.bouncycastle.asn1.pkcs.CertificationRequest;
 import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSProcessable;
 import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataParser;
+import org.bouncycastle.cms.CMSTypedStream;
+import org.bouncycastle.cms.SignerId;
 import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.util.Store;
 import org.jscep.asn1.IssuerAndSubject;
 import org.jscep.asn1.ScepObjectIdentifiers;
+import org.jscep.metrics.MetricsRegistry;
+import org.jscep.metrics.Stage;
 import org.jscep.transaction.FailInfo;
 import org.jscep.transaction.MessageType;
 import org.jscep.transaction.Nonce;
 import org.jscep.transaction.PkiStatus;
 import org.jscep.transaction.TransactionId;
+import org.jscep.util.StreamUtil;
 
+/**
+ * This class verifies and decodes pkiMessages.
+ * <p>
+ * Signer certificates are located by the issuer and serial number in the
+ * <code>SignerInfo</code>, and remembered once a signature made by them
+ * has been verified.  Later messages from the same signer are verified 
+ * against the remembered certificate, without converting the certificates
+ * carried in the message.
+ * <p>
+ * By default, any signer whose certificate is carried in the message is
+ * accepted.  If trusted certificates are provided, the signer must either 
+ * be one of those certificates, or hold a currently valid RA certificate
+ * issued by one of them.  An RA certificate is one whose extended key usage
+ * includes <code>id-kp-cmcRA</code> (RFC 6402); other certificates issued 
+ * by a trusted CA, such as those of its end entities, are not accepted.
+ * <p>
+ * Instances of this class may be shared between threads.
+ * 
+ * @author David Grant
+ */
 public class PkiMessageDecoder {
+	private static final int DEFAULT_CACHE_SIZE = 64;
+	/**
+	 * The <code>id-kp-cmcRA</code> extended key usage, which marks the
+	 * certificate of a registration authority.
+	 */
+	private static final String CMC_RA = "1.3.6.1.5.5.7.3.28";
 	private final PkcsPkiEnvelopeDecoder decoder;
+	private final Map<SignerId, X509Certificate> trustedSigners;
+	private final Map<X500Principal, X509Certificate> trustedIssuers;
+	private final VerifiedSignerCache signers;
 	
+	/**
+	 * Creates a new decoder which accepts any signer.
+	 * 
+	 * @param decoder the pkcsPkiEnvelope decoder.
+	 */
 	public PkiMessageDecoder(PkcsPkiEnvelopeDecoder decoder) {
+		this(decoder, Collections.<X509Certificate>emptySet(), DEFAULT_CACHE_SIZE);
+	}
+	
+	/**
+	 * Creates a new decoder which only accepts the provided signers, or
+	 * signers with RA certificates issued by them.
+	 * 
+	 * @param decoder the pkcsPkiEnvelope decoder.
+	 * @param trusted the trusted certificates.
+	 */
+	public PkiMessageDecoder(PkcsPkiEnvelopeDecoder decoder, Collection<? extends X509Certificate> trusted) {
+		this(decoder, trusted, DEFAULT_CACHE_SIZE);
+		if (trusted.isEmpty()) {
+			throw new IllegalArgumentException("No trusted certificates provided");
+		}
+	}
+	
+	/**
+	 * Creates a new decoder which remembers up to <code>cacheSize</code>
+	 * verified signers.
+	 * <p>
+	 * If <code>trusted</code> is empty, any signer is accepted.
+	 * 
+	 * @param decoder the pkcsPkiEnvelope decoder.
+	 * @param trusted the trusted certificates.
+	 * @param cacheSize the number of signers to remember.
+	 */
+	public PkiMessageDecoder(PkcsPkiEnvelopeDecoder decoder, Collection<? extends X509Certificate> trusted, int cacheSize) {
 		this.decoder = decoder;
+		this.signers = new VerifiedSignerCache(cacheSize);
+		if (trusted.isEmpty()) {
+			this.trustedSigners = null;
+			this.trustedIssuers = null;
+		} else {
+			this.trustedSigners = new HashMap<SignerId, X509Certificate>();
+			this.trustedIssuers = new HashMap<X500Principal, X509Certificate>();
+			for (X509Certificate cert : trusted) {
+				trustedSigners.put(toSignerId(cert), cert);
+				trustedIssuers.put(cert.getSubjectX500Principal(), cert);
+			}
+		}
 	}
 	
-	@SuppressWarnings("unchecked")
+	/**
+	 * Verifies and decodes the provided pkiMessage.
+	 * 
+	 * @param signedData the pkiMessage.
+	 * @return the decoded pkiMessage.
+	 * @throws IOException if the message is invalid.
+	 */
 	public PkiMessage<? extends ASN1Encodable> decode(CMSSignedData signedData) throws IOException {
+		return decode(verify(signedData));
+	}
+	
+	/**
+	 * Verifies the signature of the provided pkiMessage, without decrypting
+	 * its pkcsPkiEnvelope.
+	 * <p>
+	 * The result may be decoded by {@link #decode(SignedPkiMessage)}, 
+	 * possibly on another thread.
+	 * 
+	 * @param signedData the pkiMessage.
+	 * @return the verified pkiMessage.
+	 * @throws IOException if the message is invalid.
+	 */
+	public SignedPkiMessage verify(CMSSignedData signedData) throws IOException {
+		final long start = System.nanoTime();
+		boolean success = false;
+		try {
+			final SignedPkiMessage message = parse(signedData);
+			success = true;
+			
+			return message;
+		} finally {
+			MetricsRegistry.getMetrics().recordLatency(Stage.VERIFY, System.nanoTime() - start, success);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private SignedPkiMessage parse(CMSSignedData signedData) throws IOException {
 		String contentType = signedData.getSignedContentTypeOID();
 		if (PKCSObjectIdentifiers.data.toString().equals(contentType)) {
 			// OK
@@ -67,35 +195,218 @@ public class PkiMessageDecoder {
 		// The signed content is always an octet string
 		CMSProcessable signedContent = signedData.getSignedContent();
 		
-		CertStore certs;
+		Store certs = signedData.getCertificates();
+		Collection<SignerInformation> signerInfos = signedData.getSignerInfos().getSigners();
+		SignerInformation signerInfo = signerInfos.iterator().next();
+		final X509Certificate signer = verify(certs, signerInfo);
+		
+		final byte[] content = signedContent == null ? null : (byte[]) signedContent.getContent();
+		
+		return toSignedMessage(signer, signerInfo, content);
+	}
+	
+	/**
+	 * Decodes a pkiMessage as it is read from the provided stream.
+	 * <p>
+	 * Unlike {@link #decode(CMSSignedData)}, the <code>SignedData</code> is
+	 * never held in memory as a whole.  The signed content is digested as it
+	 * is read, and only the encrypted pkcsPkiEnvelope is retained until the
+	 * signature has been verified.
+	 * 
+	 * @param in the stream containing the DER-encoded pkiMessage.
+	 * @return the decoded pkiMessage.
+	 * @throws IOException if any I/O error occurs, or the message is invalid.
+	 */
+	public PkiMessage<? extends ASN1Encodable> decode(InputStream in) throws IOException {
+		return decode(verify(in));
+	}
+	
+	/**
+	 * Verifies the signature of a pkiMessage as it is read from the provided
+	 * stream, without decrypting its pkcsPkiEnvelope.
+	 * 
+	 * @param in the stream containing the DER-encoded pkiMessage.
+	 * @return the verified pkiMessage.
+	 * @throws IOException if any I/O error occurs, or the message is invalid.
+	 * @see #verify(CMSSignedData)
+	 */
+	public SignedPkiMessage verify(InputStream in) throws IOException {
+		final long start = System.nanoTime();
+		boolean success = false;
+		try {
+			final SignedPkiMessage message = parse(in);
+			success = true;
+			
+			return message;
+		} finally {
+			MetricsRegistry.getMetrics().recordLatency(Stage.VERIFY, System.nanoTime() - start, success);
+		}
+	}
+	
+	/**
+	 * Decodes a verified pkiMessage, decrypting its pkcsPkiEnvelope.
+	 * 
+	 * @param message the verified pkiMessage.
+	 * @return the decoded pkiMessage.
+	 * @throws IOException if the message is invalid.
+	 */
+	public PkiMessage<? extends ASN1Encodable> decode(SignedPkiMessage message) throws IOException {
+		final long start = System.nanoTime();
+		boolean success = false;
+		try {
+			final PkiMessage<? extends ASN1Encodable> decoded = decodeContent(message);
+			success = true;
+			
+			return decoded;
+		} finally {
+			MetricsRegistry.getMetrics().recordLatency(Stage.DECODE, System.nanoTime() - start, success);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private SignedPkiMessage parse(InputStream in) throws IOException {
+		final CMSSignedDataParser parser;
+		final CMSTypedStream signedContent;
+		try {
+			parser = new CMSSignedDataParser(in);
+			signedContent = parser.getSignedContent();
+		} catch (CMSException e) {
+			throw new IOException(e);
+		}
+		// The content must be read before the certificates and signers,
+		// which follow it in the encoding.
+		final byte[] content;
+		if (signedContent == null) {
+			content = null;
+		} else {
+			content = StreamUtil.readFully(signedContent.getContentStream());
+		}
+		
+		Store certs;
+		SignerInformation signerInfo;
 		try {
-			certs = signedData.getCertificatesAndCRLs("Collection", (String) null);
+			certs = parser.getCertificates();
+			Collection<SignerInformation> signerInfos = parser.getSignerInfos().getSigners();
+			signerInfo = signerInfos.iterator().next();
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
-		Collection<SignerInformation> signerInfos = signedData.getSignerInfos().getSigners();
-		SignerInformation signerInfo = signerInfos.iterator().next();
-		Collection<? extends Certificate> certColl;
+		final X509Certificate signer = verify(certs, signerInfo);
+		
+		return toSignedMessage(signer, signerInfo, content);
+	}
+	
+	private X509Certificate verify(Store certs, SignerInformation signerInfo) throws IOException {
+		final SignerId sid = signerInfo.getSID();
+		final X509Certificate known = signers.get(sid);
+		if (known != null) {
+			checkValidity(known);
+			if (verify(known, signerInfo)) {
+				return known;
+			}
+			// Fall back to the certificate carried in the message.
+			signers.remove(sid);
+		}
+		
+		final X509Certificate cert = getSigner(certs, sid);
+		checkValidity(cert);
+		if (verify(cert, signerInfo) == false) {
+			throw new IOException("Invalid Signature");
+		}
+		signers.put(sid, cert);
+		
+		return cert;
+	}
+	
+	private boolean verify(X509Certificate cert, SignerInformation signerInfo) throws IOException {
 		try {
-			certColl = certs.getCertificates(signerInfo.getSID());
+			return signerInfo.verify(cert.getPublicKey(), (String) null);
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
-		if (certColl.size() > 0) {
-			Certificate cert = certColl.iterator().next();
+	}
+	
+	private X509Certificate getSigner(Store certs, SignerId sid) throws IOException {
+		if (trustedSigners != null) {
+			final X509Certificate trusted = trustedSigners.get(sid);
+			if (trusted != null) {
+				return trusted;
+			}
+		}
+		
+		final Collection<?> matches = certs.getMatches(sid);
+		if (matches.isEmpty()) {
+			throw new IOException("Unknown Signer");
+		}
+		final X509Certificate cert;
+		try {
+			cert = new JcaX509CertificateConverter().getCertificate((X509CertificateHolder) matches.iterator().next());
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+		if (trustedIssuers != null) {
+			final X509Certificate issuer = trustedIssuers.get(cert.getIssuerX500Principal());
+			if (issuer == null) {
+				throw new IOException("Untrusted Signer");
+			}
 			try {
-				signerInfo.verify(cert.getPublicKey(), (String) null);
-			} catch (Exception e) {
-				throw new IOException(e);
+				cert.verify(issuer.getPublicKey());
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Untrusted Signer", e);
 			}
+			if (isRegistrationAuthority(cert) == false) {
+				throw new IOException("Untrusted Signer");
+			}
+		}
+		return cert;
+	}
+	
+	private static boolean isRegistrationAuthority(X509Certificate cert) throws IOException {
+		final List<String> usages;
+		try {
+			usages = cert.getExtendedKeyUsage();
+		} catch (CertificateParsingException e) {
+			throw new IOException(e);
 		}
+		return usages != null && usages.contains(CMC_RA);
+	}
+	
+	private void checkValidity(X509Certificate cert) throws IOException {
+		if (trustedSigners == null) {
+			return;
+		}
+		try {
+			cert.checkValidity();
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	private static SignerId toSignerId(X509Certificate cert) {
+		final X500Name issuer = X500Name.getInstance(cert.getIssuerX500Principal().getEncoded());
 		
+		return new SignerId(issuer, cert.getSerialNumber());
+	}
+	
+	@SuppressWarnings("unchecked")
+	private SignedPkiMessage toSignedMessage(X509Certificate signer, SignerInformation signerInfo, byte[] signedContent) {
 		Hashtable<DERObjectIdentifier, Attribute> attrTable = signerInfo.getSignedAttributes().toHashtable();
 		
 		MessageType messageType = toMessageType(attrTable.get(ScepObjectIdentifiers.messageType));
 		Nonce senderNonce = toNonce(attrTable.get(ScepObjectIdentifiers.senderNonce));
 		TransactionId transId = toTransactionId(attrTable.get(ScepObjectIdentifiers.transId));
 		
+		return new SignedPkiMessage(signer, attrTable, signedContent, messageType, transId, senderNonce);
+	}
+	
+	private PkiMessage<? extends ASN1Encodable> decodeContent(SignedPkiMessage message) throws IOException {
+		final Hashtable<DERObjectIdentifier, Attribute> attrTable = message.getAttributes();
+		final byte[] signedContent = message.getContent();
+		
+		MessageType messageType = message.getMessageType();
+		Nonce senderNonce = message.getSenderNonce();
+		TransactionId transId = message.getTransactionId();
+		
 		if (messageType == MessageType.CertRep) {
 			PkiStatus pkiStatus = toPkiStatus(attrTable.get(ScepObjectIdentifiers.pkiStatus));
 			Nonce recipientNonce = toNonce(attrTable.get(ScepObjectIdentifiers.recipientNonce));
@@ -108,30 +419,30 @@ public class PkiMessageDecoder {
 				
 				return new CertRep(transId, senderNonce, recipientNonce);
 			} else {
-				final EnvelopedData ed = getEnvelopedData((byte[]) signedContent.getContent());
-				final ASN1Encodable envelopedContent = decoder.decode(ed);
-				DEROctetString messageData = new DEROctetString(envelopedContent);
+				// The messageData is kept encoded, as it is only parsed on demand.
+				final EnvelopedData ed = getEnvelopedData(signedContent);
+				DEROctetString messageData = new DEROctetString(decoder.decrypt(ed));
 				
 				return new CertRep(transId, senderNonce, recipientNonce, messageData);
 			}
 		} else if (messageType == MessageType.GetCert) {
-			EnvelopedData ed = getEnvelopedData((byte[]) signedContent.getContent());
+			EnvelopedData ed = getEnvelopedData(signedContent);
 			IssuerAndSerialNumber messageData = IssuerAndSerialNumber.getInstance(decoder.decode(ed));
 			
 			return new GetCert(transId, senderNonce, messageData);
 		} else  if (messageType == MessageType.GetCertInitial) {
-			EnvelopedData ed = getEnvelopedData((byte[]) signedContent.getContent());
+			EnvelopedData ed = getEnvelopedData(signedContent);
 			
 			IssuerAndSubject messageData = IssuerAndSubject.getInstance(decoder.decode(ed));
 			
 			return new GetCertInitial(transId, senderNonce, messageData);
 		} else if (messageType == MessageType.GetCRL) {
-			EnvelopedData ed = getEnvelopedData((byte[]) signedContent.getContent());
+			EnvelopedData ed = getEnvelopedData(signedContent);
 			IssuerAndSerialNumber messageData = IssuerAndSerialNumber.getInstance(decoder.decode(ed));
 			
 			return new GetCRL(transId, senderNonce, messageData);
 		} else {
-			EnvelopedData ed = getEnvelopedData((byte[]) signedContent.getContent());
+			EnvelopedData ed = getEnvelopedData(signedContent);
 			CertificationRequest messageData = CertificationRequest.getInstance(decoder.decode(ed));
 			
 			return new PKCSReq(transId, senderNonce, messageData);
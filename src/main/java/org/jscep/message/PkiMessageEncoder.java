@@ -23,8 +23,8 @@ package org.jscep.message;
 
 import java.io.IOException;
 import java.security.PrivateKey;
-import java.security.cert.CertStore;
-import java.security.cert.CollectionCertStoreParameters;
+import java.security.SecureRandom;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
 import java.util.Collections;
@@ -34,27 +34,82 @@ import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.DERObjectIdentifier;
 import org.bouncycastle.asn1.cms.Attribute;
 import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cms.CMSAbsentContent;
 import org.bouncycastle.cms.CMSEnvelopedData;
-import org.bouncycastle.cms.CMSProcessable;
 import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.CMSSignedDataGenerator;
-import org.bouncycastle.cms.CMSSignedGenerator;
+import org.bouncycastle.cms.CMSTypedData;
+import org.bouncycastle.cms.DefaultSignedAttributeTableGenerator;
+import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.cms.SignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.util.Store;
+import org.jscep.metrics.MetricsRegistry;
+import org.jscep.metrics.Stage;
 import org.jscep.transaction.PkiStatus;
 
+/**
+ * This class signs pkiMessages on behalf of a single sender.
+ * <p>
+ * The sender certificate, certificate store and digest configuration are 
+ * prepared once, when the encoder is created.  Each thread signs with its 
+ * own <code>Signature</code>, which is initialised on first use and reused
+ * thereafter, so instances of this class may be shared between threads.
+ * 
+ * @author David Grant
+ */
 public class PkiMessageEncoder {
+	private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
 	private final PrivateKey senderKey;
-	private final X509Certificate senderCert;
 	private final PkcsPkiEnvelopeEncoder encoder;
+	private final X509CertificateHolder senderHolder;
+	private final Store certificates;
+	private final DigestCalculatorProvider digestProvider;
+	private final SecureRandom random;
+	private final ThreadLocal<ContentSigner> signers;
 	
 	public PkiMessageEncoder(PrivateKey priKey, X509Certificate sender, PkcsPkiEnvelopeEncoder encoder) {
 		this.senderKey = priKey;
-		this.senderCert = sender;
 		this.encoder = encoder;
+		
+		try {
+			this.senderHolder = new JcaX509CertificateHolder(sender);
+			this.certificates = new JcaCertStore(Collections.singleton(sender));
+		} catch (CertificateEncodingException e) {
+			throw new IllegalArgumentException(e);
+		}
+		try {
+			this.digestProvider = new JcaDigestCalculatorProviderBuilder().build();
+		} catch (OperatorCreationException e) {
+			throw new IllegalStateException(e);
+		}
+		this.random = new SecureRandom();
+		this.signers = new ThreadLocal<ContentSigner>();
 	}
 	
 	public CMSSignedData encode(PkiMessage<? extends ASN1Encodable> message) throws IOException {
-		CMSProcessable signable;
+		final long start = System.nanoTime();
+		boolean success = false;
+		try {
+			final CMSSignedData signedData = sign(message);
+			success = true;
+			
+			return signedData;
+		} finally {
+			MetricsRegistry.getMetrics().recordLatency(Stage.ENCODE, System.nanoTime() - start, success);
+		}
+	}
+	
+	private CMSSignedData sign(PkiMessage<? extends ASN1Encodable> message) throws IOException {
+		CMSTypedData signable;
 		
 		boolean hasMessageData = true;
 		if (message instanceof PkiResponse<?>) {
@@ -67,34 +122,44 @@ public class PkiMessageEncoder {
 			CMSEnvelopedData ed = encoder.encode(message.getMessageData());
 			signable = new CMSProcessableByteArray(ed.getEncoded());
 		} else {
-			signable = null;
+			signable = new CMSAbsentContent();
 		}
 		
-		Hashtable<DERObjectIdentifier, Attribute> table = new Hashtable<DERObjectIdentifier, Attribute>();
-		for (Attribute attr : message.getAttributes()) {
+		final Collection<Attribute> attrs = message.getAttributes();
+		final Hashtable<DERObjectIdentifier, Attribute> table = new Hashtable<DERObjectIdentifier, Attribute>(attrs.size() * 2);
+		for (Attribute attr : attrs) {
 			table.put(attr.getAttrType(), attr);
 		}
 		AttributeTable signedAttrs = new AttributeTable(table);
-		Collection<X509Certificate> certColl = Collections.singleton(senderCert);
-		CertStore store;
-		try {
-			store = CertStore.getInstance("Collection", new CollectionCertStoreParameters(certColl));
-		} catch (Exception e) {
-			throw new IOException(e);
-		}
 		
-		CMSSignedDataGenerator sdGenerator = new CMSSignedDataGenerator();
-		sdGenerator.addSigner(senderKey, senderCert, CMSSignedGenerator.DIGEST_SHA1, signedAttrs, null);
+		final ContentSigner signer = getSigner();
 		try {
-			sdGenerator.addCertificatesAndCRLs(store);
+			final SignerInfoGenerator signerInfoGenerator = new SignerInfoGeneratorBuilder(digestProvider)
+				.setSignedAttributeGenerator(new DefaultSignedAttributeTableGenerator(signedAttrs))
+				.build(signer, senderHolder);
+			
+			final CMSSignedDataGenerator sdGenerator = new CMSSignedDataGenerator(random);
+			sdGenerator.addSignerInfoGenerator(signerInfoGenerator);
+			sdGenerator.addCertificates(certificates);
+			
+			return sdGenerator.generate(signable, true);
 		} catch (Exception e) {
+			// The signer may have been left part-way through a signature.
+			signers.remove();
 			throw new IOException(e);
 		}
-		
-		try {
-			return sdGenerator.generate(signable, true, (String) null);
-		} catch (Exception e) {
-			throw new IOException(e);
+	}
+	
+	private ContentSigner getSigner() throws IOException {
+		ContentSigner signer = signers.get();
+		if (signer == null) {
+			try {
+				signer = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).setSecureRandom(random).build(senderKey);
+			} catch (OperatorCreationException e) {
+				throw new IOException(e);
+			}
+			signers.set(signer);
 		}
+		return signer;
 	}
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.message;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.Hashtable;
+
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.EnvelopedData;
+import org.jscep.transaction.MessageType;
+import org.jscep.transaction.Nonce;
+import org.jscep.transaction.TransactionId;
+
+/**
+ * This class represents a pkiMessage whose signature has been verified, but
+ * whose pkcsPkiEnvelope has not yet been decrypted.
+ * <p>
+ * The signed attributes which identify the message are available without
+ * decryption, so that a message may be dispatched, or a duplicate message 
+ * discarded, before the more costly decryption is performed.
+ * 
+ * @author David Grant
+ * @see PkiMessageDecoder#verify(org.bouncycastle.cms.CMSSignedData)
+ * @see PkiMessageDecoder#decode(SignedPkiMessage)
+ */
+public final class SignedPkiMessage {
+	private final X509Certificate signer;
+	private final Hashtable<DERObjectIdentifier, Attribute> attributes;
+	private final byte[] content;
+	private final MessageType messageType;
+	private final TransactionId transId;
+	private final Nonce senderNonce;
+	
+	SignedPkiMessage(X509Certificate signer, Hashtable<DERObjectIdentifier, Attribute> attributes, byte[] content, MessageType messageType, TransactionId transId, Nonce senderNonce) {
+		this.signer = signer;
+		this.attributes = attributes;
+		this.content = content;
+		this.messageType = messageType;
+		this.transId = transId;
+		this.senderNonce = senderNonce;
+	}
+	
+	/**
+	 * Returns the certificate of the signer of this message.
+	 * <p>
+	 * For requests, this is the certificate to which the response must be
+	 * encrypted.
+	 * 
+	 * @return the signer's certificate.
+	 */
+	public X509Certificate getSigner() {
+		return signer;
+	}
+	
+	/**
+	 * Returns the type of this message.
+	 * 
+	 * @return the message type.
+	 */
+	public MessageType getMessageType() {
+		return messageType;
+	}
+	
+	/**
+	 * Returns the transaction ID of this message.
+	 * 
+	 * @return the transaction ID.
+	 */
+	public TransactionId getTransactionId() {
+		return transId;
+	}
+	
+	/**
+	 * Returns the sender nonce of this message.
+	 * 
+	 * @return the sender nonce, or <code>null</code> if there is none.
+	 */
+	public Nonce getSenderNonce() {
+		return senderNonce;
+	}
+	
+	/**
+	 * Returns the algorithm used to encrypt the pkcsPkiEnvelope of this 
+	 * message.
+	 * <p>
+	 * The algorithm is read from the envelope without decrypting it, so that
+	 * a response can be encrypted with the algorithm the sender is known
+	 * to support.
+	 * 
+	 * @return the content encryption algorithm, or <code>null</code> if this
+	 * 	message has no pkcsPkiEnvelope.
+	 * @throws IOException if the pkcsPkiEnvelope is malformed.
+	 */
+	public ASN1ObjectIdentifier getEncryptionAlgorithm() throws IOException {
+		if (content == null) {
+			return null;
+		}
+		try {
+			final ContentInfo contentInfo = ContentInfo.getInstance(ASN1Object.fromByteArray(content));
+			final EnvelopedData envelopedData = EnvelopedData.getInstance(contentInfo.getContent());
+			
+			return envelopedData.getEncryptedContentInfo().getContentEncryptionAlgorithm().getAlgorithm();
+		} catch (RuntimeException e) {
+			// Malformed ASN.1 is reported by BouncyCastle as unchecked exceptions.
+			throw new IOException(e);
+		}
+	}
+	
+	Hashtable<DERObjectIdentifier, Attribute> getAttributes() {
+		return attributes;
+	}
+	
+	byte[] getContent() {
+		return content;
+	}
+}
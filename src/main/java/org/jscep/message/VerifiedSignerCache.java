@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.message;
+
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bouncycastle.cms.SignerId;
+
+/**
+ * This class remembers signer certificates which have already been 
+ * validated, keyed by their issuer and serial number.
+ * <p>
+ * The cache holds at most a fixed number of certificates, evicting the 
+ * least recently used certificate when full.
+ * 
+ * @author David Grant
+ */
+final class VerifiedSignerCache {
+	private final Map<SignerId, X509Certificate> signers;
+	
+	/**
+	 * Creates a new cache which remembers up to <code>capacity</code> signers.
+	 * 
+	 * @param capacity the number of signers to remember.
+	 */
+	VerifiedSignerCache(final int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.signers = new LinkedHashMap<SignerId, X509Certificate>(capacity * 4 / 3 + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<SignerId, X509Certificate> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+	
+	/**
+	 * Returns the validated certificate of the identified signer.
+	 * 
+	 * @param sid the signer identifier.
+	 * @return the certificate, or <code>null</code> if not known.
+	 */
+	synchronized X509Certificate get(SignerId sid) {
+		return signers.get(sid);
+	}
+	
+	/**
+	 * Records the validated certificate of the identified signer.
+	 * 
+	 * @param sid the signer identifier.
+	 * @param cert the certificate.
+	 */
+	synchronized void put(SignerId sid, X509Certificate cert) {
+		signers.put(sid, cert);
+	}
+	
+	/**
+	 * Forgets the identified signer.
+	 * 
+	 * @param sid the signer identifier.
+	 */
+	synchronized void remove(SignerId sid) {
+		signers.remove(sid);
+	}
+}
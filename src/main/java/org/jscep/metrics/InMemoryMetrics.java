@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.Transaction.State;
+
+/**
+ * This class provides a {@link ScepMetrics} which keeps its metrics in
+ * memory, for inspection by the application.
+ * <p>
+ * For each {@link Stage}, a {@link LatencyHistogram} and counts of errors 
+ * and bytes are kept.  Failures are counted by {@link FailInfo}, and 
+ * transitions by the {@link State} entered.  Every metric is updated 
+ * without locking.
+ * 
+ * @author David Grant
+ */
+public class InMemoryMetrics implements ScepMetrics {
+	private final Map<Stage, StageMetrics> stages = new EnumMap<Stage, StageMetrics>(Stage.class);
+	private final AtomicLongArray failures = new AtomicLongArray(FailInfo.values().length);
+	private final AtomicLongArray states = new AtomicLongArray(State.values().length);
+	
+	/**
+	 * Creates a new instance of this class with every metric at zero.
+	 */
+	public InMemoryMetrics() {
+		for (Stage stage : Stage.values()) {
+			stages.put(stage, new StageMetrics());
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void recordLatency(Stage stage, long nanos, boolean success) {
+		final StageMetrics metrics = stages.get(stage);
+		metrics.latency.record(nanos);
+		if (success == false) {
+			metrics.errors.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void recordBytes(Stage stage, long input, long output) {
+		final StageMetrics metrics = stages.get(stage);
+		metrics.input.addAndGet(input);
+		metrics.output.addAndGet(output);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void recordFailure(FailInfo failInfo) {
+		failures.incrementAndGet(failInfo.ordinal());
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void recordState(State state) {
+		states.incrementAndGet(state.ordinal());
+	}
+	
+	/**
+	 * Returns the latency histogram of the provided stage.
+	 * 
+	 * @param stage the stage.
+	 * @return the latency histogram.
+	 */
+	public LatencyHistogram getLatency(Stage stage) {
+		return stages.get(stage).latency;
+	}
+	
+	/**
+	 * Returns the number of operations of the provided stage which threw
+	 * an exception.
+	 * 
+	 * @param stage the stage.
+	 * @return the number of errors.
+	 */
+	public long getErrorCount(Stage stage) {
+		return stages.get(stage).errors.get();
+	}
+	
+	/**
+	 * Returns the total number of bytes consumed by the provided stage.
+	 * 
+	 * @param stage the stage.
+	 * @return the number of bytes consumed.
+	 * @see ScepMetrics#recordBytes(Stage, long, long)
+	 */
+	public long getInputBytes(Stage stage) {
+		return stages.get(stage).input.get();
+	}
+	
+	/**
+	 * Returns the total number of bytes produced by the provided stage.
+	 * 
+	 * @param stage the stage.
+	 * @return the number of bytes produced.
+	 * @see ScepMetrics#recordBytes(Stage, long, long)
+	 */
+	public long getOutputBytes(Stage stage) {
+		return stages.get(stage).output.get();
+	}
+	
+	/**
+	 * Returns the number of failures reported with the provided reason.
+	 * 
+	 * @param failInfo the reason for failure.
+	 * @return the number of failures.
+	 */
+	public long getFailureCount(FailInfo failInfo) {
+		return failures.get(failInfo.ordinal());
+	}
+	
+	/**
+	 * Returns the number of times a transaction entered the provided state.
+	 * 
+	 * @param state the state.
+	 * @return the number of transitions.
+	 */
+	public long getStateCount(State state) {
+		return states.get(state.ordinal());
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for (Stage stage : Stage.values()) {
+			final StageMetrics metrics = stages.get(stage);
+			sb.append(stage).append(": ").append(metrics.latency);
+			sb.append(", errors=").append(metrics.errors.get());
+			sb.append(", in=").append(metrics.input.get());
+			sb.append(", out=").append(metrics.output.get()).append('\n');
+		}
+		for (State state : State.values()) {
+			sb.append(state).append('=').append(getStateCount(state)).append(' ');
+		}
+		sb.append('\n');
+		for (FailInfo failInfo : FailInfo.values()) {
+			sb.append(failInfo.name()).append('=').append(getFailureCount(failInfo)).append(' ');
+		}
+		
+		return sb.toString().trim();
+	}
+	
+	/**
+	 * The metrics of a single stage.
+	 */
+	private static final class StageMetrics {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong input = new AtomicLong();
+		final AtomicLong output = new AtomicLong();
+	}
+}
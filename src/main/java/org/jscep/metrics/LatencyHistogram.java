@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records the distribution of latencies of an operation.
+ * <p>
+ * Latencies are counted in buckets of exponentially increasing width, with
+ * four buckets for each power of two, so that percentiles are reported to 
+ * within 25% of the true value, from nanoseconds to centuries, in a fixed
+ * amount of memory.  Recording a latency takes constant time and does not
+ * lock, so instances of this class may be shared between threads.
+ * 
+ * @author David Grant
+ */
+public final class LatencyHistogram {
+	private static final int BUCKETS = 248;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Records a single latency.
+	 * 
+	 * @param nanos the latency, in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(getBucket(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long current = max.get();
+		while (nanos > current && max.compareAndSet(current, nanos) == false) {
+			current = max.get();
+		}
+	}
+	
+	/**
+	 * Returns the number of latencies recorded.
+	 * 
+	 * @return the number of latencies.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * Returns the mean latency.
+	 * 
+	 * @param unit the unit of the result.
+	 * @return the mean latency, or zero if none has been recorded.
+	 */
+	public double getMean(TimeUnit unit) {
+		final long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		return (double) total.get() / n / unit.toNanos(1);
+	}
+	
+	/**
+	 * Returns the greatest latency recorded.
+	 * 
+	 * @param unit the unit of the result.
+	 * @return the greatest latency.
+	 */
+	public long getMax(TimeUnit unit) {
+		return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the latency below which the provided fraction of recorded 
+	 * latencies fall.
+	 * <p>
+	 * For example, <code>getPercentile(0.99, TimeUnit.MILLISECONDS)</code>
+	 * returns the 99th percentile in milliseconds.
+	 * 
+	 * @param fraction the fraction, from 0 to 1.
+	 * @param unit the unit of the result.
+	 * @return the latency, or zero if none has been recorded.
+	 */
+	public long getPercentile(double fraction, TimeUnit unit) {
+		if (fraction < 0 || fraction > 1) {
+			throw new IllegalArgumentException("fraction must be between 0 and 1");
+		}
+		long n = 0;
+		final long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(fraction * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				final long nanos = Math.min(getUpperBound(i), max.get());
+				
+				return unit.convert(nanos, TimeUnit.NANOSECONDS);
+			}
+		}
+		return getMax(unit);
+	}
+	
+	private static int getBucket(long nanos) {
+		if (nanos < 4) {
+			return (int) nanos;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		
+		return ((exponent - 1) << 2) + (int) ((nanos >>> (exponent - 2)) & 3);
+	}
+	
+	private static long getUpperBound(int bucket) {
+		if (bucket < 4) {
+			return bucket;
+		}
+		final int exponent = (bucket >> 2) + 1;
+		final long mantissa = (bucket & 3) | 4;
+		// Overflows to Long.MAX_VALUE for the last bucket.
+		return ((mantissa + 1) << (exponent - 2)) - 1;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return "count=" + getCount() 
+			+ ", mean=" + String.format("%.3fms", getMean(TimeUnit.MICROSECONDS) / 1000)
+			+ ", p50=" + getPercentile(0.5, TimeUnit.MICROSECONDS) / 1000.0 + "ms"
+			+ ", p99=" + getPercentile(0.99, TimeUnit.MICROSECONDS) / 1000.0 + "ms"
+			+ ", max=" + getMax(TimeUnit.MICROSECONDS) / 1000.0 + "ms";
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.metrics;
+
+/**
+ * This class holds the {@link ScepMetrics} to which the library reports.
+ * <p>
+ * Until another implementation is set, metrics are discarded by 
+ * {@link NoOpMetrics}.
+ * 
+ * @author David Grant
+ */
+public final class MetricsRegistry {
+	private static volatile ScepMetrics metrics = NoOpMetrics.getInstance();
+	
+	/**
+	 * Private constructor to prevent instantiation.
+	 */
+	private MetricsRegistry() {
+		// This constructor will never be invoked.
+	}
+	
+	/**
+	 * Returns the metrics to which the library reports.
+	 * 
+	 * @return the current metrics.
+	 */
+	public static ScepMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Sets the metrics to which the library reports.
+	 * 
+	 * @param metrics the metrics, or <code>null</code> to discard metrics.
+	 */
+	public static void setMetrics(ScepMetrics metrics) {
+		if (metrics == null) {
+			MetricsRegistry.metrics = NoOpMetrics.getInstance();
+		} else {
+			MetricsRegistry.metrics = metrics;
+		}
+	}
+}
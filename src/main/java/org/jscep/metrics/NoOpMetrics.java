@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.metrics;
+
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.Transaction.State;
+
+/**
+ * This class provides a {@link ScepMetrics} which discards everything.
+ * <p>
+ * This is the default implementation.
+ * 
+ * @author David Grant
+ */
+public final class NoOpMetrics implements ScepMetrics {
+	private static final NoOpMetrics INSTANCE = new NoOpMetrics();
+	
+	private NoOpMetrics() {
+		// Use getInstance()
+	}
+	
+	/**
+	 * Returns the shared instance of this class.
+	 * 
+	 * @return the shared instance.
+	 */
+	public static NoOpMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void recordLatency(Stage stage, long nanos, boolean success) {
+		// Do nothing
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void recordBytes(Stage stage, long input, long output) {
+		// Do nothing
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void recordFailure(FailInfo failInfo) {
+		// Do nothing
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void recordState(State state) {
+		// Do nothing
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.metrics;
+
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.Transaction.State;
+
+/**
+ * This interface is implemented by classes which collect metrics about
+ * SCEP operations.
+ * <p>
+ * Implementations are called from every thread which uses the library, 
+ * often on the critical path of an operation, and so must be thread-safe
+ * and should return quickly.  Implementations must not throw exceptions.
+ * 
+ * @author David Grant
+ * @see MetricsRegistry
+ */
+public interface ScepMetrics {
+	/**
+	 * Records the time taken by a single operation of the provided stage.
+	 * 
+	 * @param stage the stage.
+	 * @param nanos the elapsed time, in nanoseconds.
+	 * @param success <code>true</code> if the operation succeeded, 
+	 * 	<code>false</code> if it threw an exception.
+	 */
+	void recordLatency(Stage stage, long nanos, boolean success);
+	
+	/**
+	 * Records the number of bytes consumed and produced by a single 
+	 * operation of the provided stage.
+	 * <p>
+	 * For {@link Stage#TRANSPORT}, the input is the number of bytes sent, 
+	 * and the output is the number of bytes received.
+	 * 
+	 * @param stage the stage.
+	 * @param input the number of bytes consumed.
+	 * @param output the number of bytes produced.
+	 */
+	void recordBytes(Stage stage, long input, long output);
+	
+	/**
+	 * Records a failure reported by the SCEP server.
+	 * 
+	 * @param failInfo the reason for failure.
+	 */
+	void recordFailure(FailInfo failInfo);
+	
+	/**
+	 * Records the state a transaction has entered in response to the SCEP
+	 * server.
+	 * 
+	 * @param state the new state.
+	 */
+	void recordState(State state);
+}
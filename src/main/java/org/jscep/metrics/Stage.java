@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.metrics;
+
+/**
+ * This enum represents the stages of a SCEP exchange for which metrics are
+ * recorded.
+ * 
+ * @author David Grant
+ */
+public enum Stage {
+	/**
+	 * A complete request and response exchange of a transaction, including 
+	 * encoding, transport and decoding.
+	 */
+	TRANSACTION,
+	/**
+	 * Signing a pkiMessage, including encryption of its pkcsPkiEnvelope.
+	 */
+	ENCODE,
+	/**
+	 * Verifying the signature of a pkiMessage.
+	 */
+	VERIFY,
+	/**
+	 * Decoding a verified pkiMessage, including decryption of its 
+	 * pkcsPkiEnvelope.
+	 */
+	DECODE,
+	/**
+	 * Encrypting a pkcsPkiEnvelope.
+	 */
+	ENCRYPT,
+	/**
+	 * Decrypting a pkcsPkiEnvelope.
+	 */
+	DECRYPT,
+	/**
+	 * A single HTTP exchange with the SCEP server, including parsing of the
+	 * response.
+	 */
+	TRANSPORT
+}
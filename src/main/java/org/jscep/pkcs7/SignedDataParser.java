@@ -22,13 +22,12 @@
 package org.jscep.pkcs7;
 
 import java.io.IOException;
-import java.util.logging.Logger;
 
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.cms.ContentInfo;
 import org.bouncycastle.asn1.cms.SignedData;
-import org.jscep.util.LoggingUtil;
+import org.jscep.util.Tracer;
 
 
 /**
@@ -38,7 +37,7 @@ import org.jscep.util.LoggingUtil;
  * @author David Grant
  */
 public class SignedDataParser {
-	private static Logger LOGGER = LoggingUtil.getLogger(SignedDataParser.class);
+	private static final Tracer TRACER = Tracer.getTracer(SignedDataParser.class);
 
 	/**
 	 * Parses the provided ASN1 object and extracts a degenerate SignedData
@@ -49,18 +48,18 @@ public class SignedDataParser {
 	 * @throws IOException if any I/O error occurs.
 	 */
 	public SignedData parse(ASN1Encodable signedData) throws IOException {
-		LOGGER.entering(getClass().getName(), "parse", signedData);
+		TRACER.entering("parse", signedData);
 		
 		try {
 			ContentInfo ci = ContentInfo.getInstance(signedData);
 			ASN1Sequence seq = (ASN1Sequence) ci.getContent();
 			final SignedData sd = new SignedData(seq);
 
-			LOGGER.exiting(getClass().getName(), "parse", sd);
+			TRACER.exiting("parse", sd);
 			return sd;
 		} catch (Exception e) {
 			
-			LOGGER.throwing(getClass().getName(), "parse", e);
+			TRACER.throwing("parse", e);
 			throw new IOException(e);
 		}
 	}
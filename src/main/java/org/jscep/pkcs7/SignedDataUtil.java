@@ -130,7 +130,12 @@ public final class SignedDataUtil {
 			}
 			// We've found the right issuer.
 			ASN1OctetString signedDigest = signerInfo.getEncryptedDigest();
-			String sigAlg = AlgorithmDictionary.lookup(signerInfo.getDigestAlgorithm());
+			// The dictionary maps the digest algorithm to a digest name.
+			String digestAlg = AlgorithmDictionary.lookup(signerInfo.getDigestAlgorithm());
+			if (digestAlg == null) {
+				return false;
+			}
+			String sigAlg = AlgorithmDictionary.getRSASignatureAlgorithm(digestAlg);
 			Signature sig;
 			try {
 				sig = Signature.getInstance(sigAlg);
@@ -22,11 +22,7 @@
  */
 package org.jscep.request;
 
-import java.io.IOException;
-import java.io.OutputStream;
-
 import org.bouncycastle.cms.CMSSignedData;
-import org.bouncycastle.util.encoders.Base64;
 import org.jscep.content.ScepContentHandler;
 
 /**
@@ -34,9 +30,7 @@ import org.jscep.content.ScepContentHandler;
  * 
  * @author David Grant
  */
-public class PKCSReq extends Request<CMSSignedData> {
-	private final CMSSignedData msgData;
-
+public class PKCSReq extends PkiOperation<CMSSignedData> {
 	/**
 	 * Creates a new instance of this class using the provided pkiMessage
 	 * and response handler.
@@ -45,33 +39,6 @@ public class PKCSReq extends Request<CMSSignedData> {
 	 * @param handler the response handler for this request.
 	 */
 	public PKCSReq(CMSSignedData msgData, ScepContentHandler<CMSSignedData> handler) {
-		super(Operation.PKIOperation, handler);
-		
-		this.msgData = msgData;
-	}
-
-	/**
-	 * {@inheritDoc}
-	 */
-	public String getMessage() throws IOException {
-		byte[] bytes = Base64.encode(msgData.getEncoded());
-		
-		return new String(bytes);
-	}
-	
-	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public void write(OutputStream out) throws IOException {
-    	out.write(msgData.getEncoded());
-    }
-	
-	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public String toString() {
-		return msgData.toString();
+		super(msgData, handler);
 	}
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2009-2010 David Grant
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.bouncycastle.asn1.ASN1OutputStream;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.util.encoders.Base64;
+import org.jscep.content.ScepContentHandler;
+
+/**
+ * This class represents a <code>PKIOperation</code> request.
+ * <p>
+ * The request carries a signed pkiMessage, such as a <code>PKCSReq</code>, 
+ * <code>GetCertInitial</code>, <code>GetCert</code> or <code>GetCRL</code>.
+ * The type of the response is determined by the content handler, so the 
+ * response may be returned as raw <code>SignedData</code> or decoded as it
+ * is read.
+ * 
+ * @author David Grant
+ * @param <T> the response type associated with this request
+ */
+public class PkiOperation<T> extends Request<T> {
+	private final CMSSignedData msgData;
+
+	/**
+	 * Creates a new instance of this class using the provided pkiMessage
+	 * and response handler.
+	 * 
+	 * @param msgData the pkiMessage to use.
+	 * @param handler the response handler for this request.
+	 */
+	public PkiOperation(CMSSignedData msgData, ScepContentHandler<T> handler) {
+		super(Operation.PKIOperation, handler);
+		
+		this.msgData = msgData;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getMessage() throws IOException {
+		byte[] bytes = Base64.encode(msgData.getEncoded());
+		
+		return new String(bytes);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void write(OutputStream out) throws IOException {
+		// Encode directly to the stream, rather than to an intermediate array.
+		final ASN1OutputStream asn1Out = new ASN1OutputStream(out);
+		asn1Out.writeObject(msgData.getContentInfo());
+		asn1Out.flush();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return msgData.toString();
+	}
+}
@@ -21,25 +21,26 @@
  */
 package org.jscep.response;
 
-import java.security.GeneralSecurityException;
-import java.security.MessageDigest;
 import java.util.EnumSet;
-import java.util.logging.Logger;
 
-import javax.crypto.Cipher;
-
-import org.jscep.util.LoggingUtil;
+import org.jscep.util.AlgorithmRegistry;
+import org.jscep.util.Tracer;
 
 
 /**
  * This class represents a set of capabilities for a particular
  * SCEP server.
+ * <p>
+ * Instances of this class are safe for use by multiple threads.  The 
+ * negotiated algorithms are read without locking once they have been 
+ * computed.
  * 
  * @author David Grant
  */
 public class Capabilities {
-	private static Logger LOGGER = LoggingUtil.getLogger(Capabilities.class);
-	private EnumSet<Capability> capabilities;
+	private static final Tracer TRACER = Tracer.getTracer(Capabilities.class);
+	private final EnumSet<Capability> capabilities;
+	private volatile Negotiated negotiated;
 
 	/**
 	 * Constructs a new instance of this class with the specified
@@ -60,8 +61,9 @@ public class Capabilities {
 	 * 
 	 * @param capability the capability to add.
 	 */
-	public void add(Capability capability) {
+	public synchronized void add(Capability capability) {
 		capabilities.add(capability);
+		negotiated = null;
 	}
 	
 	/**
@@ -72,7 +74,7 @@ public class Capabilities {
 	 * @return <code>true</code> if the server supports the provided
 	 * 	Capability, <code>false</code> otherwise.
 	 */
-	public boolean contains(Capability capability) {
+	public synchronized boolean contains(Capability capability) {
 		return capabilities.contains(capability);
 	}
 	
@@ -82,7 +84,7 @@ public class Capabilities {
 	 * @return <tt>true</tt> if POST is supported, <tt>false</tt> otherwise.
 	 */
 	public boolean isPostSupported() {
-		return capabilities.contains(Capability.POST_PKI_OPERATION);
+		return contains(Capability.POST_PKI_OPERATION);
 	}
 	
 	/**
@@ -91,7 +93,7 @@ public class Capabilities {
 	 * @return <tt>true</tt> if retrieval of the next CA is supported, <tt>false</tt> otherwise.
 	 */
 	public boolean isRolloverSupported() {
-		return capabilities.contains(Capability.GET_NEXT_CA_CERT);
+		return contains(Capability.GET_NEXT_CA_CERT);
 	}
 	
 	/**
@@ -100,7 +102,7 @@ public class Capabilities {
 	 * @return <tt>true</tt> if certificate renewal is supported, <tt>false</tt> otherwise.
 	 */
 	public boolean isRenewalSupported() {
-		return capabilities.contains(Capability.RENEWAL);
+		return contains(Capability.RENEWAL);
 	}
 	
 	/**
@@ -108,6 +110,7 @@ public class Capabilities {
 	 * <p>
 	 * The algorithms are ordered thus:
 	 * <ol>
+	 *     <li>AES (AES-128)</li>
 	 *     <li>DESede ("Triple DES")</li>
 	 *     <li>DES</li>
 	 * </ol>
@@ -115,28 +118,14 @@ public class Capabilities {
 	 * @return the strongest cipher algorithm supported by the server and client.
 	 */
 	public String getStrongestCipher() {
-		LOGGER.entering(getClass().getName(), "getStrongestCipher");
+		TRACER.entering("getStrongestCipher");
 
-		final String cipher;
-		if (cipherExists("DESede") && capabilities.contains(Capability.TRIPLE_DES)) {
-			cipher = "DESede";
-		} else {
-			cipher = "DES";
-		}
+		final String cipher = negotiate().cipher;
 		
-		LOGGER.exiting(getClass().getName(), "getStrongestCipher", cipher);
+		TRACER.exiting("getStrongestCipher", cipher);
 		return cipher;
 	}
 	
-	private boolean cipherExists(String cipher) {
-		try {
-			Cipher.getInstance(cipher);
-			return true;
-		} catch (GeneralSecurityException e) {
-			return false;
-		}
-	}
-	
 	/**
 	 * Returns the strongest message digest algorithm supported by the server and client.
 	 * <p>
@@ -151,27 +140,51 @@ public class Capabilities {
 	 * @return the strongest message digest algorithm supported by the server and client.
 	 */
 	public String getStrongestMessageDigest() {
-		final String digest;
-		if (digestExists("SHA-512") && capabilities.contains(Capability.SHA_512)) {
-			digest = "SHA-512";
-		} else if (digestExists("SHA-256") && capabilities.contains(Capability.SHA_256)) {
-			digest = "SHA-256";
-		} else if (digestExists("SHA-1") && capabilities.contains(Capability.SHA_1)) {
-			digest = "SHA-1";
-		} else {
-			digest = "MD5";
-		}
+		final String digest = negotiate().digest;
 		
-		LOGGER.exiting(getClass().getName(), "getStrongestMessageDigest()", digest);
+		TRACER.exiting("getStrongestMessageDigest()", digest);
 		return digest;
 	}
 	
-	private boolean digestExists(String digest) {
-		try {
-			MessageDigest.getInstance(digest);
-			return true;
-		} catch (GeneralSecurityException e) {
-			return false;
+	/**
+	 * Returns the algorithms negotiated with the server, computing them if 
+	 * the capabilities or the available algorithms have changed.
+	 */
+	private Negotiated negotiate() {
+		final int generation = AlgorithmRegistry.getGeneration();
+		final Negotiated n = negotiated;
+		if (n != null && n.generation == generation) {
+			return n;
+		}
+		synchronized (this) {
+			// Computed under the lock, so that a concurrent add() cannot be
+			// overwritten by a result computed from the previous set.
+			final Negotiated computed = new Negotiated(generation, chooseCipher(), chooseDigest());
+			negotiated = computed;
+			
+			return computed;
+		}
+	}
+	
+	private String chooseCipher() {
+		if (capabilities.contains(Capability.AES) && AlgorithmRegistry.isCipherAvailable("AES/CBC/PKCS5Padding")) {
+			return "AES";
+		} else if (capabilities.contains(Capability.TRIPLE_DES) && AlgorithmRegistry.isCipherAvailable("DESede")) {
+			return "DESede";
+		} else {
+			return "DES";
+		}
+	}
+	
+	private String chooseDigest() {
+		if (capabilities.contains(Capability.SHA_512) && AlgorithmRegistry.isDigestAvailable("SHA-512")) {
+			return "SHA-512";
+		} else if (capabilities.contains(Capability.SHA_256) && AlgorithmRegistry.isDigestAvailable("SHA-256")) {
+			return "SHA-256";
+		} else if (capabilities.contains(Capability.SHA_1) && AlgorithmRegistry.isDigestAvailable("SHA-1")) {
+			return "SHA-1";
+		} else {
+			return "MD5";
 		}
 	}
 	
@@ -179,7 +192,22 @@ public class Capabilities {
 	 * {@inheritDoc}
 	 */
 	@Override
-	public String toString() {
+	public synchronized String toString() {
 		return capabilities.toString();
 	}
+	
+	/**
+	 * The algorithms negotiated for a particular registry generation.
+	 */
+	private static final class Negotiated {
+		final int generation;
+		final String cipher;
+		final String digest;
+		
+		Negotiated(int generation, String cipher, String digest) {
+			this.generation = generation;
+			this.cipher = cipher;
+			this.digest = digest;
+		}
+	}
 }
@@ -54,7 +54,11 @@ public enum Capability {
     /**
      * CA Supports triple-DES for encryption.
      */
-    TRIPLE_DES("DES3");
+    TRIPLE_DES("DES3"),
+    /**
+     * CA Supports AES-128 for encryption.
+     */
+    AES("AES");
     
     /**
      * Member variable to hold the name of the capability as
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.server;
+
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Set;
+
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.jscep.asn1.IssuerAndSubject;
+import org.jscep.response.Capability;
+import org.jscep.transaction.TransactionId;
+
+/**
+ * This interface is implemented by the certificate authorities behind a
+ * {@link ScepServer}.
+ * <p>
+ * The server takes care of the SCEP protocol: it verifies and decrypts 
+ * requests before passing them to the authority, and signs and encrypts
+ * the {@link Outcome} returned.  Implementations are called concurrently,
+ * and so must be thread-safe.
+ * 
+ * @author David Grant
+ */
+public interface CertificateAuthority {
+	/**
+	 * Returns the capabilities of the authority.
+	 * 
+	 * @param caIdentifier the CA identifier sent by the client, or <code>null</code>.
+	 * @return the capabilities.
+	 */
+	Set<Capability> getCapabilities(String caIdentifier);
+	
+	/**
+	 * Returns the certificates of the authority.
+	 * <p>
+	 * The list contains the CA certificate and, if requests are handled by
+	 * an RA, the RA certificate.
+	 * 
+	 * @param caIdentifier the CA identifier sent by the client, or <code>null</code>.
+	 * @return the certificates.
+	 */
+	List<X509Certificate> getCaCertificates(String caIdentifier);
+	
+	/**
+	 * Returns the certificates which will replace those of the authority
+	 * when they expire.
+	 * 
+	 * @param caIdentifier the CA identifier sent by the client, or <code>null</code>.
+	 * @return the next certificates, or an empty list if there are none.
+	 */
+	List<X509Certificate> getNextCaCertificates(String caIdentifier);
+	
+	/**
+	 * Returns the certificate with which requests are encrypted, and 
+	 * responses are signed.
+	 * <p>
+	 * This is the certificate of the CA, or of the RA if there is one.
+	 * 
+	 * @return the responder certificate.
+	 */
+	X509Certificate getResponderCertificate();
+	
+	/**
+	 * Returns the private key corresponding to the 
+	 * {@link #getResponderCertificate() responder certificate}.
+	 * 
+	 * @return the responder key.
+	 */
+	PrivateKey getResponderKey();
+	
+	/**
+	 * Handles a <code>PKCSReq</code> message.
+	 * 
+	 * @param transId the transaction ID.
+	 * @param csr the certificate signing request.
+	 * @return the outcome of the request.
+	 * @throws IOException if the request cannot be handled.
+	 */
+	Outcome enrol(TransactionId transId, CertificationRequest csr) throws IOException;
+	
+	/**
+	 * Handles a <code>GetCertInitial</code> message, sent by a client 
+	 * polling for the outcome of a pending enrolment.
+	 * 
+	 * @param transId the transaction ID of the enrolment.
+	 * @param ias the issuer and subject of the requested certificate.
+	 * @return the outcome of the enrolment.
+	 * @throws IOException if the request cannot be handled.
+	 */
+	Outcome poll(TransactionId transId, IssuerAndSubject ias) throws IOException;
+	
+	/**
+	 * Handles a <code>GetCert</code> message.
+	 * 
+	 * @param iasn the issuer and serial number of the certificate.
+	 * @return the outcome of the request.
+	 * @throws IOException if the request cannot be handled.
+	 */
+	Outcome getCertificate(IssuerAndSerialNumber iasn) throws IOException;
+	
+	/**
+	 * Handles a <code>GetCRL</code> message.
+	 * 
+	 * @param iasn the issuer and serial number of the certificate for 
+	 * 	which the CRL is required.
+	 * @return the outcome of the request.
+	 * @throws IOException if the request cannot be handled.
+	 */
+	Outcome getCrl(IssuerAndSerialNumber iasn) throws IOException;
+}
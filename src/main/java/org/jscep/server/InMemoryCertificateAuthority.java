@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.server;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.jscep.asn1.IssuerAndSubject;
+import org.jscep.response.Capability;
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.TransactionId;
+import org.jscep.util.AlgorithmDictionary;
+import org.jscep.x509.X509Util;
+
+/**
+ * This class is a simple certificate authority which keeps its state in 
+ * memory.
+ * <p>
+ * It is intended for testing clients, and for embedding in applications 
+ * which issue short-lived certificates.  The authority can be configured to
+ * leave enrolments pending for a number of polls, and to reject them:
+ * <pre>
+ * InMemoryCertificateAuthority ca = new InMemoryCertificateAuthority(new X500Principal("CN=Test CA"));
+ * ca.setPendingPolls(2);
+ * ScepServer server = new ScepServer(ca);
+ * server.start();
+ * </pre>
+ * Only the most recent {@link #DEFAULT_CAPACITY} transactions and issued
+ * certificates are remembered.
+ * 
+ * @author David Grant
+ */
+public class InMemoryCertificateAuthority implements CertificateAuthority {
+	/**
+	 * The number of transactions and certificates remembered.
+	 */
+	public static final int DEFAULT_CAPACITY = 10000;
+	private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+	private final KeyPair keyPair;
+	private final X509Certificate caCert;
+	private final AtomicLong serials;
+	private final Map<String, Enrolment> enrolments;
+	private final Map<BigInteger, X509Certificate> issued;
+	private volatile X509Certificate nextCaCert;
+	private volatile int pendingPolls;
+	private volatile FailInfo failInfo;
+	private volatile long validity = TimeUnit.DAYS.toMillis(365);
+	
+	/**
+	 * Creates a new authority with a new key pair and self-signed 
+	 * certificate.
+	 * 
+	 * @param subject the subject of the CA certificate.
+	 * @throws GeneralSecurityException if the key pair or certificate cannot be created.
+	 */
+	public InMemoryCertificateAuthority(X500Principal subject) throws GeneralSecurityException {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		this.keyPair = generator.generateKeyPair();
+		this.caCert = createCaCertificate(subject, keyPair);
+		this.serials = new AtomicLong(caCert.getSerialNumber().longValue() + 1);
+		this.enrolments = new BoundedMap<String, Enrolment>(DEFAULT_CAPACITY);
+		this.issued = new BoundedMap<BigInteger, X509Certificate>(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Creates a new authority with the provided key pair and certificate.
+	 * 
+	 * @param keyPair the key pair of the CA.
+	 * @param caCert the certificate of the CA.
+	 */
+	public InMemoryCertificateAuthority(KeyPair keyPair, X509Certificate caCert) {
+		this.keyPair = keyPair;
+		this.caCert = caCert;
+		this.serials = new AtomicLong(System.currentTimeMillis());
+		this.enrolments = new BoundedMap<String, Enrolment>(DEFAULT_CAPACITY);
+		this.issued = new BoundedMap<BigInteger, X509Certificate>(DEFAULT_CAPACITY);
+	}
+	
+	private static X509Certificate createCaCertificate(X500Principal subject, KeyPair keyPair) throws GeneralSecurityException {
+		final long now = System.currentTimeMillis();
+		
+		final X509V3CertificateGenerator gen = new X509V3CertificateGenerator();
+		gen.setSerialNumber(BigInteger.ONE);
+		gen.setIssuerDN(subject);
+		gen.setSubjectDN(subject);
+		gen.setNotBefore(new Date(now - TimeUnit.DAYS.toMillis(1)));
+		gen.setNotAfter(new Date(now + TimeUnit.DAYS.toMillis(3650)));
+		gen.setPublicKey(keyPair.getPublic());
+		gen.setSignatureAlgorithm(SIGNATURE_ALGORITHM);
+		gen.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(true));
+		gen.addExtension(X509Extensions.KeyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign | KeyUsage.digitalSignature | KeyUsage.keyEncipherment));
+		
+		return gen.generate(keyPair.getPrivate());
+	}
+	
+	/**
+	 * Sets the number of times a client must poll before its enrolment is
+	 * decided.
+	 * <p>
+	 * By default, enrolments are decided immediately.
+	 * 
+	 * @param polls the number of polls, or zero.
+	 */
+	public void setPendingPolls(int polls) {
+		if (polls < 0) {
+			throw new IllegalArgumentException("polls must not be negative");
+		}
+		pendingPolls = polls;
+	}
+	
+	/**
+	 * Sets the reason with which enrolments are rejected.
+	 * <p>
+	 * By default, every enrolment with a valid signature is granted.  
+	 * Enrolments which are already decided are not affected.
+	 * 
+	 * @param failInfo the reason for rejection, or <code>null</code> to grant enrolments.
+	 */
+	public void setFailInfo(FailInfo failInfo) {
+		this.failInfo = failInfo;
+	}
+	
+	/**
+	 * Sets the validity period of issued certificates.
+	 * <p>
+	 * The default is 365 days.
+	 * 
+	 * @param duration the validity period.
+	 * @param unit the unit of the validity period.
+	 */
+	public void setValidity(long duration, TimeUnit unit) {
+		validity = unit.toMillis(duration);
+	}
+	
+	/**
+	 * Sets the certificate which will replace that of this authority.
+	 * 
+	 * @param nextCaCert the next CA certificate, or <code>null</code> if there is none.
+	 */
+	public void setNextCaCertificate(X509Certificate nextCaCert) {
+		this.nextCaCert = nextCaCert;
+	}
+	
+	/**
+	 * Returns the certificate of this authority.
+	 * 
+	 * @return the CA certificate.
+	 */
+	public X509Certificate getCaCertificate() {
+		return caCert;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Set<Capability> getCapabilities(String caIdentifier) {
+		final Set<Capability> caps = EnumSet.of(Capability.POST_PKI_OPERATION, Capability.SHA_1, Capability.SHA_256, Capability.TRIPLE_DES, Capability.AES);
+		if (nextCaCert != null) {
+			caps.add(Capability.GET_NEXT_CA_CERT);
+		}
+		return caps;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<X509Certificate> getCaCertificates(String caIdentifier) {
+		return Collections.singletonList(caCert);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<X509Certificate> getNextCaCertificates(String caIdentifier) {
+		final X509Certificate next = nextCaCert;
+		if (next == null) {
+			return Collections.emptyList();
+		}
+		return Collections.singletonList(next);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public X509Certificate getResponderCertificate() {
+		return caCert;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public PrivateKey getResponderKey() {
+		return keyPair.getPrivate();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Outcome enrol(TransactionId transId, CertificationRequest csr) throws IOException {
+		final String key = transId.toString();
+		Enrolment enrolment;
+		synchronized (enrolments) {
+			enrolment = enrolments.get(key);
+			if (enrolment == null) {
+				enrolment = new Enrolment(csr, pendingPolls);
+				enrolments.put(key, enrolment);
+			}
+		}
+		// A repeated request is treated as a poll.
+		return advance(enrolment);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Outcome poll(TransactionId transId, IssuerAndSubject ias) throws IOException {
+		final Enrolment enrolment;
+		synchronized (enrolments) {
+			enrolment = enrolments.get(transId.toString());
+		}
+		if (enrolment == null) {
+			return Outcome.failed(FailInfo.badCertId);
+		}
+		return advance(enrolment);
+	}
+	
+	private Outcome advance(Enrolment enrolment) throws IOException {
+		synchronized (enrolment) {
+			if (enrolment.outcome != null) {
+				return enrolment.outcome;
+			}
+			if (enrolment.polls > 0) {
+				enrolment.polls--;
+				
+				return Outcome.pending();
+			}
+			enrolment.outcome = decide(enrolment.csr);
+			
+			return enrolment.outcome;
+		}
+	}
+	
+	private Outcome decide(CertificationRequest csr) throws IOException {
+		final FailInfo rejection = failInfo;
+		if (rejection != null) {
+			return Outcome.failed(rejection);
+		}
+		final PublicKey publicKey = X509Util.getPublicKey(csr);
+		final String sigAlg = AlgorithmDictionary.lookup(csr.getSignatureAlgorithm());
+		if (sigAlg == null) {
+			return Outcome.failed(FailInfo.badAlg);
+		}
+		final X509Certificate cert;
+		try {
+			final Signature sig = Signature.getInstance(sigAlg);
+			sig.initVerify(publicKey);
+			sig.update(csr.getCertificationRequestInfo().getDEREncoded());
+			if (sig.verify(csr.getSignature().getBytes()) == false) {
+				return Outcome.failed(FailInfo.badMessageCheck);
+			}
+			cert = issue(csr.getCertificationRequestInfo().getSubject(), publicKey);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+		synchronized (issued) {
+			issued.put(cert.getSerialNumber(), cert);
+		}
+		return Outcome.issued(Collections.singletonList(cert));
+	}
+	
+	private X509Certificate issue(X509Name subject, PublicKey publicKey) throws GeneralSecurityException {
+		final long now = System.currentTimeMillis();
+		
+		final X509V3CertificateGenerator gen = new X509V3CertificateGenerator();
+		gen.setSerialNumber(BigInteger.valueOf(serials.getAndIncrement()));
+		gen.setIssuerDN(caCert.getSubjectX500Principal());
+		gen.setSubjectDN(new X500Principal(subject.getDEREncoded()));
+		gen.setNotBefore(new Date(now - TimeUnit.MINUTES.toMillis(5)));
+		gen.setNotAfter(new Date(now + validity));
+		gen.setPublicKey(publicKey);
+		gen.setSignatureAlgorithm(SIGNATURE_ALGORITHM);
+		gen.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(false));
+		gen.addExtension(X509Extensions.KeyUsage, true, new KeyUsage(KeyUsage.digitalSignature | KeyUsage.keyEncipherment));
+		
+		return gen.generate(keyPair.getPrivate());
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Outcome getCertificate(IssuerAndSerialNumber iasn) throws IOException {
+		if (isIssuer(iasn.getName()) == false) {
+			return Outcome.failed(FailInfo.badCertId);
+		}
+		final X509Certificate cert;
+		synchronized (issued) {
+			cert = issued.get(iasn.getSerialNumber().getValue());
+		}
+		if (cert == null) {
+			return Outcome.failed(FailInfo.badCertId);
+		}
+		return Outcome.issued(Collections.singletonList(cert));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Certificates are never revoked by this authority, so the CRL is empty.
+	 */
+	public Outcome getCrl(IssuerAndSerialNumber iasn) throws IOException {
+		if (isIssuer(iasn.getName()) == false) {
+			return Outcome.failed(FailInfo.badCertId);
+		}
+		final long now = System.currentTimeMillis();
+		
+		final X509V2CRLGenerator gen = new X509V2CRLGenerator();
+		gen.setIssuerDN(caCert.getSubjectX500Principal());
+		gen.setThisUpdate(new Date(now));
+		gen.setNextUpdate(new Date(now + TimeUnit.DAYS.toMillis(1)));
+		gen.setSignatureAlgorithm(SIGNATURE_ALGORITHM);
+		final X509CRL crl;
+		try {
+			crl = gen.generate(keyPair.getPrivate());
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+		return Outcome.crl(crl);
+	}
+	
+	private boolean isIssuer(ASN1Encodable name) {
+		return caCert.getSubjectX500Principal().equals(new X500Principal(name.getDEREncoded()));
+	}
+	
+	/**
+	 * The state of a single enrolment.
+	 */
+	private static final class Enrolment {
+		final CertificationRequest csr;
+		int polls;
+		Outcome outcome;
+		
+		Enrolment(CertificationRequest csr, int polls) {
+			this.csr = csr;
+			this.polls = polls;
+		}
+	}
+	
+	/**
+	 * A map which forgets its least recently used entries.
+	 */
+	private static final class BoundedMap<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+		
+		BoundedMap(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > capacity;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.server;
+
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.PkiStatus;
+
+/**
+ * This class represents the outcome of a request handled by a 
+ * {@link CertificateAuthority}.
+ * 
+ * @author David Grant
+ */
+public final class Outcome {
+	private static final Outcome PENDING = new Outcome(PkiStatus.PENDING, null, Collections.<X509Certificate>emptyList(), null);
+	private final PkiStatus status;
+	private final FailInfo failInfo;
+	private final List<X509Certificate> certificates;
+	private final X509CRL crl;
+	
+	private Outcome(PkiStatus status, FailInfo failInfo, List<X509Certificate> certificates, X509CRL crl) {
+		this.status = status;
+		this.failInfo = failInfo;
+		this.certificates = certificates;
+		this.crl = crl;
+	}
+	
+	/**
+	 * Returns a successful outcome carrying the provided certificates.
+	 * <p>
+	 * The requested certificate should be first, followed by any other 
+	 * certificates of its chain.
+	 * 
+	 * @param certificates the certificates.
+	 * @return the outcome.
+	 */
+	public static Outcome issued(List<X509Certificate> certificates) {
+		if (certificates.isEmpty()) {
+			throw new IllegalArgumentException("No certificates provided");
+		}
+		final List<X509Certificate> copy = new ArrayList<X509Certificate>(certificates);
+		
+		return new Outcome(PkiStatus.SUCCESS, null, Collections.unmodifiableList(copy), null);
+	}
+	
+	/**
+	 * Returns a successful outcome carrying the provided CRL.
+	 * 
+	 * @param crl the CRL.
+	 * @return the outcome.
+	 */
+	public static Outcome crl(X509CRL crl) {
+		return new Outcome(PkiStatus.SUCCESS, null, Collections.<X509Certificate>emptyList(), crl);
+	}
+	
+	/**
+	 * Returns an outcome indicating that the request has not yet been 
+	 * decided.
+	 * 
+	 * @return the outcome.
+	 */
+	public static Outcome pending() {
+		return PENDING;
+	}
+	
+	/**
+	 * Returns an outcome indicating that the request was rejected.
+	 * 
+	 * @param failInfo the reason for rejection.
+	 * @return the outcome.
+	 */
+	public static Outcome failed(FailInfo failInfo) {
+		if (failInfo == null) {
+			throw new NullPointerException("failInfo");
+		}
+		return new Outcome(PkiStatus.FAILURE, failInfo, Collections.<X509Certificate>emptyList(), null);
+	}
+	
+	/**
+	 * Returns the status of this outcome.
+	 * 
+	 * @return the status.
+	 */
+	public PkiStatus getStatus() {
+		return status;
+	}
+	
+	/**
+	 * Returns the reason for failure.
+	 * 
+	 * @return the reason for failure, or <code>null</code> if the request did not fail.
+	 */
+	public FailInfo getFailInfo() {
+		return failInfo;
+	}
+	
+	/**
+	 * Returns the certificates carried by this outcome.
+	 * 
+	 * @return the certificates, which may be empty.
+	 */
+	public List<X509Certificate> getCertificates() {
+		return certificates;
+	}
+	
+	/**
+	 * Returns the CRL carried by this outcome.
+	 * 
+	 * @return the CRL, or <code>null</code> if there is none.
+	 */
+	public X509CRL getCrl() {
+		return crl;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		if (status == PkiStatus.FAILURE) {
+			return status + " (" + failInfo.name() + ")";
+		}
+		return status.toString();
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.server;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.jscep.cache.CertRepCache.CachedCertRep;
+import org.jscep.message.PkiMessage;
+import org.jscep.message.SignedPkiMessage;
+import org.jscep.server.Responder.Reply;
+import org.jscep.transaction.FailInfo;
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class processes <code>PKIOperation</code> requests in stages, each 
+ * with its own pool of worker threads.
+ * <p>
+ * Requests are verified, decrypted, passed to the certificate authority and
+ * signed on separate pools, so that the CPU-bound stages can be sized to the
+ * number of processors while a slow authority is given more threads.  At
+ * most <code>capacity</code> requests are admitted at once.  As a request 
+ * occupies a single queue at a time, no queue can overflow, and a request is
+ * only ever refused on admission.
+ * <p>
+ * A retry of a transaction whose response has been cached skips decryption
+ * and the authority, and a retransmitted request is answered as soon as it
+ * has been verified.
+ * 
+ * @author David Grant
+ */
+final class Pipeline {
+	private static Logger LOGGER = LoggingUtil.getLogger(Pipeline.class);
+	private final Responder responder;
+	private final Semaphore permits;
+	private final ThreadPoolExecutor verifiers;
+	private final ThreadPoolExecutor decrypters;
+	private final ThreadPoolExecutor issuers;
+	private final ThreadPoolExecutor signers;
+	
+	Pipeline(Responder responder, int verifyThreads, int decryptThreads, int issueThreads, int signThreads, int capacity) {
+		this.responder = responder;
+		this.permits = new Semaphore(capacity);
+		this.verifiers = createPool("verify", verifyThreads, capacity);
+		this.decrypters = createPool("decrypt", decryptThreads, capacity);
+		this.issuers = createPool("issue", issueThreads, capacity);
+		this.signers = createPool("sign", signThreads, capacity);
+	}
+	
+	private static ThreadPoolExecutor createPool(final String stage, int threads, int capacity) {
+		final AtomicInteger count = new AtomicInteger();
+		
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "jscep-server-" + stage + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Submits a <code>PKIOperation</code> for processing.
+	 * <p>
+	 * The callback is notified on a worker thread once the reply is ready.
+	 * 
+	 * @param body the DER-encoded pkiMessage.
+	 * @param callback the callback to notify.
+	 * @return <code>true</code> if the request was admitted, or 
+	 * 	<code>false</code> if the pipeline is saturated.
+	 */
+	boolean submit(byte[] body, Callback callback) {
+		if (permits.tryAcquire() == false) {
+			return false;
+		}
+		final Job job = new Job(body, callback);
+		try {
+			verifiers.execute(job);
+		} catch (RejectedExecutionException e) {
+			// The pipeline has been shut down.
+			permits.release();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Stops admitting requests, and stops the worker threads once the 
+	 * requests already admitted have been processed.
+	 * <p>
+	 * The pools are drained in stage order, so that no request is refused
+	 * by a later stage while an earlier stage is still working on it.  A 
+	 * request which has not been processed when the timeout elapses is 
+	 * aborted with a <code>503</code> as soon as it reaches a stopped stage.
+	 * 
+	 * @param timeout the maximum time to wait.
+	 * @param unit the unit of the timeout.
+	 * @return <code>true</code> if every admitted request was processed.
+	 */
+	boolean shutdown(long timeout, TimeUnit unit) {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		boolean drained = true;
+		for (ThreadPoolExecutor pool : new ThreadPoolExecutor[] {verifiers, decrypters, issuers, signers}) {
+			pool.shutdown();
+			if (drained) {
+				drained = awaitTermination(pool, deadline);
+			}
+		}
+		return drained;
+	}
+	
+	private static boolean awaitTermination(ThreadPoolExecutor pool, long deadline) {
+		try {
+			return pool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * The recipient of a reply.
+	 */
+	interface Callback {
+		void completed(Reply reply);
+	}
+	
+	private enum Step {
+		VERIFY, DECRYPT, ISSUE, SIGN
+	}
+	
+	/**
+	 * A request, which runs one step on each pool it passes through.
+	 */
+	private final class Job implements Runnable {
+		private final Callback callback;
+		private byte[] body;
+		private SignedPkiMessage signed;
+		private PkiMessage<? extends ASN1Encodable> request;
+		private Outcome outcome;
+		private CachedCertRep cached;
+		private Step step = Step.VERIFY;
+		
+		Job(byte[] body, Callback callback) {
+			this.body = body;
+			this.callback = callback;
+		}
+		
+		public void run() {
+			try {
+				switch (step) {
+				case VERIFY:
+					try {
+						signed = responder.verify(body);
+					} catch (IOException e) {
+						complete(Reply.error(400, "Invalid pkiMessage"));
+						return;
+					}
+					body = null;
+					cached = responder.getCached(signed);
+					if (cached == null) {
+						advance(Step.DECRYPT, decrypters);
+					} else if (cached.isResponseTo(signed.getSenderNonce())) {
+						complete(responder.respond(signed, cached));
+					} else {
+						advance(Step.SIGN, signers);
+					}
+					break;
+				case DECRYPT:
+					try {
+						request = responder.decode(signed);
+					} catch (IOException e) {
+						outcome = Outcome.failed(FailInfo.badMessageCheck);
+						advance(Step.SIGN, signers);
+						return;
+					}
+					advance(Step.ISSUE, issuers);
+					break;
+				case ISSUE:
+					outcome = responder.process(request);
+					advance(Step.SIGN, signers);
+					break;
+				case SIGN:
+					if (cached == null) {
+						complete(responder.respond(signed, outcome));
+					} else {
+						complete(responder.respond(signed, cached));
+					}
+					break;
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "pipeline.failure", new Object[] {step, e});
+				complete(Reply.error(500, "Internal Server Error"));
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "pipeline.failure", new Object[] {step, e});
+				complete(Reply.error(500, "Internal Server Error"));
+			}
+		}
+		
+		private void advance(Step next, ThreadPoolExecutor pool) {
+			step = next;
+			try {
+				pool.execute(this);
+			} catch (RejectedExecutionException e) {
+				// The pipeline has been shut down.
+				complete(Reply.error(503, "Service Unavailable"));
+			}
+		}
+		
+		private void complete(Reply reply) {
+			permits.release();
+			callback.completed(reply);
+		}
+	}
+}
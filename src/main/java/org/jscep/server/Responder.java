@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.server;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.cert.jcajce.JcaCRLStore;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSAbsentContent;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.jscep.cache.CertRepCache;
+import org.jscep.cache.CertRepCache.CachedCertRep;
+import org.jscep.message.CertRep;
+import org.jscep.message.GetCRL;
+import org.jscep.message.GetCert;
+import org.jscep.message.GetCertInitial;
+import org.jscep.message.PKCSReq;
+import org.jscep.message.PkcsPkiEnvelopeDecoder;
+import org.jscep.message.PkcsPkiEnvelopeEncoder;
+import org.jscep.message.PkiMessage;
+import org.jscep.message.PkiMessageDecoder;
+import org.jscep.message.PkiMessageEncoder;
+import org.jscep.message.SignedPkiMessage;
+import org.jscep.response.Capability;
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.MessageType;
+import org.jscep.transaction.Nonce;
+import org.jscep.transaction.PkiStatus;
+
+/**
+ * This class implements the SCEP operations on behalf of a 
+ * {@link CertificateAuthority}, independently of the HTTP server.
+ * <p>
+ * A <code>PKIOperation</code> is handled in stages, each of which may be 
+ * performed on a different thread by the {@link Pipeline}: the request is {@link #verify(byte[]) verified},
+ * {@link #decode(SignedPkiMessage) decrypted}, {@link #process(PkiMessage) processed} 
+ * by the authority, and the outcome {@link #respond(SignedPkiMessage, Outcome) signed}.
+ * Responses are encrypted with the cipher of the request they answer.
+ * <p>
+ * If a {@link CertRepCache} is provided, the final responses to 
+ * <code>PKCSReq</code> and <code>GetCertInitial</code> requests are cached,
+ * so that retries of a decided transaction can be answered after 
+ * verification, without decryption or a call to the authority.
+ * 
+ * @author David Grant
+ */
+final class Responder {
+	private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+	private final CertificateAuthority ca;
+	private final CertRepCache cache;
+	private final PkiMessageDecoder decoder;
+	
+	Responder(CertificateAuthority ca, CertRepCache cache) {
+		this.ca = ca;
+		this.cache = cache;
+		this.decoder = new PkiMessageDecoder(new PkcsPkiEnvelopeDecoder(ca.getResponderKey()));
+	}
+	
+	/**
+	 * Handles a <code>GetCACaps</code> request.
+	 */
+	Reply getCaCaps(String caIdentifier) {
+		final StringBuilder sb = new StringBuilder();
+		for (Capability capability : ca.getCapabilities(caIdentifier)) {
+			sb.append(capability).append('\n');
+		}
+		try {
+			return Reply.ok("text/plain", sb.toString().getBytes("US-ASCII"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Handles a <code>GetCACert</code> request.
+	 */
+	Reply getCaCert(String caIdentifier) throws IOException {
+		final List<X509Certificate> certs = ca.getCaCertificates(caIdentifier);
+		if (certs.size() == 1) {
+			try {
+				return Reply.ok("application/x-x509-ca-cert", certs.get(0).getEncoded());
+			} catch (CertificateEncodingException e) {
+				throw new IOException(e);
+			}
+		}
+		return Reply.ok("application/x-x509-ca-ra-cert", degenerate(certs, null).getEncoded());
+	}
+	
+	/**
+	 * Handles a <code>GetNextCACert</code> request.
+	 * <p>
+	 * The degenerate SignedData holding the next certificates is itself 
+	 * signed by the responder.
+	 */
+	Reply getNextCaCert(String caIdentifier) throws IOException {
+		final List<X509Certificate> certs = ca.getNextCaCertificates(caIdentifier);
+		if (certs.isEmpty()) {
+			return Reply.error(404, "No Next CA Certificate");
+		}
+		final byte[] content = degenerate(certs, null).getEncoded();
+		try {
+			final JcaSignerInfoGeneratorBuilder builder = new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build());
+			final CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+			generator.addSignerInfoGenerator(builder.build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(ca.getResponderKey()), ca.getResponderCertificate()));
+			// Clients read the new certificates from the outer SignedData.
+			generator.addCertificates(new JcaCertStore(certs));
+			
+			return Reply.ok("application/x-x509-next-ca-cert", generator.generate(new CMSProcessableByteArray(content), true).getEncoded());
+		} catch (OperatorCreationException e) {
+			throw new IOException(e);
+		} catch (CertificateEncodingException e) {
+			throw new IOException(e);
+		} catch (CMSException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * Verifies the signature of a pkiMessage.
+	 * 
+	 * @throws IOException if the message is invalid.
+	 */
+	SignedPkiMessage verify(byte[] body) throws IOException {
+		try {
+			return decoder.verify(new CMSSignedData(body));
+		} catch (CMSException e) {
+			throw new IOException(e);
+		} catch (RuntimeException e) {
+			// Malformed ASN.1 is reported by BouncyCastle as unchecked exceptions.
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * Decrypts a verified pkiMessage.
+	 * 
+	 * @throws IOException if the message cannot be decrypted.
+	 */
+	PkiMessage<? extends ASN1Encodable> decode(SignedPkiMessage signed) throws IOException {
+		try {
+			return decoder.decode(signed);
+		} catch (RuntimeException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * Passes a decrypted request to the authority.
+	 * 
+	 * @throws IOException if the authority fails.
+	 */
+	Outcome process(PkiMessage<? extends ASN1Encodable> request) throws IOException {
+		if (request instanceof PKCSReq) {
+			return ca.enrol(request.getTransactionId(), ((PKCSReq) request).getMessageData());
+		} else if (request instanceof GetCertInitial) {
+			return ca.poll(request.getTransactionId(), ((GetCertInitial) request).getMessageData());
+		} else if (request instanceof GetCert) {
+			return ca.getCertificate(((GetCert) request).getMessageData());
+		} else if (request instanceof GetCRL) {
+			return ca.getCrl(((GetCRL) request).getMessageData());
+		} else {
+			return Outcome.failed(FailInfo.badRequest);
+		}
+	}
+	
+	/**
+	 * Returns the cached response to an earlier request of the same 
+	 * transaction.
+	 * 
+	 * @return the cached response, or <code>null</code> if there is none.
+	 */
+	CachedCertRep getCached(SignedPkiMessage signed) {
+		if (cache == null || isIdempotent(signed) == false) {
+			return null;
+		}
+		final X509Certificate signer = signed.getSigner();
+		
+		return cache.get(signed.getTransactionId(), signer);
+	}
+	
+	/**
+	 * Signs the outcome of a request, encrypting any certificates to the 
+	 * signer of the request.
+	 * 
+	 * @throws IOException if the response cannot be encoded.
+	 */
+	Reply respond(SignedPkiMessage signed, Outcome outcome) throws IOException {
+		final Nonce senderNonce = Nonce.nextNonce();
+		final CertRep response;
+		if (outcome.getStatus() == PkiStatus.SUCCESS) {
+			final CMSSignedData certs = degenerate(outcome.getCertificates(), outcome.getCrl());
+			response = new CertRep(signed.getTransactionId(), senderNonce, signed.getSenderNonce(), new DEROctetString(certs.getEncoded()));
+		} else if (outcome.getStatus() == PkiStatus.FAILURE) {
+			response = new CertRep(signed.getTransactionId(), senderNonce, signed.getSenderNonce(), outcome.getFailInfo());
+		} else {
+			response = new CertRep(signed.getTransactionId(), senderNonce, signed.getSenderNonce());
+		}
+		return respond(signed, response);
+	}
+	
+	/**
+	 * Signs a cached response again for a repeated request, with fresh 
+	 * nonces.
+	 * 
+	 * @throws IOException if the response cannot be encoded.
+	 */
+	Reply respond(SignedPkiMessage signed, CachedCertRep cached) throws IOException {
+		if (cached.isResponseTo(signed.getSenderNonce())) {
+			// The request has been retransmitted.
+			return Reply.ok("application/x-pki-message", cached.getEncoded());
+		}
+		final CertRep previous = cached.getResponse();
+		final Nonce senderNonce = Nonce.nextNonce();
+		final CertRep response;
+		if (previous.getPkiStatus() == PkiStatus.SUCCESS) {
+			response = new CertRep(signed.getTransactionId(), senderNonce, signed.getSenderNonce(), previous.getMessageData());
+		} else {
+			response = new CertRep(signed.getTransactionId(), senderNonce, signed.getSenderNonce(), previous.getFailInfo());
+		}
+		return respond(signed, response);
+	}
+	
+	private Reply respond(SignedPkiMessage signed, CertRep response) throws IOException {
+		final PkcsPkiEnvelopeEncoder envEncoder = getEnvelopeEncoder(signed);
+		final PkiMessageEncoder encoder = new PkiMessageEncoder(ca.getResponderKey(), ca.getResponderCertificate(), envEncoder);
+		final byte[] encoded = encoder.encode(response).getEncoded();
+		
+		if (cache != null && isIdempotent(signed)) {
+			final X509Certificate signer = signed.getSigner();
+			cache.put(signed.getTransactionId(), signer, response, encoded);
+		}
+		return Reply.ok("application/x-pki-message", encoded);
+	}
+	
+	/**
+	 * Returns an encoder for the cipher of the request, as clients are only
+	 * known to support the cipher they have used themselves.
+	 */
+	private static PkcsPkiEnvelopeEncoder getEnvelopeEncoder(SignedPkiMessage signed) {
+		try {
+			final ASN1ObjectIdentifier encryptionOid = signed.getEncryptionAlgorithm();
+			if (encryptionOid != null) {
+				return new PkcsPkiEnvelopeEncoder(signed.getSigner(), encryptionOid);
+			}
+		} catch (IOException e) {
+			// Fall through
+		} catch (IllegalArgumentException e) {
+			// Fall through
+		}
+		// A request which cannot be decrypted is answered with a failure, 
+		// which has no pkcsPkiEnvelope.
+		return new PkcsPkiEnvelopeEncoder(signed.getSigner());
+	}
+	
+	/**
+	 * Checks if the request is retried with the same transaction ID until 
+	 * the transaction is decided.
+	 */
+	private static boolean isIdempotent(SignedPkiMessage signed) {
+		return signed.getMessageType() == MessageType.PKCSReq || signed.getMessageType() == MessageType.GetCertInitial;
+	}
+	
+	private CMSSignedData degenerate(List<X509Certificate> certs, X509CRL crl) throws IOException {
+		final CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+		try {
+			generator.addCertificates(new JcaCertStore(certs));
+			if (crl != null) {
+				generator.addCRLs(new JcaCRLStore(Collections.singleton(crl)));
+			}
+			return generator.generate(new CMSAbsentContent());
+		} catch (CertificateEncodingException e) {
+			throw new IOException(e);
+		} catch (CRLException e) {
+			throw new IOException(e);
+		} catch (CMSException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * The body and status of an HTTP response.
+	 */
+	static final class Reply {
+		final int status;
+		final String contentType;
+		final byte[] body;
+		final int retryAfter;
+		
+		private Reply(int status, String contentType, byte[] body, int retryAfter) {
+			this.status = status;
+			this.contentType = contentType;
+			this.body = body;
+			this.retryAfter = retryAfter;
+		}
+		
+		static Reply ok(String contentType, byte[] body) {
+			return new Reply(200, contentType, body, -1);
+		}
+		
+		static Reply error(int status, String message) {
+			return new Reply(status, "text/plain", toAscii(message), -1);
+		}
+		
+		/**
+		 * Returns a reply asking the client to retry after the provided 
+		 * number of seconds.
+		 */
+		static Reply unavailable(int retryAfter) {
+			return new Reply(503, "text/plain", toAscii("Service Unavailable"), retryAfter);
+		}
+		
+		private static byte[] toAscii(String message) {
+			try {
+				return message.getBytes("US-ASCII");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
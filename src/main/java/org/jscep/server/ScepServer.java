@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.jscep.cache.CertRepCache;
+import org.jscep.request.Operation;
+import org.jscep.server.Responder.Reply;
+import org.jscep.util.LoggingUtil;
+import org.jscep.util.StreamUtil;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class is an embeddable SCEP server, built on the HTTP server of the
+ * JDK.
+ * <p>
+ * The server implements the <code>GetCACaps</code>, <code>GetCACert</code>,
+ * <code>GetNextCACert</code> and <code>PKIOperation</code> operations on 
+ * behalf of a {@link CertificateAuthority}:
+ * <pre>
+ * CertificateAuthority ca = new InMemoryCertificateAuthority(new X500Principal("CN=Test CA"));
+ * ScepServer server = new ScepServer(ca);
+ * server.start();
+ * Transport transport = Transport.createTransport(Transport.Method.POST, server.getURL());
+ * EnrolmentTransaction txn = new EnrolmentTransaction(transport, encoder, decoder, csr);
+ * State state = txn.send();
+ * </pre>
+ * <code>PKIOperation</code> messages are accepted both in the body of a
+ * <code>POST</code> and in the query of a <code>GET</code>.  They are 
+ * processed by a pipeline of worker pools, one for each of signature 
+ * verification, decryption, the certificate authority and signing, which
+ * can be sized with {@link #setStageThreads(int, int, int, int)}.  When
+ * more than {@link #setMaxPendingOperations(int) a given number} of 
+ * operations are pending, further operations are refused with 
+ * <code>503 Service Unavailable</code> and a <code>Retry-After</code> header.
+ * 
+ * @author David Grant
+ * @see org.jscep.transaction.EnrolmentTransaction
+ */
+public class ScepServer {
+	private static Logger LOGGER = LoggingUtil.getLogger(ScepServer.class);
+	/**
+	 * The default number of pending <code>PKIOperation</code> requests.
+	 */
+	public static final int DEFAULT_MAX_PENDING_OPERATIONS = 1024;
+	private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+	private final CertificateAuthority ca;
+	private final InetSocketAddress address;
+	private final String path;
+	private Executor executor;
+	private ExecutorService ownExecutor;
+	private HttpServer server;
+	private Responder responder;
+	private volatile Pipeline pipeline;
+	private CertRepCache cache = new CertRepCache();
+	private int verifyThreads = PROCESSORS;
+	private int decryptThreads = PROCESSORS;
+	private int issueThreads = PROCESSORS * 2;
+	private int signThreads = PROCESSORS;
+	private int maxPendingOperations = DEFAULT_MAX_PENDING_OPERATIONS;
+	private volatile int retryAfter = 5;
+	
+	/**
+	 * Creates a new server for the provided authority, which listens on an
+	 * ephemeral port of the loopback interface at <code>/scep</code>.
+	 * 
+	 * @param ca the certificate authority.
+	 */
+	public ScepServer(CertificateAuthority ca) {
+		this(ca, new InetSocketAddress("127.0.0.1", 0), "/scep");
+	}
+	
+	/**
+	 * Creates a new server for the provided authority.
+	 * 
+	 * @param ca the certificate authority.
+	 * @param address the address to listen on.
+	 * @param path the path of the SCEP endpoint.
+	 */
+	public ScepServer(CertificateAuthority ca, InetSocketAddress address, String path) {
+		if (path.startsWith("/") == false) {
+			throw new IllegalArgumentException("path must start with /");
+		}
+		this.ca = ca;
+		this.address = address;
+		this.path = path;
+	}
+	
+	/**
+	 * Sets the executor on which requests are handled.
+	 * <p>
+	 * By default, requests are handled by a pool of two threads per 
+	 * processor, which is shut down when the server is stopped.  An executor
+	 * set here is not shut down by the server.
+	 * 
+	 * @param executor the executor, or <code>null</code> to use the default.
+	 */
+	public synchronized void setExecutor(Executor executor) {
+		if (server != null) {
+			throw new IllegalStateException("Server has already been started");
+		}
+		this.executor = executor;
+	}
+	
+	/**
+	 * Sets the cache of responses to enrolment requests.
+	 * <p>
+	 * Clients retry <code>PKCSReq</code> and <code>GetCertInitial</code> 
+	 * requests until their transaction is decided.  Once it has been 
+	 * decided, retries are answered from the cache without calling the
+	 * certificate authority.  By default, each server has a 
+	 * {@link CertRepCache} with the default time to live and memory budget.
+	 * 
+	 * @param cache the cache, or <code>null</code> to disable caching.
+	 */
+	public synchronized void setResponseCache(CertRepCache cache) {
+		if (server != null) {
+			throw new IllegalStateException("Server has already been started");
+		}
+		this.cache = cache;
+	}
+	
+	/**
+	 * Sets the number of worker threads of each stage of 
+	 * <code>PKIOperation</code> processing.
+	 * <p>
+	 * By default, the verification, decryption and signing stages have one
+	 * thread per processor, and the certificate authority stage has two per processor.
+	 * 
+	 * @param verify the number of threads verifying signatures.
+	 * @param decrypt the number of threads decrypting pkcsPkiEnvelopes.
+	 * @param issue the number of threads calling the certificate authority.
+	 * @param sign the number of threads signing responses.
+	 */
+	public synchronized void setStageThreads(int verify, int decrypt, int issue, int sign) {
+		if (server != null) {
+			throw new IllegalStateException("Server has already been started");
+		}
+		if (verify < 1 || decrypt < 1 || issue < 1 || sign < 1) {
+			throw new IllegalArgumentException("Each stage needs at least one thread");
+		}
+		this.verifyThreads = verify;
+		this.decryptThreads = decrypt;
+		this.issueThreads = issue;
+		this.signThreads = sign;
+	}
+	
+	/**
+	 * Sets the number of <code>PKIOperation</code> requests which may be 
+	 * pending at once.
+	 * <p>
+	 * The default is {@link #DEFAULT_MAX_PENDING_OPERATIONS}.
+	 * 
+	 * @param max the maximum number of pending requests.
+	 */
+	public synchronized void setMaxPendingOperations(int max) {
+		if (server != null) {
+			throw new IllegalStateException("Server has already been started");
+		}
+		if (max < 1) {
+			throw new IllegalArgumentException("max must be positive");
+		}
+		this.maxPendingOperations = max;
+	}
+	
+	/**
+	 * Sets the delay after which refused clients are asked to retry.
+	 * <p>
+	 * The default is five seconds.
+	 * 
+	 * @param seconds the value of the <code>Retry-After</code> header.
+	 */
+	public void setRetryAfter(int seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("seconds must not be negative");
+		}
+		this.retryAfter = seconds;
+	}
+	
+	/**
+	 * Starts the server.
+	 * 
+	 * @throws IOException if the server cannot listen on its address.
+	 */
+	public synchronized void start() throws IOException {
+		if (server != null) {
+			throw new IllegalStateException("Server has already been started");
+		}
+		final HttpServer created = HttpServer.create(address, 0);
+		responder = new Responder(ca, cache);
+		created.createContext(path, new ScepHandler());
+		if (executor == null) {
+			ownExecutor = createExecutor();
+			created.setExecutor(ownExecutor);
+		} else {
+			created.setExecutor(executor);
+		}
+		pipeline = new Pipeline(responder, verifyThreads, decryptThreads, issueThreads, signThreads, maxPendingOperations);
+		created.start();
+		server = created;
+	}
+	
+	private static ExecutorService createExecutor() {
+		final AtomicInteger count = new AtomicInteger();
+		
+		return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "jscep-server-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Stops the server, waiting up to a second for exchanges in progress to
+	 * complete.
+	 * 
+	 * @see #stop(int)
+	 */
+	public synchronized void stop() {
+		stop(1);
+	}
+	
+	/**
+	 * Stops the server, waiting up to the provided number of seconds for 
+	 * exchanges in progress to complete.
+	 * <p>
+	 * No further <code>PKIOperation</code> requests are admitted.  Those 
+	 * already admitted are processed before the HTTP server is stopped, and
+	 * any which are still in progress once the delay has elapsed are 
+	 * aborted with a <code>503</code>.  Other exchanges are given at most
+	 * a second to complete.
+	 * 
+	 * @param delay the maximum number of seconds to wait.
+	 */
+	public synchronized void stop(int delay) {
+		if (server == null) {
+			return;
+		}
+		final long start = System.nanoTime();
+		pipeline.shutdown(delay, TimeUnit.SECONDS);
+		final long elapsed = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+		// The HTTP server may wait out the whole delay, even once idle.
+		server.stop((int) Math.min(1, Math.max(0, delay - elapsed)));
+		server = null;
+		pipeline = null;
+		if (ownExecutor != null) {
+			ownExecutor.shutdown();
+			ownExecutor = null;
+		}
+	}
+	
+	/**
+	 * Returns the URL of the SCEP endpoint of this server.
+	 * 
+	 * @return the URL.
+	 * @throws IllegalStateException if the server has not been started.
+	 */
+	public synchronized URL getURL() {
+		if (server == null) {
+			throw new IllegalStateException("Server has not been started");
+		}
+		final InetSocketAddress bound = server.getAddress();
+		try {
+			return new URL("http", bound.getAddress().getHostAddress(), bound.getPort(), path);
+		} catch (MalformedURLException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Handles a single request.
+	 * <p>
+	 * <code>PKIOperation</code> requests are submitted to the pipeline, which
+	 * completes the exchange itself.
+	 * 
+	 * @return the reply, or <code>null</code> if the request was submitted.
+	 */
+	Reply handle(final HttpExchange exchange, Map<String, String> params, byte[] body) throws IOException {
+		final String operation = params.get("operation");
+		final String message = params.get("message");
+		
+		if (Operation.GetCACaps.toString().equals(operation)) {
+			return responder.getCaCaps(message);
+		} else if (Operation.GetCACert.toString().equals(operation)) {
+			return responder.getCaCert(message);
+		} else if (Operation.GetNextCACert.toString().equals(operation)) {
+			return responder.getNextCaCert(message);
+		} else if (Operation.PKIOperation.toString().equals(operation)) {
+			final byte[] pkiMessage = getPkiMessage(exchange.getRequestMethod(), message, body);
+			if (pkiMessage == null) {
+				return Reply.error(400, "Missing pkiMessage");
+			}
+			final Pipeline.Callback callback = new Pipeline.Callback() {
+				public void completed(Reply reply) {
+					try {
+						send(exchange, reply);
+					} catch (IOException e) {
+						// The client has gone away.
+					} finally {
+						exchange.close();
+					}
+				}
+			};
+			// Not synchronized, as the lock is held while stop() drains the pipeline.
+			final Pipeline current = pipeline;
+			if (current == null || current.submit(pkiMessage, callback) == false) {
+				return Reply.unavailable(retryAfter);
+			}
+			return null;
+		} else {
+			return Reply.error(400, "Unknown Operation");
+		}
+	}
+	
+	static byte[] getPkiMessage(String method, String message, byte[] body) {
+		if (method.equals("POST")) {
+			return body;
+		}
+		if (message == null) {
+			return null;
+		}
+		try {
+			return Base64.decode(message);
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+	
+	static Map<String, String> parseQuery(String query) throws IOException {
+		final Map<String, String> params = new HashMap<String, String>();
+		if (query == null) {
+			return params;
+		}
+		for (String pair : query.split("&")) {
+			final int eq = pair.indexOf('=');
+			if (eq == -1) {
+				params.put(URLDecoder.decode(pair, "UTF-8"), "");
+			} else {
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+	
+	static void send(HttpExchange exchange, Reply reply) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", reply.contentType);
+		if (reply.retryAfter >= 0) {
+			exchange.getResponseHeaders().set("Retry-After", Integer.toString(reply.retryAfter));
+		}
+		exchange.sendResponseHeaders(reply.status, reply.body.length);
+		final OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(reply.body);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * The handler of the SCEP endpoint.
+	 */
+	private final class ScepHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			boolean submitted = false;
+			try {
+				final String method = exchange.getRequestMethod();
+				final byte[] body = StreamUtil.readFully(exchange.getRequestBody());
+				
+				Reply reply;
+				if (method.equals("GET") == false && method.equals("POST") == false) {
+					reply = Reply.error(405, "Method Not Allowed");
+				} else {
+					final String query = exchange.getRequestURI().getRawQuery();
+					try {
+						reply = ScepServer.this.handle(exchange, parseQuery(query), body);
+					} catch (IOException e) {
+						LOGGER.log(Level.WARNING, "server.request.failure", new Object[] {query, e});
+						reply = Reply.error(500, "Internal Server Error");
+					}
+				}
+				if (reply == null) {
+					submitted = true;
+				} else {
+					send(exchange, reply);
+				}
+			} finally {
+				if (submitted == false) {
+					exchange.close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transaction;
+
+import java.io.IOException;
+
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.jscep.transaction.Transaction.State;
+
+/**
+ * This interface receives the result of each enrolment performed by a
+ * {@link BatchEnrolment}, as soon as it is known.
+ * <p>
+ * Callbacks are invoked concurrently from the pipeline threads, so 
+ * implementations must be thread-safe, and should return promptly to avoid
+ * stalling the pipeline.
+ * 
+ * @author David Grant
+ */
+public interface BatchCallback {
+	/**
+	 * Invoked when the CA has responded to an enrolment.
+	 * <p>
+	 * Transactions in the {@link State#CERT_REQ_PENDING} state may be
+	 * handed to a {@link PollingScheduler}.
+	 * 
+	 * @param csr the certificate signing request.
+	 * @param transaction the transaction.
+	 * @param state the resulting transaction state.
+	 */
+	void completed(CertificationRequest csr, EnrolmentTransaction transaction, State state);
+	
+	/**
+	 * Invoked when an enrolment could not be encoded, sent or decoded.
+	 * 
+	 * @param csr the certificate signing request.
+	 * @param e the cause of the failure.
+	 */
+	void failed(CertificationRequest csr, IOException e);
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transaction;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.bouncycastle.cms.CMSSignedData;
+import org.jscep.content.CertRepContentHandler;
+import org.jscep.message.PkiMessageDecoder;
+import org.jscep.message.PkiMessageEncoder;
+import org.jscep.request.PkiOperation;
+import org.jscep.transaction.Transaction.State;
+import org.jscep.transport.Transport;
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class enrols a large number of certificate signing requests against
+ * a single CA.
+ * <p>
+ * Each enrolment passes through three stages, each with its own threads: 
+ * the request is signed and enveloped, sent to the CA, and the response is
+ * verified and decrypted.  The stages are connected by bounded queues, so
+ * the source of requests is only read as fast as the slowest stage can 
+ * proceed, and a batch of any size runs in bounded memory.
+ * <p>
+ * The result of each enrolment is passed to a {@link BatchCallback} as soon
+ * as it is known, so results are not delivered in the order of the source.
+ * The progress of the batch is available from {@link #getStatistics()}.
+ * <p>
+ * The encoder, decoder and transport are shared by all threads, and must 
+ * be thread-safe.
+ * 
+ * @author David Grant
+ */
+public final class BatchEnrolment {
+	private static Logger LOGGER = LoggingUtil.getLogger(BatchEnrolment.class);
+	/**
+	 * The default capacity of the queues between stages.
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+	/**
+	 * The default number of threads in the transport stage.
+	 */
+	public static final int DEFAULT_TRANSPORT_THREADS = 16;
+	private static final Item END = new Item(null);
+	private final Transport transport;
+	private final PkiMessageEncoder encoder;
+	private final PkiMessageDecoder decoder;
+	private X509Certificate issuer;
+	private ReplayCache replayCache;
+	private TransactionJournal journal;
+	private int encodeThreads = Runtime.getRuntime().availableProcessors();
+	private int transportThreads = DEFAULT_TRANSPORT_THREADS;
+	private int decodeThreads = Runtime.getRuntime().availableProcessors();
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private volatile BatchStatistics statistics;
+	
+	/**
+	 * Creates a new batch enrolment.
+	 * 
+	 * @param transport the transport to the CA.
+	 * @param encoder the encoder for requests.
+	 * @param decoder the decoder for responses.
+	 */
+	public BatchEnrolment(Transport transport, PkiMessageEncoder encoder, PkiMessageDecoder decoder) {
+		this.transport = transport;
+		this.encoder = encoder;
+		this.decoder = decoder;
+	}
+	
+	/**
+	 * Sets the issuer for each transaction, which is needed to poll pending
+	 * enrolments.
+	 * 
+	 * @param issuer the CA certificate.
+	 * @see EnrolmentTransaction#setIssuer(X509Certificate)
+	 */
+	public void setIssuer(X509Certificate issuer) {
+		this.issuer = issuer;
+	}
+	
+	/**
+	 * Sets the replay cache for each transaction.
+	 * 
+	 * @param cache the replay cache.
+	 * @see EnrolmentTransaction#setReplayCache(ReplayCache)
+	 */
+	public void setReplayCache(ReplayCache cache) {
+		if (cache == null) {
+			throw new NullPointerException();
+		}
+		this.replayCache = cache;
+	}
+	
+	/**
+	 * Sets the journal for each transaction.
+	 * 
+	 * @param journal the journal.
+	 * @see EnrolmentTransaction#setJournal(TransactionJournal)
+	 */
+	public void setJournal(TransactionJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Sets the number of threads in each stage.
+	 * <p>
+	 * The encode and decode stages are bound by the CPU, and default to the
+	 * number of processors.  The transport stage is bound by the latency of
+	 * the CA, and defaults to {@link #DEFAULT_TRANSPORT_THREADS}.
+	 * 
+	 * @param encode the number of threads signing requests.
+	 * @param transport the number of threads sending requests.
+	 * @param decode the number of threads verifying responses.
+	 */
+	public void setThreads(int encode, int transport, int decode) {
+		if (encode <= 0 || transport <= 0 || decode <= 0) {
+			throw new IllegalArgumentException("Each stage needs at least one thread");
+		}
+		this.encodeThreads = encode;
+		this.transportThreads = transport;
+		this.decodeThreads = decode;
+	}
+	
+	/**
+	 * Sets the capacity of the queues between stages.
+	 * 
+	 * @param capacity the queue capacity.
+	 */
+	public void setQueueCapacity(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.queueCapacity = capacity;
+	}
+	
+	/**
+	 * Returns the statistics of the running batch, or of the last batch if
+	 * none is running.
+	 * 
+	 * @return the batch statistics, or <code>null</code> if no batch has been run.
+	 */
+	public BatchStatistics getStatistics() {
+		return statistics;
+	}
+	
+	/**
+	 * Enrols every request from the provided source, and waits for the batch
+	 * to finish.
+	 * 
+	 * @param requests the certificate signing requests.
+	 * @param callback the callback for each result.
+	 * @return the statistics of the batch.
+	 * @throws InterruptedException if the calling thread is interrupted, in which case the batch is abandoned.
+	 */
+	public BatchStatistics enrol(Iterable<CertificationRequest> requests, BatchCallback callback) throws InterruptedException {
+		return enrol(requests.iterator(), callback);
+	}
+	
+	/**
+	 * Enrols every request from the provided source, and waits for the batch
+	 * to finish.
+	 * <p>
+	 * The iterator is read by the encode threads, one request at a time, so 
+	 * it may produce requests lazily.  If it throws a runtime exception, the
+	 * batch is abandoned and the exception is rethrown.  A single request 
+	 * which fails, whether with an I/O error or a runtime exception such as
+	 * an invalid nonce, is reported to {@link BatchCallback#failed} and does
+	 * not affect the rest of the batch.
+	 * 
+	 * @param requests the certificate signing requests.
+	 * @param callback the callback for each result.
+	 * @return the statistics of the batch.
+	 * @throws InterruptedException if the calling thread is interrupted, in which case the batch is abandoned.
+	 */
+	public synchronized BatchStatistics enrol(Iterator<CertificationRequest> requests, BatchCallback callback) throws InterruptedException {
+		final Run run = new Run(requests, callback);
+		statistics = run.stats;
+		try {
+			run.execute();
+		} finally {
+			run.stats.finish();
+		}
+		return run.stats;
+	}
+	
+	/**
+	 * An enrolment moving through the pipeline.
+	 */
+	private static final class Item {
+		final CertificationRequest csr;
+		EnrolmentTransaction transaction;
+		CMSSignedData request;
+		CMSSignedData response;
+		
+		Item(CertificationRequest csr) {
+			this.csr = csr;
+		}
+	}
+	
+	/**
+	 * The state of a single batch.
+	 */
+	private final class Run {
+		final Iterator<CertificationRequest> requests;
+		final BatchCallback callback;
+		final BatchStatistics stats = new BatchStatistics();
+		final BlockingQueue<Item> encoded = new ArrayBlockingQueue<Item>(queueCapacity);
+		final BlockingQueue<Item> received = new ArrayBlockingQueue<Item>(queueCapacity);
+		final AtomicInteger encoders = new AtomicInteger(encodeThreads);
+		final AtomicInteger senders = new AtomicInteger(transportThreads);
+		final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+		final List<Thread> threads = new ArrayList<Thread>();
+		
+		Run(Iterator<CertificationRequest> requests, BatchCallback callback) {
+			this.requests = requests;
+			this.callback = callback;
+		}
+		
+		void execute() throws InterruptedException {
+			for (int i = 0; i < encodeThreads; i++) {
+				start("encode", i, new Runnable() {
+					public void run() {
+						encode();
+					}
+				});
+			}
+			for (int i = 0; i < transportThreads; i++) {
+				start("transport", i, new Runnable() {
+					public void run() {
+						send();
+					}
+				});
+			}
+			for (int i = 0; i < decodeThreads; i++) {
+				start("decode", i, new Runnable() {
+					public void run() {
+						decode();
+					}
+				});
+			}
+			
+			try {
+				for (Thread thread : threads) {
+					thread.join();
+				}
+			} catch (InterruptedException e) {
+				abort();
+				throw e;
+			}
+			final RuntimeException e = error.get();
+			if (e != null) {
+				throw e;
+			}
+		}
+		
+		private void start(String stage, int index, final Runnable task) {
+			final Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						if (error.compareAndSet(null, e)) {
+							abort();
+						}
+					}
+				}
+			}, "jscep-batch-" + stage + "-" + index);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+		
+		private void abort() {
+			for (Thread thread : threads) {
+				thread.interrupt();
+			}
+		}
+		
+		private void encode() {
+			try {
+				while (true) {
+					final CertificationRequest csr;
+					synchronized (requests) {
+						if (requests.hasNext() == false) {
+							break;
+						}
+						csr = requests.next();
+					}
+					stats.submitted.incrementAndGet();
+					
+					final Item item = new Item(csr);
+					final long start = System.nanoTime();
+					try {
+						final EnrolmentTransaction tx = new EnrolmentTransaction(transport, encoder, decoder, csr);
+						tx.setIssuer(issuer);
+						tx.setJournal(journal);
+						if (replayCache != null) {
+							tx.setReplayCache(replayCache);
+						}
+						item.transaction = tx;
+						item.request = tx.encodeRequest();
+					} catch (IOException e) {
+						failed(item, e);
+						continue;
+					} catch (RuntimeException e) {
+						failed(item, new IOException(e));
+						continue;
+					} finally {
+						stats.encodeTime.addAndGet(System.nanoTime() - start);
+					}
+					encoded.put(item);
+				}
+				if (encoders.decrementAndGet() == 0) {
+					for (int i = 0; i < transportThreads; i++) {
+						encoded.put(END);
+					}
+				}
+			} catch (InterruptedException e) {
+				// Abandoned.
+			}
+		}
+		
+		private void send() {
+			try {
+				Item item;
+				while ((item = encoded.take()) != END) {
+					final long start = System.nanoTime();
+					try {
+						item.response = transport.sendRequest(new PkiOperation<CMSSignedData>(item.request, new CertRepContentHandler()));
+						item.request = null;
+					} catch (IOException e) {
+						failed(item, e);
+						continue;
+					} catch (RuntimeException e) {
+						failed(item, new IOException(e));
+						continue;
+					} finally {
+						stats.transportTime.addAndGet(System.nanoTime() - start);
+					}
+					received.put(item);
+				}
+				if (senders.decrementAndGet() == 0) {
+					for (int i = 0; i < decodeThreads; i++) {
+						received.put(END);
+					}
+				}
+			} catch (InterruptedException e) {
+				// Abandoned.
+			}
+		}
+		
+		private void decode() {
+			try {
+				Item item;
+				while ((item = received.take()) != END) {
+					final long start = System.nanoTime();
+					final State state;
+					try {
+						state = item.transaction.receiveResponse(item.response);
+					} catch (IOException e) {
+						failed(item, e);
+						continue;
+					} catch (RuntimeException e) {
+						// A bad or replayed response fails only its own item.
+						failed(item, new IOException(e));
+						continue;
+					} finally {
+						stats.decodeTime.addAndGet(System.nanoTime() - start);
+					}
+					completed(item, state);
+				}
+			} catch (InterruptedException e) {
+				// Abandoned.
+			}
+		}
+		
+		private void completed(Item item, State state) {
+			if (state == State.CERT_ISSUED) {
+				stats.issued.incrementAndGet();
+			} else if (state == State.CERT_NON_EXISTANT) {
+				stats.rejected.incrementAndGet();
+			} else {
+				stats.pending.incrementAndGet();
+			}
+			try {
+				callback.completed(item.csr, item.transaction, state);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "batch.callback.failure", e);
+			}
+		}
+		
+		private void failed(Item item, IOException e) {
+			stats.failed.incrementAndGet();
+			try {
+				callback.failed(item.csr, e);
+			} catch (RuntimeException re) {
+				LOGGER.log(Level.WARNING, "batch.callback.failure", re);
+			}
+		}
+	}
+}
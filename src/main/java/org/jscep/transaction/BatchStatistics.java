@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transaction;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds the running totals of a {@link BatchEnrolment}.
+ * <p>
+ * The totals are updated as the batch progresses, so a batch can be 
+ * monitored from another thread while it runs.  The time spent in each 
+ * stage is summed over all the threads of that stage, and so shows which 
+ * stage is the bottleneck.
+ * 
+ * @author David Grant
+ */
+public final class BatchStatistics {
+	final AtomicLong submitted = new AtomicLong();
+	final AtomicLong issued = new AtomicLong();
+	final AtomicLong pending = new AtomicLong();
+	final AtomicLong rejected = new AtomicLong();
+	final AtomicLong failed = new AtomicLong();
+	final AtomicLong encodeTime = new AtomicLong();
+	final AtomicLong transportTime = new AtomicLong();
+	final AtomicLong decodeTime = new AtomicLong();
+	private final long startTime = System.nanoTime();
+	private volatile long endTime;
+	
+	BatchStatistics() {
+	}
+	
+	void finish() {
+		endTime = System.nanoTime();
+	}
+	
+	/**
+	 * Returns the number of requests read from the source.
+	 * 
+	 * @return the number of submitted requests.
+	 */
+	public long getSubmitted() {
+		return submitted.get();
+	}
+	
+	/**
+	 * Returns the number of enrolments which resulted in an issued certificate.
+	 * 
+	 * @return the number of issued certificates.
+	 */
+	public long getIssued() {
+		return issued.get();
+	}
+	
+	/**
+	 * Returns the number of enrolments left pending by the CA.
+	 * 
+	 * @return the number of pending enrolments.
+	 */
+	public long getPending() {
+		return pending.get();
+	}
+	
+	/**
+	 * Returns the number of enrolments rejected by the CA.
+	 * 
+	 * @return the number of rejected enrolments.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+	
+	/**
+	 * Returns the number of enrolments which failed with an error.
+	 * 
+	 * @return the number of failed enrolments.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+	
+	/**
+	 * Returns the number of enrolments which have finished, successfully or
+	 * not.
+	 * 
+	 * @return the number of finished enrolments.
+	 */
+	public long getCompleted() {
+		return issued.get() + pending.get() + rejected.get() + failed.get();
+	}
+	
+	/**
+	 * Returns the time since the batch started, or the duration of the batch
+	 * if it has finished.
+	 * 
+	 * @param unit the unit of the result.
+	 * @return the elapsed time.
+	 */
+	public long getElapsedTime(TimeUnit unit) {
+		final long end = endTime;
+		return unit.convert((end == 0 ? System.nanoTime() : end) - startTime, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the number of enrolments finished per second.
+	 * 
+	 * @return the throughput.
+	 */
+	public double getThroughput() {
+		final long elapsed = getElapsedTime(TimeUnit.NANOSECONDS);
+		if (elapsed == 0) {
+			return 0;
+		}
+		return getCompleted() * 1e9 / elapsed;
+	}
+	
+	/**
+	 * Returns the total time spent signing and enveloping requests.
+	 * 
+	 * @param unit the unit of the result.
+	 * @return the time spent in the encode stage.
+	 */
+	public long getEncodeTime(TimeUnit unit) {
+		return unit.convert(encodeTime.get(), TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the total time spent exchanging messages with the CA.
+	 * 
+	 * @param unit the unit of the result.
+	 * @return the time spent in the transport stage.
+	 */
+	public long getTransportTime(TimeUnit unit) {
+		return unit.convert(transportTime.get(), TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the total time spent verifying and decrypting responses.
+	 * 
+	 * @param unit the unit of the result.
+	 * @return the time spent in the decode stage.
+	 */
+	public long getDecodeTime(TimeUnit unit) {
+		return unit.convert(decodeTime.get(), TimeUnit.NANOSECONDS);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("submitted=%d, issued=%d, pending=%d, rejected=%d, failed=%d, elapsed=%dms, throughput=%.1f/s", 
+				getSubmitted(), getIssued(), getPending(), getRejected(), getFailed(), getElapsedTime(TimeUnit.MILLISECONDS), getThroughput());
+	}
+}
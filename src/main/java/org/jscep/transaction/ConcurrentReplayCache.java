@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transaction;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class provides a {@link ReplayCache} which remembers the most recent
+ * nonces, up to a fixed capacity.
+ * <p>
+ * Nonces are indexed by a concurrent hash map, so that lookups take constant
+ * time, and are recorded in a ring, so that the oldest nonce is evicted once
+ * the capacity is reached.  Threads only contend when they touch the same 
+ * part of the index.
+ * <p>
+ * Under concurrent use, the index may briefly hold a few more nonces than 
+ * the capacity, while evictions catch up with insertions.
+ * 
+ * @author David Grant
+ */
+public class ConcurrentReplayCache implements ReplayCache {
+	private final ConcurrentMap<Nonce, Boolean> index;
+	private final AtomicReferenceArray<Nonce> ring;
+	private final AtomicLong cursor = new AtomicLong();
+	
+	/**
+	 * Creates a new cache which remembers up to <code>capacity</code> nonces.
+	 * 
+	 * @param capacity the number of nonces to remember.
+	 */
+	public ConcurrentReplayCache(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.index = new ConcurrentHashMap<Nonce, Boolean>(capacity * 4 / 3 + 1, 0.75f, Runtime.getRuntime().availableProcessors() * 4);
+		this.ring = new AtomicReferenceArray<Nonce>(capacity);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean add(Nonce nonce) {
+		if (index.putIfAbsent(nonce, Boolean.TRUE) != null) {
+			return false;
+		}
+		final int slot = (int) (cursor.getAndIncrement() % ring.length());
+		final Nonce evicted = ring.getAndSet(slot, nonce);
+		if (evicted != null) {
+			index.remove(evicted);
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the number of nonces this cache remembers.
+	 * 
+	 * @return the capacity.
+	 */
+	public int getCapacity() {
+		return ring.length();
+	}
+	
+	/**
+	 * Returns the number of nonces currently remembered.
+	 * 
+	 * @return the number of nonces.
+	 */
+	public int size() {
+		return index.size();
+	}
+}
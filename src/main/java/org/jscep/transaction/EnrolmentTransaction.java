@@ -27,6 +27,7 @@ import java.security.GeneralSecurityException;
 import java.security.cert.CertStore;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.bouncycastle.asn1.pkcs.CertificationRequest;
@@ -34,16 +35,15 @@ import org.bouncycastle.asn1.x509.X509Name;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSSignedData;
 import org.jscep.asn1.IssuerAndSubject;
-import org.jscep.content.CertRepContentHandler;
 import org.jscep.message.CertRep;
 import org.jscep.message.GetCertInitial;
 import org.jscep.message.PkiMessage;
 import org.jscep.message.PkiMessageDecoder;
 import org.jscep.message.PkiMessageEncoder;
-import org.jscep.request.PKCSReq;
 import org.jscep.transaction.Transaction.State;
 import org.jscep.transport.Transport;
 import org.jscep.util.LoggingUtil;
+import org.jscep.util.Tracer;
 import org.jscep.x509.X509Util;
 
 
@@ -60,9 +60,16 @@ import org.jscep.x509.X509Util;
 public class EnrolmentTransaction extends Transaction {
 	private final TransactionId transId;
 	private final org.jscep.message.PKCSReq request;
-	private static NonceQueue QUEUE = new NonceQueue(20);
+	/**
+	 * The number of nonces remembered by the default replay cache.
+	 */
+	public static final int DEFAULT_REPLAY_CACHE_SIZE = 10000;
+	private static final ReplayCache DEFAULT_REPLAY_CACHE = new ConcurrentReplayCache(DEFAULT_REPLAY_CACHE_SIZE);
+	private static final Tracer TRACER = Tracer.getTracer(EnrolmentTransaction.class);
 	private static Logger LOGGER = LoggingUtil.getLogger(EnrolmentTransaction.class);
 	private X509Certificate issuer;
+	private ReplayCache replayCache = DEFAULT_REPLAY_CACHE;
+	private TransactionJournal journal;
 
 	public EnrolmentTransaction(Transport transport, PkiMessageEncoder encoder, PkiMessageDecoder decoder, CertificationRequest csr) throws IOException {
 		super(transport, encoder, decoder);
@@ -70,6 +77,17 @@ public class EnrolmentTransaction extends Transaction {
 		this.request = new org.jscep.message.PKCSReq(transId, Nonce.nextNonce(), csr);
 	}
 	
+	/**
+	 * Recreates a pending transaction from its journal entry.
+	 */
+	EnrolmentTransaction(Transport transport, PkiMessageEncoder encoder, PkiMessageDecoder decoder, TransactionId transId, Nonce nonce, CertificationRequest csr, X509Certificate issuer) {
+		super(transport, encoder, decoder);
+		this.transId = transId;
+		this.request = new org.jscep.message.PKCSReq(transId, nonce, csr);
+		this.issuer = issuer;
+		this.state = State.CERT_REQ_PENDING;
+	}
+	
 	@Override
 	public TransactionId getId() {
 		return transId;
@@ -82,24 +100,29 @@ public class EnrolmentTransaction extends Transaction {
 	 * @throws IOException if any I/O error occurs.
 	 */
 	public State send() throws IOException {
-		CMSSignedData signedData = encoder.encode(request);
-		CertRepContentHandler handler = new CertRepContentHandler();
-		final CMSSignedData res = transport.sendRequest(new PKCSReq(signedData, handler));
-
-		CertRep response = (CertRep) decoder.decode(res);
-		validateExchange(request, response);
-		
-		if (response.getPkiStatus() == PkiStatus.FAILURE) {
-			failInfo = response.getFailInfo();
-			state = State.CERT_NON_EXISTANT;
-		} else if (response.getPkiStatus() == PkiStatus.SUCCESS) {
-			certStore = extractCertStore(response);
-			state = State.CERT_ISSUED;
-		} else {
-			state = State.CERT_REQ_PENDING;
-		}
-		
-		return state;
+		return receive(request, sendRequest(request));
+	}
+	
+	/**
+	 * Encodes the enrolment request, without sending it.
+	 * 
+	 * @return the signed request.
+	 * @throws IOException if the request cannot be encoded.
+	 */
+	CMSSignedData encodeRequest() throws IOException {
+		return encoder.encode(request);
+	}
+	
+	/**
+	 * Decodes the response to the enrolment request and updates the state of
+	 * this transaction.
+	 * 
+	 * @param signedData the signed response.
+	 * @return the resulting transaction state.
+	 * @throws IOException if the response is invalid.
+	 */
+	State receiveResponse(CMSSignedData signedData) throws IOException {
+		return receive(request, toCertRep(decoder.decode(signedData)));
 	}
 	
 	/**
@@ -113,12 +136,12 @@ public class EnrolmentTransaction extends Transaction {
 		X509Name subjectName = request.getMessageData().getCertificationRequestInfo().getSubject();
 		IssuerAndSubject ias = new IssuerAndSubject(issuerName, subjectName);
 		final GetCertInitial pollReq = new GetCertInitial(transId, Nonce.nextNonce(), ias);
-		CMSSignedData signedData = encoder.encode(pollReq);
-		CertRepContentHandler handler = new CertRepContentHandler();
-		final CMSSignedData res = transport.sendRequest(new PKCSReq(signedData, handler));
 		
-		CertRep response = (CertRep) decoder.decode(res);
-		validateExchange(pollReq, response);
+		return receive(pollReq, sendRequest(pollReq));
+	}
+	
+	private State receive(PkiMessage<?> req, CertRep response) throws IOException {
+		validateExchange(req, response);
 		
 		if (response.getPkiStatus() == PkiStatus.FAILURE) {
 			failInfo = response.getFailInfo();
@@ -129,10 +152,35 @@ public class EnrolmentTransaction extends Transaction {
 		} else {
 			state = State.CERT_REQ_PENDING;
 		}
+		recordState();
+		journal();
 		
 		return state;
 	}
 
+	/**
+	 * Records the state of this transaction in the journal.
+	 * <p>
+	 * The state is already final when this method is called, so a failure
+	 * to journal it is logged rather than thrown: the caller must still 
+	 * learn of an issued certificate.  A completion which was not recorded
+	 * is restored as pending, and polling it again is harmless.
+	 */
+	private void journal() {
+		if (journal == null) {
+			return;
+		}
+		try {
+			if (state == State.CERT_REQ_PENDING) {
+				journal.pending(this);
+			} else {
+				journal.completed(this);
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "journal.write.failure", new Object[] {transId, e});
+		}
+	}
+
 	private CertStore extractCertStore(CertRep response) throws IOException {
 		CertStore cs = null;
 		try {
@@ -141,12 +189,12 @@ public class EnrolmentTransaction extends Transaction {
 		} catch (GeneralSecurityException e) {
 			IOException ioe = new IOException(e);
 			
-			LOGGER.throwing(getClass().getName(), "getContent", ioe);
+			TRACER.throwing("getContent", ioe);
 			throw ioe;
 		} catch (CMSException e) {
 			IOException ioe = new IOException(e);
 			
-			LOGGER.throwing(getClass().getName(), "getContent", ioe);
+			TRACER.throwing("getContent", ioe);
 			throw ioe;
 		}
 		return cs;
@@ -156,7 +204,7 @@ public class EnrolmentTransaction extends Transaction {
 		if (res.getTransactionId().equals(req.getTransactionId()) == false) {
 			final IOException ioe = new IOException("Transaction ID Mismatch");
 			
-			LOGGER.throwing(getClass().getName(), "validateResponse", ioe);
+			TRACER.throwing("validateResponse", ioe);
 			throw ioe;
 		}
 
@@ -165,7 +213,7 @@ public class EnrolmentTransaction extends Transaction {
 		if (res.getRecipientNonce().equals(req.getSenderNonce()) == false) {
 			InvalidNonceException e = new InvalidNonceException("Response recipient nonce and request sender nonce are not equal");
 			
-			LOGGER.throwing(getClass().getName(), "validateResponse", e);
+			TRACER.throwing("validateResponse", e);
 			throw e;
 		}
 		
@@ -175,17 +223,53 @@ public class EnrolmentTransaction extends Transaction {
 
 		// http://tools.ietf.org/html/draft-nourse-scep-20#section-8.5
 		// Check that the nonce has not been encountered before.
-		if (QUEUE.contains(res.getSenderNonce())) {
+		if (replayCache.add(res.getSenderNonce()) == false) {
 			InvalidNonceException e = new InvalidNonceException("This nonce has been encountered before.  Possible replay attack?");
 			
-			LOGGER.throwing(getClass().getName(), "validateResponse", e);
+			TRACER.throwing("validateResponse", e);
 			throw e;
-		} else {
-			QUEUE.offer(res.getSenderNonce());
 		}
 	}
 	
 	public void setIssuer(X509Certificate ca) {
 		issuer = ca;
 	}
+	
+	X509Certificate getIssuer() {
+		return issuer;
+	}
+	
+	org.jscep.message.PKCSReq getRequest() {
+		return request;
+	}
+	
+	/**
+	 * Sets the journal in which this transaction records its progress.
+	 * <p>
+	 * While the transaction is pending, it can be recovered from the journal
+	 * after a restart.  The issuer should be set before the transaction is 
+	 * sent, as it is needed to poll the restored transaction.
+	 * 
+	 * @param journal the journal, or <code>null</code> to stop journalling.
+	 */
+	public void setJournal(TransactionJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Sets the cache used to detect replayed responses.
+	 * <p>
+	 * By default, every transaction shares a {@link ConcurrentReplayCache}
+	 * of {@link #DEFAULT_REPLAY_CACHE_SIZE} nonces.  To remember nonces for
+	 * a period of time within a fixed memory budget, use a 
+	 * {@link WindowedReplayCache}.
+	 * 
+	 * @param cache the replay cache.
+	 */
+	public void setReplayCache(ReplayCache cache) {
+		if (cache == null) {
+			throw new NullPointerException();
+		}
+		replayCache = cache;
+	}
 }
@@ -28,7 +28,6 @@ import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSSignedData;
-import org.jscep.content.CertRepContentHandler;
 import org.jscep.message.CertRep;
 import org.jscep.message.GetCRL;
 import org.jscep.message.GetCert;
@@ -36,7 +35,6 @@ import org.jscep.message.PkiMessageDecoder;
 import org.jscep.message.PkiMessageEncoder;
 import org.jscep.message.PkiRequest;
 import org.jscep.pkcs7.SignedDataUtil;
-import org.jscep.request.PKCSReq;
 import org.jscep.transport.Transport;
 
 public class NonEnrollmentTransaction extends Transaction {
@@ -62,10 +60,7 @@ public class NonEnrollmentTransaction extends Transaction {
 	}
 	
 	public State send() throws IOException {
-		final CMSSignedData signedData = encoder.encode(request);
-		final CertRepContentHandler handler = new CertRepContentHandler();
-		final CMSSignedData inMsg = transport.sendRequest(new PKCSReq(signedData, handler));
-		final CertRep response = (CertRep) decoder.decode(inMsg);
+		final CertRep response = sendRequest(request);
 		
 		if (response.getPkiStatus() == PkiStatus.FAILURE) {
 			failInfo = response.getFailInfo();
@@ -83,6 +78,7 @@ public class NonEnrollmentTransaction extends Transaction {
 		} else {
 			throw new IOException("Invalid Response");
 		}
+		recordState();
 		
 		return state;
 	}
@@ -21,13 +21,9 @@
  */
 package org.jscep.transaction;
 
-import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.Random;
-import java.util.logging.Logger;
 
 import org.jscep.util.HexUtil;
-import org.jscep.util.LoggingUtil;
 
 
 /**
@@ -37,8 +33,11 @@ import org.jscep.util.LoggingUtil;
  * @author David Grant
  */
 public class Nonce {
-	private static Logger LOGGER = LoggingUtil.getLogger(Nonce.class);
-	private static final Random RND = new SecureRandom();
+	/**
+	 * The length of generated nonces, in bytes.
+	 */
+	static final int LENGTH = 16;
+	private static volatile NonceGenerator GENERATOR = new ThreadLocalNonceGenerator();
 	private byte[] nonce;
 	
 	/**
@@ -64,11 +63,22 @@ public class Nonce {
 	 */
 	@Override
 	public boolean equals(Object o) {
+		if (o instanceof Nonce == false) {
+			return false;
+		}
 		Nonce n = (Nonce) o;
 		
 		return Arrays.equals(n.nonce, nonce);
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(nonce);
+	}
+	
 	@Override
 	public String toString() {
 		return HexUtil.toHexString(nonce);
@@ -81,18 +91,23 @@ public class Nonce {
 	 * nonce, as the byte generation is provided by a SecureRandom instance.
 	 * 
 	 * @return the generated nonce.
-	 * @see java.security.SecureRandom
+	 * @see #setGenerator(NonceGenerator)
 	 */
 	public static Nonce nextNonce() {
-		LOGGER.entering(Nonce.class.getName(), "nextNonce");
-		
-		byte[] bytes = new byte[16];
-		RND.nextBytes(bytes);
-
-		final Nonce nonce = new Nonce(bytes);
-		
-		LOGGER.exiting(Nonce.class.getName(), "nextNonce", nonce);
-		
-		return nonce;
+		return GENERATOR.nextNonce();
+	}
+	
+	/**
+	 * Sets the source of nonces for {@link #nextNonce()}.
+	 * <p>
+	 * By default, nonces are generated by a {@link ThreadLocalNonceGenerator}.
+	 * 
+	 * @param generator the nonce generator.
+	 */
+	public static void setGenerator(NonceGenerator generator) {
+		if (generator == null) {
+			throw new NullPointerException();
+		}
+		GENERATOR = generator;
 	}
 }
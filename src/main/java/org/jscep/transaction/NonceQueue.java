@@ -33,7 +33,10 @@ import java.util.Queue;
  * requirements.
  * 
  * @author David Grant
+ * @deprecated this queue is searched linearly and is not thread-safe; use a
+ * {@link ReplayCache} such as {@link ConcurrentReplayCache} instead.
  */
+@Deprecated
 public class NonceQueue extends AbstractQueue<Nonce> {
 	private final int size;
 	private final Queue<Nonce> backingQueue;
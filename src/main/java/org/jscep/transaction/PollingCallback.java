@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transaction;
+
+import java.io.IOException;
+
+import org.jscep.transaction.Transaction.State;
+
+/**
+ * This interface receives the outcome of an enrolment polled by a 
+ * {@link PollingScheduler}.
+ * <p>
+ * Callbacks are invoked on the scheduler's executor, so implementations 
+ * should return promptly.
+ * 
+ * @author David Grant
+ */
+public interface PollingCallback {
+	/**
+	 * Invoked when the enrolment is no longer pending.
+	 * 
+	 * @param transaction the transaction.
+	 * @param state either {@link State#CERT_ISSUED} or {@link State#CERT_NON_EXISTANT}.
+	 */
+	void completed(EnrolmentTransaction transaction, State state);
+	
+	/**
+	 * Invoked when the scheduler gives up on the enrolment, either because
+	 * the maximum number of polls has been reached, or because a poll failed
+	 * with an unchecked exception, such as an invalid nonce in the response.
+	 * 
+	 * @param transaction the transaction.
+	 * @param e the error from the last poll, an exception describing the 
+	 * 	timeout, or an exception wrapping the unchecked exception of a poll.
+	 */
+	void failed(EnrolmentTransaction transaction, IOException e);
+}
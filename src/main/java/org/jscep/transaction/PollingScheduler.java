@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transaction;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jscep.transaction.Transaction.State;
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class polls pending enrolments on behalf of their callers.
+ * <p>
+ * A single scheduler thread drives a hashed timer wheel holding every 
+ * pending {@link EnrolmentTransaction}.  When a transaction is due, its 
+ * {@link EnrolmentTransaction#poll()} is run on the provided executor, and
+ * if it is still pending it is rescheduled.  The delay between polls grows
+ * exponentially from the initial delay to the maximum delay, and each delay
+ * is randomised by the jitter fraction so that a fleet of requesters does
+ * not poll the CA in lock-step.
+ * <p>
+ * Scheduling a transaction costs one small object and no thread, so a 
+ * scheduler can hold a very large number of pending enrolments.  Each 
+ * transaction must have had its issuer set with 
+ * {@link EnrolmentTransaction#setIssuer(java.security.cert.X509Certificate)}.
+ * 
+ * @author David Grant
+ */
+public final class PollingScheduler {
+	private static Logger LOGGER = LoggingUtil.getLogger(PollingScheduler.class);
+	/**
+	 * The default delay before the first poll, in milliseconds.
+	 */
+	public static final long DEFAULT_INITIAL_DELAY = 10000L;
+	/**
+	 * The default maximum delay between polls, in milliseconds.
+	 */
+	public static final long DEFAULT_MAX_DELAY = 3600000L;
+	/**
+	 * The default factor by which the delay grows after each poll.
+	 */
+	public static final double DEFAULT_MULTIPLIER = 2.0;
+	/**
+	 * The default fraction by which each delay is randomised.
+	 */
+	public static final double DEFAULT_JITTER = 0.2;
+	private final Executor executor;
+	private final long tickNanos;
+	private final Timeout[] wheel;
+	private final int mask;
+	private final Queue<Timeout> additions = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentMap<EnrolmentTransaction, Timeout> pending = new ConcurrentHashMap<EnrolmentTransaction, Timeout>();
+	private final Random random = new Random();
+	private final Thread thread;
+	private final long startTime;
+	private volatile boolean shutdown;
+	private volatile long initialDelay = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INITIAL_DELAY);
+	private volatile long maxDelay = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_DELAY);
+	private volatile double multiplier = DEFAULT_MULTIPLIER;
+	private volatile double jitter = DEFAULT_JITTER;
+	private volatile int maxPolls;
+	
+	/**
+	 * Creates a new scheduler with a one second tick and 512 buckets, 
+	 * which runs polls on the provided executor.
+	 * 
+	 * @param executor the executor for polls and callbacks.
+	 */
+	public PollingScheduler(Executor executor) {
+		this(executor, 1, TimeUnit.SECONDS, 512);
+	}
+	
+	/**
+	 * Creates a new scheduler.
+	 * <p>
+	 * Polls fire up to one tick late; a shorter tick is more precise, while
+	 * more buckets reduce the work done per tick.
+	 * 
+	 * @param executor the executor for polls and callbacks.
+	 * @param tick the resolution of the timer wheel.
+	 * @param unit the unit of the tick.
+	 * @param buckets the number of buckets, rounded up to a power of two.
+	 */
+	public PollingScheduler(Executor executor, long tick, TimeUnit unit, int buckets) {
+		if (tick <= 0) {
+			throw new IllegalArgumentException("tick must be positive");
+		}
+		if (buckets <= 0 || buckets > (1 << 30)) {
+			throw new IllegalArgumentException("buckets must be between 1 and 2^30");
+		}
+		final int size = Integer.highestOneBit(buckets - 1) << 1;
+		this.executor = executor;
+		this.tickNanos = unit.toNanos(tick);
+		this.wheel = new Timeout[Math.max(size, 1)];
+		this.mask = wheel.length - 1;
+		this.startTime = System.nanoTime();
+		this.thread = new Thread(new Runnable() {
+			public void run() {
+				PollingScheduler.this.run();
+			}
+		}, "jscep-polling-scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Sets the delay before the first poll.
+	 * 
+	 * @param delay the initial delay.
+	 * @param unit the unit of the delay.
+	 */
+	public void setInitialDelay(long delay, TimeUnit unit) {
+		initialDelay = unit.toNanos(delay);
+	}
+	
+	/**
+	 * Sets the maximum delay between polls.
+	 * 
+	 * @param delay the maximum delay.
+	 * @param unit the unit of the delay.
+	 */
+	public void setMaxDelay(long delay, TimeUnit unit) {
+		maxDelay = unit.toNanos(delay);
+	}
+	
+	/**
+	 * Sets the factor by which the delay grows after each poll.
+	 * 
+	 * @param multiplier the multiplier, at least 1.
+	 */
+	public void setMultiplier(double multiplier) {
+		if (multiplier < 1) {
+			throw new IllegalArgumentException("multiplier must be at least 1");
+		}
+		this.multiplier = multiplier;
+	}
+	
+	/**
+	 * Sets the fraction by which each delay is randomised.
+	 * <p>
+	 * For example, a jitter of <code>0.2</code> gives delays from 80% to
+	 * 120% of the nominal delay.
+	 * 
+	 * @param jitter the jitter, between 0 and 1.
+	 */
+	public void setJitter(double jitter) {
+		if (jitter < 0 || jitter > 1) {
+			throw new IllegalArgumentException("jitter must be between 0 and 1");
+		}
+		this.jitter = jitter;
+	}
+	
+	/**
+	 * Sets the number of polls after which an enrolment is abandoned.
+	 * <p>
+	 * Polls which fail with an I/O error count towards this limit.  By 
+	 * default there is no limit, and I/O errors are retried indefinitely.
+	 * Any other failure, such as an invalid response nonce, abandons the
+	 * enrolment at once.
+	 * 
+	 * @param maxPolls the maximum number of polls, or <code>0</code> for no limit.
+	 */
+	public void setMaxPolls(int maxPolls) {
+		if (maxPolls < 0) {
+			throw new IllegalArgumentException("maxPolls must not be negative");
+		}
+		this.maxPolls = maxPolls;
+	}
+	
+	/**
+	 * Starts polling the provided pending transaction.
+	 * 
+	 * @param transaction the pending transaction.
+	 * @param callback the callback to notify on completion.
+	 * @throws IllegalArgumentException if the transaction has no issuer.
+	 * @throws IllegalStateException if the transaction is already scheduled, or the scheduler has been shut down.
+	 */
+	public void schedule(EnrolmentTransaction transaction, PollingCallback callback) {
+		if (transaction.getIssuer() == null) {
+			throw new IllegalArgumentException("Transaction " + transaction.getId() + " has no issuer");
+		}
+		if (shutdown) {
+			throw new IllegalStateException("Scheduler has been shut down");
+		}
+		final Timeout timeout = new Timeout(transaction, callback);
+		if (pending.putIfAbsent(transaction, timeout) != null) {
+			throw new IllegalStateException("Transaction " + transaction.getId() + " is already scheduled");
+		}
+		timeout.delay = initialDelay;
+		enqueue(timeout, jitter(initialDelay));
+	}
+	
+	/**
+	 * Stops polling the provided transaction.
+	 * <p>
+	 * A poll which is already running is allowed to finish, but its callback
+	 * is not invoked.
+	 * 
+	 * @param transaction the transaction.
+	 * @return <code>true</code> if the transaction was scheduled.
+	 */
+	public boolean cancel(EnrolmentTransaction transaction) {
+		final Timeout timeout = pending.remove(transaction);
+		if (timeout == null) {
+			return false;
+		}
+		timeout.cancelled = true;
+		return true;
+	}
+	
+	/**
+	 * Returns the number of transactions being polled.
+	 * 
+	 * @return the number of pending transactions.
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+	
+	/**
+	 * Stops the scheduler thread.  Pending transactions are abandoned 
+	 * without notification.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		thread.interrupt();
+	}
+	
+	private void enqueue(Timeout timeout, long delay) {
+		timeout.deadline = System.nanoTime() + delay;
+		additions.offer(timeout);
+	}
+	
+	private long jitter(long delay) {
+		final double factor;
+		synchronized (random) {
+			factor = 1 + jitter * (2 * random.nextDouble() - 1);
+		}
+		return (long) (delay * factor);
+	}
+	
+	private void run() {
+		long tick = 0;
+		while (shutdown == false) {
+			final long deadline = startTime + (tick + 1) * tickNanos;
+			long sleep;
+			while ((sleep = deadline - System.nanoTime()) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					if (shutdown) {
+						return;
+					}
+				}
+			}
+			transferAdditions(tick);
+			expire(tick);
+			tick++;
+		}
+	}
+	
+	private void transferAdditions(long tick) {
+		Timeout timeout;
+		while ((timeout = additions.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			// Never place a timeout in a bucket which has already passed.
+			final long due = Math.max((timeout.deadline - startTime) / tickNanos, tick);
+			timeout.rounds = (due - tick) / wheel.length;
+			final int bucket = (int) (due & mask);
+			timeout.next = wheel[bucket];
+			wheel[bucket] = timeout;
+		}
+	}
+	
+	private void expire(long tick) {
+		final int bucket = (int) (tick & mask);
+		Timeout previous = null;
+		Timeout timeout = wheel[bucket];
+		while (timeout != null) {
+			final Timeout next = timeout.next;
+			if (timeout.cancelled || timeout.rounds <= 0) {
+				if (previous == null) {
+					wheel[bucket] = next;
+				} else {
+					previous.next = next;
+				}
+				timeout.next = null;
+				if (timeout.cancelled == false) {
+					fire(timeout);
+				}
+			} else {
+				timeout.rounds--;
+				previous = timeout;
+			}
+			timeout = next;
+		}
+	}
+	
+	private void fire(final Timeout timeout) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					poll(timeout);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Try again later, rather than dropping the transaction.
+			enqueue(timeout, jitter(timeout.delay));
+		}
+	}
+	
+	private void poll(Timeout timeout) {
+		timeout.polls++;
+		State state = null;
+		IOException error = null;
+		try {
+			state = timeout.transaction.poll();
+		} catch (IOException e) {
+			error = e;
+		} catch (RuntimeException e) {
+			// Such as an invalid nonce, which polling again will not cure.
+			if (timeout.cancelled == false && pending.remove(timeout.transaction, timeout)) {
+				try {
+					timeout.callback.failed(timeout.transaction, new IOException(e));
+				} catch (RuntimeException re) {
+					LOGGER.log(Level.WARNING, "polling.callback.failure", re);
+				}
+			}
+			return;
+		}
+		if (timeout.cancelled) {
+			return;
+		}
+		
+		if (state == State.CERT_ISSUED || state == State.CERT_NON_EXISTANT) {
+			if (pending.remove(timeout.transaction, timeout)) {
+				try {
+					timeout.callback.completed(timeout.transaction, state);
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "polling.callback.failure", e);
+				}
+			}
+			return;
+		}
+		
+		final int limit = maxPolls;
+		if (limit > 0 && timeout.polls >= limit) {
+			if (pending.remove(timeout.transaction, timeout)) {
+				if (error == null) {
+					error = new IOException("Transaction " + timeout.transaction.getId() + " still pending after " + timeout.polls + " polls");
+				}
+				try {
+					timeout.callback.failed(timeout.transaction, error);
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "polling.callback.failure", e);
+				}
+			}
+			return;
+		}
+		
+		timeout.delay = Math.min((long) (timeout.delay * multiplier), maxDelay);
+		enqueue(timeout, jitter(timeout.delay));
+	}
+	
+	/**
+	 * A scheduled transaction, linked into a bucket of the wheel.
+	 * <p>
+	 * The links and rounds are only touched by the scheduler thread, and
+	 * the poll count and delay only by the poll in progress.
+	 */
+	private static final class Timeout {
+		final EnrolmentTransaction transaction;
+		final PollingCallback callback;
+		volatile boolean cancelled;
+		volatile long deadline;
+		volatile long delay;
+		volatile int polls;
+		long rounds;
+		Timeout next;
+		
+		Timeout(EnrolmentTransaction transaction, PollingCallback callback) {
+			this.transaction = transaction;
+			this.callback = callback;
+		}
+	}
+}
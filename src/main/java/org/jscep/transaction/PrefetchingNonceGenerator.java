@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transaction;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class generates nonces from blocks of random bytes prepared in 
+ * advance by a background thread.
+ * <p>
+ * Each block is handed to exactly one thread, which then cuts nonces from
+ * it without synchronization, so no two nonces share bytes.  If no block is
+ * ready, the nonce is generated directly by a {@link ThreadLocalNonceGenerator},
+ * so callers never wait for the background thread; such misses are counted
+ * by {@link #getMisses()}.
+ * <p>
+ * The background thread is a daemon, and runs until {@link #shutdown()}.
+ * 
+ * @author David Grant
+ */
+public class PrefetchingNonceGenerator implements NonceGenerator {
+	/**
+	 * The default block size in bytes, enough for 256 nonces.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 4096;
+	/**
+	 * The default number of blocks to keep ready.
+	 */
+	public static final int DEFAULT_BLOCKS = 16;
+	private final BlockingQueue<byte[]> blocks;
+	private final ThreadLocal<Block> current = new ThreadLocal<Block>();
+	private final NonceGenerator fallback = new ThreadLocalNonceGenerator();
+	private final AtomicLong misses = new AtomicLong();
+	private final Thread refiller;
+	private volatile boolean shutdown;
+	
+	/**
+	 * Creates a new generator with {@link #DEFAULT_BLOCKS} blocks of
+	 * {@link #DEFAULT_BLOCK_SIZE} bytes.
+	 */
+	public PrefetchingNonceGenerator() {
+		this(DEFAULT_BLOCK_SIZE, DEFAULT_BLOCKS);
+	}
+	
+	/**
+	 * Creates a new generator.
+	 * 
+	 * @param blockSize the size of each block, a multiple of the nonce length.
+	 * @param blockCount the number of blocks to keep ready.
+	 */
+	public PrefetchingNonceGenerator(final int blockSize, int blockCount) {
+		if (blockSize <= 0 || blockSize % Nonce.LENGTH != 0) {
+			throw new IllegalArgumentException("blockSize must be a positive multiple of " + Nonce.LENGTH);
+		}
+		if (blockCount <= 0) {
+			throw new IllegalArgumentException("blockCount must be positive");
+		}
+		this.blocks = new ArrayBlockingQueue<byte[]>(blockCount);
+		this.refiller = new Thread(new Runnable() {
+			public void run() {
+				final SecureRandom rnd = new SecureRandom();
+				while (shutdown == false) {
+					final byte[] block = new byte[blockSize];
+					rnd.nextBytes(block);
+					try {
+						blocks.put(block);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "jscep-nonce-prefetch");
+		refiller.setDaemon(true);
+		refiller.start();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Nonce nextNonce() {
+		Block block = current.get();
+		if (block == null || block.offset == block.bytes.length) {
+			final byte[] bytes = blocks.poll();
+			if (bytes == null) {
+				misses.incrementAndGet();
+				return fallback.nextNonce();
+			}
+			block = new Block(bytes);
+			current.set(block);
+		}
+		final byte[] nonce = Arrays.copyOfRange(block.bytes, block.offset, block.offset + Nonce.LENGTH);
+		block.offset += Nonce.LENGTH;
+		
+		return new Nonce(nonce);
+	}
+	
+	/**
+	 * Returns the number of nonces generated directly because no block was
+	 * ready.
+	 * 
+	 * @return the number of misses.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * Stops the background thread.  Nonces are still generated, but directly.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		refiller.interrupt();
+		blocks.clear();
+	}
+	
+	private static final class Block {
+		final byte[] bytes;
+		int offset;
+		
+		Block(byte[] bytes) {
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transaction;
+
+/**
+ * This interface represents a record of nonces which have already been
+ * received, used to detect replayed messages.
+ * <p>
+ * Implementations must be safe for use by multiple threads, as a single 
+ * cache is normally shared by every transaction.
+ * 
+ * @author David Grant
+ * @see <a href="http://tools.ietf.org/html/draft-nourse-scep-20#section-8.5">SCEP Internet-Draft Reference</a>
+ */
+public interface ReplayCache {
+	/**
+	 * Records the provided nonce, unless it has been seen before.
+	 * <p>
+	 * Checking and recording are performed as a single atomic step, so 
+	 * if two threads add the same nonce at once, only one will succeed.
+	 * 
+	 * @param nonce the nonce to record.
+	 * @return <code>true</code> if the nonce is new, or <code>false</code> if it is a replay.
+	 */
+	boolean add(Nonce nonce);
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transaction;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * This class generates nonces from a separate <code>SecureRandom</code> for
+ * each thread, so that threads never contend for a random source.
+ * <p>
+ * By default, each thread uses a <code>SHA1PRNG</code> instance seeded from
+ * the system entropy source.  The platform default (<code>NativePRNG</code>
+ * on most Unix systems) is not used, because all of its instances share a
+ * single lock.
+ * 
+ * @author David Grant
+ */
+public class ThreadLocalNonceGenerator implements NonceGenerator {
+	/**
+	 * The default <code>SecureRandom</code> algorithm.
+	 */
+	public static final String DEFAULT_ALGORITHM = "SHA1PRNG";
+	private final ThreadLocal<SecureRandom> randoms;
+	
+	/**
+	 * Creates a new generator using the {@link #DEFAULT_ALGORITHM}.
+	 */
+	public ThreadLocalNonceGenerator() {
+		this(DEFAULT_ALGORITHM);
+	}
+	
+	/**
+	 * Creates a new generator using the provided <code>SecureRandom</code>
+	 * algorithm.
+	 * 
+	 * @param algorithm the algorithm name.
+	 * @throws IllegalArgumentException if the algorithm is not available.
+	 */
+	public ThreadLocalNonceGenerator(final String algorithm) {
+		try {
+			SecureRandom.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(e);
+		}
+		this.randoms = new ThreadLocal<SecureRandom>() {
+			@Override
+			protected SecureRandom initialValue() {
+				try {
+					return SecureRandom.getInstance(algorithm);
+				} catch (NoSuchAlgorithmException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Nonce nextNonce() {
+		final byte[] bytes = new byte[Nonce.LENGTH];
+		randoms.get().nextBytes(bytes);
+		
+		return new Nonce(bytes);
+	}
+}
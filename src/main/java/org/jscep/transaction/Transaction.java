@@ -25,8 +25,17 @@ package org.jscep.transaction;
 import java.io.IOException;
 import java.security.cert.CertStore;
 
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.cms.CMSSignedData;
+import org.jscep.content.PkiMessageContentHandler;
+import org.jscep.message.CertRep;
+import org.jscep.message.PkiMessage;
 import org.jscep.message.PkiMessageDecoder;
 import org.jscep.message.PkiMessageEncoder;
+import org.jscep.metrics.MetricsRegistry;
+import org.jscep.metrics.ScepMetrics;
+import org.jscep.metrics.Stage;
+import org.jscep.request.PkiOperation;
 import org.jscep.transport.Transport;
 
 public abstract class Transaction {
@@ -68,6 +77,57 @@ public abstract class Transaction {
 		return state;
 	}
 	
+	/**
+	 * Sends the provided request to the SCEP server and returns the response.
+	 * <p>
+	 * The response is decoded as it is read from the transport.
+	 * 
+	 * @param req the request to send.
+	 * @return the response.
+	 * @throws IOException if any I/O error occurs, or the response is not a CertRep.
+	 */
+	protected CertRep sendRequest(PkiMessage<? extends ASN1Encodable> req) throws IOException {
+		final long start = System.nanoTime();
+		boolean success = false;
+		try {
+			final CMSSignedData signedData = encoder.encode(req);
+			final PkiMessageContentHandler handler = new PkiMessageContentHandler(decoder);
+			final PkiMessage<? extends ASN1Encodable> res = transport.sendRequest(new PkiOperation<PkiMessage<? extends ASN1Encodable>>(signedData, handler));
+			final CertRep response = toCertRep(res);
+			success = true;
+			
+			return response;
+		} finally {
+			MetricsRegistry.getMetrics().recordLatency(Stage.TRANSACTION, System.nanoTime() - start, success);
+		}
+	}
+	
+	/**
+	 * Checks that the provided response is a CertRep.
+	 * 
+	 * @param res the decoded response.
+	 * @return the response.
+	 * @throws IOException if the response is not a CertRep.
+	 */
+	protected CertRep toCertRep(PkiMessage<? extends ASN1Encodable> res) throws IOException {
+		if (res instanceof CertRep == false) {
+			throw new IOException("Invalid Response");
+		}
+		return (CertRep) res;
+	}
+	
+	/**
+	 * Reports the state this transaction has entered, and the reason for
+	 * failure, if any, to the metrics registry.
+	 */
+	protected void recordState() {
+		final ScepMetrics metrics = MetricsRegistry.getMetrics();
+		metrics.recordState(state);
+		if (state == State.CERT_NON_EXISTANT && failInfo != null) {
+			metrics.recordFailure(failInfo);
+		}
+	}
+	
 	public abstract State send() throws IOException;
 	public abstract TransactionId getId();
 	
@@ -26,10 +26,9 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.logging.Logger;
 
 import org.jscep.util.HexUtil;
-import org.jscep.util.LoggingUtil;
+import org.jscep.util.Tracer;
 
 
 /**
@@ -38,7 +37,7 @@ import org.jscep.util.LoggingUtil;
  * @author David Grant
  */
 public final class TransactionId {
-	private static Logger LOGGER = LoggingUtil.getLogger(TransactionId.class);
+	private static final Tracer TRACER = Tracer.getTracer(TransactionId.class);
 	private static final AtomicLong ID_SOURCE = new AtomicLong();
 	private final byte[] id;
 	
@@ -66,11 +65,19 @@ public final class TransactionId {
 	
 	@Override
 	public boolean equals(Object o) {
+		if (o instanceof TransactionId == false) {
+			return false;
+		}
 		TransactionId transId = (TransactionId) o;
 		
 		return Arrays.equals(transId.getBytes(), getBytes());
 	}
 	
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(id);
+	}
+	
 	/**
 	 * Creates a new Transaction Id
 	 * <p>
@@ -79,11 +86,11 @@ public final class TransactionId {
 	 * @return the new Transaction Id
 	 */
 	public static TransactionId createTransactionId(PublicKey pubKey, String digestAlgorithm) {
-		LOGGER.entering(TransactionId.class.getName(), "createTransactionId", new Object[] {pubKey, digestAlgorithm});
+		TRACER.entering("createTransactionId", pubKey, digestAlgorithm);
 		
 		TransactionId t = new TransactionId(pubKey, digestAlgorithm);
 
-		LOGGER.exiting(TransactionId.class.getName(), "createTransactionId", t);
+		TRACER.exiting("createTransactionId", t);
 		return t;
 	}
 	
@@ -95,11 +102,11 @@ public final class TransactionId {
 	 * @return the new Transaction Id
 	 */
 	public static TransactionId createTransactionId() {
-		LOGGER.entering(TransactionId.class.getName(), "createTransactionId");
+		TRACER.entering("createTransactionId");
 		
 		TransactionId t =  new TransactionId();
 		
-		LOGGER.exiting(TransactionId.class.getName(), "createTransactionId", t);
+		TRACER.exiting("createTransactionId", t);
 		return t;
 	}
 	
@@ -0,0 +1,488 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.jscep.message.PkiMessageDecoder;
+import org.jscep.message.PkiMessageEncoder;
+import org.jscep.transport.Transport;
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class records pending enrolments in an append-only journal, so that
+ * they can be restored after a restart.
+ * <p>
+ * The journal is a directory of fixed-size, memory-mapped segment files.
+ * Each record holds its length, its type, its payload and a CRC-32 of the
+ * type and payload, so a record torn by a crash is detected and discarded
+ * when the journal is next opened.  When a segment is full, the journal 
+ * rolls to a new segment, writes a checkpoint of the transactions still 
+ * pending, and deletes the older segments.
+ * <p>
+ * Writes reach the page cache immediately, but are only forced to disk 
+ * every <code>syncInterval</code> records, or when {@link #sync()} or 
+ * {@link #close()} is called.  A larger interval reduces latency at the cost
+ * of the most recent records if the host, rather than the process, fails.
+ * <p>
+ * Transactions are journalled by passing the journal to 
+ * {@link EnrolmentTransaction#setJournal(TransactionJournal)}, and recovered
+ * with {@link #restore(Transport, PkiMessageEncoder, PkiMessageDecoder)}.
+ * 
+ * @author David Grant
+ */
+public final class TransactionJournal implements Closeable {
+	private static Logger LOGGER = LoggingUtil.getLogger(TransactionJournal.class);
+	/**
+	 * The default size of each segment file, in bytes.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	/**
+	 * The default number of records written between forced writes.
+	 */
+	public static final int DEFAULT_SYNC_INTERVAL = 1;
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".log";
+	private static final byte PENDING = 1;
+	private static final byte COMPLETED = 2;
+	// length + type + crc
+	private static final int OVERHEAD = 4 + 1 + 4;
+	private static final int MIN_SEGMENT_SIZE = 4096;
+	private final File directory;
+	private final int segmentSize;
+	private final int syncInterval;
+	private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+	private final CRC32 crc = new CRC32();
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private Segment current;
+	private int unsynced;
+	private boolean closed;
+	
+	/**
+	 * Opens the journal in the provided directory, with the default segment
+	 * size and a forced write for every record.
+	 * 
+	 * @param directory the journal directory, which is created if necessary.
+	 * @throws IOException if the journal cannot be opened.
+	 */
+	public TransactionJournal(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL);
+	}
+	
+	/**
+	 * Opens the journal in the provided directory.
+	 * 
+	 * @param directory the journal directory, which is created if necessary.
+	 * @param segmentSize the size of each segment file, in bytes.
+	 * @param syncInterval the number of records between forced writes, or <code>0</code> to leave writes to the operating system.
+	 * @throws IOException if the journal cannot be opened.
+	 */
+	public TransactionJournal(File directory, int segmentSize, int syncInterval) throws IOException {
+		if (segmentSize < MIN_SEGMENT_SIZE) {
+			throw new IllegalArgumentException("segmentSize must be at least " + MIN_SEGMENT_SIZE);
+		}
+		if (syncInterval < 0) {
+			throw new IllegalArgumentException("syncInterval must not be negative");
+		}
+		if (directory.isDirectory() == false && directory.mkdirs() == false) {
+			throw new IOException("Unable to create " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncInterval = syncInterval;
+		
+		recover();
+	}
+	
+	/**
+	 * Returns the number of transactions recorded as pending.
+	 * 
+	 * @return the number of pending transactions.
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+	
+	/**
+	 * Recreates the transactions recorded as pending.
+	 * <p>
+	 * Each transaction is in the {@link Transaction.State#CERT_REQ_PENDING}
+	 * state, journals to this journal, and can be polled immediately, for
+	 * example by a {@link PollingScheduler}.
+	 * 
+	 * @param transport the transport for the restored transactions.
+	 * @param encoder the encoder for the restored transactions.
+	 * @param decoder the decoder for the restored transactions.
+	 * @return the pending transactions, in the order they were first recorded.
+	 * @throws IOException if a recorded transaction cannot be decoded.
+	 */
+	public synchronized List<EnrolmentTransaction> restore(Transport transport, PkiMessageEncoder encoder, PkiMessageDecoder decoder) throws IOException {
+		final List<EnrolmentTransaction> transactions = new ArrayList<EnrolmentTransaction>(pending.size());
+		for (Entry entry : pending.values()) {
+			final EnrolmentTransaction tx = entry.toTransaction(transport, encoder, decoder);
+			tx.setJournal(this);
+			transactions.add(tx);
+		}
+		return transactions;
+	}
+	
+	/**
+	 * Forces any unsynchronised records to disk.
+	 * 
+	 * @throws IOException if the journal has been closed.
+	 */
+	public synchronized void sync() throws IOException {
+		ensureOpen();
+		if (unsynced > 0) {
+			current.buffer.force();
+			unsynced = 0;
+		}
+	}
+	
+	/**
+	 * Forces any unsynchronised records to disk and closes the journal.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		sync();
+		for (Segment segment : segments) {
+			segment.close();
+		}
+		segments.clear();
+		closed = true;
+	}
+	
+	/**
+	 * Records that the provided transaction is pending.
+	 * 
+	 * @param tx the pending transaction.
+	 * @throws IOException if the record cannot be written.
+	 */
+	synchronized void pending(EnrolmentTransaction tx) throws IOException {
+		ensureOpen();
+		final String key = tx.getId().toString();
+		if (pending.containsKey(key)) {
+			return;
+		}
+		final Entry entry = new Entry(tx);
+		append(PENDING, entry.encode());
+		pending.put(key, entry);
+	}
+	
+	/**
+	 * Records that the provided transaction is no longer pending.
+	 * 
+	 * @param tx the completed transaction.
+	 * @throws IOException if the record cannot be written.
+	 */
+	synchronized void completed(EnrolmentTransaction tx) throws IOException {
+		ensureOpen();
+		final String key = tx.getId().toString();
+		if (pending.containsKey(key) == false) {
+			return;
+		}
+		final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		final DataOutputStream dOut = new DataOutputStream(bOut);
+		writeBytes(dOut, tx.getId().getBytes());
+		dOut.close();
+		append(COMPLETED, bOut.toByteArray());
+		pending.remove(key);
+	}
+	
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Journal has been closed");
+		}
+	}
+	
+	private void append(byte type, byte[] payload) throws IOException {
+		final int size = OVERHEAD + payload.length;
+		if (size > segmentSize - 4) {
+			throw new IOException("Record of " + payload.length + " bytes exceeds segment size");
+		}
+		if (current.buffer.remaining() < size + 4) {
+			roll();
+			if (current.buffer.remaining() < size + 4) {
+				// The checkpoint filled the new segment.
+				current = openSegment(current.sequence + 1);
+			}
+		}
+		write(type, payload);
+		unsynced++;
+		if (syncInterval > 0 && unsynced >= syncInterval) {
+			current.buffer.force();
+			unsynced = 0;
+		}
+	}
+	
+	private void write(byte type, byte[] payload) {
+		crc.reset();
+		crc.update(type);
+		crc.update(payload);
+		
+		final MappedByteBuffer buffer = current.buffer;
+		final int start = buffer.position();
+		// The length is written last, so a reader never sees a partial record
+		// as long as the page is written in order.
+		buffer.position(start + 4);
+		buffer.put(type);
+		buffer.put(payload);
+		buffer.putInt((int) crc.getValue());
+		buffer.putInt(start, payload.length);
+	}
+	
+	private void roll() throws IOException {
+		current.buffer.force();
+		unsynced = 0;
+		
+		final int first = segments.size();
+		current = openSegment(current.sequence + 1);
+		for (Entry entry : pending.values()) {
+			final byte[] payload = entry.encode();
+			if (current.buffer.remaining() < OVERHEAD + payload.length + 4) {
+				current.buffer.force();
+				current = openSegment(current.sequence + 1);
+			}
+			write(PENDING, payload);
+		}
+		current.buffer.force();
+		
+		// The checkpoint is durable, so everything before it can go.
+		for (Segment segment : segments.subList(0, first)) {
+			segment.close();
+			if (segment.file.delete() == false) {
+				LOGGER.log(Level.WARNING, "journal.delete.failure", segment.file);
+			}
+		}
+		segments.subList(0, first).clear();
+	}
+	
+	private Segment openSegment(long sequence) throws IOException {
+		final File file = new File(directory, String.format("%s%016x%s", PREFIX, sequence, SUFFIX));
+		final Segment segment = new Segment(file, sequence, segmentSize);
+		segments.add(segment);
+		return segment;
+	}
+	
+	private void recover() throws IOException {
+		final File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				final String name = file.getName();
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX) && file.isFile();
+			}
+		});
+		if (files == null) {
+			throw new IOException("Unable to list " + directory);
+		}
+		// The sequence number is fixed-width hex, so names sort by sequence.
+		Arrays.sort(files);
+		
+		for (File file : files) {
+			final String name = file.getName();
+			final long sequence = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16);
+			final Segment segment = new Segment(file, sequence, (int) Math.max(file.length(), segmentSize));
+			segments.add(segment);
+			replay(segment);
+		}
+		if (segments.isEmpty()) {
+			current = openSegment(0);
+		} else {
+			current = segments.get(segments.size() - 1);
+		}
+	}
+	
+	private void replay(Segment segment) throws IOException {
+		final MappedByteBuffer buffer = segment.buffer;
+		while (buffer.remaining() >= OVERHEAD + 4) {
+			final int start = buffer.position();
+			final int length = buffer.getInt();
+			if (length == 0) {
+				buffer.position(start);
+				return;
+			}
+			if (length < 0 || length > buffer.remaining() - 1 - 4) {
+				discard(segment, start);
+				return;
+			}
+			final byte type = buffer.get();
+			final byte[] payload = new byte[length];
+			buffer.get(payload);
+			final int checksum = buffer.getInt();
+			
+			crc.reset();
+			crc.update(type);
+			crc.update(payload);
+			if ((int) crc.getValue() != checksum) {
+				discard(segment, start);
+				return;
+			}
+			
+			final DataInputStream dIn = new DataInputStream(new ByteArrayInputStream(payload));
+			if (type == PENDING) {
+				final Entry entry = Entry.decode(dIn);
+				pending.put(new String(entry.transId), entry);
+			} else if (type == COMPLETED) {
+				pending.remove(new String(readBytes(dIn)));
+			} else {
+				discard(segment, start);
+				return;
+			}
+		}
+	}
+	
+	private void discard(Segment segment, int start) {
+		LOGGER.log(Level.WARNING, "journal.record.corrupt", new Object[] {segment.file, start});
+		// Clear the torn tail so that it cannot be mistaken for a record once
+		// new records are appended before it.
+		final MappedByteBuffer buffer = segment.buffer;
+		buffer.position(start);
+		while (buffer.hasRemaining()) {
+			buffer.put((byte) 0);
+		}
+		buffer.position(start);
+	}
+	
+	private static void writeBytes(DataOutputStream dOut, byte[] bytes) throws IOException {
+		dOut.writeInt(bytes.length);
+		dOut.write(bytes);
+	}
+	
+	private static byte[] readBytes(DataInputStream dIn) throws IOException {
+		final byte[] bytes = new byte[dIn.readInt()];
+		dIn.readFully(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * A segment file, mapped into memory.
+	 */
+	private static final class Segment {
+		final File file;
+		final long sequence;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+		
+		Segment(File file, long sequence, int size) throws IOException {
+			this.file = file;
+			this.sequence = sequence;
+			this.raf = new RandomAccessFile(file, "rw");
+			try {
+				this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+		
+		void close() throws IOException {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * The recorded state of a pending transaction.
+	 */
+	private static final class Entry {
+		final byte[] transId;
+		final byte[] nonce;
+		final byte[] csr;
+		final byte[] issuer;
+		
+		Entry(byte[] transId, byte[] nonce, byte[] csr, byte[] issuer) {
+			this.transId = transId;
+			this.nonce = nonce;
+			this.csr = csr;
+			this.issuer = issuer;
+		}
+		
+		Entry(EnrolmentTransaction tx) throws IOException {
+			this.transId = tx.getId().getBytes();
+			this.nonce = tx.getRequest().getSenderNonce().getBytes();
+			this.csr = tx.getRequest().getMessageData().getEncoded();
+			final X509Certificate ca = tx.getIssuer();
+			if (ca == null) {
+				this.issuer = new byte[0];
+			} else {
+				try {
+					this.issuer = ca.getEncoded();
+				} catch (CertificateException e) {
+					throw new IOException(e);
+				}
+			}
+		}
+		
+		byte[] encode() throws IOException {
+			final ByteArrayOutputStream bOut = new ByteArrayOutputStream(transId.length + nonce.length + csr.length + issuer.length + 16);
+			final DataOutputStream dOut = new DataOutputStream(bOut);
+			writeBytes(dOut, transId);
+			writeBytes(dOut, nonce);
+			writeBytes(dOut, csr);
+			writeBytes(dOut, issuer);
+			dOut.close();
+			
+			return bOut.toByteArray();
+		}
+		
+		static Entry decode(DataInputStream dIn) throws IOException {
+			return new Entry(readBytes(dIn), readBytes(dIn), readBytes(dIn), readBytes(dIn));
+		}
+		
+		EnrolmentTransaction toTransaction(Transport transport, PkiMessageEncoder encoder, PkiMessageDecoder decoder) throws IOException {
+			final CertificationRequest request = CertificationRequest.getInstance(ASN1Object.fromByteArray(csr));
+			X509Certificate ca = null;
+			if (issuer.length > 0) {
+				try {
+					final CertificateFactory factory = CertificateFactory.getInstance("X.509");
+					ca = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(issuer));
+				} catch (CertificateException e) {
+					throw new IOException(e);
+				}
+			}
+			return new EnrolmentTransaction(transport, encoder, decoder, new TransactionId(transId), new Nonce(nonce), request, ca);
+		}
+	}
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transaction;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class provides a {@link ReplayCache} which remembers nonces for a
+ * fixed period of time, within a fixed memory budget.
+ * <p>
+ * The window is divided between a number of segments.  New nonces are 
+ * recorded in the current segment, and every <code>window / 
+ * (segments - 1)</code> the oldest segment is cleared and becomes the 
+ * current segment, so a nonce is remembered for at least the window.
+ * <p>
+ * Each segment holds an exact, open-addressed table of 16 byte keys in a 
+ * direct buffer outside the Java heap, fronted by a Bloom filter.  
+ * Checking a new nonce against older segments usually only touches their 
+ * Bloom filters.  Nonces of 16 bytes, as generated by {@link Nonce#nextNonce()},
+ * are stored as they are; other nonces are stored as a truncated SHA-1 
+ * digest.  Nonces are chosen by the sender, so slots are found with 
+ * SipHash under a random key for each cache; colliding nonces which 
+ * would build long probe sequences cannot be prepared in advance.
+ * <p>
+ * The memory budget is shared equally between the segments.  If the 
+ * current segment fills before its time is up, the cache rotates early, 
+ * which shortens the window; this is counted by {@link #getEarlyRotations()}.
+ * <p>
+ * Instances of this class are safe for use by multiple threads.
+ * 
+ * @author David Grant
+ */
+public class WindowedReplayCache implements ReplayCache {
+	/**
+	 * The default number of segments.
+	 */
+	public static final int DEFAULT_SEGMENTS = 4;
+	private static final int KEY_LENGTH = 16;
+	private static final int HASH_FUNCTIONS = 7;
+	/**
+	 * Each slot costs 16 bytes in the table and 8 bits in the Bloom filter.
+	 */
+	private static final int BYTES_PER_SLOT = KEY_LENGTH + 1;
+	private static final long MAX_SLOTS = 1L << 26;
+	private static final int MIN_SLOTS = 64;
+	private static final int ADDED = 0;
+	private static final int PRESENT = 1;
+	private static final int FULL = 2;
+	private final Segment[] segments;
+	private final long segmentNanos;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final long seed0;
+	private final long seed1;
+	private int current;
+	private long currentStart;
+	private final AtomicLong bloomQueries = new AtomicLong();
+	private final AtomicLong bloomFalsePositives = new AtomicLong();
+	private final AtomicLong earlyRotations = new AtomicLong();
+	
+	/**
+	 * Creates a new cache of {@link #DEFAULT_SEGMENTS} segments.
+	 * 
+	 * @param window the minimum time for which to remember a nonce.
+	 * @param unit the unit of the window.
+	 * @param memoryBudget the memory to use for all segments, in bytes.
+	 */
+	public WindowedReplayCache(long window, TimeUnit unit, long memoryBudget) {
+		this(window, unit, DEFAULT_SEGMENTS, memoryBudget);
+	}
+	
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param window the minimum time for which to remember a nonce.
+	 * @param unit the unit of the window.
+	 * @param segmentCount the number of segments, at least two.
+	 * @param memoryBudget the memory to use for all segments, in bytes.
+	 */
+	public WindowedReplayCache(long window, TimeUnit unit, int segmentCount, long memoryBudget) {
+		if (window <= 0) {
+			throw new IllegalArgumentException("window must be positive");
+		}
+		if (segmentCount < 2) {
+			throw new IllegalArgumentException("segmentCount must be at least 2");
+		}
+		final long slots = Long.highestOneBit(Math.min(memoryBudget / segmentCount / BYTES_PER_SLOT, MAX_SLOTS));
+		if (slots < MIN_SLOTS) {
+			throw new IllegalArgumentException("memoryBudget is too small for " + segmentCount + " segments");
+		}
+		this.segmentNanos = Math.max(unit.toNanos(window) / (segmentCount - 1), 1);
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment((int) slots);
+		}
+		final SecureRandom random = new SecureRandom();
+		this.seed0 = random.nextLong();
+		this.seed1 = random.nextLong();
+		this.currentStart = System.nanoTime();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean add(Nonce nonce) {
+		final byte[] key = toKey(nonce.getBytes());
+		final long k0 = getLong(key, 0);
+		final long k1 = getLong(key, 8);
+		final long h1 = hash(k0, k1);
+		final long h2 = mix(h1 + 0x9E3779B97F4A7C15L) | 1;
+		
+		while (true) {
+			final long now = System.nanoTime();
+			final int result;
+			lock.readLock().lock();
+			try {
+				if (now - currentStart >= segmentNanos) {
+					result = FULL;
+				} else {
+					// Older segments are only read until they are recycled, 
+					// which requires the write lock.
+					for (int i = 0; i < segments.length; i++) {
+						if (i != current && contains(segments[i], k0, k1, h1, h2)) {
+							return false;
+						}
+					}
+					final Segment segment = segments[current];
+					synchronized (segment) {
+						result = segment.add(k0, k1, h1, h2);
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (result == ADDED) {
+				return true;
+			} else if (result == PRESENT) {
+				return false;
+			}
+			rotate(now);
+		}
+	}
+	
+	private boolean contains(Segment segment, long k0, long k1, long h1, long h2) {
+		bloomQueries.incrementAndGet();
+		if (segment.mightContain(h1, h2) == false) {
+			return false;
+		}
+		if (segment.contains(k0, k1, h1)) {
+			return true;
+		}
+		bloomFalsePositives.incrementAndGet();
+		return false;
+	}
+	
+	private void rotate(long now) {
+		lock.writeLock().lock();
+		try {
+			final long elapsed = now - currentStart;
+			if (elapsed >= segmentNanos) {
+				final long steps = elapsed / segmentNanos;
+				if (steps >= segments.length) {
+					advance(segments.length);
+					currentStart = now;
+				} else {
+					advance((int) steps);
+					currentStart += steps * segmentNanos;
+				}
+			} else if (segments[current].isFull()) {
+				earlyRotations.incrementAndGet();
+				advance(1);
+				currentStart = now;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	private void advance(int steps) {
+		for (int i = 0; i < steps; i++) {
+			current = (current + 1) % segments.length;
+			segments[current].clear();
+		}
+	}
+	
+	/**
+	 * Returns the number of nonces currently remembered.
+	 * 
+	 * @return the number of nonces.
+	 */
+	public long size() {
+		lock.readLock().lock();
+		try {
+			long size = 0;
+			for (Segment segment : segments) {
+				synchronized (segment) {
+					size += segment.size;
+				}
+			}
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of nonces which can be recorded in each segment
+	 * before the cache rotates early.
+	 * 
+	 * @return the segment capacity.
+	 */
+	public int getSegmentCapacity() {
+		return segments[0].threshold;
+	}
+	
+	/**
+	 * Returns the memory held by this cache, in bytes.
+	 * <p>
+	 * This includes the off-heap tables and the Bloom filters, and never
+	 * exceeds the memory budget.
+	 * 
+	 * @return the memory usage.
+	 */
+	public long getMemoryUsage() {
+		long usage = 0;
+		for (Segment segment : segments) {
+			usage += segment.getMemoryUsage();
+		}
+		return usage;
+	}
+	
+	/**
+	 * Returns the number of times an older segment has been checked for a 
+	 * nonce.
+	 * 
+	 * @return the number of Bloom filter queries.
+	 */
+	public long getBloomQueries() {
+		return bloomQueries.get();
+	}
+	
+	/**
+	 * Returns the number of times a Bloom filter reported a nonce which 
+	 * was not found in its segment.
+	 * 
+	 * @return the number of false positives.
+	 */
+	public long getBloomFalsePositives() {
+		return bloomFalsePositives.get();
+	}
+	
+	/**
+	 * Returns the observed false positive rate of the Bloom filters.
+	 * 
+	 * @return the false positive rate, between 0 and 1.
+	 */
+	public double getFalsePositiveRate() {
+		final long queries = bloomQueries.get();
+		if (queries == 0) {
+			return 0;
+		}
+		return (double) bloomFalsePositives.get() / queries;
+	}
+	
+	/**
+	 * Returns the number of times the cache has rotated before the end of
+	 * a segment because the segment was full.
+	 * <p>
+	 * If this is not zero, the nonce volume exceeds the memory budget and 
+	 * nonces have been remembered for less than the window.
+	 * 
+	 * @return the number of early rotations.
+	 */
+	public long getEarlyRotations() {
+		return earlyRotations.get();
+	}
+	
+	private static byte[] toKey(byte[] nonce) {
+		if (nonce.length == KEY_LENGTH) {
+			return nonce;
+		}
+		try {
+			return Arrays.copyOf(MessageDigest.getInstance("SHA-1").digest(nonce), KEY_LENGTH);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static long getLong(byte[] b, int off) {
+		long l = 0;
+		for (int i = off; i < off + 8; i++) {
+			l = (l << 8) | (b[i] & 0xFF);
+		}
+		return l;
+	}
+	
+	/**
+	 * Returns the SipHash-2-4 of a 16 byte key, under the key of this cache.
+	 * 
+	 * @see <a href="https://131002.net/siphash/">SipHash</a>
+	 */
+	private long hash(long k0, long k1) {
+		long v0 = seed0 ^ 0x736F6D6570736575L;
+		long v1 = seed1 ^ 0x646F72616E646F6DL;
+		long v2 = seed0 ^ 0x6C7967656E657261L;
+		long v3 = seed1 ^ 0x7465646279746573L;
+		// Two message words, then the length block.
+		final long[] words = {k0, k1, (long) KEY_LENGTH << 56};
+		for (long m : words) {
+			v3 ^= m;
+			for (int i = 0; i < 2; i++) {
+				v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+				v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+				v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+				v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+			}
+			v0 ^= m;
+		}
+		v2 ^= 0xFF;
+		for (int i = 0; i < 4; i++) {
+			v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+			v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+			v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+			v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+		}
+		return v0 ^ v1 ^ v2 ^ v3;
+	}
+	
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+	/**
+	 * A single time slice of the window.
+	 * <p>
+	 * Only the current segment is written, while holding its monitor.  An
+	 * empty slot is all zeroes, so the all-zero key is tracked separately.
+	 */
+	private static final class Segment {
+		private final ByteBuffer table;
+		private final long[] bloom;
+		private final int mask;
+		private final long bloomMask;
+		private final int threshold;
+		private int size;
+		private boolean containsZero;
+		
+		Segment(int slots) {
+			this.table = ByteBuffer.allocateDirect(slots * KEY_LENGTH);
+			this.bloom = new long[slots / 8];
+			this.mask = slots - 1;
+			this.bloomMask = slots * 8L - 1;
+			// Keep linear probes short.
+			this.threshold = slots / 4 * 3;
+		}
+		
+		boolean mightContain(long h1, long h2) {
+			for (int i = 0; i < HASH_FUNCTIONS; i++) {
+				final long bit = (h1 + i * h2) & bloomMask;
+				if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		boolean contains(long k0, long k1, long h1) {
+			if (k0 == 0 && k1 == 0) {
+				return containsZero;
+			}
+			int slot = (int) h1 & mask;
+			while (true) {
+				final int offset = slot * KEY_LENGTH;
+				final long s0 = table.getLong(offset);
+				final long s1 = table.getLong(offset + 8);
+				if (s0 == k0 && s1 == k1) {
+					return true;
+				}
+				if (s0 == 0 && s1 == 0) {
+					return false;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+		
+		int add(long k0, long k1, long h1, long h2) {
+			if (contains(k0, k1, h1)) {
+				return PRESENT;
+			}
+			if (size >= threshold) {
+				return FULL;
+			}
+			if (k0 == 0 && k1 == 0) {
+				containsZero = true;
+			} else {
+				int slot = (int) h1 & mask;
+				while (table.getLong(slot * KEY_LENGTH) != 0 || table.getLong(slot * KEY_LENGTH + 8) != 0) {
+					slot = (slot + 1) & mask;
+				}
+				table.putLong(slot * KEY_LENGTH, k0);
+				table.putLong(slot * KEY_LENGTH + 8, k1);
+			}
+			for (int i = 0; i < HASH_FUNCTIONS; i++) {
+				final long bit = (h1 + i * h2) & bloomMask;
+				bloom[(int) (bit >>> 6)] |= 1L << bit;
+			}
+			size++;
+			
+			return ADDED;
+		}
+		
+		synchronized boolean isFull() {
+			return size >= threshold;
+		}
+		
+		synchronized void clear() {
+			if (size == 0) {
+				return;
+			}
+			for (int offset = 0; offset < table.capacity(); offset += 8) {
+				table.putLong(offset, 0);
+			}
+			Arrays.fill(bloom, 0);
+			size = 0;
+			containsZero = false;
+		}
+		
+		long getMemoryUsage() {
+			return table.capacity() + bloom.length * 8L;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class represents an HTTP message body sent with the <code>chunked</code>
+ * transfer coding.
+ * <p>
+ * Closing this stream does not close the underlying connection stream, so
+ * that the connection may be reused once the body has been consumed.
+ * 
+ * @author David Grant
+ * @see <a href="http://tools.ietf.org/html/rfc2616#section-3.6.1">RFC 2616 Section 3.6.1</a>
+ */
+final class ChunkedInputStream extends FilterInputStream {
+	private long remaining;
+	private boolean started;
+	private boolean eof;
+
+	/**
+	 * Creates a new stream which decodes chunks from the provided stream.
+	 * 
+	 * @param in the connection stream.
+	 */
+	ChunkedInputStream(InputStream in) {
+		super(in);
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (nextChunk() == false) {
+			return -1;
+		}
+		final int b = in.read();
+		if (b == -1) {
+			throw new IOException("Premature end of chunk");
+		}
+		remaining--;
+		
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (nextChunk() == false) {
+			return -1;
+		}
+		final int n = in.read(b, off, (int) Math.min(len, remaining));
+		if (n == -1) {
+			throw new IOException("Premature end of chunk");
+		}
+		remaining -= n;
+		
+		return n;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		if (eof) {
+			return 0;
+		}
+		return (int) Math.min(in.available(), remaining);
+	}
+	
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+	
+	@Override
+	public void close() {
+		// The connection stream is owned by the connection.
+	}
+	
+	private boolean nextChunk() throws IOException {
+		if (eof) {
+			return false;
+		}
+		if (remaining > 0) {
+			return true;
+		}
+		if (started) {
+			// CRLF terminating the previous chunk
+			HttpConnection.readLine(in);
+		}
+		started = true;
+		
+		final String line = HttpConnection.readLine(in);
+		if (line == null) {
+			throw new IOException("Premature end of chunked content");
+		}
+		final int ext = line.indexOf(';');
+		final String size = (ext == -1 ? line : line.substring(0, ext)).trim();
+		try {
+			remaining = Long.parseLong(size, 16);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid chunk size: " + size);
+		}
+		if (remaining < 0) {
+			throw new IOException("Invalid chunk size: " + size);
+		}
+		if (remaining == 0) {
+			// Discard any trailer headers
+			String trailer;
+			do {
+				trailer = HttpConnection.readLine(in);
+			} while (trailer != null && trailer.length() > 0);
+			eof = true;
+			
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transport;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This class encodes an HTTP message body with the <code>chunked</code>
+ * transfer coding, so that a body may be streamed without knowing its
+ * length in advance.
+ * <p>
+ * Small writes are gathered into chunks of a fixed size; writes at least as
+ * large as a chunk are passed straight through.  Closing this stream writes
+ * the last chunk, but does not close the underlying connection stream.
+ * 
+ * @author David Grant
+ * @see <a href="http://tools.ietf.org/html/rfc2616#section-3.6.1">RFC 2616 Section 3.6.1</a>
+ */
+final class ChunkedOutputStream extends FilterOutputStream {
+	private static final byte[] CRLF = {'\r', '\n'};
+	private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+	private final byte[] chunk;
+	private int count;
+	private boolean finished;
+	
+	/**
+	 * Creates a new stream which writes chunks of at most <code>chunkSize</code>
+	 * buffered bytes to the provided stream.
+	 * 
+	 * @param out the connection stream.
+	 * @param chunkSize the chunk size.
+	 */
+	ChunkedOutputStream(OutputStream out, int chunkSize) {
+		super(out);
+		this.chunk = new byte[chunkSize];
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		if (count == chunk.length) {
+			flushChunk();
+		}
+		chunk[count++] = (byte) b;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len >= chunk.length) {
+			flushChunk();
+			writeChunk(b, off, len);
+			return;
+		}
+		if (len > chunk.length - count) {
+			flushChunk();
+		}
+		System.arraycopy(b, off, chunk, count, len);
+		count += len;
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		flushChunk();
+		out.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		flushChunk();
+		out.write(LAST_CHUNK);
+		out.flush();
+	}
+	
+	private void flushChunk() throws IOException {
+		if (count > 0) {
+			writeChunk(chunk, 0, count);
+			count = 0;
+		}
+	}
+	
+	private void writeChunk(byte[] b, int off, int len) throws IOException {
+		out.write(Integer.toHexString(len).getBytes("ISO-8859-1"));
+		out.write(CRLF);
+		out.write(b, off, len);
+		out.write(CRLF);
+	}
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transport;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * This class manages a pool of persistent HTTP connections for use by
+ * {@link Transport} instances.
+ * <p>
+ * Connections are pooled per route, where a route is the combination of
+ * scheme, host, port and proxy.  Each route is limited to a maximum number of
+ * concurrent connections, and a caller wishing to use a route which is at its
+ * limit will wait for a connection to be returned to the pool.  Connections 
+ * which have been idle for longer than the idle timeout are closed.
+ * <p>
+ * Example usage:
+ * <pre>
+ * ConnectionManager manager = new ConnectionManager(4, 30, TimeUnit.SECONDS);
+ * Transport trans = Transport.createTransport(Transport.Method.POST, url, Proxy.NO_PROXY, manager);
+ * </pre>
+ * 
+ * @author David Grant
+ */
+public final class ConnectionManager {
+	/**
+	 * The default maximum number of connections per route.
+	 */
+	public static final int DEFAULT_MAX_PER_ROUTE = 8;
+	/**
+	 * The default idle timeout, in milliseconds.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000L;
+	/**
+	 * The maximum number of unread response bytes to discard in order to reuse a connection.
+	 */
+	static final int MAX_DRAIN = 65536;
+	private static final ConnectionManager DEFAULT = new ConnectionManager();
+	private static final HostnameVerifier DEFAULT_VERIFIER = new HostnameVerifier() {
+		public boolean verify(String host, SSLSession session) {
+			// As with HttpsURLConnection, the default verifier is only
+			// consulted if the certificate does not match the host.
+			return StrictHostnameVerifier.INSTANCE.verify(host, session) || HttpsURLConnection.getDefaultHostnameVerifier().verify(host, session);
+		}
+	};
+	private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			final Thread t = new Thread(r, "jscep-connection-evictor");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+	/**
+	 * <code>GET</code> exchanges in flight, shared only between transports 
+	 * which use this manager, and so the same trust settings.
+	 */
+	final ConcurrentMap<String, FutureTask<HttpGetTransport.BufferedResponse>> inFlight = new ConcurrentHashMap<String, FutureTask<HttpGetTransport.BufferedResponse>>();
+	private final int maxPerRoute;
+	private final long idleTimeout;
+	private volatile int connectTimeout = 30000;
+	private volatile int readTimeout = 60000;
+	private volatile long leaseTimeout = 60000L;
+	private volatile boolean chunkedStreaming;
+	private volatile SSLSocketFactory sslSocketFactory;
+	private volatile HostnameVerifier hostnameVerifier;
+	private volatile boolean shutdown;
+	private ScheduledFuture<?> eviction;
+	
+	/**
+	 * Creates a new <code>ConnectionManager</code> with the default limits.
+	 */
+	public ConnectionManager() {
+		this(DEFAULT_MAX_PER_ROUTE, DEFAULT_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Creates a new <code>ConnectionManager</code> with the provided limits.
+	 * 
+	 * @param maxPerRoute the maximum number of connections per route.
+	 * @param idleTimeout the time after which an idle connection is closed.
+	 * @param unit the unit of <code>idleTimeout</code>.
+	 */
+	public ConnectionManager(int maxPerRoute, long idleTimeout, TimeUnit unit) {
+		if (maxPerRoute < 1) {
+			throw new IllegalArgumentException("maxPerRoute must be positive");
+		}
+		this.maxPerRoute = maxPerRoute;
+		this.idleTimeout = unit.toMillis(idleTimeout);
+	}
+	
+	/**
+	 * Returns the <code>ConnectionManager</code> shared by transports created
+	 * without an explicit manager.
+	 * 
+	 * @return the shared connection manager.
+	 */
+	public static ConnectionManager getDefault() {
+		return DEFAULT;
+	}
+	
+	/**
+	 * Returns the maximum number of connections per route.
+	 * 
+	 * @return the maximum number of connections per route.
+	 */
+	public int getMaxPerRoute() {
+		return maxPerRoute;
+	}
+	
+	/**
+	 * Returns the connect timeout in milliseconds.
+	 * 
+	 * @return the connect timeout.
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+	
+	/**
+	 * Sets the connect timeout in milliseconds.  A value of zero
+	 * means wait indefinitely.
+	 * 
+	 * @param connectTimeout the connect timeout.
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+	
+	/**
+	 * Returns the socket read timeout in milliseconds.
+	 * 
+	 * @return the read timeout.
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+	
+	/**
+	 * Sets the socket read timeout in milliseconds.  A value of zero
+	 * means wait indefinitely.
+	 * <p>
+	 * The new value applies to connections opened after this call.
+	 * 
+	 * @param readTimeout the read timeout.
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+	
+	/**
+	 * Sets the maximum time in milliseconds to wait for a connection when
+	 * a route is at its limit.
+	 * 
+	 * @param leaseTimeout the lease timeout.
+	 */
+	public void setLeaseTimeout(long leaseTimeout) {
+		this.leaseTimeout = leaseTimeout;
+	}
+	
+	/**
+	 * Returns <code>true</code> if request bodies are sent with the 
+	 * <code>chunked</code> transfer coding.
+	 * 
+	 * @return <code>true</code> if request bodies are chunked.
+	 */
+	public boolean isChunkedStreaming() {
+		return chunkedStreaming;
+	}
+	
+	/**
+	 * Sets whether request bodies are sent with the <code>chunked</code>
+	 * transfer coding.
+	 * <p>
+	 * By default, a request body is encoded in full before it is sent, and
+	 * its length is given in a <code>Content-Length</code> header, since
+	 * many servers and proxies refuse chunked requests with 
+	 * <code>411 Length Required</code>.  Chunked requests stream the body
+	 * straight to the socket.
+	 * 
+	 * @param chunkedStreaming <code>true</code> if request bodies should be chunked.
+	 */
+	public void setChunkedStreaming(boolean chunkedStreaming) {
+		this.chunkedStreaming = chunkedStreaming;
+	}
+	
+	/**
+	 * Returns the socket factory used for <code>https</code> routes.
+	 * <p>
+	 * If no factory has been set, the default factory of
+	 * {@link HttpsURLConnection} is used.
+	 * 
+	 * @return the SSL socket factory.
+	 */
+	public SSLSocketFactory getSSLSocketFactory() {
+		final SSLSocketFactory factory = sslSocketFactory;
+		if (factory == null) {
+			return HttpsURLConnection.getDefaultSSLSocketFactory();
+		}
+		return factory;
+	}
+	
+	/**
+	 * Sets the socket factory used for <code>https</code> routes.
+	 * 
+	 * @param factory the SSL socket factory.
+	 */
+	public void setSSLSocketFactory(SSLSocketFactory factory) {
+		this.sslSocketFactory = factory;
+	}
+	
+	/**
+	 * Returns the verifier used to check the server host name once the
+	 * handshake of an <code>https</code> connection has completed.
+	 * <p>
+	 * Unless another verifier has been set, the host name must match a
+	 * subject alternative name of the server certificate, as described by
+	 * RFC 2818.  If it does not, the default verifier of 
+	 * {@link HttpsURLConnection} decides, as it would for an 
+	 * <code>HttpsURLConnection</code>.
+	 * 
+	 * @return the host name verifier.
+	 */
+	public HostnameVerifier getHostnameVerifier() {
+		final HostnameVerifier verifier = hostnameVerifier;
+		if (verifier == null) {
+			return DEFAULT_VERIFIER;
+		}
+		return verifier;
+	}
+	
+	/**
+	 * Sets the verifier used to check the server host name of
+	 * <code>https</code> connections.
+	 * 
+	 * @param verifier the host name verifier.
+	 */
+	public void setHostnameVerifier(HostnameVerifier verifier) {
+		if (verifier == null) {
+			throw new IllegalArgumentException("verifier must not be null");
+		}
+		this.hostnameVerifier = verifier;
+	}
+	
+	/**
+	 * Leases a connection for the provided URL, reusing an idle connection
+	 * if one is available.
+	 * 
+	 * @param url the target URL.
+	 * @param proxy the proxy to connect through.
+	 * @param fresh <code>true</code> if an idle connection must not be reused.
+	 * @return a leased connection.
+	 * @throws IOException if no connection could be obtained.
+	 */
+	HttpConnection lease(URL url, Proxy proxy, boolean fresh) throws IOException {
+		if (shutdown) {
+			throw new IOException("Connection manager has been shut down");
+		}
+		final String key = getRouteKey(url, proxy);
+		final Route route = getRoute(key);
+		
+		try {
+			if (route.permits.tryAcquire(leaseTimeout, TimeUnit.MILLISECONDS) == false) {
+				throw new IOException("Timed out waiting for a connection to " + key);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a connection to " + key);
+		}
+		
+		try {
+			HttpConnection conn = null;
+			if (fresh == false) {
+				conn = route.poll(System.currentTimeMillis());
+			}
+			if (conn == null) {
+				conn = HttpConnection.open(key, url, proxy, this);
+			}
+			return conn;
+		} catch (IOException e) {
+			route.permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			route.permits.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns a leased connection to the pool for reuse.
+	 * 
+	 * @param conn the connection to return.
+	 */
+	void release(HttpConnection conn) {
+		final Route route = routes.get(conn.getRoute());
+		if (shutdown || route == null) {
+			conn.close();
+		} else {
+			conn.idle(System.currentTimeMillis());
+			route.offer(conn);
+			scheduleEviction();
+		}
+		if (route != null) {
+			route.permits.release();
+		}
+	}
+	
+	/**
+	 * Closes a leased connection which is unfit for reuse.
+	 * 
+	 * @param conn the connection to close.
+	 */
+	void discard(HttpConnection conn) {
+		conn.close();
+		
+		final Route route = routes.get(conn.getRoute());
+		if (route != null) {
+			route.permits.release();
+		}
+	}
+	
+	/**
+	 * Closes all pooled connections which have exceeded the idle timeout.
+	 * 
+	 * @return the number of connections closed.
+	 */
+	public int closeIdleConnections() {
+		final long now = System.currentTimeMillis();
+		int closed = 0;
+		for (Route route : routes.values()) {
+			closed += route.evict(now);
+		}
+		return closed;
+	}
+	
+	/**
+	 * Returns the number of idle connections currently pooled.
+	 * 
+	 * @return the number of idle connections.
+	 */
+	public int getIdleConnectionCount() {
+		int idle = 0;
+		for (Route route : routes.values()) {
+			idle += route.size();
+		}
+		return idle;
+	}
+	
+	/**
+	 * Shuts down this manager, closing all idle connections.
+	 * <p>
+	 * Connections currently leased are closed when they are returned.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		synchronized (this) {
+			if (eviction != null) {
+				eviction.cancel(false);
+				eviction = null;
+			}
+		}
+		for (Route route : routes.values()) {
+			route.evict(Long.MAX_VALUE);
+		}
+	}
+	
+	private synchronized void scheduleEviction() {
+		if (eviction == null && shutdown == false) {
+			final long period = Math.max(idleTimeout / 2, 1000L);
+			eviction = EVICTOR.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					closeIdleConnections();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private Route getRoute(String key) {
+		Route route = routes.get(key);
+		if (route == null) {
+			final Route newRoute = new Route();
+			route = routes.putIfAbsent(key, newRoute);
+			if (route == null) {
+				route = newRoute;
+			}
+		}
+		return route;
+	}
+	
+	private static String getRouteKey(URL url, Proxy proxy) {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(url.getProtocol().toLowerCase()).append("://");
+		sb.append(url.getHost().toLowerCase()).append(':').append(HttpConnection.getPort(url));
+		if (proxy.type() != Proxy.Type.DIRECT) {
+			sb.append(" via ").append(proxy);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * A route holds the idle connections and connection permits for a
+	 * single destination.
+	 */
+	private final class Route {
+		private final Semaphore permits = new Semaphore(maxPerRoute, true);
+		// Most recently used connections are at the head.
+		private final LinkedList<HttpConnection> idle = new LinkedList<HttpConnection>();
+		
+		HttpConnection poll(long now) {
+			final LinkedList<HttpConnection> expired = new LinkedList<HttpConnection>();
+			HttpConnection conn = null;
+			synchronized (idle) {
+				while (idle.isEmpty() == false) {
+					final HttpConnection candidate = idle.removeFirst();
+					if (now - candidate.getIdleSince() >= idleTimeout || candidate.isClosed()) {
+						expired.add(candidate);
+					} else {
+						conn = candidate;
+						break;
+					}
+				}
+			}
+			for (HttpConnection c : expired) {
+				c.close();
+			}
+			return conn;
+		}
+		
+		void offer(HttpConnection conn) {
+			synchronized (idle) {
+				idle.addFirst(conn);
+			}
+		}
+		
+		int evict(long now) {
+			final LinkedList<HttpConnection> expired = new LinkedList<HttpConnection>();
+			synchronized (idle) {
+				final Iterator<HttpConnection> it = idle.iterator();
+				while (it.hasNext()) {
+					final HttpConnection conn = it.next();
+					if (now == Long.MAX_VALUE || now - conn.getIdleSince() >= idleTimeout || conn.isClosed()) {
+						it.remove();
+						expired.add(conn);
+					}
+				}
+			}
+			for (HttpConnection c : expired) {
+				c.close();
+			}
+			return expired.size();
+		}
+		
+		int size() {
+			synchronized (idle) {
+				return idle.size();
+			}
+		}
+	}
+}
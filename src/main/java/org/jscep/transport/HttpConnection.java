@@ -0,0 +1,568 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.jscep.request.Request;
+import org.jscep.util.BufferPool;
+import org.jscep.util.FixedLengthInputStream;
+
+/**
+ * This class represents a persistent <code>HTTP/1.1</code> connection to a 
+ * single route.
+ * <p>
+ * Instances of this class are leased from, and returned to, a
+ * {@link ConnectionManager}.  A connection carries a single exchange at a time.
+ * 
+ * @author David Grant
+ */
+final class HttpConnection {
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MAX_LINE_LENGTH = 8192;
+	private static final String CRLF = "\r\n";
+	private final String route;
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final boolean absoluteTarget;
+	private long idleSince;
+	private boolean reused;
+	private long bytesSent;
+	private long bytesReceived;
+	// Response state
+	private int status;
+	private String reason;
+	private Map<String, String> headers;
+	private InputStream body;
+	private boolean keepAlive;
+
+	private HttpConnection(String route, Socket socket, boolean absoluteTarget) throws IOException {
+		this.route = route;
+		this.socket = socket;
+		this.in = new BufferedInputStream(new CountingInputStream(socket.getInputStream()), BUFFER_SIZE);
+		this.out = new BufferedOutputStream(new CountingOutputStream(socket.getOutputStream()), BUFFER_SIZE);
+		this.absoluteTarget = absoluteTarget;
+	}
+	
+	/**
+	 * Opens a new connection to the provided URL.
+	 * 
+	 * @param route the route key.
+	 * @param url the target URL.
+	 * @param proxy the proxy to connect through.
+	 * @param manager the manager providing connection settings.
+	 * @return a new connection.
+	 * @throws IOException if the connection cannot be established.
+	 */
+	static HttpConnection open(String route, URL url, Proxy proxy, ConnectionManager manager) throws IOException {
+		final String host = url.getHost();
+		final int port = getPort(url);
+		final boolean secure = url.getProtocol().equalsIgnoreCase("https");
+		final int connectTimeout = manager.getConnectTimeout();
+		boolean tunnel = false;
+		boolean absoluteTarget = false;
+		
+		Socket socket;
+		if (proxy.type() == Proxy.Type.HTTP) {
+			socket = new Socket();
+			try {
+				socket.connect(proxy.address(), connectTimeout);
+			} catch (IOException e) {
+				closeQuietly(socket);
+				throw e;
+			}
+			if (secure) {
+				tunnel = true;
+			} else {
+				absoluteTarget = true;
+			}
+		} else {
+			socket = new Socket(proxy);
+			try {
+				socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			} catch (IOException e) {
+				closeQuietly(socket);
+				throw e;
+			}
+		}
+		
+		try {
+			socket.setSoTimeout(manager.getReadTimeout());
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			if (tunnel) {
+				tunnel(socket, host, port);
+			}
+			if (secure) {
+				final SSLSocketFactory factory = manager.getSSLSocketFactory();
+				final SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, host, port, true);
+				socket = sslSocket;
+				sslSocket.startHandshake();
+				
+				final HostnameVerifier verifier = manager.getHostnameVerifier();
+				if (verifier.verify(host, sslSocket.getSession()) == false) {
+					throw new SSLPeerUnverifiedException("Host name " + host + " does not match the server certificate");
+				}
+			}
+			return new HttpConnection(route, socket, absoluteTarget);
+		} catch (IOException e) {
+			closeQuietly(socket);
+			throw e;
+		}
+	}
+	
+	private static void tunnel(Socket socket, String host, int port) throws IOException {
+		final String authority = host + ":" + port;
+		final StringBuilder sb = new StringBuilder();
+		sb.append("CONNECT ").append(authority).append(" HTTP/1.1").append(CRLF);
+		sb.append("Host: ").append(authority).append(CRLF);
+		sb.append(CRLF);
+		
+		final OutputStream tunnelOut = socket.getOutputStream();
+		tunnelOut.write(sb.toString().getBytes("ISO-8859-1"));
+		tunnelOut.flush();
+		
+		// Read unbuffered, so that no bytes belonging to the tunnel are consumed.
+		final InputStream tunnelIn = socket.getInputStream();
+		final String statusLine = readLine(tunnelIn);
+		if (statusLine == null) {
+			throw new IOException("Proxy closed connection during CONNECT");
+		}
+		String line;
+		do {
+			line = readLine(tunnelIn);
+		} while (line != null && line.length() > 0);
+		
+		final int code = parseStatus(statusLine);
+		if (code != 200) {
+			throw new IOException("Unable to tunnel through proxy: " + statusLine);
+		}
+	}
+	
+	/**
+	 * Returns the route key for this connection.
+	 * 
+	 * @return the route key.
+	 */
+	String getRoute() {
+		return route;
+	}
+	
+	/**
+	 * Returns <code>true</code> if this connection has carried a previous exchange.
+	 * 
+	 * @return <code>true</code> if this connection has been reused.
+	 */
+	boolean isReused() {
+		return reused;
+	}
+	
+	/**
+	 * Returns the number of bytes written to the socket so far.
+	 * 
+	 * @return the number of bytes sent.
+	 */
+	long getBytesSent() {
+		return bytesSent;
+	}
+	
+	/**
+	 * Returns the number of bytes read from the socket so far.
+	 * 
+	 * @return the number of bytes received.
+	 */
+	long getBytesReceived() {
+		return bytesReceived;
+	}
+	
+	long getIdleSince() {
+		return idleSince;
+	}
+	
+	/**
+	 * Marks this connection as idle, and resets the exchange state.
+	 * 
+	 * @param now the current time in milliseconds.
+	 */
+	void idle(long now) {
+		idleSince = now;
+		reused = true;
+		status = 0;
+		reason = null;
+		headers = null;
+		body = null;
+		keepAlive = false;
+	}
+	
+	/**
+	 * Returns <code>true</code> if the underlying socket is no longer usable.
+	 * 
+	 * @return <code>true</code> if the socket has been closed.
+	 */
+	boolean isClosed() {
+		return socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown();
+	}
+	
+	/**
+	 * Writes a request to this connection.
+	 * <p>
+	 * If the request has a body, it is sent with a <code>Content-Length</code>
+	 * header unless <code>chunked</code> is set, in which case it is streamed 
+	 * straight to the socket using the <code>chunked</code> transfer coding,
+	 * so that the body need not be buffered in order to compute its length.
+	 * 
+	 * @param method the HTTP method.
+	 * @param url the target URL.
+	 * @param contentType the media type of the body, or <code>null</code>.
+	 * @param content the request which writes the body, or <code>null</code> if there is no body.
+	 * @param chunked <code>true</code> if the body should be chunked.
+	 * @throws IOException if any I/O error occurs.
+	 */
+	void writeRequest(String method, URL url, String contentType, Request<?> content, boolean chunked) throws IOException {
+		if (content == null) {
+			out.write(getRequestHead(method, url, absoluteTarget, null, -1));
+		} else if (chunked) {
+			out.write(getRequestHead(method, url, absoluteTarget, contentType, -1));
+			final OutputStream chunkedOut = new ChunkedOutputStream(out, BUFFER_SIZE);
+			content.write(chunkedOut);
+			chunkedOut.close();
+		} else {
+			final ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+			content.write(buffer);
+			out.write(getRequestHead(method, url, absoluteTarget, contentType, buffer.size()));
+			buffer.writeTo(out);
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Returns the encoded request line and headers for a request.
+	 * 
+	 * @param method the HTTP method.
+	 * @param url the target URL.
+	 * @param absoluteTarget <code>true</code> if the request is sent to a proxy.
+	 * @param contentType the media type of the body, or <code>null</code> if there is no body.
+	 * @param contentLength the length of the body, or <code>-1</code> if the body is chunked.
+	 * @return the request head.
+	 * @throws IOException if any I/O error occurs.
+	 */
+	static byte[] getRequestHead(String method, URL url, boolean absoluteTarget, String contentType, long contentLength) throws IOException {
+		final StringBuilder sb = new StringBuilder(256);
+		sb.append(method).append(' ').append(getTarget(url, absoluteTarget)).append(" HTTP/1.1").append(CRLF);
+		sb.append("Host: ").append(getAuthority(url)).append(CRLF);
+		sb.append("Accept: */*").append(CRLF);
+		if (contentType != null) {
+			sb.append("Content-Type: ").append(contentType).append(CRLF);
+			if (contentLength >= 0) {
+				sb.append("Content-Length: ").append(contentLength).append(CRLF);
+			} else {
+				sb.append("Transfer-Encoding: chunked").append(CRLF);
+			}
+		}
+		sb.append(CRLF);
+		
+		return sb.toString().getBytes("ISO-8859-1");
+	}
+	
+	/**
+	 * Reads the response status line and headers from this connection.
+	 * <p>
+	 * Once this method returns, the body is available from {@link #getResponseBody()}.
+	 * 
+	 * @throws IOException if any I/O error occurs.
+	 */
+	void readResponse() throws IOException {
+		String statusLine;
+		do {
+			statusLine = readLine(in);
+			if (statusLine == null) {
+				throw new IOException("Connection closed by server");
+			}
+			status = parseStatus(statusLine);
+			headers = readHeaders();
+			// Discard any interim 1xx responses
+		} while (status >= 100 && status < 200);
+		
+		final int reasonIndex = statusLine.indexOf(' ', statusLine.indexOf(' ') + 1);
+		reason = reasonIndex == -1 ? "" : statusLine.substring(reasonIndex + 1);
+		
+		final String connection = headers.get("connection");
+		if (statusLine.startsWith("HTTP/1.0")) {
+			keepAlive = "keep-alive".equalsIgnoreCase(connection);
+		} else {
+			keepAlive = "close".equalsIgnoreCase(connection) == false;
+		}
+		
+		final String transferEncoding = headers.get("transfer-encoding");
+		final String contentLength = headers.get("content-length");
+		if (status == 204 || status == 304) {
+			body = new FixedLengthInputStream(in, 0);
+		} else if (transferEncoding != null && transferEncoding.equalsIgnoreCase("identity") == false) {
+			body = new ChunkedInputStream(in);
+		} else if (contentLength != null) {
+			long length;
+			try {
+				length = Long.parseLong(contentLength.trim());
+			} catch (NumberFormatException e) {
+				length = -1;
+			}
+			if (length < 0) {
+				throw new IOException("Invalid Content-Length: " + contentLength);
+			}
+			body = new FixedLengthInputStream(in, length);
+		} else {
+			// The body is delimited by the server closing the connection.
+			body = in;
+			keepAlive = false;
+		}
+	}
+	
+	private Map<String, String> readHeaders() throws IOException {
+		final Map<String, String> map = new HashMap<String, String>();
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			final int colon = line.indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+			final String name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+			final String value = line.substring(colon + 1).trim();
+			final String previous = map.get(name);
+			if (previous == null) {
+				map.put(name, value);
+			} else {
+				map.put(name, previous + ", " + value);
+			}
+		}
+		return map;
+	}
+
+	int getResponseCode() {
+		return status;
+	}
+	
+	String getResponseMessage() {
+		return reason;
+	}
+	
+	String getContentType() {
+		return headers.get("content-type");
+	}
+	
+	InputStream getResponseBody() {
+		return body;
+	}
+	
+	/**
+	 * Reads and discards what is left of the response body.
+	 * 
+	 * @param limit the maximum number of bytes to discard.
+	 * @return <code>true</code> if the body was consumed, and the connection
+	 * 	may be reused.
+	 */
+	boolean drainResponseBody(int limit) {
+		if (keepAlive == false || body == null) {
+			return false;
+		}
+		final BufferPool pool = BufferPool.getDefault();
+		final byte[] buf = pool.acquire();
+		int total = 0;
+		try {
+			int n;
+			while ((n = body.read(buf)) != -1) {
+				total += n;
+				if (total > limit) {
+					return false;
+				}
+			}
+		} catch (IOException e) {
+			return false;
+		} finally {
+			pool.release(buf);
+		}
+		return true;
+	}
+	
+	/**
+	 * Closes the underlying socket.
+	 */
+	void close() {
+		closeQuietly(socket);
+	}
+	
+	private static String getTarget(URL url, boolean absoluteTarget) {
+		if (absoluteTarget) {
+			return url.getProtocol() + "://" + getAuthority(url) + getPathAndQuery(url);
+		}
+		return getPathAndQuery(url);
+	}
+	
+	private static String getPathAndQuery(URL url) {
+		final String path = url.getPath();
+		final String query = url.getQuery();
+		final StringBuilder sb = new StringBuilder();
+		sb.append(path.length() == 0 ? "/" : path);
+		if (query != null) {
+			sb.append('?').append(query);
+		}
+		return sb.toString();
+	}
+	
+	private static String getAuthority(URL url) {
+		if (url.getPort() == -1 || url.getPort() == url.getDefaultPort()) {
+			return url.getHost();
+		}
+		return url.getHost() + ":" + url.getPort();
+	}
+	
+	static int getPort(URL url) {
+		return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+	}
+	
+	private static int parseStatus(String statusLine) throws IOException {
+		if (statusLine.startsWith("HTTP/") == false) {
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+		final int start = statusLine.indexOf(' ');
+		if (start == -1 || statusLine.length() < start + 4) {
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+		try {
+			return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+	}
+	
+	/**
+	 * Reads a single CRLF- or LF-terminated line from the provided stream.
+	 * 
+	 * @param in the stream to read from.
+	 * @return the line, or <code>null</code> if the stream ended before any byte was read.
+	 * @throws IOException if any I/O error occurs.
+	 */
+	static String readLine(InputStream in) throws IOException {
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				break;
+			}
+			if (line.size() == MAX_LINE_LENGTH) {
+				throw new IOException("Line too long");
+			}
+			line.write(b);
+		}
+		if (b == -1 && line.size() == 0) {
+			return null;
+		}
+		final String s = line.toString("ISO-8859-1");
+		if (s.endsWith("\r")) {
+			return s.substring(0, s.length() - 1);
+		}
+		return s;
+	}
+	
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing more we can do
+		}
+	}
+	
+	/**
+	 * Counts the bytes read from the socket.
+	 */
+	private final class CountingInputStream extends FilterInputStream {
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			final int b = in.read();
+			if (b >= 0) {
+				bytesReceived++;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			final int n = in.read(b, off, len);
+			if (n > 0) {
+				bytesReceived += n;
+			}
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			final long skipped = in.skip(n);
+			bytesReceived += skipped;
+			
+			return skipped;
+		}
+	}
+	
+	/**
+	 * Counts the bytes written to the socket.
+	 */
+	private final class CountingOutputStream extends FilterOutputStream {
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesSent++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesSent += len;
+		}
+	}
+}
@@ -22,50 +22,127 @@
  */
 package org.jscep.transport;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.Proxy;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.util.logging.Logger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import org.jscep.content.ScepContentHandler;
 import org.jscep.request.Operation;
 import org.jscep.request.Request;
-import org.jscep.util.LoggingUtil;
+import org.jscep.util.StreamUtil;
+import org.jscep.util.Tracer;
 
 /**
  * Transport representing the <code>HTTP GET</code> method
+ * <p>
+ * Identical requests which are sent at the same time, from any number of
+ * threads and transports which share a {@link ConnectionManager}, share a
+ * single exchange with the server.  The response body is buffered, and each
+ * request parses it with its own content handler.  Transports with 
+ * different managers never share an exchange, as their TLS trust settings
+ * may differ.  <code>PKIOperation</code> requests are never shared, as
+ * each one is unique.
  * 
  * @author David Grant
  */
 public class HttpGetTransport extends Transport {
-	private static Logger LOGGER = LoggingUtil.getLogger(HttpGetTransport.class);
+	private static final Tracer TRACER = Tracer.getTracer(HttpGetTransport.class);
 
-	HttpGetTransport(URL url) {
-		super(url);
+	HttpGetTransport(URL url, Proxy proxy, ConnectionManager manager) {
+		super(url, proxy, manager);
 	}
 
 	@Override
 	public <T> T sendRequest(Request<T> msg) throws IOException {
-		LOGGER.entering(getClass().getName(), "sendMessage", msg);
+		TRACER.entering("sendMessage", msg);
 		
 		final URL url = getUrl(msg.getOperation(), msg.getMessage());
-		final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-
-		if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
-			IOException ioe = new IOException(conn.getResponseCode() + " " + conn.getResponseMessage());
-			
-			LOGGER.throwing(getClass().getName(), "sendMessage", ioe);
+		final T response;
+		try {
+			if (msg.getOperation() == Operation.PKIOperation) {
+				response = exchange("GET", url, msg, false);
+			} else {
+				response = coalesce(url, msg);
+			}
+		} catch (IOException ioe) {
+			TRACER.throwing("sendMessage", ioe);
 			throw ioe;
 		}
-
-		final T response = msg.getContentHandler().getContent(conn.getInputStream(), conn.getContentType());
 		
-		LOGGER.exiting(getClass().getName(), "sendMessage", response);
+		TRACER.exiting("sendMessage", response);
 		return response;
 	}
 
+	@Override
+	public <T> Future<T> sendRequestAsync(Request<T> msg, ResponseCallback<T> callback) {
+		TRACER.entering("sendRequestAsync", msg, callback);
+		
+		Future<T> future;
+		try {
+			final URL url = getUrl(msg.getOperation(), msg.getMessage());
+			future = exchangeAsync("GET", url, msg, false, callback);
+		} catch (IOException ioe) {
+			TRACER.throwing("sendRequestAsync", ioe);
+			future = failed(msg, callback, ioe);
+		}
+		
+		TRACER.exiting("sendRequestAsync", future);
+		return future;
+	}
+
+	/**
+	 * Sends the request, unless an identical request is already in flight, 
+	 * and parses the shared response.
+	 */
+	private <T> T coalesce(final URL target, Request<T> msg) throws IOException {
+		final ConcurrentMap<String, FutureTask<BufferedResponse>> inFlight = manager.inFlight;
+		final String key = proxy + " " + target.toExternalForm();
+		FutureTask<BufferedResponse> task = inFlight.get(key);
+		if (task == null) {
+			final FutureTask<BufferedResponse> created = new FutureTask<BufferedResponse>(new Callable<BufferedResponse>() {
+				public BufferedResponse call() throws IOException {
+					return exchange("GET", target, new BufferedRequest(), false);
+				}
+			});
+			task = inFlight.putIfAbsent(key, created);
+			if (task == null) {
+				task = created;
+				try {
+					created.run();
+				} finally {
+					inFlight.remove(key, created);
+				}
+			}
+		}
+		
+		final BufferedResponse res;
+		try {
+			res = task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				// Give each caller its own stack trace.
+				final IOException ioe = new IOException(e.getCause().getMessage());
+				ioe.initCause(e.getCause());
+				throw ioe;
+			}
+			throw new IOException(e.getCause());
+		}
+		return msg.getContentHandler().getContent(new ByteArrayInputStream(res.body), res.contentType);
+	}
+
 	private URL getUrl(Operation op, String message) throws MalformedURLException, UnsupportedEncodingException {
 		return new URL(getUrl(op).toExternalForm() + "&message=" + URLEncoder.encode(message, "UTF-8"));
 	}
@@ -77,4 +154,37 @@ public class HttpGetTransport extends Transport {
 	public String toString() {
 		return "[GET] " + url;
 	}
+	
+	/**
+	 * A response body, read in full, and its media type.
+	 */
+	static final class BufferedResponse {
+		final byte[] body;
+		final String contentType;
+		
+		BufferedResponse(byte[] body, String contentType) {
+			this.body = body;
+			this.contentType = contentType;
+		}
+	}
+	
+	/**
+	 * A request which buffers the response for its sharers.
+	 * <p>
+	 * The target URL already holds the operation and message.
+	 */
+	private static final class BufferedRequest extends Request<BufferedResponse> {
+		BufferedRequest() {
+			super(null, new ScepContentHandler<BufferedResponse>() {
+				public BufferedResponse getContent(InputStream in, String mimeType) throws IOException {
+					return new BufferedResponse(StreamUtil.readFully(in), mimeType);
+				}
+			});
+		}
+		
+		@Override
+		public String getMessage() {
+			return "";
+		}
+	}
 }
@@ -22,17 +22,15 @@
  */
 package org.jscep.transport;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.Proxy;
 import java.net.URL;
-import java.util.logging.Logger;
+import java.util.concurrent.Future;
 
-import org.jscep.request.PKCSReq;
+import org.jscep.request.Operation;
 import org.jscep.request.Request;
-import org.jscep.util.LoggingUtil;
+import org.jscep.util.Tracer;
 
 
 /**
@@ -41,49 +39,64 @@ import org.jscep.util.LoggingUtil;
  * @author David Grant
  */
 public class HttpPostTransport extends Transport {
-	private static Logger LOGGER = LoggingUtil.getLogger(HttpPostTransport.class);
+	private static final Tracer TRACER = Tracer.getTracer(HttpPostTransport.class);
 	
-	HttpPostTransport(URL url) {
-		super(url);
+	HttpPostTransport(URL url, Proxy proxy, ConnectionManager manager) {
+		super(url, proxy, manager);
 	}
 	
 	@Override
 	public <T> T sendRequest(Request<T> msg) throws IOException, MalformedURLException {
-		LOGGER.entering(getClass().getName(), "sendMessage", msg);
+		TRACER.entering("sendMessage", msg);
 		
-		if (msg instanceof PKCSReq == false) {
+		if (msg.getOperation() != Operation.PKIOperation) {
 			// Appendix F
 			//
 			// This is allowed for any SCEP message except GetCACert, 
 			// GetNextCACert, or GetCACaps.
 			IllegalArgumentException e = new IllegalArgumentException("POST transport may not be used for " + msg.getOperation() + " messages.");
-			LOGGER.throwing(getClass().getName(), "sendMessage", e);
+			TRACER.throwing("sendMessage", e);
 			
 			throw e;
 		}
 		
         final URL url = getUrl(msg.getOperation());
-        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setDoOutput(true);
-        
-    	final OutputStream stream = new BufferedOutputStream(conn.getOutputStream());
-    	msg.write(stream);
-        stream.close();
-
-        if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
-        	IOException ioe = new IOException(conn.getResponseCode() + " " + conn.getResponseMessage());
-        	
-        	LOGGER.throwing(getClass().getName(), "sendMessage", ioe);
+        final T response;
+        try {
+        	response = exchange("POST", url, msg, true);
+        } catch (IOException ioe) {
+        	TRACER.throwing("sendMessage", ioe);
         	throw ioe;
         }
         
-        T response  = msg.getContentHandler().getContent(conn.getInputStream(), conn.getContentType());
-        
-        LOGGER.exiting(getClass().getName(), "sendMessage", response);
+        TRACER.exiting("sendMessage", response);
         return response;
 	}
 	
+	@Override
+	public <T> Future<T> sendRequestAsync(Request<T> msg, ResponseCallback<T> callback) {
+		TRACER.entering("sendRequestAsync", msg, callback);
+		
+		if (msg.getOperation() != Operation.PKIOperation) {
+			IllegalArgumentException e = new IllegalArgumentException("POST transport may not be used for " + msg.getOperation() + " messages.");
+			TRACER.throwing("sendRequestAsync", e);
+			
+			throw e;
+		}
+		
+		Future<T> future;
+		try {
+			final URL url = getUrl(msg.getOperation());
+			future = exchangeAsync("POST", url, msg, true, callback);
+		} catch (IOException ioe) {
+			TRACER.throwing("sendRequestAsync", ioe);
+			future = failed(msg, callback, ioe);
+		}
+		
+		TRACER.exiting("sendRequestAsync", future);
+		return future;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * This class incrementally parses an <code>HTTP/1.1</code> response from
+ * the bytes read by a non-blocking channel.
+ * 
+ * @author David Grant
+ */
+final class HttpResponseParser {
+	private static final int MAX_LINE_LENGTH = 8192;
+	private static final int MAX_INITIAL_CAPACITY = 1024 * 1024;
+	private static final int STATUS_LINE = 0;
+	private static final int HEADER_LINE = 1;
+	private static final int BODY_FIXED = 2;
+	private static final int CHUNK_SIZE = 3;
+	private static final int CHUNK_DATA = 4;
+	private static final int CHUNK_END = 5;
+	private static final int TRAILER = 6;
+	private static final int BODY_EOF = 7;
+	private static final int DONE = 8;
+	private final StringBuilder line = new StringBuilder(64);
+	private int state;
+	private int status;
+	private String reason;
+	private boolean http10;
+	private String connection;
+	private String contentType;
+	private String transferEncoding;
+	private long contentLength;
+	private long remaining;
+	private boolean keepAlive;
+	private byte[] body;
+	private int length;
+	
+	HttpResponseParser() {
+		reset();
+	}
+	
+	/**
+	 * Prepares this parser for a new response.
+	 */
+	void reset() {
+		state = STATUS_LINE;
+		status = 0;
+		reason = null;
+		resetHeaders();
+		keepAlive = false;
+		body = null;
+		length = 0;
+		line.setLength(0);
+	}
+	
+	private void resetHeaders() {
+		http10 = false;
+		connection = null;
+		contentType = null;
+		transferEncoding = null;
+		contentLength = -1;
+	}
+	
+	/**
+	 * Consumes bytes from the provided buffer.
+	 * 
+	 * @param buf the bytes read from the channel.
+	 * @return <code>true</code> if the response is complete.
+	 * @throws IOException if the response is malformed.
+	 */
+	boolean feed(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining() && state != DONE) {
+			switch (state) {
+			case STATUS_LINE:
+				if (readLine(buf)) {
+					parseStatusLine();
+				}
+				break;
+			case HEADER_LINE:
+				if (readLine(buf)) {
+					parseHeaderLine();
+				}
+				break;
+			case BODY_FIXED:
+				copy(buf);
+				if (remaining == 0) {
+					state = DONE;
+				}
+				break;
+			case CHUNK_SIZE:
+				if (readLine(buf)) {
+					parseChunkSize();
+				}
+				break;
+			case CHUNK_DATA:
+				copy(buf);
+				if (remaining == 0) {
+					state = CHUNK_END;
+				}
+				break;
+			case CHUNK_END:
+				if (readLine(buf)) {
+					takeLine();
+					state = CHUNK_SIZE;
+				}
+				break;
+			case TRAILER:
+				if (readLine(buf) && takeLine().length() == 0) {
+					state = DONE;
+				}
+				break;
+			case BODY_EOF:
+				remaining = buf.remaining();
+				copy(buf);
+				break;
+			default:
+				throw new IllegalStateException();
+			}
+		}
+		return state == DONE;
+	}
+	
+	/**
+	 * Signals that the channel has reached end-of-stream.
+	 * 
+	 * @return <code>true</code> if the response is complete.
+	 */
+	boolean eof() {
+		if (state == BODY_EOF) {
+			state = DONE;
+		}
+		return state == DONE;
+	}
+	
+	boolean hasStatus() {
+		return status != 0;
+	}
+	
+	int getStatus() {
+		return status;
+	}
+	
+	String getReason() {
+		return reason;
+	}
+	
+	String getContentType() {
+		return contentType;
+	}
+	
+	boolean isKeepAlive() {
+		return keepAlive;
+	}
+	
+	byte[] getBody() {
+		return body;
+	}
+	
+	int getLength() {
+		return length;
+	}
+	
+	private void parseStatusLine() throws IOException {
+		final String statusLine = takeLine();
+		if (statusLine.startsWith("HTTP/") == false) {
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+		final int start = statusLine.indexOf(' ');
+		if (start == -1 || statusLine.length() < start + 4) {
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+		try {
+			status = Integer.parseInt(statusLine.substring(start + 1, start + 4));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid status line: " + statusLine);
+		}
+		final int reasonIndex = statusLine.indexOf(' ', start + 1);
+		reason = reasonIndex == -1 ? "" : statusLine.substring(reasonIndex + 1);
+		resetHeaders();
+		http10 = statusLine.startsWith("HTTP/1.0");
+		state = HEADER_LINE;
+	}
+	
+	private void parseHeaderLine() throws IOException {
+		final String header = takeLine();
+		if (header.length() > 0) {
+			final int colon = header.indexOf(':');
+			if (colon > 0) {
+				final String name = header.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+				final String value = header.substring(colon + 1).trim();
+				if (name.equals("connection")) {
+					connection = value;
+				} else if (name.equals("content-type")) {
+					contentType = value;
+				} else if (name.equals("transfer-encoding")) {
+					transferEncoding = value;
+				} else if (name.equals("content-length")) {
+					try {
+						contentLength = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						throw new IOException("Invalid Content-Length: " + value);
+					}
+				}
+			}
+			return;
+		}
+		// End of headers
+		if (status >= 100 && status < 200) {
+			// Discard any interim 1xx responses
+			state = STATUS_LINE;
+			return;
+		}
+		if (http10) {
+			keepAlive = "keep-alive".equalsIgnoreCase(connection);
+		} else {
+			keepAlive = "close".equalsIgnoreCase(connection) == false;
+		}
+		if (status == 204 || status == 304) {
+			body = new byte[0];
+			state = DONE;
+		} else if (transferEncoding != null && transferEncoding.equalsIgnoreCase("identity") == false) {
+			body = new byte[4096];
+			state = CHUNK_SIZE;
+		} else if (contentLength >= 0) {
+			body = new byte[(int) Math.min(contentLength, MAX_INITIAL_CAPACITY)];
+			remaining = contentLength;
+			state = contentLength == 0 ? DONE : BODY_FIXED;
+		} else {
+			// The body is delimited by the server closing the connection.
+			body = new byte[4096];
+			keepAlive = false;
+			state = BODY_EOF;
+		}
+	}
+	
+	private void parseChunkSize() throws IOException {
+		final String chunk = takeLine();
+		final int ext = chunk.indexOf(';');
+		final String size = (ext == -1 ? chunk : chunk.substring(0, ext)).trim();
+		try {
+			remaining = Long.parseLong(size, 16);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid chunk size: " + size);
+		}
+		if (remaining < 0) {
+			throw new IOException("Invalid chunk size: " + size);
+		}
+		state = remaining == 0 ? TRAILER : CHUNK_DATA;
+	}
+	
+	private void copy(ByteBuffer buf) throws IOException {
+		final int n = (int) Math.min(buf.remaining(), remaining);
+		if (length + n > body.length) {
+			if ((long) length + n > Integer.MAX_VALUE - 8) {
+				throw new IOException("Response too large");
+			}
+			final byte[] grown = new byte[Math.max(length + n, body.length * 2)];
+			System.arraycopy(body, 0, grown, 0, length);
+			body = grown;
+		}
+		buf.get(body, length, n);
+		length += n;
+		remaining -= n;
+	}
+	
+	private boolean readLine(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			final char c = (char) (buf.get() & 0xFF);
+			if (c == '\n') {
+				final int last = line.length() - 1;
+				if (last >= 0 && line.charAt(last) == '\r') {
+					line.setLength(last);
+				}
+				return true;
+			}
+			if (line.length() == MAX_LINE_LENGTH) {
+				throw new IOException("Line too long");
+			}
+			line.append(c);
+		}
+		return false;
+	}
+	
+	private String takeLine() {
+		final String s = line.toString();
+		line.setLength(0);
+		
+		return s;
+	}
+}
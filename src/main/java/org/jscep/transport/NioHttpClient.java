@@ -0,0 +1,671 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jscep.content.ScepContentHandler;
+import org.jscep.request.Request;
+import org.jscep.util.LoggingUtil;
+
+/**
+ * This class is a non-blocking HTTP client used for asynchronous requests.
+ * <p>
+ * A single selector thread drives every connection, so the number of requests 
+ * in flight is not bounded by the number of threads.  Once a response has been
+ * received in full, it is handed to an executor which runs the request's
+ * content handler and notifies the caller.
+ * <p>
+ * Connections are kept alive and pooled per route.  Each route is limited to a
+ * maximum number of concurrent connections, and requests in excess of the 
+ * limit are queued until a connection becomes free.
+ * <p>
+ * Only <code>http</code> URLs are supported, either directly or through an
+ * HTTP proxy.  SCEP messages are protected by CMS, so the protocol does not 
+ * require TLS; use {@link Transport#sendRequest(org.jscep.request.Request)}
+ * for <code>https</code> servers.
+ * 
+ * @author David Grant
+ * @see Transport#sendRequestAsync(org.jscep.request.Request, ResponseCallback)
+ */
+public final class NioHttpClient {
+	private static Logger LOGGER = LoggingUtil.getLogger(NioHttpClient.class);
+	/**
+	 * The default maximum number of connections per route.
+	 */
+	public static final int DEFAULT_MAX_PER_ROUTE = 64;
+	/**
+	 * The default idle timeout, in milliseconds.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000L;
+	private static final long SWEEP_INTERVAL = 1000L;
+	private static Executor DEFAULT_EXECUTOR;
+	private static NioHttpClient DEFAULT;
+	private final Selector selector;
+	private final Executor executor;
+	private final int maxPerRoute;
+	private final long idleTimeout;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16384);
+	// The following are confined to the selector thread.
+	private final Map<String, Route> routes = new HashMap<String, Route>();
+	private long lastSweep;
+	private volatile long timeout = 60000L;
+	private volatile boolean shutdown;
+	
+	/**
+	 * Creates a new client with the default limits.
+	 * 
+	 * @param executor the executor used to parse responses and run callbacks.
+	 * @throws IOException if the selector cannot be opened.
+	 */
+	public NioHttpClient(Executor executor) throws IOException {
+		this(executor, DEFAULT_MAX_PER_ROUTE, DEFAULT_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Creates a new client with the provided limits.
+	 * 
+	 * @param executor the executor used to parse responses and run callbacks.
+	 * @param maxPerRoute the maximum number of connections per route.
+	 * @param idleTimeout the time after which an idle connection is closed.
+	 * @param unit the unit of <code>idleTimeout</code>.
+	 * @throws IOException if the selector cannot be opened.
+	 */
+	public NioHttpClient(Executor executor, int maxPerRoute, long idleTimeout, TimeUnit unit) throws IOException {
+		if (maxPerRoute < 1) {
+			throw new IllegalArgumentException("maxPerRoute must be positive");
+		}
+		this.executor = executor;
+		this.maxPerRoute = maxPerRoute;
+		this.idleTimeout = unit.toMillis(idleTimeout);
+		this.selector = Selector.open();
+		
+		final Thread reactor = new Thread(new Runnable() {
+			public void run() {
+				NioHttpClient.this.run();
+			}
+		}, "jscep-nio-reactor");
+		reactor.setDaemon(true);
+		reactor.start();
+	}
+	
+	/**
+	 * Returns the client shared by transports without an explicit client.
+	 * <p>
+	 * The shared client parses responses on a fixed pool of daemon threads,
+	 * one per available processor.  If the shared client has been shut 
+	 * down, for example because its reactor thread failed, a new client is
+	 * created on the same pool.
+	 * 
+	 * @return the shared client.
+	 * @throws IOException if the client cannot be started.
+	 */
+	public static synchronized NioHttpClient getDefault() throws IOException {
+		if (DEFAULT_EXECUTOR == null) {
+			final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+			DEFAULT_EXECUTOR = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private int count;
+				
+				public synchronized Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "jscep-nio-worker-" + (++count));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		if (DEFAULT == null || DEFAULT.isShutdown()) {
+			DEFAULT = new NioHttpClient(DEFAULT_EXECUTOR);
+		}
+		return DEFAULT;
+	}
+	
+	/**
+	 * Sets the maximum time in milliseconds allowed for an exchange, from
+	 * connecting to receiving the last byte of the response.
+	 * <p>
+	 * An exchange which is queued because its route has no free connection
+	 * is failed if it has not been started within the same time.
+	 * 
+	 * @param timeout the exchange timeout.
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Shuts down this client.
+	 * <p>
+	 * All connections are closed, and requests which have not completed
+	 * are failed.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		selector.wakeup();
+	}
+	
+	/**
+	 * Returns <code>true</code> if this client has been shut down, either
+	 * explicitly or because its reactor thread failed.
+	 * 
+	 * @return <code>true</code> if this client has been shut down.
+	 */
+	public boolean isShutdown() {
+		return shutdown;
+	}
+	
+	/**
+	 * Sends a request asynchronously.
+	 * 
+	 * @param <T> the response type.
+	 * @param method the HTTP method.
+	 * @param url the target URL.
+	 * @param proxy the proxy to connect through.
+	 * @param contentType the media type of the body.
+	 * @param content the request which writes the body, or <code>null</code> if there is no body.
+	 * @param handler the handler for the response body.
+	 * @param callback the callback to notify, or <code>null</code>.
+	 * @return the pending response.
+	 */
+	<T> Future<T> send(String method, URL url, Proxy proxy, String contentType, Request<?> content, ScepContentHandler<T> handler, ResponseCallback<T> callback) {
+		final ResponseFuture<T> future = new ResponseFuture<T>(handler, callback);
+		try {
+			if (url.getProtocol().equalsIgnoreCase("http") == false) {
+				throw new IOException("Asynchronous transport does not support " + url.getProtocol());
+			}
+			final InetSocketAddress address;
+			final boolean absoluteTarget;
+			if (proxy.type() == Proxy.Type.DIRECT) {
+				address = new InetSocketAddress(url.getHost(), HttpConnection.getPort(url));
+				absoluteTarget = false;
+			} else if (proxy.type() == Proxy.Type.HTTP) {
+				final InetSocketAddress proxyAddress = (InetSocketAddress) proxy.address();
+				if (proxyAddress.isUnresolved()) {
+					address = new InetSocketAddress(proxyAddress.getHostName(), proxyAddress.getPort());
+				} else {
+					address = proxyAddress;
+				}
+				absoluteTarget = true;
+			} else {
+				throw new IOException("Asynchronous transport does not support " + proxy.type() + " proxies");
+			}
+			if (address.isUnresolved()) {
+				throw new UnknownHostException(address.getHostName());
+			}
+			
+			// The whole request is buffered before it is written, so the body
+			// length is known and the request is never chunked.
+			final ByteBuffer request;
+			if (content == null) {
+				request = ByteBuffer.wrap(HttpConnection.getRequestHead(method, url, absoluteTarget, null, -1));
+			} else {
+				final RequestBuffer body = new RequestBuffer();
+				content.write(body);
+				final byte[] head = HttpConnection.getRequestHead(method, url, absoluteTarget, contentType, body.size());
+				request = ByteBuffer.allocate(head.length + body.size());
+				request.put(head);
+				request.put(body.toByteBuffer());
+				request.flip();
+			}
+			
+			final Exchange exchange = new Exchange(address.toString(), address, request, future);
+			submit(new Runnable() {
+				public void run() {
+					dispatch(exchange);
+				}
+			});
+		} catch (IOException e) {
+			future.fail(e);
+		}
+		return future;
+	}
+	
+	private void submit(Runnable task) throws IOException {
+		if (shutdown) {
+			throw new IOException("Client has been shut down");
+		}
+		tasks.add(task);
+		// The reactor sets the flag before draining the queue for the last
+		// time, so a task it may have missed is still in the queue.
+		if (shutdown && tasks.remove(task)) {
+			throw new IOException("Client has been shut down");
+		}
+		selector.wakeup();
+	}
+	
+	private void run() {
+		try {
+			while (shutdown == false) {
+				selector.select(SWEEP_INTERVAL);
+				
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					handle(key);
+				}
+				
+				final long now = System.currentTimeMillis();
+				if (now - lastSweep >= SWEEP_INTERVAL) {
+					sweep(now);
+					lastSweep = now;
+				}
+			}
+		} catch (Throwable t) {
+			LOGGER.log(Level.SEVERE, "nio.reactor.failure", t);
+		} finally {
+			shutdown = true;
+			closeAll();
+		}
+	}
+	
+	private void handle(SelectionKey key) {
+		final Connection c = (Connection) key.attachment();
+		try {
+			if (key.isValid() == false) {
+				return;
+			}
+			if (key.isConnectable()) {
+				if (c.channel.finishConnect()) {
+					key.interestOps(c.exchange == null ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+				}
+			} else if (key.isWritable()) {
+				final int n = c.channel.write(c.out);
+				if (c.exchange != null) {
+					c.exchange.bytesSent += n;
+				}
+				if (c.out.hasRemaining() == false) {
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			} else if (key.isReadable()) {
+				read(c);
+			}
+		} catch (IOException e) {
+			failure(c, e);
+		}
+	}
+	
+	private void read(Connection c) throws IOException {
+		readBuffer.clear();
+		final int n = c.channel.read(readBuffer);
+		if (n == -1) {
+			if (c.exchange == null) {
+				// The server closed an idle connection
+				close(c);
+				dispatchNext(c.route);
+			} else if (c.parser.eof()) {
+				complete(c);
+			} else {
+				failure(c, new IOException("Connection closed by server"));
+			}
+			return;
+		}
+		if (c.exchange == null) {
+			// Unsolicited data on an idle connection
+			close(c);
+			dispatchNext(c.route);
+			return;
+		}
+		c.exchange.bytesReceived += n;
+		readBuffer.flip();
+		if (c.parser.feed(readBuffer)) {
+			complete(c);
+		}
+	}
+	
+	private void dispatch(Exchange exchange) {
+		if (exchange.future.isDone()) {
+			return;
+		}
+		if (shutdown) {
+			deliverFailure(exchange, new IOException("Client has been shut down"));
+			return;
+		}
+		final Route route = getRoute(exchange.route);
+		if (exchange.retried == false) {
+			final Connection idle = route.pollIdle(System.currentTimeMillis());
+			if (idle != null) {
+				start(idle, exchange);
+				return;
+			}
+		}
+		if (route.open < maxPerRoute) {
+			open(route, exchange);
+		} else {
+			exchange.deadline = System.currentTimeMillis() + timeout;
+			route.waiting.addLast(exchange);
+		}
+	}
+	
+	private void dispatchNext(Route route) {
+		while (route.waiting.isEmpty() == false) {
+			final Exchange next = route.waiting.getFirst();
+			if (next.future.isDone()) {
+				route.waiting.removeFirst();
+				continue;
+			}
+			Connection idle = null;
+			if (next.retried == false) {
+				idle = route.pollIdle(System.currentTimeMillis());
+			}
+			if (idle != null) {
+				route.waiting.removeFirst();
+				start(idle, next);
+			} else if (route.open < maxPerRoute) {
+				route.waiting.removeFirst();
+				open(route, next);
+			} else {
+				return;
+			}
+		}
+	}
+	
+	private void start(Connection c, Exchange exchange) {
+		c.exchange = exchange;
+		c.out = exchange.request.duplicate();
+		c.parser.reset();
+		c.deadline = System.currentTimeMillis() + timeout;
+		c.key.interestOps(SelectionKey.OP_WRITE);
+	}
+	
+	private void open(Route route, Exchange exchange) {
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().setKeepAlive(true);
+			
+			final Connection c = new Connection(route, channel);
+			c.exchange = exchange;
+			c.out = exchange.request.duplicate();
+			c.deadline = System.currentTimeMillis() + timeout;
+			final boolean connected = channel.connect(exchange.address);
+			c.key = channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, c);
+			route.open++;
+		} catch (IOException e) {
+			closeQuietly(channel);
+			deliverFailure(exchange, e);
+		}
+	}
+	
+	private void complete(Connection c) {
+		final Exchange exchange = c.exchange;
+		c.exchange = null;
+		deliver(exchange, c.parser);
+		
+		if (c.parser.isKeepAlive() && shutdown == false) {
+			c.parser.reset();
+			c.idleSince = System.currentTimeMillis();
+			c.reused = true;
+			c.key.interestOps(SelectionKey.OP_READ);
+			c.route.idle.addFirst(c);
+		} else {
+			close(c);
+		}
+		dispatchNext(c.route);
+	}
+	
+	private void failure(Connection c, IOException e) {
+		final Exchange exchange = c.exchange;
+		c.exchange = null;
+		close(c);
+		
+		if (exchange != null) {
+			if (c.reused && c.parser.hasStatus() == false && exchange.retried == false) {
+				// The server closed a pooled connection before we used it.
+				exchange.retried = true;
+				dispatch(exchange);
+			} else {
+				deliverFailure(exchange, e);
+			}
+		}
+		dispatchNext(c.route);
+	}
+	
+	private void close(Connection c) {
+		if (c.key != null) {
+			c.key.cancel();
+		}
+		closeQuietly(c.channel);
+		c.route.idle.remove(c);
+		c.route.open--;
+	}
+	
+	private void sweep(long now) {
+		final List<Connection> connections = new ArrayList<Connection>();
+		for (SelectionKey key : selector.keys()) {
+			if (key.isValid()) {
+				connections.add((Connection) key.attachment());
+			}
+		}
+		for (Connection c : connections) {
+			if (c.exchange != null) {
+				if (now > c.deadline) {
+					failure(c, new SocketTimeoutException("Timed out waiting for response"));
+				} else if (c.exchange.future.isCancelled()) {
+					c.exchange = null;
+					close(c);
+					dispatchNext(c.route);
+				}
+			} else if (now - c.idleSince >= idleTimeout) {
+				close(c);
+			}
+		}
+		for (Route route : routes.values()) {
+			final Iterator<Exchange> waiting = route.waiting.iterator();
+			while (waiting.hasNext()) {
+				final Exchange exchange = waiting.next();
+				if (exchange.future.isDone()) {
+					waiting.remove();
+				} else if (now > exchange.deadline) {
+					waiting.remove();
+					deliverFailure(exchange, new SocketTimeoutException("Timed out waiting for a connection"));
+				}
+			}
+		}
+	}
+	
+	private void closeAll() {
+		final IOException e = new IOException("Client has been shut down");
+		for (SelectionKey key : selector.keys()) {
+			final Connection c = (Connection) key.attachment();
+			closeQuietly(c.channel);
+			if (c.exchange != null) {
+				deliverFailure(c.exchange, e);
+			}
+		}
+		for (Route route : routes.values()) {
+			for (Exchange exchange : route.waiting) {
+				deliverFailure(exchange, e);
+			}
+		}
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+		try {
+			selector.close();
+		} catch (IOException ioe) {
+			// Nothing more we can do
+		}
+	}
+	
+	private void deliver(final Exchange exchange, HttpResponseParser parser) {
+		final int status = parser.getStatus();
+		final String reason = parser.getReason();
+		final String contentType = parser.getContentType();
+		final byte[] body = parser.getBody();
+		final int length = parser.getLength();
+		
+		exchange.future.setTransferred(exchange.bytesSent, exchange.bytesReceived);
+		execute(new Runnable() {
+			public void run() {
+				exchange.future.complete(status, reason, contentType, body, length);
+			}
+		});
+	}
+	
+	private void deliverFailure(final Exchange exchange, final IOException e) {
+		exchange.future.setTransferred(exchange.bytesSent, exchange.bytesReceived);
+		execute(new Runnable() {
+			public void run() {
+				exchange.future.fail(e);
+			}
+		});
+	}
+	
+	private void execute(Runnable task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.run();
+		}
+	}
+	
+	private Route getRoute(String key) {
+		Route route = routes.get(key);
+		if (route == null) {
+			route = new Route();
+			routes.put(key, route);
+		}
+		return route;
+	}
+	
+	private static void closeQuietly(SocketChannel channel) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing more we can do
+		}
+	}
+	
+	/**
+	 * A byte array stream whose contents can be wrapped without copying.
+	 */
+	private static final class RequestBuffer extends ByteArrayOutputStream {
+		RequestBuffer() {
+			super(4096);
+		}
+		
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+	
+	/**
+	 * A single request and its pending response.
+	 */
+	private static final class Exchange {
+		final String route;
+		final InetSocketAddress address;
+		final ByteBuffer request;
+		final ResponseFuture<?> future;
+		boolean retried;
+		// The time by which a queued exchange must have been started.
+		long deadline;
+		// The bytes transferred over every attempt, for the metrics.
+		long bytesSent;
+		long bytesReceived;
+		
+		Exchange(String route, InetSocketAddress address, ByteBuffer request, ResponseFuture<?> future) {
+			this.route = route;
+			this.address = address;
+			this.request = request;
+			this.future = future;
+		}
+	}
+	
+	/**
+	 * A non-blocking connection, and the exchange it is carrying.
+	 */
+	private static final class Connection {
+		final Route route;
+		final SocketChannel channel;
+		final HttpResponseParser parser = new HttpResponseParser();
+		SelectionKey key;
+		Exchange exchange;
+		ByteBuffer out;
+		long deadline;
+		long idleSince;
+		boolean reused;
+		
+		Connection(Route route, SocketChannel channel) {
+			this.route = route;
+			this.channel = channel;
+		}
+	}
+	
+	/**
+	 * The connections and queued exchanges for a single destination.
+	 */
+	private final class Route {
+		final LinkedList<Connection> idle = new LinkedList<Connection>();
+		final LinkedList<Exchange> waiting = new LinkedList<Exchange>();
+		int open;
+		
+		Connection pollIdle(long now) {
+			while (idle.isEmpty() == false) {
+				final Connection c = idle.removeFirst();
+				if (now - c.idleSince < idleTimeout && c.channel.isOpen()) {
+					return c;
+				}
+				close(c);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transport;
+
+import java.io.IOException;
+
+/**
+ * This interface represents a callback for the outcome of an asynchronous 
+ * request.
+ * <p>
+ * Callbacks are invoked on a thread belonging to the {@link NioHttpClient}'s
+ * executor, so implementations should not block.
+ * 
+ * @author David Grant
+ * @param <T> the response type.
+ * @see Transport#sendRequestAsync(org.jscep.request.Request, ResponseCallback)
+ */
+public interface ResponseCallback<T> {
+	/**
+	 * Invoked when the response has been received and parsed.
+	 * 
+	 * @param response the parsed response.
+	 */
+	void completed(T response);
+	
+	/**
+	 * Invoked when the request could not be completed.
+	 * 
+	 * @param e the cause of the failure.
+	 */
+	void failed(IOException e);
+}
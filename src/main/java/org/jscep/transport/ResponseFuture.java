@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jscep.content.ScepContentHandler;
+import org.jscep.metrics.MetricsRegistry;
+import org.jscep.metrics.Stage;
+
+/**
+ * This class represents the pending result of an asynchronous request.
+ * <p>
+ * When the raw response arrives, the request's content handler is run on
+ * the calling thread (an executor thread of the {@link NioHttpClient}), and 
+ * the outcome is published to any waiting threads and to the callback.
+ * <p>
+ * Like a synchronous exchange, the outcome is recorded as
+ * {@link Stage#TRANSPORT} metrics: the time from the creation of this 
+ * future to its completion, and the bytes transferred on its behalf.
+ * 
+ * @author David Grant
+ * @param <T> the response type.
+ */
+final class ResponseFuture<T> implements Future<T> {
+	private final ScepContentHandler<T> handler;
+	private final ResponseCallback<T> callback;
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final AtomicBoolean finished = new AtomicBoolean();
+	private volatile boolean cancelled;
+	private final long start = System.nanoTime();
+	private T result;
+	private IOException failure;
+	// Written by the reactor before this future is completed.
+	private long bytesSent;
+	private long bytesReceived;
+	
+	ResponseFuture(ScepContentHandler<T> handler, ResponseCallback<T> callback) {
+		this.handler = handler;
+		this.callback = callback;
+	}
+	
+	/**
+	 * Sets the number of bytes transferred for this request.
+	 * 
+	 * @param sent the number of bytes sent.
+	 * @param received the number of bytes received.
+	 */
+	void setTransferred(long sent, long received) {
+		this.bytesSent = sent;
+		this.bytesReceived = received;
+	}
+	
+	/**
+	 * Parses the response body and completes this future.
+	 * 
+	 * @param status the HTTP status code.
+	 * @param reason the HTTP reason phrase.
+	 * @param contentType the media type of the body.
+	 * @param body the body buffer.
+	 * @param length the length of the body within the buffer.
+	 */
+	void complete(int status, String reason, String contentType, byte[] body, int length) {
+		if (status != 200) {
+			fail(new IOException(status + " " + reason));
+			return;
+		}
+		final T response;
+		try {
+			response = handler.getContent(new ByteArrayInputStream(body, 0, length), contentType);
+		} catch (IOException e) {
+			fail(e);
+			return;
+		} catch (RuntimeException e) {
+			fail(new IOException(e));
+			return;
+		}
+		if (finished.compareAndSet(false, true) == false) {
+			return;
+		}
+		result = response;
+		record(true);
+		done.countDown();
+		if (callback != null) {
+			callback.completed(response);
+		}
+	}
+	
+	/**
+	 * Completes this future with a failure.
+	 * 
+	 * @param e the cause of the failure.
+	 */
+	void fail(IOException e) {
+		if (finished.compareAndSet(false, true) == false) {
+			return;
+		}
+		failure = e;
+		record(false);
+		done.countDown();
+		if (callback != null) {
+			callback.failed(e);
+		}
+	}
+
+	private void record(boolean success) {
+		MetricsRegistry.getMetrics().recordLatency(Stage.TRANSPORT, System.nanoTime() - start, success);
+		MetricsRegistry.getMetrics().recordBytes(Stage.TRANSPORT, bytesSent, bytesReceived);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (finished.compareAndSet(false, true) == false) {
+			return false;
+		}
+		cancelled = true;
+		done.countDown();
+		
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		
+		return report();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (done.await(timeout, unit) == false) {
+			throw new TimeoutException();
+		}
+		return report();
+	}
+	
+	private T report() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * This class checks the server identity of an <code>https</code> connection
+ * against the host name of the request URL.
+ * <p>
+ * The host is matched against the <code>dNSName</code> or
+ * <code>iPAddress</code> entries of the subject alternative name extension
+ * of the server certificate.  The most specific common name of the subject
+ * is only consulted if the certificate carries no <code>dNSName</code>.
+ * A wildcard may only stand for the whole left-most label of a name.
+ * 
+ * @author David Grant
+ * @see <a href="http://tools.ietf.org/html/rfc2818#section-3.1">RFC 2818 Section 3.1</a>
+ */
+final class StrictHostnameVerifier implements HostnameVerifier {
+	private static final int DNS_NAME = 2;
+	private static final int IP_ADDRESS = 7;
+	static final StrictHostnameVerifier INSTANCE = new StrictHostnameVerifier();
+	
+	private StrictHostnameVerifier() {
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean verify(String host, SSLSession session) {
+		final Certificate[] chain;
+		try {
+			chain = session.getPeerCertificates();
+		} catch (SSLPeerUnverifiedException e) {
+			return false;
+		}
+		if (chain.length == 0 || chain[0] instanceof X509Certificate == false) {
+			return false;
+		}
+		try {
+			return verify(host, (X509Certificate) chain[0]);
+		} catch (CertificateParsingException e) {
+			return false;
+		}
+	}
+	
+	boolean verify(String host, X509Certificate cert) throws CertificateParsingException {
+		final boolean literal = isAddress(host);
+		final List<String> dnsNames = new ArrayList<String>();
+		final Collection<List<?>> altNames = cert.getSubjectAlternativeNames();
+		if (altNames != null) {
+			for (List<?> altName : altNames) {
+				final int type = ((Integer) altName.get(0)).intValue();
+				final Object value = altName.get(1);
+				if (value instanceof String == false) {
+					continue;
+				}
+				if (type == DNS_NAME) {
+					dnsNames.add((String) value);
+				} else if (type == IP_ADDRESS && literal && sameAddress(host, (String) value)) {
+					return true;
+				}
+			}
+		}
+		if (literal) {
+			return false;
+		}
+		if (dnsNames.isEmpty()) {
+			final String cn = getCommonName(cert);
+			return cn != null && matches(host, cn);
+		}
+		for (String dnsName : dnsNames) {
+			if (matches(host, dnsName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean matches(String host, String pattern) {
+		final String h = normalize(host);
+		final String p = normalize(pattern);
+		if (p.startsWith("*.") == false) {
+			return h.equals(p);
+		}
+		final String suffix = p.substring(1);
+		// The wildcard must cover exactly one non-empty label, and the
+		// remainder must itself contain at least two labels.
+		if (suffix.indexOf('.', 1) == -1 || h.length() <= suffix.length()) {
+			return false;
+		}
+		return h.endsWith(suffix) && h.lastIndexOf('.', h.length() - suffix.length() - 1) == -1;
+	}
+	
+	private static String normalize(String name) {
+		String n = name.toLowerCase(Locale.ENGLISH);
+		if (n.endsWith(".")) {
+			n = n.substring(0, n.length() - 1);
+		}
+		return n;
+	}
+	
+	private static String getCommonName(X509Certificate cert) {
+		final LdapName name;
+		try {
+			name = new LdapName(cert.getSubjectX500Principal().getName());
+		} catch (InvalidNameException e) {
+			return null;
+		}
+		// RDNs are listed from the least to the most specific
+		final List<Rdn> rdns = name.getRdns();
+		for (int i = rdns.size() - 1; i >= 0; i--) {
+			final Rdn rdn = rdns.get(i);
+			if (rdn.getType().equalsIgnoreCase("CN")) {
+				return rdn.getValue().toString();
+			}
+		}
+		return null;
+	}
+	
+	private static boolean isAddress(String host) {
+		if (host.indexOf(':') != -1) {
+			return true;
+		}
+		for (int i = 0; i < host.length(); i++) {
+			final char c = host.charAt(i);
+			if ((c < '0' || c > '9') && c != '.') {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static boolean sameAddress(String host, String address) {
+		try {
+			// Both values are literals, so no name lookup takes place.
+			return InetAddress.getByName(strip(host)).equals(InetAddress.getByName(strip(address)));
+		} catch (UnknownHostException e) {
+			return false;
+		}
+	}
+	
+	private static String strip(String host) {
+		if (host.startsWith("[") && host.endsWith("]")) {
+			return host.substring(1, host.length() - 1);
+		}
+		return host;
+	}
+}
@@ -23,14 +23,17 @@
 package org.jscep.transport;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.URL;
-import java.util.logging.Logger;
+import java.util.concurrent.Future;
 
+import org.jscep.metrics.MetricsRegistry;
+import org.jscep.metrics.Stage;
 import org.jscep.request.Operation;
 import org.jscep.request.Request;
-import org.jscep.util.LoggingUtil;
+import org.jscep.util.Tracer;
 
 
 /**
@@ -44,11 +47,21 @@ import org.jscep.util.LoggingUtil;
  * Transport trans = Transport.createTransport(Transport.Method.POST, url, proxy);
  * Object res = trans.setMessage(req);
  * </pre>
+ * <p>
+ * Transports send requests over persistent connections pooled by a
+ * {@link ConnectionManager}, so that consecutive requests to the same
+ * server do not each pay for a new TCP (and TLS) handshake.
+ * <p>
+ * Requests may also be sent asynchronously, in which case they are carried
+ * by a {@link NioHttpClient}:
+ * <pre>
+ * Future&lt;?&gt; res = trans.sendRequestAsync(req, callback);
+ * </pre>
  * 
  * @author David Grant
  */
 public abstract class Transport {
-	private static Logger LOGGER = LoggingUtil.getLogger(Transport.class);
+	private static final Tracer TRACER = Tracer.getTracer(Transport.class);
 	/**
 	 * Represents the <code>HTTP</code> method to be used for transport. 
 	 */
@@ -63,9 +76,14 @@ public abstract class Transport {
 		POST
 	}
 	final URL url;
+	final Proxy proxy;
+	final ConnectionManager manager;
+	private volatile NioHttpClient asyncClient;
 	
-	Transport(URL url) {
+	Transport(URL url, Proxy proxy, ConnectionManager manager) {
 		this.url = url;
+		this.proxy = proxy;
+		this.manager = manager;
 	}
 	
 	/**
@@ -89,9 +107,54 @@ public abstract class Transport {
 	 */
 	abstract public <T> T sendRequest(Request<T> msg) throws IOException;
 	
+	/**
+	 * Sends the given request to the URL provided in the constructor without
+	 * blocking, and uses the {@link Request}'s content handler to parse the
+	 * response once it has been received in full.
+	 * <p>
+	 * The outcome is available from the returned future, and is also passed
+	 * to the callback, if one is provided.  If the request cannot be sent 
+	 * at all, the callback is notified on the calling thread.
+	 * 
+	 * @param <T> the response type.
+	 * @param msg the message to send.
+	 * @param callback the callback to notify, or <code>null</code>.
+	 * @return the pending response.
+	 * @see #setAsyncClient(NioHttpClient)
+	 */
+	abstract public <T> Future<T> sendRequestAsync(Request<T> msg, ResponseCallback<T> callback);
+	
+	/**
+	 * Sends the given request to the URL provided in the constructor without
+	 * blocking.
+	 * 
+	 * @param <T> the response type.
+	 * @param msg the message to send.
+	 * @return the pending response.
+	 * @see #sendRequestAsync(Request, ResponseCallback)
+	 */
+	public <T> Future<T> sendRequestAsync(Request<T> msg) {
+		return sendRequestAsync(msg, null);
+	}
+	
+	/**
+	 * Sets the client used to carry asynchronous requests.
+	 * <p>
+	 * If no client is set, the {@link NioHttpClient#getDefault() default}
+	 * client is used.
+	 * 
+	 * @param client the asynchronous client.
+	 */
+	public void setAsyncClient(NioHttpClient client) {
+		this.asyncClient = client;
+	}
+	
 	/**
 	 * Creates a new <code>Transport</code> of type <code>method</code> with the 
 	 * provided URL over the provided proxy.
+	 * <p>
+	 * The transport uses the {@link ConnectionManager#getDefault() default}
+	 * connection manager.
 	 * 
 	 * @param method the transport type.
 	 * @param url the URL.
@@ -99,17 +162,37 @@ public abstract class Transport {
 	 * @return a new Transport instance.
 	 */
 	public static Transport createTransport(Method method, URL url, Proxy proxy) {
-		LOGGER.entering(Transport.class.getName(), "createTransport", new Object[] { method, url, proxy });
+		TRACER.entering("createTransport", method, url, proxy);
+		
+		final Transport t = createTransport(method, url, proxy, ConnectionManager.getDefault());
+		
+		TRACER.exiting("createTransport", t);
+		return t;
+	}
+	
+	/**
+	 * Creates a new <code>Transport</code> of type <code>method</code> with the 
+	 * provided URL over the provided proxy, using connections from the
+	 * provided connection manager.
+	 * 
+	 * @param method the transport type.
+	 * @param url the URL.
+	 * @param proxy the proxy.
+	 * @param manager the connection manager.
+	 * @return a new Transport instance.
+	 */
+	public static Transport createTransport(Method method, URL url, Proxy proxy, ConnectionManager manager) {
+		TRACER.entering("createTransport", method, url, proxy, manager);
 		
 		final Transport t;
 		
 		if (method.equals(Method.GET)) {
-			t = new HttpGetTransport(url);
+			t = new HttpGetTransport(url, proxy, manager);
 		} else {
-			t = new HttpPostTransport(url);
+			t = new HttpPostTransport(url, proxy, manager);
 		}
 		
-		LOGGER.exiting(Transport.class.getName(), "createTransport", t);
+		TRACER.exiting("createTransport", t);
 		return t;
 	}
 	
@@ -122,15 +205,153 @@ public abstract class Transport {
 	 * @return a new Transport instance.
 	 */
 	public static Transport createTransport(Method method, URL url) {
-		LOGGER.entering(Transport.class.getName(), "createTransport", new Object[] {method, url});
+		TRACER.entering("createTransport", method, url);
 		
 		final Transport t = createTransport(method, url, Proxy.NO_PROXY);
 		
-		LOGGER.exiting(Transport.class.getName(), "createTransport", t);
+		TRACER.exiting("createTransport", t);
 		return t;
 	}
 	
 	URL getUrl(Operation op) throws MalformedURLException {
 		return new URL(url.toExternalForm() + "?operation=" + op);
 	}
+	
+	/**
+	 * Sends a request using the asynchronous client.
+	 * 
+	 * @param <T> the response type.
+	 * @param method the HTTP method.
+	 * @param target the target URL.
+	 * @param msg the request.
+	 * @param post <code>true</code> if the request should be written as the body.
+	 * @param callback the callback to notify, or <code>null</code>.
+	 * @return the pending response.
+	 */
+	<T> Future<T> exchangeAsync(String method, URL target, Request<T> msg, boolean post, ResponseCallback<T> callback) {
+		NioHttpClient client = asyncClient;
+		if (client == null) {
+			try {
+				client = NioHttpClient.getDefault();
+			} catch (IOException e) {
+				return failed(msg, callback, e);
+			}
+		}
+		return client.send(method, target, proxy, "application/x-pki-message", post ? msg : null, msg.getContentHandler(), callback);
+	}
+	
+	/**
+	 * Returns a future which has failed with the provided exception.
+	 * 
+	 * @param <T> the response type.
+	 * @param msg the request.
+	 * @param callback the callback to notify, or <code>null</code>.
+	 * @param e the cause of the failure.
+	 * @return the failed future.
+	 */
+	<T> Future<T> failed(Request<T> msg, ResponseCallback<T> callback, IOException e) {
+		final ResponseFuture<T> future = new ResponseFuture<T>(msg.getContentHandler(), callback);
+		future.fail(e);
+		
+		return future;
+	}
+	
+	/**
+	 * Performs a single HTTP exchange with the server and uses the 
+	 * {@link Request}'s content handler to parse the response.
+	 * <p>
+	 * If a pooled connection turns out to have been closed by the server
+	 * before a response was received, the request is retried once on a
+	 * new connection.  A request which times out waiting for a response is
+	 * never retried.
+	 * 
+	 * @param <T> the response type.
+	 * @param method the HTTP method.
+	 * @param target the target URL.
+	 * @param msg the request.
+	 * @param post <code>true</code> if the request should be written as the body.
+	 * @return the response of type T.
+	 * @throws IOException if any I/O error occurs.
+	 */
+	<T> T exchange(String method, URL target, Request<T> msg, boolean post) throws IOException {
+		final long start = System.nanoTime();
+		boolean success = false;
+		try {
+			final T response = send(method, target, msg, post);
+			success = true;
+			
+			return response;
+		} finally {
+			MetricsRegistry.getMetrics().recordLatency(Stage.TRANSPORT, System.nanoTime() - start, success);
+		}
+	}
+	
+	private <T> T send(String method, URL target, Request<T> msg, boolean post) throws IOException {
+		HttpConnection conn;
+		long sent;
+		long received;
+		int attempt = 0;
+		while (true) {
+			conn = manager.lease(target, proxy, attempt > 0);
+			sent = conn.getBytesSent();
+			received = conn.getBytesReceived();
+			boolean written = false;
+			try {
+				conn.writeRequest(method, target, "application/x-pki-message", post ? msg : null, manager.isChunkedStreaming());
+				written = true;
+				conn.readResponse();
+				break;
+			} catch (IOException e) {
+				manager.discard(conn);
+				if (attempt > 0 || conn.isReused() == false || isStale(conn, received, written, e) == false) {
+					throw e;
+				}
+			}
+			attempt++;
+		}
+		
+		boolean reusable = false;
+		try {
+			if (conn.getResponseCode() != 200) {
+				reusable = conn.drainResponseBody(ConnectionManager.MAX_DRAIN);
+				throw new IOException(conn.getResponseCode() + " " + conn.getResponseMessage());
+			}
+			final T response = msg.getContentHandler().getContent(conn.getResponseBody(), conn.getContentType());
+			reusable = conn.drainResponseBody(ConnectionManager.MAX_DRAIN);
+			
+			return response;
+		} finally {
+			MetricsRegistry.getMetrics().recordBytes(Stage.TRANSPORT, conn.getBytesSent() - sent, conn.getBytesReceived() - received);
+			if (reusable) {
+				manager.release(conn);
+			} else {
+				manager.discard(conn);
+			}
+		}
+	}
+	
+	/**
+	 * Returns <code>true</code> if a failed exchange shows that a pooled
+	 * connection had already been closed by the server.
+	 * <p>
+	 * That is the case if the request could not be written, or if the server
+	 * closed or reset the connection before sending any part of a response.
+	 * A read timeout is never taken as a sign of a stale connection, since the
+	 * server may already be processing the request.
+	 * 
+	 * @param conn the connection.
+	 * @param received the number of bytes received before the request was written.
+	 * @param written <code>true</code> if the request was written in full.
+	 * @param e the cause of the failure.
+	 * @return <code>true</code> if the request may be retried.
+	 */
+	private static boolean isStale(HttpConnection conn, long received, boolean written, IOException e) {
+		if (written == false) {
+			return true;
+		}
+		if (e instanceof InterruptedIOException) {
+			return false;
+		}
+		return conn.getBytesReceived() == received;
+	}
 }
@@ -24,7 +24,6 @@ package org.jscep.util;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.logging.Logger;
 
 import javax.crypto.Cipher;
 
@@ -47,7 +46,7 @@ import org.bouncycastle.asn1.x509.X509ObjectIdentifiers;
  * @link http://java.sun.com/javase/6/docs/technotes/guides/security/StandardNames.html
  */
 public final class AlgorithmDictionary {
-	private static Logger LOGGER = LoggingUtil.getLogger(AlgorithmDictionary.class);
+	private static final Tracer TRACER = Tracer.getTracer(AlgorithmDictionary.class);
 	/**
 	 * JCA standards RECOMMEND NoPadding and PKCS5Padding to Providers.
 	 * 
@@ -72,6 +71,9 @@ public final class AlgorithmDictionary {
 		// Symmetric Ciphers
 		contents.put(SMIMECapabilities.dES_CBC, "DES/CBC/PKCS5Padding"); // DES
 		contents.put(SMIMECapabilities.dES_EDE3_CBC, "DESede/CBC/PKCS5Padding"); // DESEDE
+		contents.put(NISTObjectIdentifiers.id_aes128_CBC, "AES/CBC/PKCS5Padding"); // AES-128
+		contents.put(NISTObjectIdentifiers.id_aes192_CBC, "AES/CBC/PKCS5Padding"); // AES-192
+		contents.put(NISTObjectIdentifiers.id_aes256_CBC, "AES/CBC/PKCS5Padding"); // AES-256
 		// Message Digests
 		contents.put(X509ObjectIdentifiers.id_SHA1, "SHA");
 		contents.put(new DERObjectIdentifier("1.2.840.113549.2.5"), "MD5");
@@ -85,11 +87,13 @@ public final class AlgorithmDictionary {
 		// Cipher
 		oids.put("DES/CBC/PKCS5Padding", OIWObjectIdentifiers.desCBC);
 		oids.put("DESede/CBC/PKCS5Padding", PKCSObjectIdentifiers.des_EDE3_CBC);
+		oids.put("AES/CBC/PKCS5Padding", NISTObjectIdentifiers.id_aes128_CBC);
 		// KeyFactory or KeyPairGenerator
 		oids.put("RSA", PKCSObjectIdentifiers.rsaEncryption);
 		// KeyGenerator, AlgorithmParameters or SecretKeyFactory
 		oids.put("DES", null);
 		oids.put("DESede", null);
+		oids.put("AES", null);
 		// MessageDigest
 		oids.put("MD5", PKCSObjectIdentifiers.md5);
 		oids.put("SHA-1", X509ObjectIdentifiers.id_SHA1);
@@ -113,11 +117,11 @@ public final class AlgorithmDictionary {
 	 * @return the corresponding OID, or null.
 	 */
 	public static DERObjectIdentifier getOid(String algorithm) {
-		LOGGER.entering(AlgorithmDictionary.class.getName(), "getOid", new Object[] {algorithm});
+		TRACER.entering("getOid", algorithm);
 		
 		final DERObjectIdentifier oid = oids.get(algorithm);
 		
-		LOGGER.exiting(AlgorithmDictionary.class.getName(), "getOid");
+		TRACER.exiting("getOid");
 		
 		return oid;
 	}
@@ -149,7 +153,7 @@ public final class AlgorithmDictionary {
 	 * @throws IllegalArgumentException if the cipher algorithm is not appropriate.
 	 */
 	public static String getTransformation(String cipher) throws IllegalArgumentException {
-		if (cipher.equalsIgnoreCase("DES") || cipher.equalsIgnoreCase("DESede")) {
+		if (cipher.equalsIgnoreCase("DES") || cipher.equalsIgnoreCase("DESede") || cipher.equalsIgnoreCase("AES")) {
 			return cipher + "/" + MODE + "/" + PADDING;
 		} else {
 			throw new IllegalArgumentException(cipher + " is not an appropriate cipher name");
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.util;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Cipher;
+
+/**
+ * This class records which algorithms are available from the installed
+ * security providers.
+ * <p>
+ * Each algorithm is looked up once, on first use, and the result is 
+ * remembered for the life of the JVM.  If providers are added or removed,
+ * {@link #refresh()} discards the remembered results, and increments the
+ * {@link #getGeneration() generation} so that callers holding results 
+ * derived from the registry know to recompute them.
+ * 
+ * @author David Grant
+ */
+public final class AlgorithmRegistry {
+	// Replaced, rather than cleared, by refresh(), so that a lookup which
+	// started before a refresh records its result in the discarded map.
+	private static volatile ConcurrentMap<String, Boolean> ciphers = new ConcurrentHashMap<String, Boolean>();
+	private static volatile ConcurrentMap<String, Boolean> digests = new ConcurrentHashMap<String, Boolean>();
+	private static volatile int generation;
+	
+	/**
+	 * Private constructor to prevent instantiation.
+	 */
+	private AlgorithmRegistry() {
+		// This constructor will never be invoked.
+	}
+	
+	/**
+	 * Returns <code>true</code> if a provider offers the provided cipher 
+	 * transformation.
+	 * 
+	 * @param transformation the cipher transformation.
+	 * @return <code>true</code> if the cipher is available, <code>false</code> otherwise.
+	 */
+	public static boolean isCipherAvailable(String transformation) {
+		final ConcurrentMap<String, Boolean> results = ciphers;
+		Boolean available = results.get(transformation);
+		if (available == null) {
+			try {
+				Cipher.getInstance(transformation);
+				available = Boolean.TRUE;
+			} catch (GeneralSecurityException e) {
+				available = Boolean.FALSE;
+			}
+			results.put(transformation, available);
+		}
+		return available.booleanValue();
+	}
+	
+	/**
+	 * Returns <code>true</code> if a provider offers the provided message
+	 * digest algorithm.
+	 * 
+	 * @param algorithm the message digest algorithm.
+	 * @return <code>true</code> if the digest is available, <code>false</code> otherwise.
+	 */
+	public static boolean isDigestAvailable(String algorithm) {
+		final ConcurrentMap<String, Boolean> results = digests;
+		Boolean available = results.get(algorithm);
+		if (available == null) {
+			try {
+				MessageDigest.getInstance(algorithm);
+				available = Boolean.TRUE;
+			} catch (GeneralSecurityException e) {
+				available = Boolean.FALSE;
+			}
+			results.put(algorithm, available);
+		}
+		return available.booleanValue();
+	}
+	
+	/**
+	 * Discards all remembered results, so that algorithms are looked up 
+	 * again on next use.
+	 * <p>
+	 * This method should be called after security providers are added or 
+	 * removed.
+	 */
+	public static synchronized void refresh() {
+		ciphers = new ConcurrentHashMap<String, Boolean>();
+		digests = new ConcurrentHashMap<String, Boolean>();
+		generation++;
+	}
+	
+	/**
+	 * Returns the number of times this registry has been refreshed.
+	 * 
+	 * @return the generation.
+	 */
+	public static int getGeneration() {
+		return generation;
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class represents a bounded pool of equally-sized byte arrays.
+ * <p>
+ * Buffers are handed out with {@link #acquire()} and handed back with
+ * {@link #release(byte[])}.  If the pool is empty, a new buffer is
+ * allocated; if the pool is full, a released buffer is left for the
+ * garbage collector.  The pool therefore never holds more than
+ * <code>capacity * bufferSize</code> bytes.
+ * <p>
+ * Instances of this class are safe for use by multiple threads.
+ * 
+ * @author David Grant
+ */
+public final class BufferPool {
+	/**
+	 * The size of each buffer in the default pool.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 16384;
+	/**
+	 * The maximum number of buffers held by the default pool.
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+	private static final BufferPool DEFAULT = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_CAPACITY);
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final int bufferSize;
+	private final int capacity;
+	
+	/**
+	 * Creates a new pool.
+	 * 
+	 * @param bufferSize the size of each buffer.
+	 * @param capacity the maximum number of idle buffers to retain.
+	 */
+	public BufferPool(int bufferSize, int capacity) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("bufferSize must be positive");
+		}
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must not be negative");
+		}
+		this.bufferSize = bufferSize;
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Returns the pool shared by the content handlers and transports.
+	 * 
+	 * @return the default pool.
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+	
+	/**
+	 * Takes a buffer from this pool, allocating one if none are idle.
+	 * <p>
+	 * The contents of the returned buffer are undefined.
+	 * 
+	 * @return a buffer of {@link #getBufferSize()} bytes.
+	 */
+	public byte[] acquire() {
+		final byte[] buf = buffers.poll();
+		if (buf == null) {
+			return new byte[bufferSize];
+		}
+		size.decrementAndGet();
+		
+		return buf;
+	}
+	
+	/**
+	 * Returns a buffer to this pool.
+	 * <p>
+	 * Buffers of the wrong size, or released while the pool is full, are
+	 * discarded.  The caller must not use the buffer after releasing it.
+	 * 
+	 * @param buf the buffer to return.
+	 */
+	public void release(byte[] buf) {
+		if (buf == null || buf.length != bufferSize) {
+			return;
+		}
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			return;
+		}
+		buffers.offer(buf);
+	}
+	
+	/**
+	 * Returns the size of the buffers in this pool.
+	 * 
+	 * @return the buffer size.
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	/**
+	 * Returns the maximum number of idle buffers this pool retains.
+	 * 
+	 * @return the capacity.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Returns the number of idle buffers currently held by this pool.
+	 * 
+	 * @return the idle buffer count.
+	 */
+	public int getIdleCount() {
+		return size.get();
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class represents an HTTP message body delimited by a
+ * <code>Content-Length</code> header.
+ * <p>
+ * Closing this stream does not close the underlying connection stream, so
+ * that the connection may be reused once the body has been consumed.
+ * 
+ * @author David Grant
+ */
+public final class FixedLengthInputStream extends FilterInputStream {
+	private final long length;
+	private long remaining;
+
+	/**
+	 * Creates a new stream which reads exactly <code>length</code> bytes
+	 * from the provided stream.
+	 * 
+	 * @param in the connection stream.
+	 * @param length the content length.
+	 */
+	public FixedLengthInputStream(InputStream in, long length) {
+		super(in);
+		this.length = length;
+		this.remaining = length;
+	}
+	
+	/**
+	 * Returns the content length of this body.
+	 * <p>
+	 * Content handlers may use this to size their buffers in advance.
+	 * 
+	 * @return the content length.
+	 */
+	public long getLength() {
+		return length;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (remaining == 0) {
+			return -1;
+		}
+		final int b = in.read();
+		if (b == -1) {
+			throw new IOException("Premature end of content: expected " + remaining + " more bytes");
+		}
+		remaining--;
+		
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining == 0) {
+			return -1;
+		}
+		final int n = in.read(b, off, (int) Math.min(len, remaining));
+		if (n == -1) {
+			throw new IOException("Premature end of content: expected " + remaining + " more bytes");
+		}
+		remaining -= n;
+		
+		return n;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		final long skipped = in.skip(Math.min(n, remaining));
+		remaining -= skipped;
+		
+		return skipped;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+	
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+	
+	@Override
+	public void close() {
+		// The connection stream is owned by the connection.
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.util;
+
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * This class caches JCA engine instances for each thread.
+ * <p>
+ * Obtaining a {@link Cipher} or {@link KeyFactory} searches the installed
+ * providers and constructs a new engine, which costs more than the 
+ * operation itself for small messages.  Engines returned by this class are
+ * created once per thread and algorithm, and must only be used by the 
+ * calling thread.  A cipher must be initialised before every use, which 
+ * also clears any state left by a previous failure.
+ * <p>
+ * The caches are cleared by {@link AlgorithmRegistry#refresh()}, so that 
+ * changes to the installed providers are picked up.
+ * 
+ * @author David Grant
+ */
+public final class JcaCache {
+	private static final ThreadLocal<Engines> ENGINES = new ThreadLocal<Engines>() {
+		@Override
+		protected Engines initialValue() {
+			return new Engines();
+		}
+	};
+	
+	/**
+	 * Private constructor to prevent instantiation.
+	 */
+	private JcaCache() {
+		// This constructor will never be invoked.
+	}
+	
+	/**
+	 * Returns this thread's cipher for the provided transformation.
+	 * 
+	 * @param transformation the cipher transformation.
+	 * @return the cipher.
+	 * @throws NoSuchAlgorithmException if no provider offers the transformation.
+	 * @throws NoSuchPaddingException if no provider offers the padding.
+	 */
+	public static Cipher getCipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+		final Engines engines = getEngines();
+		Cipher cipher = engines.ciphers.get(transformation);
+		if (cipher == null) {
+			cipher = Cipher.getInstance(transformation);
+			engines.ciphers.put(transformation, cipher);
+		}
+		return cipher;
+	}
+	
+	/**
+	 * Returns this thread's key factory for the provided algorithm.
+	 * 
+	 * @param algorithm the key algorithm.
+	 * @return the key factory.
+	 * @throws NoSuchAlgorithmException if no provider offers the algorithm.
+	 */
+	public static KeyFactory getKeyFactory(String algorithm) throws NoSuchAlgorithmException {
+		final Engines engines = getEngines();
+		KeyFactory factory = engines.keyFactories.get(algorithm);
+		if (factory == null) {
+			factory = KeyFactory.getInstance(algorithm);
+			engines.keyFactories.put(algorithm, factory);
+		}
+		return factory;
+	}
+	
+	private static Engines getEngines() {
+		Engines engines = ENGINES.get();
+		if (engines.generation != AlgorithmRegistry.getGeneration()) {
+			engines = new Engines();
+			ENGINES.set(engines);
+		}
+		return engines;
+	}
+	
+	/**
+	 * The engines of a single thread.
+	 */
+	private static final class Engines {
+		final int generation = AlgorithmRegistry.getGeneration();
+		final Map<String, Cipher> ciphers = new HashMap<String, Cipher>();
+		final Map<String, KeyFactory> keyFactories = new HashMap<String, KeyFactory>();
+	}
+}
@@ -21,8 +21,8 @@
  */
 package org.jscep.util;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
@@ -31,7 +31,7 @@ import java.util.logging.Logger;
  * @author David Grant
  */
 public final class LoggingUtil {
-	private static Map<String, Logger> cache = new HashMap<String, Logger>();
+	private static final ConcurrentMap<String, Logger> cache = new ConcurrentHashMap<String, Logger>();
 
 	/**
 	 * Private constructor to prevent instantiation.
@@ -56,15 +56,19 @@ public final class LoggingUtil {
 	 * This method returns a logger configured with a resource
 	 * bundle for the given package.  Loggers are cached, so 
 	 * calling this method repeatedly with the same package name
-	 * will yield the same logger.
+	 * will yield the same logger.  This method may be called 
+	 * concurrently.
 	 * 
 	 * @param packageName the package name.
 	 * @return a logger for the given package name.
 	 */
 	public static Logger getLogger(String packageName) {
-		if (cache.containsKey(packageName) == false) {
-			cache.put(packageName, Logger.getLogger(packageName, packageName + ".messages"));
+		final Logger logger = cache.get(packageName);
+		if (logger != null) {
+			return logger;
 		}
+		// Logger.getLogger returns the same instance to racing threads.
+		cache.putIfAbsent(packageName, Logger.getLogger(packageName, packageName + ".messages"));
 		
 		return cache.get(packageName);
 	}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * This class provides utility methods for reading message bodies.
+ * 
+ * @author David Grant
+ */
+public final class StreamUtil {
+	/**
+	 * The largest buffer to allocate up front from an advertised length.
+	 * <p>
+	 * Longer bodies are still read in full, but the buffer grows as the
+	 * content arrives rather than trusting the peer.
+	 */
+	private static final int MAX_PRESIZE = 1 << 20;
+	
+	private StreamUtil() {
+		// This constructor will never be invoked.
+	}
+	
+	/**
+	 * Reads the provided stream to the end, returning its contents.
+	 * <p>
+	 * If the length of the stream is known in advance, as for a body with a 
+	 * <code>Content-Length</code>, the contents are read in bulk into an 
+	 * array of exactly that size.  Otherwise, the contents are read into a 
+	 * buffer taken from the {@link BufferPool#getDefault() default pool}, 
+	 * and only the bytes read are copied out.
+	 * <p>
+	 * The stream is not closed.
+	 * 
+	 * @param in the stream to read.
+	 * @return the contents of the stream.
+	 * @throws IOException if any I/O error occurs.
+	 */
+	public static byte[] readFully(InputStream in) throws IOException {
+		final int length = getLengthHint(in);
+		if (length >= 0) {
+			return readFully(in, new byte[length], null);
+		}
+		
+		final BufferPool pool = BufferPool.getDefault();
+		final byte[] buf = pool.acquire();
+		try {
+			return readFully(in, buf, buf);
+		} finally {
+			pool.release(buf);
+		}
+	}
+	
+	private static byte[] readFully(InputStream in, byte[] buf, byte[] pooled) throws IOException {
+		int count = 0;
+		while (true) {
+			if (count == buf.length) {
+				// Probe before growing, so that an exactly-sized buffer 
+				// is returned without being copied.
+				final int b = in.read();
+				if (b == -1) {
+					break;
+				}
+				buf = Arrays.copyOf(buf, Math.max(buf.length << 1, 8192));
+				buf[count++] = (byte) b;
+			}
+			final int n = in.read(buf, count, buf.length - count);
+			if (n == -1) {
+				break;
+			}
+			count += n;
+		}
+		if (count == buf.length && buf != pooled) {
+			return buf;
+		}
+		return Arrays.copyOf(buf, count);
+	}
+	
+	private static int getLengthHint(InputStream in) throws IOException {
+		if (in instanceof FixedLengthInputStream) {
+			return (int) Math.min(((FixedLengthInputStream) in).getLength(), MAX_PRESIZE);
+		} else if (in instanceof ByteArrayInputStream) {
+			return in.available();
+		}
+		return -1;
+	}
+}
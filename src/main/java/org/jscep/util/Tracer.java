@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.util;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class traces method entry, exit and exceptions for a single class.
+ * <p>
+ * Unlike the equivalent methods of {@link Logger}, each method checks 
+ * whether <code>FINER</code> messages are enabled before doing any work, 
+ * and takes its parameters individually, so that no parameter array is
+ * allocated unless the message is actually logged.
+ * 
+ * @author David Grant
+ */
+public final class Tracer {
+	private final Logger logger;
+	private final String sourceClass;
+	
+	private Tracer(Logger logger, String sourceClass) {
+		this.logger = logger;
+		this.sourceClass = sourceClass;
+	}
+	
+	/**
+	 * Returns a tracer for the given class, which logs to the logger of the
+	 * class's package.
+	 * 
+	 * @param type the class.
+	 * @return a tracer for the given class.
+	 */
+	public static Tracer getTracer(Class<?> type) {
+		return new Tracer(LoggingUtil.getLogger(type), type.getName());
+	}
+	
+	/**
+	 * Returns <code>true</code> if tracing is enabled.
+	 * 
+	 * @return <code>true</code> if tracing is enabled, <code>false</code> otherwise.
+	 */
+	public boolean isEnabled() {
+		return logger.isLoggable(Level.FINER);
+	}
+	
+	/**
+	 * Logs entry to a method without parameters.
+	 * 
+	 * @param sourceMethod the name of the method.
+	 */
+	public void entering(String sourceMethod) {
+		if (isEnabled()) {
+			logger.entering(sourceClass, sourceMethod);
+		}
+	}
+	
+	/**
+	 * Logs entry to a method with one parameter.
+	 * 
+	 * @param sourceMethod the name of the method.
+	 * @param param1 the parameter.
+	 */
+	public void entering(String sourceMethod, Object param1) {
+		if (isEnabled()) {
+			logger.entering(sourceClass, sourceMethod, param1);
+		}
+	}
+	
+	/**
+	 * Logs entry to a method with two parameters.
+	 * 
+	 * @param sourceMethod the name of the method.
+	 * @param param1 the first parameter.
+	 * @param param2 the second parameter.
+	 */
+	public void entering(String sourceMethod, Object param1, Object param2) {
+		if (isEnabled()) {
+			logger.entering(sourceClass, sourceMethod, new Object[] {param1, param2});
+		}
+	}
+	
+	/**
+	 * Logs entry to a method with three parameters.
+	 * 
+	 * @param sourceMethod the name of the method.
+	 * @param param1 the first parameter.
+	 * @param param2 the second parameter.
+	 * @param param3 the third parameter.
+	 */
+	public void entering(String sourceMethod, Object param1, Object param2, Object param3) {
+		if (isEnabled()) {
+			logger.entering(sourceClass, sourceMethod, new Object[] {param1, param2, param3});
+		}
+	}
+	
+	/**
+	 * Logs entry to a method with four parameters.
+	 * 
+	 * @param sourceMethod the name of the method.
+	 * @param param1 the first parameter.
+	 * @param param2 the second parameter.
+	 * @param param3 the third parameter.
+	 * @param param4 the fourth parameter.
+	 */
+	public void entering(String sourceMethod, Object param1, Object param2, Object param3, Object param4) {
+		if (isEnabled()) {
+			logger.entering(sourceClass, sourceMethod, new Object[] {param1, param2, param3, param4});
+		}
+	}
+	
+	/**
+	 * Logs return from a method without a result.
+	 * 
+	 * @param sourceMethod the name of the method.
+	 */
+	public void exiting(String sourceMethod) {
+		if (isEnabled()) {
+			logger.exiting(sourceClass, sourceMethod);
+		}
+	}
+	
+	/**
+	 * Logs return from a method with a result.
+	 * 
+	 * @param sourceMethod the name of the method.
+	 * @param result the result.
+	 */
+	public void exiting(String sourceMethod, Object result) {
+		if (isEnabled()) {
+			logger.exiting(sourceClass, sourceMethod, result);
+		}
+	}
+	
+	/**
+	 * Logs a method throwing an exception.
+	 * 
+	 * @param sourceMethod the name of the method.
+	 * @param thrown the exception.
+	 */
+	public void throwing(String sourceMethod, Throwable thrown) {
+		if (isEnabled()) {
+			logger.throwing(sourceClass, sourceMethod, thrown);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.message;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.jscep.transaction.Nonce;
+import org.jscep.transaction.TransactionId;
+import org.jscep.x509.X509Util;
+
+public class PkiMessageDecoderTest extends TestCase {
+	private KeyPair caKeyPair;
+	private X509Certificate ca;
+	private KeyPair clientKeyPair;
+	private X509Certificate client;
+	private PkiMessageDecoder decoder;
+	
+	@Override
+	protected void setUp() throws Exception {
+		caKeyPair = generateKeyPair();
+		ca = X509Util.createEphemeralCertificate(new X500Principal("CN=CA"), caKeyPair);
+		clientKeyPair = generateKeyPair();
+		client = X509Util.createEphemeralCertificate(new X500Principal("CN=Client"), clientKeyPair);
+		decoder = new PkiMessageDecoder(new PkcsPkiEnvelopeDecoder(clientKeyPair.getPrivate()), Collections.singleton(ca));
+	}
+	
+	public void testTrustedSignerIsAccepted() throws Exception {
+		decoder.decode(signCertRep(caKeyPair, ca));
+	}
+	
+	public void testRegistrationAuthorityIsAccepted() throws Exception {
+		final KeyPair raKeyPair = generateKeyPair();
+		final X509Certificate ra = issue(new X500Principal("CN=RA"), raKeyPair, true);
+		
+		decoder.decode(signCertRep(raKeyPair, ra));
+	}
+	
+	public void testSiblingEndEntityIsRejected() throws Exception {
+		final KeyPair siblingKeyPair = generateKeyPair();
+		final X509Certificate sibling = issue(new X500Principal("CN=Sibling"), siblingKeyPair, false);
+		
+		try {
+			decoder.decode(signCertRep(siblingKeyPair, sibling));
+			fail();
+		} catch (IOException e) {
+			assertEquals("Untrusted Signer", e.getMessage());
+		}
+	}
+	
+	public void testUnrelatedSignerIsRejected() throws Exception {
+		final KeyPair otherKeyPair = generateKeyPair();
+		final X509Certificate other = X509Util.createEphemeralCertificate(new X500Principal("CN=Other CA"), otherKeyPair);
+		
+		try {
+			decoder.decode(signCertRep(otherKeyPair, other));
+			fail();
+		} catch (IOException e) {
+			assertEquals("Untrusted Signer", e.getMessage());
+		}
+	}
+	
+	private CMSSignedData signCertRep(KeyPair keyPair, X509Certificate signer) throws IOException {
+		final PkiMessageEncoder encoder = new PkiMessageEncoder(keyPair.getPrivate(), signer, new PkcsPkiEnvelopeEncoder(client));
+		
+		return encoder.encode(new CertRep(TransactionId.createTransactionId(), Nonce.nextNonce(), Nonce.nextNonce()));
+	}
+	
+	private X509Certificate issue(X500Principal subject, KeyPair keyPair, boolean ra) throws Exception {
+		final long now = System.currentTimeMillis();
+		
+		final X509V3CertificateGenerator gen = new X509V3CertificateGenerator();
+		gen.setSerialNumber(BigInteger.valueOf(now));
+		gen.setIssuerDN(ca.getSubjectX500Principal());
+		gen.setSubjectDN(subject);
+		gen.setNotBefore(new Date(now - 60000));
+		gen.setNotAfter(new Date(now + 60000));
+		gen.setPublicKey(keyPair.getPublic());
+		gen.setSignatureAlgorithm("SHA1withRSA");
+		gen.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(false));
+		if (ra) {
+			gen.addExtension(X509Extensions.ExtendedKeyUsage, false, new DERSequence(new DERObjectIdentifier("1.3.6.1.5.5.7.3.28")));
+		}
+		return gen.generate(caKeyPair.getPrivate());
+	}
+	
+	private static KeyPair generateKeyPair() throws Exception {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		
+		return generator.generateKeyPair();
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.jscep.asn1.IssuerAndSubject;
+import org.jscep.message.PKCSReq;
+import org.jscep.message.PkcsPkiEnvelopeDecoder;
+import org.jscep.message.PkcsPkiEnvelopeEncoder;
+import org.jscep.message.PkiMessageDecoder;
+import org.jscep.message.PkiMessageEncoder;
+import org.jscep.message.SignedPkiMessage;
+import org.jscep.transaction.EnrolmentTransaction;
+import org.jscep.transaction.FailInfo;
+import org.jscep.transaction.Nonce;
+import org.jscep.transaction.Transaction.State;
+import org.jscep.transaction.TransactionId;
+import org.jscep.transport.ConnectionManager;
+import org.jscep.transport.Transport;
+import org.jscep.transport.Transport.Method;
+import org.jscep.util.StreamUtil;
+import org.jscep.x509.X509Util;
+
+public class ScepServerTest extends TestCase {
+	private static KeyPair clientKeyPair;
+	private static X509Certificate client;
+	private static CertificationRequest csr;
+	private CountingAuthority ca;
+	private ScepServer server;
+	private ConnectionManager manager;
+	
+	@Override
+	protected void setUp() throws Exception {
+		if (csr == null) {
+			if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+				Security.addProvider(new BouncyCastleProvider());
+			}
+			final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(1024);
+			clientKeyPair = generator.generateKeyPair();
+			client = X509Util.createEphemeralCertificate(new X500Principal("CN=Client"), clientKeyPair);
+			final PKCS10CertificationRequest p10 = new PKCS10CertificationRequest("SHA1withRSA", new X500Principal("CN=Client"), clientKeyPair.getPublic(), null, clientKeyPair.getPrivate());
+			csr = CertificationRequest.getInstance(ASN1Object.fromByteArray(p10.getEncoded()));
+		}
+		ca = new CountingAuthority();
+		server = new ScepServer(ca);
+		manager = new ConnectionManager();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		ca.release.countDown();
+		server.stop();
+		manager.shutdown();
+	}
+	
+	public void testImmediateIssueWithPost() throws Exception {
+		server.start();
+		final EnrolmentTransaction tx = transaction(Method.POST, "DESede");
+		
+		assertEquals(State.CERT_ISSUED, tx.send());
+		assertIssued(tx);
+		assertEquals(1, ca.enrolments.get());
+	}
+	
+	public void testImmediateIssueWithGetAndAes() throws Exception {
+		server.start();
+		final EnrolmentTransaction tx = transaction(Method.GET, "AES");
+		
+		assertEquals(State.CERT_ISSUED, tx.send());
+		assertIssued(tx);
+	}
+	
+	public void testResponseIsEncryptedWithCipherOfRequest() throws Exception {
+		server.start();
+		
+		assertEquals(OIWObjectIdentifiers.desCBC, enrolAndGetResponseCipher("DES"));
+		assertEquals(PKCSObjectIdentifiers.des_EDE3_CBC, enrolAndGetResponseCipher("DESede"));
+		assertEquals(NISTObjectIdentifiers.id_aes128_CBC, enrolAndGetResponseCipher("AES"));
+	}
+	
+	public void testPendingThenPoll() throws Exception {
+		ca.setPendingPolls(2);
+		server.start();
+		final EnrolmentTransaction tx = transaction(Method.POST, "AES");
+		tx.setIssuer(ca.getCaCertificate());
+		
+		assertEquals(State.CERT_REQ_PENDING, tx.send());
+		assertEquals(State.CERT_REQ_PENDING, tx.poll());
+		assertEquals(State.CERT_ISSUED, tx.poll());
+		assertIssued(tx);
+		assertEquals(1, ca.enrolments.get());
+		assertEquals(2, ca.polls.get());
+	}
+	
+	public void testFailureCarriesFailInfo() throws Exception {
+		ca.setFailInfo(FailInfo.badRequest);
+		server.start();
+		final EnrolmentTransaction tx = transaction(Method.POST, "AES");
+		
+		assertEquals(State.CERT_NON_EXISTANT, tx.send());
+		assertEquals(FailInfo.badRequest, tx.getFailInfo());
+	}
+	
+	public void testDecidedTransactionIsAnsweredFromCache() throws Exception {
+		server.start();
+		final EnrolmentTransaction first = transaction(Method.POST, "AES");
+		assertEquals(State.CERT_ISSUED, first.send());
+		
+		// A retry of the same transaction, with a fresh nonce.
+		final EnrolmentTransaction retry = transaction(Method.POST, "AES");
+		assertEquals(first.getId(), retry.getId());
+		assertEquals(State.CERT_ISSUED, retry.send());
+		retry.setIssuer(ca.getCaCertificate());
+		assertEquals(State.CERT_ISSUED, retry.poll());
+		
+		assertEquals(issued(first), issued(retry));
+		assertEquals(1, ca.enrolments.get());
+		assertEquals(0, ca.polls.get());
+	}
+	
+	public void testFailureIsAnsweredFromCache() throws Exception {
+		ca.setFailInfo(FailInfo.badAlg);
+		server.start();
+		assertEquals(State.CERT_NON_EXISTANT, transaction(Method.POST, "AES").send());
+		
+		// Later changes to the authority do not affect a decided transaction.
+		ca.setFailInfo(null);
+		final EnrolmentTransaction retry = transaction(Method.POST, "AES");
+		assertEquals(State.CERT_NON_EXISTANT, retry.send());
+		assertEquals(FailInfo.badAlg, retry.getFailInfo());
+		assertEquals(1, ca.enrolments.get());
+	}
+	
+	public void testSaturatedServerAsksClientToRetry() throws Exception {
+		server.setStageThreads(1, 1, 1, 1);
+		server.setMaxPendingOperations(1);
+		server.setRetryAfter(7);
+		server.start();
+		ca.block = true;
+		
+		final byte[] body = encoder("AES").encode(new PKCSReq(TransactionId.createTransactionId(), Nonce.nextNonce(), csr)).getEncoded();
+		final AtomicInteger firstStatus = new AtomicInteger();
+		final Thread first = new Thread(new Runnable() {
+			public void run() {
+				try {
+					final HttpURLConnection conn = post(body);
+					firstStatus.set(conn.getResponseCode());
+					response(conn);
+				} catch (IOException e) {
+					firstStatus.set(-1);
+				}
+			}
+		});
+		first.start();
+		assertTrue(ca.entered.await(30, TimeUnit.SECONDS));
+		
+		final HttpURLConnection refused = post(body);
+		assertEquals(503, refused.getResponseCode());
+		assertEquals("7", refused.getHeaderField("Retry-After"));
+		refused.disconnect();
+		
+		ca.release.countDown();
+		first.join(30000);
+		assertEquals(200, firstStatus.get());
+	}
+	
+	public void testStopCompletesAdmittedOperations() throws Exception {
+		server.start();
+		ca.block = true;
+		
+		final byte[] body = encoder("AES").encode(new PKCSReq(TransactionId.createTransactionId(), Nonce.nextNonce(), csr)).getEncoded();
+		final AtomicInteger status = new AtomicInteger();
+		final Thread admitted = new Thread(new Runnable() {
+			public void run() {
+				try {
+					final HttpURLConnection conn = post(body);
+					status.set(conn.getResponseCode());
+					response(conn);
+				} catch (IOException e) {
+					status.set(-1);
+				}
+			}
+		});
+		admitted.start();
+		assertTrue(ca.entered.await(30, TimeUnit.SECONDS));
+		
+		final Thread releaser = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					// Release early
+				}
+				ca.release.countDown();
+			}
+		});
+		releaser.start();
+		server.stop(30);
+		
+		admitted.join(30000);
+		assertEquals(200, status.get());
+	}
+	
+	private ASN1ObjectIdentifier enrolAndGetResponseCipher(String cipher) throws Exception {
+		final byte[] body = encoder(cipher).encode(new PKCSReq(TransactionId.createTransactionId(), Nonce.nextNonce(), csr)).getEncoded();
+		final HttpURLConnection conn = post(body);
+		assertEquals(200, conn.getResponseCode());
+		final SignedPkiMessage response = decoder().verify(new CMSSignedData(response(conn)));
+		
+		return response.getEncryptionAlgorithm();
+	}
+	
+	private HttpURLConnection post(byte[] body) throws IOException {
+		final URL url = new URL(server.getURL() + "?operation=PKIOperation");
+		final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		conn.setRequestProperty("Content-Type", "application/x-pki-message");
+		final OutputStream out = conn.getOutputStream();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+		return conn;
+	}
+	
+	private static byte[] response(HttpURLConnection conn) throws IOException {
+		final InputStream in = conn.getInputStream();
+		try {
+			return StreamUtil.readFully(in);
+		} finally {
+			in.close();
+		}
+	}
+	
+	private EnrolmentTransaction transaction(Method method, String cipher) throws IOException {
+		final Transport transport = Transport.createTransport(method, server.getURL(), Proxy.NO_PROXY, manager);
+		
+		return new EnrolmentTransaction(transport, encoder(cipher), decoder(), csr);
+	}
+	
+	private PkiMessageDecoder decoder() {
+		return new PkiMessageDecoder(new PkcsPkiEnvelopeDecoder(clientKeyPair.getPrivate()), Collections.singleton(ca.getCaCertificate()));
+	}
+	
+	private PkiMessageEncoder encoder(String cipher) {
+		return new PkiMessageEncoder(clientKeyPair.getPrivate(), client, new PkcsPkiEnvelopeEncoder(ca.getCaCertificate(), cipher));
+	}
+	
+	private void assertIssued(EnrolmentTransaction tx) throws Exception {
+		final X509Certificate cert = issued(tx);
+		
+		assertEquals(new X500Principal("CN=Client"), cert.getSubjectX500Principal());
+		assertEquals(clientKeyPair.getPublic(), cert.getPublicKey());
+		cert.verify(ca.getCaCertificate().getPublicKey());
+	}
+	
+	private static X509Certificate issued(EnrolmentTransaction tx) throws Exception {
+		final Collection<?> certs = tx.getCertStore().getCertificates(null);
+		assertEquals(1, certs.size());
+		
+		return (X509Certificate) certs.iterator().next();
+	}
+	
+	/**
+	 * An authority which counts the requests that reach it, and can hold 
+	 * them until released.
+	 */
+	private static final class CountingAuthority extends InMemoryCertificateAuthority {
+		final AtomicInteger enrolments = new AtomicInteger();
+		final AtomicInteger polls = new AtomicInteger();
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		volatile boolean block;
+		
+		CountingAuthority() throws Exception {
+			super(new X500Principal("CN=Test CA"));
+		}
+		
+		@Override
+		public Outcome enrol(TransactionId transId, CertificationRequest csr) throws IOException {
+			enrolments.incrementAndGet();
+			if (block) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return super.enrol(transId, csr);
+		}
+		
+		@Override
+		public Outcome poll(TransactionId transId, IssuerAndSubject ias) throws IOException {
+			polls.incrementAndGet();
+			return super.poll(transId, ias);
+		}
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.security.auth.x500.X500Principal;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.jscep.message.CertRep;
+import org.jscep.message.PkcsPkiEnvelopeDecoder;
+import org.jscep.message.PkcsPkiEnvelopeEncoder;
+import org.jscep.message.PkiMessageDecoder;
+import org.jscep.message.PkiMessageEncoder;
+import org.jscep.transaction.Transaction.State;
+import org.jscep.x509.X509Util;
+
+public class TransactionJournalTest extends TestCase {
+	private static final int SEGMENT_SIZE = 4096;
+	private static KeyPair caKeyPair;
+	private static X509Certificate ca;
+	private static KeyPair clientKeyPair;
+	private static X509Certificate client;
+	private static CertificationRequest csr;
+	private File directory;
+	private TransactionJournal journal;
+	private int nextId;
+	
+	@Override
+	protected void setUp() throws Exception {
+		if (csr == null) {
+			if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+				Security.addProvider(new BouncyCastleProvider());
+			}
+			caKeyPair = generateKeyPair();
+			ca = X509Util.createEphemeralCertificate(new X500Principal("CN=CA"), caKeyPair);
+			clientKeyPair = generateKeyPair();
+			client = X509Util.createEphemeralCertificate(new X500Principal("CN=Client"), clientKeyPair);
+			final PKCS10CertificationRequest p10 = new PKCS10CertificationRequest("SHA1withRSA", new X500Principal("CN=Client"), clientKeyPair.getPublic(), null, clientKeyPair.getPrivate());
+			csr = CertificationRequest.getInstance(ASN1Object.fromByteArray(p10.getEncoded()));
+		}
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+		journal = new TransactionJournal(directory, SEGMENT_SIZE, 0);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		journal.close();
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+	
+	public void testRestoreRoundTrip() throws Exception {
+		final EnrolmentTransaction withIssuer = transaction(ca);
+		final EnrolmentTransaction withoutIssuer = transaction(null);
+		journal.pending(withIssuer);
+		journal.pending(withoutIssuer);
+		reopen();
+		
+		final List<EnrolmentTransaction> restored = restore();
+		assertEquals(2, restored.size());
+		assertRestored(withIssuer, restored.get(0));
+		assertRestored(withoutIssuer, restored.get(1));
+		assertEquals(State.CERT_REQ_PENDING, restored.get(0).getState());
+	}
+	
+	public void testCompletedTransactionIsNotRestored() throws Exception {
+		final EnrolmentTransaction first = transaction(ca);
+		final EnrolmentTransaction second = transaction(ca);
+		journal.pending(first);
+		journal.pending(second);
+		journal.completed(first);
+		reopen();
+		
+		final List<EnrolmentTransaction> restored = restore();
+		assertEquals(1, restored.size());
+		assertEquals(second.getId(), restored.get(0).getId());
+		
+		// A restored transaction journals to the journal it came from.
+		journal.completed(restored.get(0));
+		reopen();
+		assertEquals(0, journal.getPendingCount());
+	}
+	
+	public void testPendingIsRecordedOnce() throws Exception {
+		final EnrolmentTransaction tx = transaction(ca);
+		journal.pending(tx);
+		journal.pending(tx);
+		
+		assertEquals(0, readInt(onlySegment(), recordSize(tx)));
+		assertEquals(1, journal.getPendingCount());
+	}
+	
+	public void testCorruptTailIsDiscarded() throws Exception {
+		final EnrolmentTransaction first = transaction(ca);
+		final EnrolmentTransaction second = transaction(ca);
+		journal.pending(first);
+		journal.pending(second);
+		journal.close();
+		
+		// Flip the last byte of the second record's checksum.
+		final int end = recordSize(first) + recordSize(second);
+		poke(onlySegment(), end - 1, readByte(onlySegment(), end - 1) ^ 0xff);
+		reopenAfterCrash();
+		assertOnly(first);
+		
+		// New records are appended in place of the discarded one.
+		final EnrolmentTransaction third = transaction(ca);
+		journal.pending(third);
+		assertEquals(recordSize(third) - 9, readInt(onlySegment(), recordSize(first)));
+		reopen();
+		final List<EnrolmentTransaction> restored = restore();
+		assertEquals(2, restored.size());
+		assertRestored(first, restored.get(0));
+		assertRestored(third, restored.get(1));
+	}
+	
+	public void testTornLengthIsDiscarded() throws Exception {
+		final EnrolmentTransaction first = transaction(ca);
+		journal.pending(first);
+		journal.pending(transaction(ca));
+		journal.close();
+		
+		// A length running past the end of the segment.
+		pokeInt(onlySegment(), recordSize(first), SEGMENT_SIZE);
+		reopenAfterCrash();
+		assertOnly(first);
+		
+		// The discarded record was cleared, not just skipped.
+		assertEquals(0, readInt(onlySegment(), recordSize(first)));
+		reopen();
+		assertOnly(first);
+	}
+	
+	public void testUnknownRecordTypeIsDiscarded() throws Exception {
+		final EnrolmentTransaction first = transaction(ca);
+		final EnrolmentTransaction second = transaction(ca);
+		journal.pending(first);
+		journal.pending(second);
+		journal.close();
+		
+		// A well-formed record of a type this version does not write.
+		final int start = recordSize(first);
+		final byte[] payload = new byte[recordSize(second) - 9];
+		final RandomAccessFile raf = new RandomAccessFile(onlySegment(), "rw");
+		try {
+			raf.seek(start + 5);
+			raf.readFully(payload);
+			final CRC32 crc = new CRC32();
+			crc.update(99);
+			crc.update(payload);
+			raf.seek(start + 4);
+			raf.write(99);
+			raf.seek(start + 5 + payload.length);
+			raf.writeInt((int) crc.getValue());
+		} finally {
+			raf.close();
+		}
+		reopenAfterCrash();
+		assertOnly(first);
+	}
+	
+	public void testCheckpointSpanningSegments() throws Exception {
+		// Enough pending transactions to need several segments.
+		final List<EnrolmentTransaction> kept = new ArrayList<EnrolmentTransaction>();
+		for (int i = 0; i < 12; i++) {
+			final EnrolmentTransaction tx = transaction(ca);
+			journal.pending(tx);
+			kept.add(tx);
+		}
+		// Churn until a roll has checkpointed all of them.
+		final String oldest = segments().get(0);
+		while (segments().get(0).equals(oldest)) {
+			final EnrolmentTransaction filler = transaction(ca);
+			journal.pending(filler);
+			journal.completed(filler);
+		}
+		assertTrue(segments().toString(), segments().size() >= 3);
+		reopen();
+		
+		final List<EnrolmentTransaction> restored = restore();
+		assertEquals(kept.size(), restored.size());
+		for (int i = 0; i < kept.size(); i++) {
+			assertRestored(kept.get(i), restored.get(i));
+		}
+	}
+	
+	public void testOldSegmentsAreDeleted() throws Exception {
+		final EnrolmentTransaction kept = transaction(ca);
+		journal.pending(kept);
+		for (int i = 0; i < 50; i++) {
+			final EnrolmentTransaction filler = transaction(ca);
+			journal.pending(filler);
+			journal.completed(filler);
+		}
+		
+		final List<String> segments = segments();
+		assertEquals(segments.toString(), 1, segments.size());
+		assertFalse(new File(directory, "journal-0000000000000000.log").exists());
+		reopen();
+		assertOnly(kept);
+	}
+	
+	public void testClosedJournalRejectsRecords() throws Exception {
+		journal.close();
+		try {
+			journal.pending(transaction(ca));
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+	
+	public void testJournalFailureDoesNotHideOutcome() throws Exception {
+		final PkiMessageEncoder encoder = new PkiMessageEncoder(clientKeyPair.getPrivate(), client, new PkcsPkiEnvelopeEncoder(ca));
+		final PkiMessageDecoder decoder = new PkiMessageDecoder(new PkcsPkiEnvelopeDecoder(clientKeyPair.getPrivate()), Collections.singleton(ca));
+		final EnrolmentTransaction tx = new EnrolmentTransaction(null, encoder, decoder, csr);
+		tx.setIssuer(ca);
+		tx.setJournal(journal);
+		journal.close();
+		
+		final PkiMessageEncoder caEncoder = new PkiMessageEncoder(caKeyPair.getPrivate(), ca, new PkcsPkiEnvelopeEncoder(client));
+		final State state = tx.receiveResponse(caEncoder.encode(CertRep.createResponse(tx.getRequest(), FailInfo.badAlg)));
+		
+		assertEquals(State.CERT_NON_EXISTANT, state);
+		assertEquals(FailInfo.badAlg, tx.getFailInfo());
+	}
+	
+	private EnrolmentTransaction transaction(X509Certificate issuer) {
+		final TransactionId id = new TransactionId(("tx-" + nextId++).getBytes());
+		
+		return new EnrolmentTransaction(null, null, null, id, Nonce.nextNonce(), csr, issuer);
+	}
+	
+	private List<EnrolmentTransaction> restore() throws IOException {
+		return journal.restore(null, null, null);
+	}
+	
+	private void reopen() throws IOException {
+		journal.close();
+		reopenAfterCrash();
+	}
+	
+	private void reopenAfterCrash() throws IOException {
+		journal = new TransactionJournal(directory, SEGMENT_SIZE, 0);
+	}
+	
+	private void assertOnly(EnrolmentTransaction tx) throws IOException {
+		final List<EnrolmentTransaction> restored = restore();
+		assertEquals(1, restored.size());
+		assertRestored(tx, restored.get(0));
+	}
+	
+	private static void assertRestored(EnrolmentTransaction expected, EnrolmentTransaction actual) throws IOException {
+		assertEquals(expected.getId(), actual.getId());
+		assertEquals(expected.getRequest().getSenderNonce(), actual.getRequest().getSenderNonce());
+		assertTrue(Arrays.equals(expected.getRequest().getMessageData().getEncoded(), actual.getRequest().getMessageData().getEncoded()));
+		assertEquals(expected.getIssuer(), actual.getIssuer());
+	}
+	
+	private List<String> segments() {
+		final List<String> names = new ArrayList<String>(Arrays.asList(directory.list()));
+		Collections.sort(names);
+		return names;
+	}
+	
+	private File onlySegment() {
+		final List<String> names = segments();
+		assertEquals(1, names.size());
+		return new File(directory, names.get(0));
+	}
+	
+	/**
+	 * Returns the size of the pending record of a transaction: its length,
+	 * type, four length-prefixed fields and checksum.
+	 */
+	private static int recordSize(EnrolmentTransaction tx) throws Exception {
+		final int issuer = tx.getIssuer() == null ? 0 : tx.getIssuer().getEncoded().length;
+		final int payload = 16 + tx.getId().getBytes().length + tx.getRequest().getSenderNonce().getBytes().length + csr.getEncoded().length + issuer;
+		
+		return 4 + 1 + payload + 4;
+	}
+	
+	private static int readInt(File file, long offset) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(offset);
+			return raf.readInt();
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static int readByte(File file, long offset) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(offset);
+			return raf.read();
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static void poke(File file, long offset, int b) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(offset);
+			raf.write(b);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static void pokeInt(File file, long offset, int value) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(offset);
+			raf.writeInt(value);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static KeyPair generateKeyPair() throws Exception {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		
+		return generator.generateKeyPair();
+	}
+}
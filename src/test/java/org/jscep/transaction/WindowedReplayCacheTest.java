@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class WindowedReplayCacheTest extends TestCase {
+	// Two segments of 64 slots, each of which holds 48 nonces.
+	private static final long SMALL_BUDGET = 2 * 64 * 17;
+	
+	public void testDuplicateIsRejected() {
+		final WindowedReplayCache cache = new WindowedReplayCache(1, TimeUnit.HOURS, 1 << 20);
+		final Nonce nonce = Nonce.nextNonce();
+		
+		assertTrue(cache.add(nonce));
+		assertFalse(cache.add(nonce));
+		assertFalse(cache.add(new Nonce(nonce.getBytes().clone())));
+		assertEquals(1, cache.size());
+	}
+	
+	public void testShortNonceIsDigested() {
+		final WindowedReplayCache cache = new WindowedReplayCache(1, TimeUnit.HOURS, 1 << 20);
+		
+		assertTrue(cache.add(new Nonce(new byte[] {1, 2, 3})));
+		assertFalse(cache.add(new Nonce(new byte[] {1, 2, 3})));
+		assertTrue(cache.add(new Nonce(new byte[] {1, 2, 4})));
+	}
+	
+	public void testZeroNonce() {
+		final WindowedReplayCache cache = new WindowedReplayCache(1, TimeUnit.HOURS, 1 << 20);
+		
+		assertTrue(cache.add(new Nonce(new byte[16])));
+		assertFalse(cache.add(new Nonce(new byte[16])));
+	}
+	
+	public void testDistinctNoncesAreAccepted() {
+		final WindowedReplayCache cache = new WindowedReplayCache(1, TimeUnit.HOURS, 1 << 24);
+		final List<Nonce> nonces = new ArrayList<Nonce>();
+		for (int i = 0; i < 10000; i++) {
+			final Nonce nonce = Nonce.nextNonce();
+			nonces.add(nonce);
+			assertTrue(cache.add(nonce));
+		}
+		for (Nonce nonce : nonces) {
+			assertFalse(cache.add(nonce));
+		}
+		assertEquals(0, cache.getEarlyRotations());
+	}
+	
+	public void testDuplicateIsRejectedAfterRotation() throws Exception {
+		final WindowedReplayCache cache = new WindowedReplayCache(3, TimeUnit.SECONDS, 4, 1 << 20);
+		final Nonce nonce = Nonce.nextNonce();
+		
+		assertTrue(cache.add(nonce));
+		// Let the first segment end, so that the nonce is in an older segment.
+		Thread.sleep(1200);
+		assertTrue(cache.add(Nonce.nextNonce()));
+		assertFalse(cache.add(nonce));
+	}
+	
+	public void testNonceIsForgottenAfterWindow() throws Exception {
+		final WindowedReplayCache cache = new WindowedReplayCache(200, TimeUnit.MILLISECONDS, 2, 1 << 20);
+		final Nonce nonce = Nonce.nextNonce();
+		
+		assertTrue(cache.add(nonce));
+		Thread.sleep(500);
+		assertTrue(cache.add(nonce));
+	}
+	
+	public void testFullSegmentRotatesEarly() {
+		final WindowedReplayCache cache = new WindowedReplayCache(1, TimeUnit.HOURS, 2, SMALL_BUDGET);
+		assertEquals(48, cache.getSegmentCapacity());
+		final Nonce first = Nonce.nextNonce();
+		assertTrue(cache.add(first));
+		for (int i = 1; i < 49; i++) {
+			assertTrue(cache.add(Nonce.nextNonce()));
+		}
+		assertEquals(1, cache.getEarlyRotations());
+		// The first segment is now the older segment.
+		assertFalse(cache.add(first));
+		
+		for (int i = 1; i < 49; i++) {
+			assertTrue(cache.add(Nonce.nextNonce()));
+		}
+		assertEquals(2, cache.getEarlyRotations());
+		// The first segment has been recycled.
+		assertTrue(cache.add(first));
+		assertTrue(cache.getMemoryUsage() <= SMALL_BUDGET);
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.jscep.util.StreamUtil;
+
+public class ChunkedStreamTest extends TestCase {
+	private static final int CHUNK_SIZE = 16;
+	
+	public void testEmptyBodyRoundTrip() throws Exception {
+		final byte[] encoded = encode(new byte[0], 1);
+		
+		assertEquals("0\r\n\r\n", new String(encoded, "ISO-8859-1"));
+		assertEquals(0, decode(encoded).length);
+	}
+	
+	public void testRoundTripAcrossChunkBoundaries() throws Exception {
+		final Random random = new Random(42);
+		for (int length : new int[] {1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 10 * CHUNK_SIZE + 3}) {
+			for (int write : new int[] {1, 5, CHUNK_SIZE, 100}) {
+				final byte[] body = new byte[length];
+				random.nextBytes(body);
+				
+				assertTrue(length + "/" + write, Arrays.equals(body, decode(encode(body, write))));
+			}
+		}
+	}
+	
+	public void testSingleByteReads() throws Exception {
+		final byte[] body = "The quick brown fox jumps over the lazy dog".getBytes("US-ASCII");
+		final InputStream in = new ChunkedInputStream(new ByteArrayInputStream(encode(body, 7)));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1) {
+			out.write(b);
+		}
+		
+		assertTrue(Arrays.equals(body, out.toByteArray()));
+		assertEquals(-1, in.read());
+	}
+	
+	public void testExtensionsAndTrailersAreIgnored() throws Exception {
+		final String encoded = "5;name=value\r\nhello\r\n1 \r\n!\r\n0\r\nExpires: never\r\n\r\nNEXT";
+		final InputStream raw = new ByteArrayInputStream(encoded.getBytes("ISO-8859-1"));
+		
+		assertEquals("hello!", new String(StreamUtil.readFully(new ChunkedInputStream(raw)), "ISO-8859-1"));
+		// The next message on the connection is left unread.
+		assertEquals('N', raw.read());
+	}
+	
+	public void testBareLineFeedsAreAccepted() throws Exception {
+		assertEquals("abc", new String(decode("3\nabc\n0\n\n".getBytes("ISO-8859-1")), "ISO-8859-1"));
+	}
+	
+	public void testCloseWritesLastChunkOnce() throws Exception {
+		final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		final ChunkedOutputStream out = new ChunkedOutputStream(raw, CHUNK_SIZE);
+		out.write(new byte[] {'a', 'b'});
+		out.close();
+		out.close();
+		
+		assertEquals("2\r\nab\r\n0\r\n\r\n", raw.toString("ISO-8859-1"));
+	}
+	
+	public void testNonHexChunkSizeIsRejected() throws Exception {
+		assertMalformed("zz\r\nhello\r\n0\r\n\r\n");
+	}
+	
+	public void testEmptyChunkSizeIsRejected() throws Exception {
+		assertMalformed("\r\nhello\r\n0\r\n\r\n");
+	}
+	
+	public void testNegativeChunkSizeIsRejected() throws Exception {
+		assertMalformed("-5\r\nhello\r\n0\r\n\r\n");
+	}
+	
+	public void testOverflowingChunkSizeIsRejected() throws Exception {
+		assertMalformed("1ffffffffffffffff\r\nhello\r\n0\r\n\r\n");
+	}
+	
+	public void testTruncatedChunkIsRejected() throws Exception {
+		assertMalformed("a\r\nhello");
+	}
+	
+	public void testMissingLastChunkIsRejected() throws Exception {
+		assertMalformed("5\r\nhello\r\n");
+	}
+	
+	private static void assertMalformed(String encoded) throws Exception {
+		try {
+			decode(encoded.getBytes("ISO-8859-1"));
+			fail(encoded);
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+	
+	private static byte[] encode(byte[] body, int writeSize) throws IOException {
+		final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		final ChunkedOutputStream out = new ChunkedOutputStream(raw, CHUNK_SIZE);
+		for (int off = 0; off < body.length; off += writeSize) {
+			final int len = Math.min(writeSize, body.length - off);
+			if (len == 1) {
+				out.write(body[off]);
+			} else {
+				out.write(body, off, len);
+			}
+		}
+		out.close();
+		
+		return raw.toByteArray();
+	}
+	
+	private static byte[] decode(byte[] encoded) throws IOException {
+		return StreamUtil.readFully(new ChunkedInputStream(new ByteArrayInputStream(encoded)));
+	}
+}
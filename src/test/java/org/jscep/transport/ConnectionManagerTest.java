@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jscep.content.CaCapabilitiesContentHandler;
+import org.jscep.request.GetCaCaps;
+import org.jscep.response.Capabilities;
+import org.jscep.response.Capability;
+
+public class ConnectionManagerTest extends TestCase {
+	private LoopbackServer server;
+	private ConnectionManager manager;
+	private URL url;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new LoopbackServer();
+		manager = new ConnectionManager(2, 200, TimeUnit.MILLISECONDS);
+		url = new URL("http://127.0.0.1:" + server.getPort() + "/scep");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		manager.shutdown();
+		server.close();
+	}
+	
+	public void testConnectionIsReused() throws Exception {
+		final Transport transport = Transport.createTransport(Transport.Method.GET, url, Proxy.NO_PROXY, manager);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(getCaps(transport).contains(Capability.POST_PKI_OPERATION));
+		}
+		
+		assertEquals(1, server.connections.get());
+		assertEquals(3, server.requests.get());
+		assertEquals(1, manager.getIdleConnectionCount());
+	}
+	
+	public void testLeaseReturnsMostRecentConnection() throws Exception {
+		final HttpConnection first = manager.lease(url, Proxy.NO_PROXY, false);
+		assertFalse(first.isReused());
+		exchange(first);
+		manager.release(first);
+		
+		final HttpConnection second = manager.lease(url, Proxy.NO_PROXY, false);
+		assertSame(first, second);
+		assertTrue(second.isReused());
+		manager.discard(second);
+		
+		assertEquals(0, manager.getIdleConnectionCount());
+	}
+	
+	public void testFreshLeaseOpensNewConnection() throws Exception {
+		final HttpConnection first = manager.lease(url, Proxy.NO_PROXY, false);
+		exchange(first);
+		manager.release(first);
+		
+		final HttpConnection second = manager.lease(url, Proxy.NO_PROXY, true);
+		assertNotSame(first, second);
+		assertFalse(second.isReused());
+		exchange(second);
+		manager.discard(second);
+		
+		assertEquals(2, server.connections.get());
+	}
+	
+	public void testIdleConnectionIsEvicted() throws Exception {
+		final HttpConnection conn = manager.lease(url, Proxy.NO_PROXY, false);
+		exchange(conn);
+		manager.release(conn);
+		assertEquals(0, manager.closeIdleConnections());
+		
+		Thread.sleep(300);
+		assertEquals(1, manager.closeIdleConnections());
+		assertEquals(0, manager.getIdleConnectionCount());
+		assertTrue(conn.isClosed());
+		
+		final HttpConnection next = manager.lease(url, Proxy.NO_PROXY, false);
+		assertNotSame(conn, next);
+		manager.discard(next);
+	}
+	
+	public void testLeaseWaitsForRouteLimit() throws Exception {
+		manager.setLeaseTimeout(100);
+		final HttpConnection first = manager.lease(url, Proxy.NO_PROXY, false);
+		final HttpConnection second = manager.lease(url, Proxy.NO_PROXY, false);
+		try {
+			manager.lease(url, Proxy.NO_PROXY, false);
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+		manager.discard(first);
+		manager.discard(manager.lease(url, Proxy.NO_PROXY, false));
+		manager.discard(second);
+	}
+	
+	public void testStaleConnectionIsRetried() throws Exception {
+		server.closeAfterResponse = true;
+		final Transport transport = Transport.createTransport(Transport.Method.GET, url, Proxy.NO_PROXY, manager);
+		
+		getCaps(transport);
+		// The server has closed the pooled connection without saying so.
+		assertTrue(getCaps(transport).contains(Capability.POST_PKI_OPERATION));
+		assertEquals(2, server.connections.get());
+	}
+	
+	public void testReadTimeoutIsNotRetried() throws Exception {
+		manager.setReadTimeout(300);
+		server.stallAfter = 1;
+		final Transport transport = Transport.createTransport(Transport.Method.GET, url, Proxy.NO_PROXY, manager);
+		
+		getCaps(transport);
+		// The server accepts the second request, but never answers it.
+		try {
+			getCaps(transport);
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+		assertEquals(2, server.requests.get());
+		assertEquals(1, server.connections.get());
+	}
+	
+	public void testNegativeContentLengthIsRejected() throws Exception {
+		server.contentLength = "-5";
+		final HttpConnection conn = manager.lease(url, Proxy.NO_PROXY, false);
+		try {
+			conn.writeRequest("GET", new URL(url + "?operation=GetCACaps"), null, null, false);
+			conn.readResponse();
+			fail();
+		} catch (IOException e) {
+			assertEquals("Invalid Content-Length: -5", e.getMessage());
+		} finally {
+			manager.discard(conn);
+		}
+	}
+	
+	public void testConnectionCloseIsNotPooled() throws Exception {
+		server.connectionClose = true;
+		final Transport transport = Transport.createTransport(Transport.Method.GET, url, Proxy.NO_PROXY, manager);
+		
+		getCaps(transport);
+		getCaps(transport);
+		assertEquals(0, manager.getIdleConnectionCount());
+		assertEquals(2, server.connections.get());
+	}
+	
+	public void testShutdownClosesIdleConnections() throws Exception {
+		final HttpConnection conn = manager.lease(url, Proxy.NO_PROXY, false);
+		exchange(conn);
+		manager.release(conn);
+		manager.shutdown();
+		
+		assertTrue(conn.isClosed());
+		try {
+			manager.lease(url, Proxy.NO_PROXY, false);
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+	
+	private Capabilities getCaps(Transport transport) throws IOException {
+		return transport.sendRequest(new GetCaCaps(new CaCapabilitiesContentHandler()));
+	}
+	
+	private void exchange(HttpConnection conn) throws IOException {
+		conn.writeRequest("GET", new URL(url + "?operation=GetCACaps"), null, null, false);
+		conn.readResponse();
+		assertEquals(200, conn.getResponseCode());
+		assertTrue(conn.drainResponseBody(ConnectionManager.MAX_DRAIN));
+	}
+	
+	/**
+	 * A server which answers every request with a fixed capabilities list.
+	 */
+	private static final class LoopbackServer implements Runnable {
+		private static final String BODY = "POSTPKIOperation\nSHA-1\n";
+		final AtomicInteger connections = new AtomicInteger();
+		final AtomicInteger requests = new AtomicInteger();
+		final ServerSocket socket;
+		volatile boolean closeAfterResponse;
+		volatile boolean connectionClose;
+		volatile int stallAfter = Integer.MAX_VALUE;
+		volatile String contentLength;
+		
+		LoopbackServer() throws IOException {
+			socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+			final Thread thread = new Thread(this, "loopback-server");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		int getPort() {
+			return socket.getLocalPort();
+		}
+		
+		public void run() {
+			while (socket.isClosed() == false) {
+				final Socket client;
+				try {
+					client = socket.accept();
+				} catch (IOException e) {
+					return;
+				}
+				connections.incrementAndGet();
+				final Thread thread = new Thread(new Runnable() {
+					public void run() {
+						serve(client);
+					}
+				});
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		
+		private void serve(Socket client) {
+			try {
+				final InputStream in = client.getInputStream();
+				final OutputStream out = client.getOutputStream();
+				while (true) {
+					String line = HttpConnection.readLine(in);
+					if (line == null) {
+						break;
+					}
+					while (line != null && line.length() > 0) {
+						line = HttpConnection.readLine(in);
+					}
+					if (requests.incrementAndGet() > stallAfter) {
+						// Hold the request until the client gives up.
+						while (in.read() != -1) {
+							// Discard
+						}
+						break;
+					}
+					
+					final StringBuilder sb = new StringBuilder();
+					sb.append("HTTP/1.1 200 OK\r\n");
+					sb.append("Content-Type: text/plain\r\n");
+					sb.append("Content-Length: ").append(contentLength == null ? String.valueOf(BODY.length()) : contentLength).append("\r\n");
+					if (connectionClose) {
+						sb.append("Connection: close\r\n");
+					}
+					sb.append("\r\n").append(BODY);
+					out.write(sb.toString().getBytes("ISO-8859-1"));
+					out.flush();
+					if (closeAfterResponse || connectionClose) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// Client went away
+			} finally {
+				try {
+					client.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+		}
+		
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+}
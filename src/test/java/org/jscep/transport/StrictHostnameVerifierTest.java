@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2010 ThruPoint Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jscep.transport;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSession;
+import javax.security.auth.x500.X500Principal;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+
+public class StrictHostnameVerifierTest extends TestCase {
+	private static KeyPair keyPair;
+	private final StrictHostnameVerifier verifier = StrictHostnameVerifier.INSTANCE;
+	
+	@Override
+	protected void setUp() throws Exception {
+		if (keyPair == null) {
+			final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(1024);
+			keyPair = generator.generateKeyPair();
+		}
+	}
+	
+	public void testExactNameMatches() throws Exception {
+		final X509Certificate cert = certificate("CN=ignored", dns("www.example.com"));
+		
+		assertTrue(verifier.verify("www.example.com", cert));
+		assertTrue(verifier.verify("WWW.Example.COM", cert));
+		assertTrue(verifier.verify("www.example.com.", cert));
+		assertFalse(verifier.verify("example.com", cert));
+		assertFalse(verifier.verify("www.example.org", cert));
+	}
+	
+	public void testWildcardCoversOneLabel() throws Exception {
+		final X509Certificate cert = certificate("CN=ignored", dns("*.example.com"));
+		
+		assertTrue(verifier.verify("www.example.com", cert));
+		assertFalse(verifier.verify("example.com", cert));
+		assertFalse(verifier.verify(".example.com", cert));
+		assertFalse(verifier.verify("a.b.example.com", cert));
+		assertFalse(verifier.verify("wwwexample.com", cert));
+	}
+	
+	public void testWildcardNeedsTwoFurtherLabels() throws Exception {
+		final X509Certificate cert = certificate("CN=ignored", dns("*.com"));
+		
+		assertFalse(verifier.verify("example.com", cert));
+	}
+	
+	public void testPartialWildcardIsLiteral() throws Exception {
+		final X509Certificate cert = certificate("CN=ignored", dns("w*.example.com"));
+		
+		assertFalse(verifier.verify("www.example.com", cert));
+	}
+	
+	public void testCommonNameUsedWithoutDnsName() throws Exception {
+		assertTrue(verifier.verify("www.example.com", certificate("O=Example, CN=www.example.com")));
+		// The first common name of the string form is the most specific.
+		assertTrue(verifier.verify("www.example.com", certificate("CN=www.example.com, CN=other.example.com")));
+		assertFalse(verifier.verify("other.example.com", certificate("CN=www.example.com, CN=other.example.com")));
+	}
+	
+	public void testCommonNameIgnoredWithDnsName() throws Exception {
+		final X509Certificate cert = certificate("CN=www.example.com", dns("other.example.com"));
+		
+		assertFalse(verifier.verify("www.example.com", cert));
+	}
+	
+	public void testAddressMatchesIpAddressEntry() throws Exception {
+		final X509Certificate cert = certificate("CN=ignored", new GeneralName(GeneralName.iPAddress, "127.0.0.1"));
+		
+		assertTrue(verifier.verify("127.0.0.1", cert));
+		assertFalse(verifier.verify("127.0.0.2", cert));
+	}
+	
+	public void testAddressNeverMatchesNames() throws Exception {
+		assertFalse(verifier.verify("127.0.0.1", certificate("CN=ignored", dns("127.0.0.1"))));
+		assertFalse(verifier.verify("127.0.0.1", certificate("CN=127.0.0.1")));
+		assertFalse(verifier.verify("127.0.0.1", certificate("CN=ignored", dns("*.0.0.1"))));
+	}
+	
+	public void testBracketedIpv6Address() throws Exception {
+		final X509Certificate cert = certificate("CN=ignored", new GeneralName(GeneralName.iPAddress, "::1"));
+		
+		assertTrue(verifier.verify("[::1]", cert));
+		assertTrue(verifier.verify("0:0:0:0:0:0:0:1", cert));
+		assertFalse(verifier.verify("[::2]", cert));
+	}
+	
+	public void testDefaultVerifierFallsBackToHttpsDefault() throws Exception {
+		final SSLSession session = session(certificate("CN=ignored", dns("www.example.com")));
+		final HostnameVerifier manager = new ConnectionManager().getHostnameVerifier();
+		final HostnameVerifier original = HttpsURLConnection.getDefaultHostnameVerifier();
+		
+		assertTrue(manager.verify("www.example.com", session));
+		assertFalse(manager.verify("www.example.org", session));
+		HttpsURLConnection.setDefaultHostnameVerifier(new HostnameVerifier() {
+			public boolean verify(String host, SSLSession s) {
+				return host.equals("www.example.org");
+			}
+		});
+		try {
+			assertTrue(manager.verify("www.example.org", session));
+			assertFalse(manager.verify("www.example.net", session));
+		} finally {
+			HttpsURLConnection.setDefaultHostnameVerifier(original);
+		}
+	}
+	
+	public void testExplicitVerifierReplacesDefault() throws Exception {
+		final ConnectionManager manager = new ConnectionManager();
+		final HostnameVerifier none = new HostnameVerifier() {
+			public boolean verify(String host, SSLSession s) {
+				return false;
+			}
+		};
+		manager.setHostnameVerifier(none);
+		
+		assertSame(none, manager.getHostnameVerifier());
+	}
+	
+	private static GeneralName dns(String name) {
+		return new GeneralName(GeneralName.dNSName, name);
+	}
+	
+	private static X509Certificate certificate(String subject, GeneralName... altNames) throws Exception {
+		final long now = System.currentTimeMillis();
+		
+		final X509V3CertificateGenerator gen = new X509V3CertificateGenerator();
+		gen.setSerialNumber(BigInteger.valueOf(now));
+		gen.setIssuerDN(new X500Principal("CN=Issuer"));
+		gen.setSubjectDN(new X500Principal(subject));
+		gen.setNotBefore(new Date(now - 60000));
+		gen.setNotAfter(new Date(now + 60000));
+		gen.setPublicKey(keyPair.getPublic());
+		gen.setSignatureAlgorithm("SHA1withRSA");
+		if (altNames.length > 0) {
+			gen.addExtension(X509Extensions.SubjectAlternativeName, false, new GeneralNames(new DERSequence(altNames)));
+		}
+		return gen.generate(keyPair.getPrivate());
+	}
+	
+	private static SSLSession session(final X509Certificate cert) {
+		return (SSLSession) java.lang.reflect.Proxy.newProxyInstance(SSLSession.class.getClassLoader(), new Class<?>[] {SSLSession.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getPeerCertificates")) {
+					return new Certificate[] {cert};
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+}